@@ -0,0 +1,159 @@
+package com.transferwise.envoy.xds;
+
+import com.google.protobuf.Message;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
+import com.transferwise.envoy.xds.api.StateBacklogFactory;
+import com.transferwise.envoy.xds.api.utils.MergingStateBacklog;
+import com.transferwise.envoy.xds.api.utils.QueueingStateBacklog;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures DiscoveryServiceManager.pushUpdates through the full add and remove ordering of every discovery service type, with fake discovery services
+ * that are acked by the client as soon as they send anything.
+ * Each invocation pushes a burst of updates to every client and then acks until every client is idle again. Updates after the first in a burst go through the
+ * state backlog, since the first is still waiting for acks.
+ * This isolates the cost of the manager itself: the fake services don't build or send any resources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiscoveryServiceManagerBenchmark {
+
+    @Param({"1", "100"})
+    public int clientCount;
+
+    @Param({"1", "4"})
+    public int burst;
+
+    @Param({"merging", "queueing"})
+    public String backlog;
+
+    @Param({"sequential", "default"})
+    public String pushOrder;
+
+    private static final int STATES = 64;
+
+    private List<EndpointsState> states;
+
+    private int nextState = 1;
+
+    private final Queue<CommonDiscoveryRequest<Message>> acks = new ArrayDeque<>();
+
+    private final List<DiscoveryServiceManager<Message, EndpointsState>> clients = new ArrayList<>();
+
+    private static final class AutoAckingDiscoveryService implements DiscoveryService<Message, EndpointsState> {
+
+        private final TypeUrl typeUrl;
+
+        private final CommonDiscoveryRequest<Message> ack;
+
+        private final Queue<CommonDiscoveryRequest<Message>> acks;
+
+        private boolean awaitingAck = false;
+
+        private EndpointsState state = null;
+
+        AutoAckingDiscoveryService(TypeUrl typeUrl, Queue<CommonDiscoveryRequest<Message>> acks) {
+            this.typeUrl = typeUrl;
+            this.acks = acks;
+            this.ack = CommonDiscoveryRequest.builder().typeUrl(typeUrl.getTypeUrl()).build();
+        }
+
+        @Override
+        public void processUpdate(CommonDiscoveryRequest<Message> value) {
+            awaitingAck = false;
+        }
+
+        @Override
+        public boolean awaitingAck() {
+            return awaitingAck;
+        }
+
+        @Override
+        public void init(EndpointsState state) {
+            this.state = state;
+        }
+
+        @Override
+        public void onNetworkUpdate(EndpointsState changes) {
+            this.state = changes;
+        }
+
+        @Override
+        public void sendNetworkUpdatePre() {
+            send();
+        }
+
+        @Override
+        public void sendNetworkUpdatePost() {
+            send();
+        }
+
+        private void send() {
+            if (state.getChanged().isEmpty()) {
+                return;
+            }
+            awaitingAck = true;
+            acks.add(ack);
+        }
+
+        @Override
+        public TypeUrl getTypeUrl() {
+            return typeUrl;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        states = EndpointsState.sequence(STATES, 100, 1, 1);
+        StateBacklogFactory<EndpointsState> backlogFactory = "merging".equals(backlog) ? MergingStateBacklog.factory() : QueueingStateBacklog.factory();
+        PushOrder order = "default".equals(pushOrder) ? PushOrder.DEFAULT : PushOrder.sequential(TypeUrl.ADD_ORDER, TypeUrl.REMOVE_ORDER);
+        for (int i = 0; i < clientCount; ++i) {
+            Map<TypeUrl, DiscoveryService<Message, EndpointsState>> services = new EnumMap<>(TypeUrl.class);
+            for (TypeUrl typeUrl : TypeUrl.values()) {
+                services.put(typeUrl, new AutoAckingDiscoveryService(typeUrl, acks));
+            }
+            DiscoveryServiceManager<Message, EndpointsState> dsm = new DiscoveryServiceManager<>(services, order, backlogFactory.build(),
+                DiscoveryServiceManagerMetrics.NOOP_METRICS);
+            dsm.init(states.get(0));
+            clients.add(dsm);
+        }
+    }
+
+    private EndpointsState nextState() {
+        EndpointsState state = states.get(nextState);
+        nextState = nextState + 1 == STATES ? 1 : nextState + 1;
+        return state;
+    }
+
+    @Benchmark
+    public int pushUpdates() {
+        int acked = 0;
+        for (DiscoveryServiceManager<Message, EndpointsState> dsm : clients) {
+            for (int i = 0; i < burst; ++i) {
+                dsm.pushUpdates(nextState());
+            }
+            CommonDiscoveryRequest<Message> ack;
+            while ((ack = acks.poll()) != null) {
+                dsm.processUpdate(ack);
+                ++acked;
+            }
+        }
+        return acked;
+    }
+
+}
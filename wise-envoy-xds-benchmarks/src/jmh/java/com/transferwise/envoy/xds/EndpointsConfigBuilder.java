@@ -0,0 +1,48 @@
+package com.transferwise.envoy.xds;
+
+import com.transferwise.envoy.xds.api.IncrementalConfigBuilder;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import java.util.function.Predicate;
+
+/**
+ * Benchmark config builder for EndpointsState. Changes are all sent in add order, nothing is ever removed.
+ */
+public class EndpointsConfigBuilder implements IncrementalConfigBuilder<ClusterLoadAssignment, EndpointsState, Object> {
+
+    @Override
+    public Response<ClusterLoadAssignment> addOrder(EndpointsState diff, Predicate<String> resourceInSubListChange, Object clientDetails) {
+        Response.ResponseBuilder<ClusterLoadAssignment> builder = Response.builder();
+        for (String name : diff.getChanged()) {
+            if (resourceInSubListChange.test(name)) {
+                builder.addAndUpdate(NamedMessage.of(diff.getAll().get(name)));
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public Response<ClusterLoadAssignment> removeOrder(EndpointsState diff, Predicate<String> resourceInSubListChange, Object clientDetails) {
+        return Response.<ClusterLoadAssignment>builder().build();
+    }
+
+    @Override
+    public Resources<ClusterLoadAssignment> getResourcesAddOrder(EndpointsState services, Predicate<String> resourceInSubListChange, Object clientDetails) {
+        Resources.ResourcesBuilder<ClusterLoadAssignment> builder = Resources.builder();
+        services.getAll().forEach((name, cla) -> {
+            if (resourceInSubListChange.test(name)) {
+                builder.resource(NamedMessage.of(cla));
+            }
+        });
+        return builder.build();
+    }
+
+    @Override
+    public Resources<ClusterLoadAssignment> getResourcesRemoveOrder(EndpointsState services, Predicate<String> resourceInSubListChange, Object clientDetails) {
+        return getResourcesAddOrder(services, resourceInSubListChange, clientDetails);
+    }
+
+    @Override
+    public Class<ClusterLoadAssignment> handlesType() {
+        return ClusterLoadAssignment.class;
+    }
+}
@@ -0,0 +1,72 @@
+package com.transferwise.envoy.xds;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.transferwise.envoy.xds.api.Mergeable;
+import io.envoyproxy.envoy.config.core.v3.Address;
+import io.envoyproxy.envoy.config.core.v3.SocketAddress;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.config.endpoint.v3.Endpoint;
+import io.envoyproxy.envoy.config.endpoint.v3.LbEndpoint;
+import io.envoyproxy.envoy.config.endpoint.v3.LocalityLbEndpoints;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Value;
+
+/**
+ * Benchmark state update: the full set of cluster load assignments, plus the names of the ones that changed in this update.
+ * Use sequence() to build the states up front, so that building them isn't part of what is being measured.
+ */
+@Value
+public class EndpointsState implements Mergeable<EndpointsState> {
+
+    ImmutableMap<String, ClusterLoadAssignment> all;
+
+    ImmutableSet<String> changed;
+
+    @Override
+    public EndpointsState merge(EndpointsState update) {
+        return new EndpointsState(update.all, ImmutableSet.<String>builder().addAll(changed).addAll(update.changed).build());
+    }
+
+    /**
+     * Build a sequence of states, each changing the endpoints of the next changesPerUpdate clusters (wrapping around.)
+     * The first state is a full state with every cluster marked as changed.
+     * @param length Number of states to return, including the first.
+     */
+    public static List<EndpointsState> sequence(int length, int resourceCount, int endpointsPerResource, int changesPerUpdate) {
+        Map<String, ClusterLoadAssignment> all = new LinkedHashMap<>();
+        for (int i = 0; i < resourceCount; ++i) {
+            all.put(clusterName(i), clusterLoadAssignment(i, endpointsPerResource, 0));
+        }
+        List<EndpointsState> states = new ArrayList<>(length);
+        states.add(new EndpointsState(ImmutableMap.copyOf(all), ImmutableSet.copyOf(all.keySet())));
+        int next = 0;
+        for (int generation = 1; generation < length; ++generation) {
+            ImmutableSet.Builder<String> changed = ImmutableSet.builder();
+            for (int i = 0; i < changesPerUpdate; ++i) {
+                int cluster = next;
+                next = (next + 1) % resourceCount;
+                all.put(clusterName(cluster), clusterLoadAssignment(cluster, endpointsPerResource, generation));
+                changed.add(clusterName(cluster));
+            }
+            states.add(new EndpointsState(ImmutableMap.copyOf(all), changed.build()));
+        }
+        return states;
+    }
+
+    private static String clusterName(int i) {
+        return "cluster-" + i;
+    }
+
+    private static ClusterLoadAssignment clusterLoadAssignment(int cluster, int endpoints, int generation) {
+        LocalityLbEndpoints.Builder builder = LocalityLbEndpoints.newBuilder();
+        for (int j = 0; j < endpoints; ++j) {
+            builder.addLbEndpoints(LbEndpoint.newBuilder().setEndpoint(Endpoint.newBuilder().setAddress(Address.newBuilder().setSocketAddress(
+                SocketAddress.newBuilder().setAddress("10." + (generation % 256) + "." + (cluster % 256) + "." + j).setPortValue(8080)))));
+        }
+        return ClusterLoadAssignment.newBuilder().setClusterName(clusterName(cluster)).addEndpoints(builder).build();
+    }
+}
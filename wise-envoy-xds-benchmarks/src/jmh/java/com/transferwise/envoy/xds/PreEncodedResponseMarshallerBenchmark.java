@@ -0,0 +1,129 @@
+package com.transferwise.envoy.xds;
+
+import com.google.protobuf.Any;
+import io.envoyproxy.envoy.config.core.v3.Address;
+import io.envoyproxy.envoy.config.core.v3.SocketAddress;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.config.endpoint.v3.Endpoint;
+import io.envoyproxy.envoy.config.endpoint.v3.LbEndpoint;
+import io.envoyproxy.envoy.config.endpoint.v3.LocalityLbEndpoints;
+import io.envoyproxy.envoy.service.discovery.v3.AggregatedDiscoveryServiceGrpc;
+import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryResponse;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryResponse;
+import io.envoyproxy.envoy.service.discovery.v3.Resource;
+import io.grpc.Drainable;
+import io.grpc.MethodDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the stock protobuf response marshaller with PreEncodedResponseMarshaller when fanning the same EDS update out to many clients.
+ * Each invocation marshals the response for one client: the resources are the same Any instances every time (as they would be with a PackedResourceCache),
+ * only the nonce and version differ.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PreEncodedResponseMarshallerBenchmark {
+
+    @Param({"10", "1000"})
+    public int resourceCount;
+
+    @Param({"10"})
+    public int endpointsPerResource;
+
+    private List<Any> resources;
+
+    private long nonce = 0;
+
+    private MethodDescriptor.Marshaller<DiscoveryResponse> stockSotw;
+    private MethodDescriptor.Marshaller<DiscoveryResponse> preEncodedSotw;
+    private MethodDescriptor.Marshaller<DeltaDiscoveryResponse> stockDelta;
+    private MethodDescriptor.Marshaller<DeltaDiscoveryResponse> preEncodedDelta;
+
+    @Setup
+    public void setup() {
+        resources = new ArrayList<>(resourceCount);
+        for (int i = 0; i < resourceCount; ++i) {
+            LocalityLbEndpoints.Builder endpoints = LocalityLbEndpoints.newBuilder();
+            for (int j = 0; j < endpointsPerResource; ++j) {
+                endpoints.addLbEndpoints(LbEndpoint.newBuilder().setEndpoint(Endpoint.newBuilder().setAddress(Address.newBuilder().setSocketAddress(
+                    SocketAddress.newBuilder().setAddress("10.0." + (i % 256) + "." + j).setPortValue(8080)))));
+            }
+            resources.add(Any.pack(ClusterLoadAssignment.newBuilder().setClusterName("cluster-" + i).addEndpoints(endpoints).build()));
+        }
+        PreEncodedResponseMarshaller.EncodedResourceCache cache = new PreEncodedResponseMarshaller.EncodedResourceCache(resourceCount * 2L);
+        stockSotw = AggregatedDiscoveryServiceGrpc.getStreamAggregatedResourcesMethod().getResponseMarshaller();
+        preEncodedSotw = PreEncodedResponseMarshaller.sotw(stockSotw, cache);
+        stockDelta = AggregatedDiscoveryServiceGrpc.getDeltaAggregatedResourcesMethod().getResponseMarshaller();
+        preEncodedDelta = PreEncodedResponseMarshaller.delta(stockDelta, cache);
+    }
+
+    private DiscoveryResponse sotwResponse() {
+        String version = Long.toString(++nonce);
+        return DiscoveryResponse.newBuilder()
+            .setVersionInfo(version)
+            .addAllResources(resources)
+            .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+            .setNonce(version)
+            .build();
+    }
+
+    private DeltaDiscoveryResponse deltaResponse() {
+        String version = Long.toString(++nonce);
+        DeltaDiscoveryResponse.Builder builder = DeltaDiscoveryResponse.newBuilder();
+        for (int i = 0; i < resources.size(); ++i) {
+            builder.addResources(Resource.newBuilder().setName("cluster-" + i).setVersion(version).setResource(resources.get(i)));
+        }
+        return builder
+            .setSystemVersionInfo(version)
+            .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+            .setNonce(version)
+            .build();
+    }
+
+    private static <T> void write(MethodDescriptor.Marshaller<T> marshaller, T response, Blackhole bh) throws IOException {
+        // This is what grpc does with the stream: drain it into its own buffers if possible, otherwise copy it.
+        InputStream stream = marshaller.stream(response);
+        OutputStream out = OutputStream.nullOutputStream();
+        if (stream instanceof Drainable drainable) {
+            bh.consume(drainable.drainTo(out));
+        } else {
+            bh.consume(stream.transferTo(out));
+        }
+    }
+
+    @Benchmark
+    public void sotwStock(Blackhole bh) throws IOException {
+        write(stockSotw, sotwResponse(), bh);
+    }
+
+    @Benchmark
+    public void sotwPreEncoded(Blackhole bh) throws IOException {
+        write(preEncodedSotw, sotwResponse(), bh);
+    }
+
+    @Benchmark
+    public void deltaStock(Blackhole bh) throws IOException {
+        write(stockDelta, deltaResponse(), bh);
+    }
+
+    @Benchmark
+    public void deltaPreEncoded(Blackhole bh) throws IOException {
+        write(preEncodedDelta, deltaResponse(), bh);
+    }
+
+}
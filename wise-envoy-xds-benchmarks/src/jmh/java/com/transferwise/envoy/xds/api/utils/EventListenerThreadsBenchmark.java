@@ -0,0 +1,109 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compares platform and virtual threads for QueueingEventListener, with one mostly idle listener per connected client.
+ * The benchmark measures wake-up latency: the time from handing an update to an idle listener until its delegate has processed it.
+ * The memory footprint of the idle listeners (resident set size, which includes platform thread stacks, and heap, which includes virtual thread stacks) is
+ * printed during setup.
+ * Virtual threads need JDK 21 or later. On older JDKs the virtual case fails its setup with UnsupportedOperationException, which JMH reports before going
+ * on with the rest, rather than quietly measuring platform threads twice.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EventListenerThreadsBenchmark {
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"1000", "10000"})
+    public int listeners;
+
+    private final List<QueueingEventListener<Long>> running = new ArrayList<>();
+
+    private AtomicLongArray processed;
+
+    private long sequence = 0;
+
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        ThreadFactory threadFactory = "virtual".equals(threads) ? ThreadedQueuingEventListener.virtualThreads() : ThreadedQueuingEventListener.platformThreads();
+        processed = new AtomicLongArray(listeners);
+
+        System.gc();
+        long rssBefore = residentSetSize();
+        long heapBefore = usedHeap();
+        for (int i = 0; i < listeners; ++i) {
+            final int index = i;
+            running.add(QueueingEventListener.createAndStart(diff -> processed.set(index, diff), threadFactory));
+        }
+        // Give everything a chance to park.
+        Thread.sleep(1000);
+        System.gc();
+        long rssAfter = residentSetSize();
+        long heapAfter = usedHeap();
+        System.out.printf("%n%d idle %s listeners: %d KiB RSS (%d bytes each), %d KiB heap (%d bytes each)%n",
+            listeners, threads, (rssAfter - rssBefore) / 1024, (rssAfter - rssBefore) / listeners, (heapAfter - heapBefore) / 1024, (heapAfter - heapBefore) / listeners);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        running.forEach(QueueingEventListener::close);
+        running.forEach(QueueingEventListener::waitUntilFinished);
+        running.clear();
+    }
+
+    @Benchmark
+    public long wakeUp() {
+        // Round-robin across the listeners, so we're always waking up one that has been idle for a while.
+        int index = next;
+        next = (next + 1) % listeners;
+        long value = ++sequence;
+        running.get(index).onNetworkChange(value);
+        while (processed.get(index) != value) {
+            Thread.onSpinWait();
+        }
+        return value;
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long residentSetSize() {
+        // Linux only, thread stacks aren't visible through the MemoryMXBean.
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Fall through
+        }
+        return 0;
+    }
+
+}
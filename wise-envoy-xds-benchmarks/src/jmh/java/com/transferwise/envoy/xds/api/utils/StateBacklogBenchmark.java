@@ -0,0 +1,55 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import com.transferwise.envoy.xds.EndpointsState;
+import com.transferwise.envoy.xds.api.StateBacklog;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the StateBacklog implementations: a burst of updates arrives while a client is busy, and then the client drains the backlog.
+ * For MergingStateBacklog the cost is dominated by merging (here, unioning the changed resource names), for QueueingStateBacklog by the queue itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StateBacklogBenchmark {
+
+    @Param({"merging", "queueing"})
+    public String backlog;
+
+    @Param({"1", "16"})
+    public int burst;
+
+    @Param({"1", "100"})
+    public int changesPerUpdate;
+
+    private List<EndpointsState> states;
+
+    private StateBacklog<EndpointsState> stateBacklog;
+
+    @Setup
+    public void setup() {
+        states = EndpointsState.sequence(burst + 1, 1000, 1, changesPerUpdate).subList(1, burst + 1);
+        stateBacklog = "merging".equals(backlog) ? MergingStateBacklog.<EndpointsState>factory().build() : QueueingStateBacklog.<EndpointsState>factory().build();
+    }
+
+    @Benchmark
+    public void putAndDrain(Blackhole bh) {
+        for (EndpointsState state : states) {
+            stateBacklog.put(state);
+        }
+        while (!stateBacklog.isEmpty()) {
+            bh.consume(stateBacklog.take());
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.transferwise.envoy.xds.delta;
+
+import com.transferwise.envoy.xds.CommonDiscoveryRequest;
+import com.transferwise.envoy.xds.EndpointsConfigBuilder;
+import com.transferwise.envoy.xds.EndpointsState;
+import com.transferwise.envoy.xds.NodeConfig;
+import com.transferwise.envoy.xds.TypeUrl;
+import com.transferwise.envoy.xds.XdsConfig;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryRequest;
+import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryResponse;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures pushing an EDS update through IncrementalDiscoveryService to every client: building the response (including packing every changed resource)
+ * and processing the client's ack.
+ * Every client is subscribed to everything using a wildcard.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IncrementalDiscoveryServiceBenchmark {
+
+    @Param({"100", "1000"})
+    public int resourceCount;
+
+    @Param({"1", "100"})
+    public int clientCount;
+
+    @Param({"10"})
+    public int changesPerUpdate;
+
+    private static final int STATES = 64;
+
+    private List<EndpointsState> states;
+
+    private int nextState = 1;
+
+    private final List<Client> clients = new ArrayList<>();
+
+    private static final class Client implements StreamObserver<DeltaDiscoveryResponse> {
+
+        private final IncrementalDiscoveryService<ClusterLoadAssignment, EndpointsState, Object> service;
+
+        private DeltaDiscoveryResponse lastResponse = null;
+
+        Client(EndpointsConfigBuilder configBuilder) {
+            NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+            service = new IncrementalDiscoveryService<>(TypeUrl.EDS, this, configBuilder, nodeConfig, new WildcardSubManager(nodeConfig));
+        }
+
+        void ack() {
+            service.processUpdate(CommonDiscoveryRequest.<DeltaDiscoveryRequest>builder()
+                .typeUrl(TypeUrl.EDS.getTypeUrl())
+                .message(DeltaDiscoveryRequest.newBuilder()
+                    .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+                    .setResponseNonce(lastResponse.getNonce())
+                    .build())
+                .build());
+        }
+
+        @Override
+        public void onNext(DeltaDiscoveryResponse value) {
+            lastResponse = value;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+
+    @Setup
+    public void setup() {
+        states = EndpointsState.sequence(STATES, resourceCount, 10, changesPerUpdate);
+        EndpointsConfigBuilder configBuilder = new EndpointsConfigBuilder();
+        for (int i = 0; i < clientCount; ++i) {
+            Client client = new Client(configBuilder);
+            client.service.init(states.get(0));
+            client.service.processUpdate(CommonDiscoveryRequest.<DeltaDiscoveryRequest>builder()
+                .typeUrl(TypeUrl.EDS.getTypeUrl())
+                .message(DeltaDiscoveryRequest.newBuilder().setTypeUrl(TypeUrl.EDS.getTypeUrl()).build())
+                .build());
+            client.ack();
+            clients.add(client);
+        }
+    }
+
+    @Benchmark
+    public int pushResources() {
+        EndpointsState state = states.get(nextState);
+        nextState = nextState + 1 == STATES ? 1 : nextState + 1;
+        int sent = 0;
+        for (Client client : clients) {
+            client.service.onNetworkUpdate(state);
+            client.service.sendNetworkUpdatePre();
+            client.ack();
+            client.service.sendNetworkUpdatePost();
+            sent += client.lastResponse.getResourcesCount();
+        }
+        return sent;
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.transferwise.envoy.xds.delta;
+
+import com.transferwise.envoy.xds.CommonDiscoveryRequest;
+import com.transferwise.envoy.xds.EndpointsConfigBuilder;
+import com.transferwise.envoy.xds.EndpointsState;
+import com.transferwise.envoy.xds.NodeConfig;
+import com.transferwise.envoy.xds.TypeUrl;
+import com.transferwise.envoy.xds.XdsConfig;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
+import com.transferwise.envoy.xds.api.NonceStrategy;
+import com.transferwise.envoy.xds.api.utils.CounterNonceStrategy;
+import com.transferwise.envoy.xds.api.utils.UuidNonceStrategy;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryRequest;
+import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryResponse;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures throughput of many streams pushing at once, with each NonceStrategy.
+ * Every operation pushes a one-resource EDS update to every stream, and acks it, with the streams split between one thread per core.
+ * The updates are kept small so that per-response overhead, including generating the nonce, is a large part of the cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NonceStrategyBenchmark {
+
+    @Param({"counter", "uuid"})
+    public String nonceStrategy;
+
+    @Param({"1000"})
+    public int streamCount;
+
+    private static final int STATES = 64;
+
+    private List<EndpointsState> states;
+
+    private int nextState = 1;
+
+    private final List<List<Stream>> slices = new ArrayList<>();
+
+    private ExecutorService executor;
+
+    private static final class Stream implements StreamObserver<DeltaDiscoveryResponse> {
+
+        private final IncrementalDiscoveryService<ClusterLoadAssignment, EndpointsState, Object> service;
+
+        private DeltaDiscoveryResponse lastResponse = null;
+
+        Stream(EndpointsConfigBuilder configBuilder, NonceStrategy nonceStrategy) {
+            NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+            service = new IncrementalDiscoveryService<>(TypeUrl.EDS, this, configBuilder, nodeConfig, new WildcardSubManager(nodeConfig), null,
+                DiscoveryServiceManagerMetrics.NOOP_METRICS, nonceStrategy.newGenerator());
+        }
+
+        void ack() {
+            service.processUpdate(CommonDiscoveryRequest.of(DeltaDiscoveryRequest.newBuilder()
+                .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+                .setResponseNonce(lastResponse.getNonce())
+                .build(), null, TypeUrl.EDS.getTypeUrl(), null));
+        }
+
+        void push(EndpointsState state) {
+            service.onNetworkUpdate(state);
+            service.sendNetworkUpdatePre();
+            ack();
+            service.sendNetworkUpdatePost();
+        }
+
+        @Override
+        public void onNext(DeltaDiscoveryResponse value) {
+            lastResponse = value;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        NonceStrategy strategy = switch (nonceStrategy) {
+            case "counter" -> new CounterNonceStrategy();
+            case "uuid" -> new UuidNonceStrategy();
+            default -> throw new IllegalArgumentException("Unknown nonce strategy " + nonceStrategy);
+        };
+        states = EndpointsState.sequence(STATES, 100, 1, 1);
+        EndpointsConfigBuilder configBuilder = new EndpointsConfigBuilder();
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int t = 0; t < threads; ++t) {
+            slices.add(new ArrayList<>());
+        }
+        for (int i = 0; i < streamCount; ++i) {
+            Stream stream = new Stream(configBuilder, strategy);
+            stream.service.init(states.get(0));
+            stream.service.processUpdate(CommonDiscoveryRequest.of(DeltaDiscoveryRequest.newBuilder().setTypeUrl(TypeUrl.EDS.getTypeUrl()).build(), null,
+                TypeUrl.EDS.getTypeUrl(), null));
+            stream.ack();
+            slices.get(i % threads).add(stream);
+        }
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int pushToAllStreams() throws InterruptedException, ExecutionException {
+        EndpointsState state = states.get(nextState);
+        nextState = nextState + 1 == STATES ? 1 : nextState + 1;
+        List<Callable<Integer>> tasks = new ArrayList<>(slices.size());
+        for (List<Stream> slice : slices) {
+            tasks.add(() -> {
+                int sent = 0;
+                for (Stream stream : slice) {
+                    stream.push(state);
+                    sent += stream.lastResponse.getResourcesCount();
+                }
+                return sent;
+            });
+        }
+        int sent = 0;
+        for (Future<Integer> result : executor.invokeAll(tasks)) {
+            sent += result.get();
+        }
+        return sent;
+    }
+
+}
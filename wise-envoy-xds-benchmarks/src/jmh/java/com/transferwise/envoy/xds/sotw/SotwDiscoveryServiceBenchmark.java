@@ -0,0 +1,119 @@
+package com.transferwise.envoy.xds.sotw;
+
+import com.transferwise.envoy.xds.CommonDiscoveryRequest;
+import com.transferwise.envoy.xds.EndpointsConfigBuilder;
+import com.transferwise.envoy.xds.EndpointsState;
+import com.transferwise.envoy.xds.NodeConfig;
+import com.transferwise.envoy.xds.TypeUrl;
+import com.transferwise.envoy.xds.XdsConfig;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryRequest;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryResponse;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures pushing an EDS update through SotwDiscoveryService to every client: building the response (which, being state of the world, packs every
+ * resource and not just the changed ones) and processing the client's ack.
+ * Every client is subscribed to everything using a wildcard.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SotwDiscoveryServiceBenchmark {
+
+    @Param({"100", "1000"})
+    public int resourceCount;
+
+    @Param({"1", "100"})
+    public int clientCount;
+
+    @Param({"10"})
+    public int changesPerUpdate;
+
+    private static final int STATES = 64;
+
+    private List<EndpointsState> states;
+
+    private int nextState = 1;
+
+    private final List<Client> clients = new ArrayList<>();
+
+    private static final class Client implements StreamObserver<DiscoveryResponse> {
+
+        private final SotwDiscoveryService<ClusterLoadAssignment, EndpointsState, Object> service;
+
+        private DiscoveryResponse lastResponse = null;
+
+        Client(EndpointsConfigBuilder configBuilder) {
+            NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+            service = new SotwDiscoveryService<>(TypeUrl.EDS, this, new WildcardSubManager(), new VersionManager(), configBuilder, nodeConfig);
+        }
+
+        void ack() {
+            service.processUpdate(CommonDiscoveryRequest.<DiscoveryRequest>builder()
+                .typeUrl(TypeUrl.EDS.getTypeUrl())
+                .message(DiscoveryRequest.newBuilder()
+                    .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+                    .setVersionInfo(lastResponse.getVersionInfo())
+                    .setResponseNonce(lastResponse.getNonce())
+                    .build())
+                .build());
+        }
+
+        @Override
+        public void onNext(DiscoveryResponse value) {
+            lastResponse = value;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+
+    @Setup
+    public void setup() {
+        states = EndpointsState.sequence(STATES, resourceCount, 10, changesPerUpdate);
+        EndpointsConfigBuilder configBuilder = new EndpointsConfigBuilder();
+        for (int i = 0; i < clientCount; ++i) {
+            Client client = new Client(configBuilder);
+            client.service.init(states.get(0));
+            client.service.processUpdate(CommonDiscoveryRequest.<DiscoveryRequest>builder()
+                .typeUrl(TypeUrl.EDS.getTypeUrl())
+                .message(DiscoveryRequest.newBuilder().setTypeUrl(TypeUrl.EDS.getTypeUrl()).build())
+                .build());
+            client.ack();
+            clients.add(client);
+        }
+    }
+
+    @Benchmark
+    public int pushResources() {
+        EndpointsState state = states.get(nextState);
+        nextState = nextState + 1 == STATES ? 1 : nextState + 1;
+        int sent = 0;
+        for (Client client : clients) {
+            client.service.onNetworkUpdate(state);
+            client.service.sendNetworkUpdatePre();
+            client.ack();
+            client.service.sendNetworkUpdatePost();
+            sent += client.lastResponse.getResourcesCount();
+        }
+        return sent;
+    }
+
+}
@@ -1,11 +1,14 @@
 package com.transferwise.envoy.xds;
 
 import com.google.common.base.Preconditions;
-import com.google.protobuf.Any;
+import com.google.common.hash.Hashing;
 import com.google.protobuf.Message;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
 import com.transferwise.envoy.xds.api.IncrementalConfigBuilder;
+import com.transferwise.envoy.xds.api.SubscribedResources;
 import lombok.extern.slf4j.Slf4j;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 import java.util.function.Predicate;
 
@@ -18,16 +21,59 @@ public abstract class AbstractDiscoveryService<T extends Message, E extends Mess
 
     private final NodeConfig<DetailsT> nodeConfig;
 
+    private final PackedResourceCache packedResourceCache;
+
+    private final DiscoveryServiceManagerMetrics metrics;
+
     private StateUpdT currentState = null;
 
     private SubState currentSubState = SubState.COMPLETED;
 
     private boolean active = false;
 
+    /**
+     * If set, the equivalence class of clients this discovery service is in is tracked here, see ClientClasses.
+     */
+    private final ClientClasses clientClasses;
+
+    private ClientClasses.Membership clientClass = null;
+
     public AbstractDiscoveryService(TypeUrl myTypeUrl, IncrementalConfigBuilder<E, StateUpdT, DetailsT> configBuilder, NodeConfig<DetailsT> nodeConfig) {
+        this(myTypeUrl, configBuilder, nodeConfig, null);
+    }
+
+    /**
+     * Create a discovery service.
+     * @param packedResourceCache Cache of packed resources shared with other discovery services, or null to pack every resource on every push.
+     */
+    public AbstractDiscoveryService(TypeUrl myTypeUrl, IncrementalConfigBuilder<E, StateUpdT, DetailsT> configBuilder, NodeConfig<DetailsT> nodeConfig, PackedResourceCache packedResourceCache) {
+        this(myTypeUrl, configBuilder, nodeConfig, packedResourceCache, DiscoveryServiceManagerMetrics.NOOP_METRICS);
+    }
+
+    /**
+     * Create a discovery service.
+     * @param packedResourceCache Cache of packed resources shared with other discovery services, or null to pack every resource on every push.
+     * @param metrics Metrics for the stream this discovery service belongs to.
+     */
+    public AbstractDiscoveryService(TypeUrl myTypeUrl, IncrementalConfigBuilder<E, StateUpdT, DetailsT> configBuilder, NodeConfig<DetailsT> nodeConfig, PackedResourceCache packedResourceCache,
+                                    DiscoveryServiceManagerMetrics metrics) {
+        this(myTypeUrl, configBuilder, nodeConfig, packedResourceCache, metrics, null);
+    }
+
+    /**
+     * Create a discovery service.
+     * @param packedResourceCache Cache of packed resources shared with other discovery services, or null to pack every resource on every push.
+     * @param metrics Metrics for the stream this discovery service belongs to.
+     * @param clientClasses Where to track which clients share config with which, or null not to.
+     */
+    public AbstractDiscoveryService(TypeUrl myTypeUrl, IncrementalConfigBuilder<E, StateUpdT, DetailsT> configBuilder, NodeConfig<DetailsT> nodeConfig, PackedResourceCache packedResourceCache,
+                                    DiscoveryServiceManagerMetrics metrics, ClientClasses clientClasses) {
+        this.clientClasses = clientClasses;
         this.myTypeUrl = myTypeUrl;
         this.configBuilder = configBuilder;
         this.nodeConfig = nodeConfig;
+        this.packedResourceCache = packedResourceCache;
+        this.metrics = metrics;
     }
 
     protected abstract void processRequest(T value);
@@ -38,18 +84,52 @@ public abstract class AbstractDiscoveryService<T extends Message, E extends Mess
         if (value.getTypeUrl() == null) {
             throw new RuntimeException("Missing type URL on request");
         }
-        TypeUrl typeUrl = TypeUrl.of(value.getTypeUrl());
+        TypeUrl typeUrl = value.getResolvedTypeUrl();
         if (!myTypeUrl.equals(typeUrl)) {
             throw new RuntimeException(myTypeUrl.name() + " discovery service got called for request of type " + typeUrl.name());
         }
         active = true;
         processRequest(value.getMessage());
+        if (clientClasses != null) {
+            updateClientClass();
+        }
+    }
+
+    /**
+     * Move to another class of clients if envoy changed its subscriptions.
+     */
+    private void updateClientClass() {
+        SubscribedResources subscriptions = subFilter();
+        if (clientClass != null && clientClass.subscriptions().equals(subscriptions)) {
+            return;
+        }
+        leaveClientClass();
+        clientClass = clientClasses.join(nodeConfig, myTypeUrl, subscriptions);
+        metrics.onClientClassJoined(myTypeUrl, clientClass.size());
+    }
+
+    private void leaveClientClass() {
+        if (clientClass != null) {
+            metrics.onClientClassLeft(myTypeUrl, clientClasses.leave(clientClass));
+            clientClass = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (clientClasses != null) {
+            leaveClientClass();
+        }
     }
 
     protected SubState getCurrentSubState() {
         return currentSubState;
     }
 
+    protected DiscoveryServiceManagerMetrics getMetrics() {
+        return metrics;
+    }
+
     protected void checkSubNames(IncrementalConfigBuilder.Resources<E> resources, Predicate<String> resourceInSubListChange) {
         if (resources.getResources().stream()
                 .anyMatch(m -> !resourceInSubListChange.test(m.getName()))) {
@@ -70,11 +150,13 @@ public abstract class AbstractDiscoveryService<T extends Message, E extends Mess
 
     protected IncrementalConfigBuilder.Resources<E> getResources(Predicate<String> resourceInSubListChange) {
         final IncrementalConfigBuilder.Resources<E> resources;
+        long start = System.nanoTime();
         if (SubState.PRE.equals(currentSubState)) {
             resources = configBuilder.getResourcesAddOrder(currentState, resourceInSubListChange, nodeConfig.getXdsConfig().getClientDetails());
         } else {
             resources = configBuilder.getResourcesRemoveOrder(currentState, resourceInSubListChange, nodeConfig.getXdsConfig().getClientDetails());
         }
+        metrics.onConfigBuilderInvoked(myTypeUrl, System.nanoTime() - start);
         checkSubNames(resources, resourceInSubListChange);
         return resources;
     }
@@ -101,7 +183,7 @@ public abstract class AbstractDiscoveryService<T extends Message, E extends Mess
         currentSubState = SubState.PRE;
     }
 
-    protected abstract Predicate<String> subFilter();
+    protected abstract SubscribedResources subFilter();
 
     protected boolean updateState(IncrementalConfigBuilder.Response<E> response) {
         return true;
@@ -118,8 +200,11 @@ public abstract class AbstractDiscoveryService<T extends Message, E extends Mess
             // b) It might return stuff. Envoy gets really angry if ADS returns a message type that it never requested.
             return Optional.empty();
         }
-        IncrementalConfigBuilder.Response<E> resources = configBuilder.addOrder(currentState, subFilter(), nodeConfig.getXdsConfig().getClientDetails());
-        checkSubNames(resources, subFilter());
+        SubscribedResources filter = subFilter();
+        long start = System.nanoTime();
+        IncrementalConfigBuilder.Response<E> resources = configBuilder.addOrder(currentState, filter, nodeConfig.getXdsConfig().getClientDetails());
+        metrics.onConfigBuilderInvoked(myTypeUrl, System.nanoTime() - start);
+        checkSubNames(resources, filter);
         if (updateState(resources)) {
             return Optional.of(resources);
         }
@@ -145,8 +230,11 @@ public abstract class AbstractDiscoveryService<T extends Message, E extends Mess
             // b) It might return stuff. Envoy gets really angry if ADS returns a message type that it never requested.
             return Optional.empty();
         }
-        IncrementalConfigBuilder.Response<E> resources = configBuilder.removeOrder(currentState, subFilter(), nodeConfig.getXdsConfig().getClientDetails());
-        checkSubNames(resources, subFilter());
+        SubscribedResources filter = subFilter();
+        long start = System.nanoTime();
+        IncrementalConfigBuilder.Response<E> resources = configBuilder.removeOrder(currentState, filter, nodeConfig.getXdsConfig().getClientDetails());
+        metrics.onConfigBuilderInvoked(myTypeUrl, System.nanoTime() - start);
+        checkSubNames(resources, filter);
         if (updateState(resources)) {
             return Optional.of(resources);
         }
@@ -159,8 +247,23 @@ public abstract class AbstractDiscoveryService<T extends Message, E extends Mess
         applyPost().ifPresent(this::pushNewState);
     }
 
-    protected Any pack(Message o) {
-        return Any.pack(o);
+    protected PackedResourceCache.Packed pack(Message o) {
+        if (packedResourceCache != null) {
+            return packedResourceCache.packWithHash(o);
+        }
+        return PackedResourceCache.Packed.of(o);
+    }
+
+    /**
+     * 64-bit hash of a packed resource and its name, for telling whether a client already has exactly this resource.
+     * Resources are packed deterministically, so this is stable across clients, streams and control plane restarts.
+     * Only the name is hashed here, the resource itself was hashed once when it was packed.
+     */
+    protected static long fingerprint(String name, PackedResourceCache.Packed packed) {
+        return Hashing.murmur3_128().newHasher()
+            .putString(name, StandardCharsets.UTF_8)
+            .putLong(packed.contentHash())
+            .hash().asLong();
     }
 
     @Override
@@ -38,10 +38,22 @@ public class AggregatedDiscoveryService<StateUpdT, DetailsT> extends AggregatedD
         ImmutableList<XdsEventListener<DetailsT>> listeners,
         StateBacklogFactory<StateUpdT> stateBacklogFactory,
         Supplier<DiscoveryServiceManagerMetrics> metricsFactory
+    ) {
+        this(clusterManager, configBuilders, clientConfigSource, listeners, stateBacklogFactory, metricsFactory, DiscoveryServiceOptions.DEFAULTS);
+    }
+
+    public AggregatedDiscoveryService(
+        ClusterEventSource<StateUpdT> clusterManager,
+        ImmutableList<IncrementalConfigBuilder<?, StateUpdT, DetailsT>> configBuilders,
+        ClientConfigProvider<DetailsT> clientConfigSource,
+        ImmutableList<XdsEventListener<DetailsT>> listeners,
+        StateBacklogFactory<StateUpdT> stateBacklogFactory,
+        Supplier<DiscoveryServiceManagerMetrics> metricsFactory,
+        DiscoveryServiceOptions options
     ) {
         this(
-            sotwAggregatedDiscoveryService(clusterManager, configBuilders, clientConfigSource, listeners, stateBacklogFactory, metricsFactory),
-            deltaAggregatedDiscoveryService(clusterManager, configBuilders, clientConfigSource, listeners, stateBacklogFactory, metricsFactory)
+            sotwAggregatedDiscoveryService(clusterManager, configBuilders, clientConfigSource, listeners, stateBacklogFactory, metricsFactory, options),
+            deltaAggregatedDiscoveryService(clusterManager, configBuilders, clientConfigSource, listeners, stateBacklogFactory, metricsFactory, options)
         );
     }
 
@@ -63,8 +75,21 @@ public class AggregatedDiscoveryService<StateUpdT, DetailsT> extends AggregatedD
         StateBacklogFactory<StateUpdT> stateBacklogFactory,
         Supplier<DiscoveryServiceManagerMetrics> metricsFactory
     ) {
-        var discoveryServiceManagerFactory = new DiscoveryServiceManagerFactory<>(new SotwDiscoveryServiceFactory<>(configBuilders), stateBacklogFactory);
-        return new SotwAggregatedDiscoveryService<>(clusterManager, discoveryServiceManagerFactory, clientConfigSource, listeners, metricsFactory);
+        return sotwAggregatedDiscoveryService(clusterManager, configBuilders, clientConfigSource, listeners, stateBacklogFactory, metricsFactory, DiscoveryServiceOptions.DEFAULTS);
+    }
+
+    public static <StateUpdT, DetailsT> SotwAggregatedDiscoveryService<StateUpdT, DetailsT> sotwAggregatedDiscoveryService(
+        ClusterEventSource<StateUpdT> clusterManager,
+        ImmutableList<IncrementalConfigBuilder<?, StateUpdT, DetailsT>> configBuilders,
+        ClientConfigProvider<DetailsT> clientConfigSource,
+        ImmutableList<XdsEventListener<DetailsT>> listeners,
+        StateBacklogFactory<StateUpdT> stateBacklogFactory,
+        Supplier<DiscoveryServiceManagerMetrics> metricsFactory,
+        DiscoveryServiceOptions options
+    ) {
+        var discoveryServiceManagerFactory = new DiscoveryServiceManagerFactory<>(new SotwDiscoveryServiceFactory<>(configBuilders, options), stateBacklogFactory, options.getPushOrder(),
+            options.getPushAdmissionController(), options.getMaxBufferedResponseBytes(), options.getStreamExecutor());
+        return new SotwAggregatedDiscoveryService<>(clusterManager, discoveryServiceManagerFactory, clientConfigSource, listeners, metricsFactory, sessionResumptionCache(options));
     }
 
     public static <StateUpdT, DetailsT> DeltaAggregatedDiscoveryService<StateUpdT, DetailsT> deltaAggregatedDiscoveryService(
@@ -75,8 +100,28 @@ public class AggregatedDiscoveryService<StateUpdT, DetailsT> extends AggregatedD
         StateBacklogFactory<StateUpdT> stateBacklogFactory,
         Supplier<DiscoveryServiceManagerMetrics> metricsFactory
     ) {
-        var discoveryServiceManagerFactory = new DiscoveryServiceManagerFactory<>(new IncrementalDiscoveryServiceFactory<>(configBuilders), stateBacklogFactory);
-        return new DeltaAggregatedDiscoveryService<>(clusterManager, discoveryServiceManagerFactory, clientConfigSource, listeners, metricsFactory);
+        return deltaAggregatedDiscoveryService(clusterManager, configBuilders, clientConfigSource, listeners, stateBacklogFactory, metricsFactory, DiscoveryServiceOptions.DEFAULTS);
+    }
+
+    public static <StateUpdT, DetailsT> DeltaAggregatedDiscoveryService<StateUpdT, DetailsT> deltaAggregatedDiscoveryService(
+        ClusterEventSource<StateUpdT> clusterManager,
+        List<IncrementalConfigBuilder<?, StateUpdT, DetailsT>> configBuilders,
+        ClientConfigProvider<DetailsT> clientConfigSource,
+        ImmutableList<XdsEventListener<DetailsT>> listeners,
+        StateBacklogFactory<StateUpdT> stateBacklogFactory,
+        Supplier<DiscoveryServiceManagerMetrics> metricsFactory,
+        DiscoveryServiceOptions options
+    ) {
+        var discoveryServiceManagerFactory = new DiscoveryServiceManagerFactory<>(new IncrementalDiscoveryServiceFactory<>(configBuilders, options), stateBacklogFactory, options.getPushOrder(),
+            options.getPushAdmissionController(), options.getMaxBufferedResponseBytes(), options.getStreamExecutor());
+        return new DeltaAggregatedDiscoveryService<>(clusterManager, discoveryServiceManagerFactory, clientConfigSource, listeners, metricsFactory, sessionResumptionCache(options));
+    }
+
+    private static <DetailsT> SessionResumptionCache<DetailsT> sessionResumptionCache(DiscoveryServiceOptions options) {
+        if (options.getSessionResumptionCacheSize() <= 0) {
+            return null;
+        }
+        return new SessionResumptionCache<>(options.getSessionResumptionCacheSize(), options.getSessionResumptionTtl());
     }
 
 }
@@ -0,0 +1,75 @@
+package com.transferwise.envoy.xds;
+
+import com.transferwise.envoy.xds.api.SubscribedResources;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Groups clients into equivalence classes: for each discovery service type, clients with equal NodeConfig and equal subscriptions get exactly the same
+ * config, so work done for one of them can be shared with the rest.
+ * The sharing itself happens in CachingConfigBuilder (building), PackedResourceCache (packing) and PreEncodedResponseMarshaller (serializing), which key on
+ * the same things. NodeConfig and SubscribedResources instances are interned, so members of a class hold the same instances and those lookups mostly compare
+ * by identity. This keeps count of the classes, so you can see how much sharing there is to be had: with few classes of many clients the caches do well,
+ * with a class per client they only cost memory.
+ * Discovery services join a class once envoy first asks for their type, move when envoy changes its subscriptions, and leave when the stream ends. Each
+ * move is reported through DiscoveryServiceManagerMetrics.onClientClassJoined and onClientClassLeft.
+ * Share one instance between every stream (e.g. through DiscoveryServiceOptions.clientClasses). This class is thread safe.
+ */
+public final class ClientClasses {
+
+    private final ConcurrentMap<ClientClass, Integer> sizes = new ConcurrentHashMap<>();
+
+    /**
+     * Add a client to its class.
+     * @return the class, to be passed to leave when the client leaves it, and its size now the client has joined.
+     */
+    Membership join(NodeConfig<?> nodeConfig, TypeUrl typeUrl, SubscribedResources subscriptions) {
+        ClientClass clientClass = new ClientClass(nodeConfig, typeUrl, subscriptions);
+        return new Membership(clientClass, sizes.merge(clientClass, 1, Integer::sum));
+    }
+
+    /**
+     * Remove a client from a class it joined.
+     * @return the size of the class now the client has left it.
+     */
+    int leave(Membership membership) {
+        Integer size = sizes.computeIfPresent(membership.clientClass(), (c, n) -> n > 1 ? n - 1 : null);
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * How many classes have at least one client, across all types.
+     */
+    public int classCount() {
+        return sizes.size();
+    }
+
+    /**
+     * How many classes have at least one client, for one type.
+     */
+    public int classCount(TypeUrl typeUrl) {
+        return (int) sizes.keySet().stream().filter(c -> c.typeUrl() == typeUrl).count();
+    }
+
+    /**
+     * How many clients are in the largest class of a type, zero if there are none.
+     */
+    public int largestClassSize(TypeUrl typeUrl) {
+        return sizes.entrySet().stream().filter(e -> e.getKey().typeUrl() == typeUrl).mapToInt(e -> e.getValue()).max().orElse(0);
+    }
+
+    record ClientClass(NodeConfig<?> nodeConfig, TypeUrl typeUrl, SubscribedResources subscriptions) {
+    }
+
+    record Membership(ClientClass clientClass, int size) {
+
+        TypeUrl typeUrl() {
+            return clientClass.typeUrl();
+        }
+
+        SubscribedResources subscriptions() {
+            return clientClass.subscriptions();
+        }
+    }
+}
@@ -14,6 +14,24 @@ import lombok.Value;
 public class CommonDiscoveryRequest<RequestT extends Message> {
     Node node;
     String typeUrl;
+    TypeUrl resolvedTypeUrl;
     RequestT message;
     Status errorDetail;
+
+    /**
+     * Wrap a request, resolving its type URL once so that each layer that handles it doesn't have to look it up again.
+     */
+    public static <RequestT extends Message> CommonDiscoveryRequest<RequestT> of(RequestT message, Node node, String typeUrl, Status errorDetail) {
+        return new CommonDiscoveryRequest<>(node, typeUrl, TypeUrl.of(typeUrl), message, errorDetail);
+    }
+
+    /**
+     * The TypeUrl the request is for, or null if the type URL is missing or unknown.
+     */
+    public TypeUrl getResolvedTypeUrl() {
+        if (resolvedTypeUrl != null) {
+            return resolvedTypeUrl;
+        }
+        return TypeUrl.of(typeUrl);
+    }
 }
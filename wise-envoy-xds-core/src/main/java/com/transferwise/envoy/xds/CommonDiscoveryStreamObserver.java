@@ -2,7 +2,6 @@ package com.transferwise.envoy.xds;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
-import com.google.errorprone.annotations.concurrent.GuardedBy;
 import com.google.protobuf.Message;
 import com.transferwise.envoy.xds.api.ClientConfigProvider;
 import com.transferwise.envoy.xds.api.ClientHandle;
@@ -10,16 +9,28 @@ import com.transferwise.envoy.xds.api.ClusterEventSource;
 import com.transferwise.envoy.xds.api.ClusterManagerEventListener;
 import com.transferwise.envoy.xds.api.XdsEventListener;
 import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import com.transferwise.envoy.xds.api.StateBacklog;
 import io.envoyproxy.envoy.config.core.v3.Node;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 
+/**
+ * Handles a single ADS stream.
+ * Requests from the client and network changes from the ClusterEventSource arrive on different threads, they are serialized through a lock-free mailbox
+ * rather than by locking this object. By default the thread that finds the mailbox idle processes events until it is empty, and anyone else just enqueues
+ * and returns, so a slow push never blocks the gRPC or event source threads of other callers. If DiscoveryServiceOptions.streamExecutor is set every caller
+ * just enqueues, and the mailbox is drained there. All state below is only touched by tasks run by the mailbox.
+ * So that a stream that falls behind doesn't queue up work without limit, gRPC is only asked for the client's next request once the last one has been
+ * handled, and network changes waiting for the mailbox are kept in a state backlog (merged, if it merges) with at most one task queued to take them.
+ */
 @Slf4j
 public class CommonDiscoveryStreamObserver<T extends Message, R extends Message, StateUpdT, DetailsT>
         implements StreamObserver<T>, ClusterManagerEventListener<StateUpdT>, ClientHandle {
@@ -27,6 +38,11 @@ public class CommonDiscoveryStreamObserver<T extends Message, R extends Message,
     private boolean isDead = false;
 
     private final StreamObserver<R> responseObserver;
+
+    /**
+     * The response stream, if gRPC lets us see its flow control. Otherwise null, and pushes are sent regardless.
+     */
+    private final FlowControlledResponseObserver<R> flowControl;
     private final ClusterEventSource<StateUpdT> clusterManager;
     private NodeConfig<DetailsT> xdsConfig = null;
 
@@ -42,6 +58,16 @@ public class CommonDiscoveryStreamObserver<T extends Message, R extends Message,
 
     private final ClientConfigProvider<DetailsT> configProvider;
 
+    /**
+     * If set, the session is kept here when the stream ends, and picked up from here if the client had a session recently.
+     */
+    private final SessionResumptionCache<DetailsT> sessionResumptionCache;
+
+    /**
+     * What the discovery services kept from the client's previous stream, until they are built and can be handed it.
+     */
+    private Map<TypeUrl, DiscoveryService.SessionState> resumedStates = null;
+
     /**
      * If set then we will delay sending mesh updates to the client until we have received the first ACK for this TypeUrl.
      * This allows us to prevent clients being sent endpoint updates, which interfere with the envoy init process, until
@@ -57,6 +83,28 @@ public class CommonDiscoveryStreamObserver<T extends Message, R extends Message,
 
     private Node node = null;
 
+    private final SerialMailbox mailbox;
+
+    /**
+     * The request stream, if gRPC lets us control how fast requests are delivered. Otherwise null, and they are delivered as fast as they arrive.
+     */
+    private final ServerCallStreamObserver<R> inbound;
+
+    /**
+     * Network changes that haven't been handed to the mailbox yet. Guarded by itself, since it's filled by event source threads.
+     */
+    private final StateBacklog<StateUpdT> networkChanges;
+
+    /**
+     * Whether the mailbox has a task queued to take the waiting network changes.
+     */
+    private final AtomicBoolean networkChangesScheduled = new AtomicBoolean(false);
+
+    /**
+     * Whether we've asked to be woken up when the state backlog stops holding back a change, see DiscoveryServiceManager.isBacklogHeld.
+     */
+    private boolean backlogWakeUpScheduled = false;
+
     public CommonDiscoveryStreamObserver(
         StreamObserver<R> responseObserver,
         ClusterEventSource<StateUpdT> clusterManager,
@@ -65,25 +113,56 @@ public class CommonDiscoveryStreamObserver<T extends Message, R extends Message,
         ClientConfigProvider<DetailsT> configProvider,
         ImmutableList<XdsEventListener<DetailsT>> listeners,
         DiscoveryServiceManagerMetrics metrics) {
-        this.responseObserver = responseObserver;
+        this(responseObserver, clusterManager, discoveryServiceManagerFactory, commonDiscoveryRequestConverter, configProvider, listeners, metrics, null);
+    }
+
+    public CommonDiscoveryStreamObserver(
+        StreamObserver<R> responseObserver,
+        ClusterEventSource<StateUpdT> clusterManager,
+        DiscoveryServiceManagerFactory<T, R, StateUpdT, DetailsT> discoveryServiceManagerFactory,
+        Function<T, CommonDiscoveryRequest<T>> commonDiscoveryRequestConverter,
+        ClientConfigProvider<DetailsT> configProvider,
+        ImmutableList<XdsEventListener<DetailsT>> listeners,
+        DiscoveryServiceManagerMetrics metrics,
+        SessionResumptionCache<DetailsT> sessionResumptionCache) {
+        this.mailbox = new SerialMailbox(discoveryServiceManagerFactory.streamExecutor(), this::handleFailure);
+        this.networkChanges = discoveryServiceManagerFactory.buildStateBacklog();
+        if (responseObserver instanceof ServerCallStreamObserver<R> serverCallStreamObserver) {
+            flowControl = discoveryServiceManagerFactory.flowControlled(serverCallStreamObserver, metrics);
+            serverCallStreamObserver.setOnReadyHandler(() -> mailbox.execute(this::handleReady));
+            this.responseObserver = flowControl;
+            inbound = serverCallStreamObserver;
+            inbound.disableAutoRequest();
+            inbound.request(1);
+        } else {
+            flowControl = null;
+            this.responseObserver = responseObserver;
+            inbound = null;
+        }
         this.clusterManager = clusterManager;
         this.discoveryServiceManagerFactory = discoveryServiceManagerFactory;
         this.commonDiscoveryRequestConverter = commonDiscoveryRequestConverter;
         this.metrics = metrics;
         this.listeners = listeners;
         this.configProvider = configProvider;
+        this.sessionResumptionCache = sessionResumptionCache;
     }
 
-    @GuardedBy("this")
     private void extractNodeData(Node node) {
         if (node == null) {
             log.warn("Client fed us null node data, envoy bug?");
             throw new StatusRuntimeException(Status.INVALID_ARGUMENT);
         }
-        XdsConfig<DetailsT> config = configProvider.lookup(node);
+        SessionResumptionCache.Session<DetailsT> session = sessionResumptionCache != null ? sessionResumptionCache.resume(node) : null;
+        if (session != null) {
+            log.debug("Resuming session of {}", node.getId());
+            xdsConfig = session.getNodeConfig();
+            resumedStates = session.getStates();
+        } else {
+            xdsConfig = NodeConfig.forNode(node, configProvider.lookup(node));
+        }
 
         this.node = node;
-        xdsConfig = NodeConfig.forNode(node, config);
         notifyClientConnected();
 
         delayUpdatesUntilAckOf = xdsConfig.getXdsConfig().getDelayUpdatesUntilAckOf();
@@ -92,54 +171,75 @@ public class CommonDiscoveryStreamObserver<T extends Message, R extends Message,
     }
 
     @Override
-    public synchronized void onNext(T concreteValue) {
-        try {
-            Preconditions.checkState(!isDead);
-            CommonDiscoveryRequest<T> value = commonDiscoveryRequestConverter.apply(concreteValue);
-
-            if (value.getTypeUrl() == null) {
-                throw new RuntimeException("Missing type URL on request");
+    public void onNext(T concreteValue) {
+        mailbox.execute(() -> {
+            handleRequest(concreteValue);
+            scheduleBacklogWakeUp();
+            if (inbound != null) {
+                inbound.request(1);
             }
+        });
+    }
 
-            if (node == null) {
-                log.debug("New envoy connected: {}", value.getNode() != null ? value.getNode().getId() : null);
-                extractNodeData(value.getNode());
-            }
+    private void handleRequest(T concreteValue) {
+        Preconditions.checkState(!isDead);
+        CommonDiscoveryRequest<T> value = commonDiscoveryRequestConverter.apply(concreteValue);
 
-            if (value.getErrorDetail() != null) {
-                if (xdsConfig.getXdsConfig().isSilentNacks() && value.getErrorDetail().getCode() == Status.Code.INTERNAL.value()) {
-                    log.info("Client {} reports error: {}", nodeId, value.getErrorDetail());
-                } else {
-                    log.error("Client {} reports error: {}", nodeId, value.getErrorDetail());
-                }
-            }
+        if (value.getTypeUrl() == null) {
+            throw new RuntimeException("Missing type URL on request");
+        }
+
+        if (node == null) {
+            log.debug("New envoy connected: {}", value.getNode() != null ? value.getNode().getId() : null);
+            extractNodeData(value.getNode());
+        }
 
-            TypeUrl typeUrl = TypeUrl.of(value.getTypeUrl());
-            if (typeUrl == null) {
-                throw new RuntimeException("Client " + nodeId + " in cluster " + clusterId + " asked for unknown type URL " + value.getTypeUrl());
+        if (value.getErrorDetail() != null) {
+            if (xdsConfig.getXdsConfig().isSilentNacks() && value.getErrorDetail().getCode() == Status.Code.INTERNAL.value()) {
+                log.info("Client {} reports error: {}", nodeId, value.getErrorDetail());
+            } else {
+                log.error("Client {} reports error: {}", nodeId, value.getErrorDetail());
             }
-            log.debug("DiscoveryRequest T={}", value.getTypeUrl());
-            if (discoveryServiceManager == null) {
-                discoveryServiceManager = discoveryServiceManagerFactory.build(responseObserver, xdsConfig, metrics);
-                discoveryServiceManager.init(clusterManager.subscribe(this), delayUpdatesUntilAckOf);
+        }
+
+        TypeUrl typeUrl = value.getResolvedTypeUrl();
+        if (typeUrl == null) {
+            throw new RuntimeException("Client " + nodeId + " in cluster " + clusterId + " asked for unknown type URL " + value.getTypeUrl());
+        }
+        log.debug("DiscoveryRequest T={}", value.getTypeUrl());
+        if (discoveryServiceManager == null) {
+            discoveryServiceManager = discoveryServiceManagerFactory.build(responseObserver, xdsConfig, metrics);
+            discoveryServiceManager.init(clusterManager.subscribe(this), delayUpdatesUntilAckOf);
+            if (resumedStates != null) {
+                discoveryServiceManager.resume(resumedStates);
+                resumedStates = null;
             }
+        }
 
-            try {
-                discoveryServiceManager.processUpdate(value);
-            } catch (ClientNackException nack) {
-                if (xdsConfig.getXdsConfig().isSilentNacks()) {
-                    log.info("Client rejected update", nack);
-                    // Just ignore the response. It'll make them hang around, and not go into a tight retry loop.
-                    return;
-                }
-                throw nack;
+        try {
+            discoveryServiceManager.processUpdate(value);
+        } catch (ClientNackException nack) {
+            if (xdsConfig.getXdsConfig().isSilentNacks()) {
+                log.info("Client rejected update", nack);
+                // Just ignore the response. It'll make them hang around, and not go into a tight retry loop.
+                return;
             }
-        } catch (Throwable t) {
-            this.onError(t); // Despite docs on interface, upstream is not calling onError :-(
-            throw t;
+            throw nack;
         }
     }
 
+    /**
+     * Anything thrown while handling an event ends the stream.
+     * Despite docs on interface, upstream is not calling onError when onNext throws, so we do it ourselves.
+     */
+    private void handleFailure(Throwable t) {
+        if (isDead) {
+            log.error("Error handling event for already dead CDSO", t);
+            return;
+        }
+        handleError(t);
+    }
+
     private static class RunWithExceptions implements Closeable {
 
         private Throwable caught = null;
@@ -188,8 +288,6 @@ public class CommonDiscoveryStreamObserver<T extends Message, R extends Message,
         }
     }
 
-    @SuppressFBWarnings(value = "IS2_INCONSISTENT_SYNC", justification = "Spotbugs is confused by lambdas")
-    @GuardedBy("this")
     private void notifyClientDisconnected() {
         if (node == null) {
             return;
@@ -201,8 +299,6 @@ public class CommonDiscoveryStreamObserver<T extends Message, R extends Message,
         }
     }
 
-    @SuppressFBWarnings(value = "IS2_INCONSISTENT_SYNC", justification = "Spotbugs is confused by lambdas")
-    @GuardedBy("this")
     private void notifyClientConnected() {
         if (node == null) {
             return;
@@ -214,12 +310,14 @@ public class CommonDiscoveryStreamObserver<T extends Message, R extends Message,
         }
     }
 
-    @SuppressFBWarnings(value = "IS2_INCONSISTENT_SYNC", justification = "Spotbugs is confused by lambdas")
-    @GuardedBy("this")
     private void cleanupOnDisconnect(RunWithExceptions runner) {
         isDead = true;
         if (discoveryServiceManager != null) {
             runner.exec(() -> clusterManager.unsubscribe(this));
+            if (sessionResumptionCache != null) {
+                DiscoveryServiceManager<T, StateUpdT> manager = discoveryServiceManager;
+                runner.exec(() -> sessionResumptionCache.suspend(node, xdsConfig, manager.suspend()));
+            }
             runner.exec(() -> discoveryServiceManager.close());
             discoveryServiceManager = null;
         }
@@ -227,7 +325,11 @@ public class CommonDiscoveryStreamObserver<T extends Message, R extends Message,
     }
 
     @Override
-    public synchronized void onError(Throwable t) {
+    public void onError(Throwable t) {
+        mailbox.execute(() -> handleError(t));
+    }
+
+    private void handleError(Throwable t) {
         if (isDead) {
             log.warn("onError called on already dead CDSO. Maybe upstream fixed the bug where onError wasn't getting called?");
             return;
@@ -243,7 +345,11 @@ public class CommonDiscoveryStreamObserver<T extends Message, R extends Message,
     }
 
     @Override
-    public synchronized void onCompleted() {
+    public void onCompleted() {
+        mailbox.execute(this::handleCompleted);
+    }
+
+    private void handleCompleted() {
         if (isDead) {
             log.warn("onCompleted called on already dead CDSO.");
             return;
@@ -257,16 +363,57 @@ public class CommonDiscoveryStreamObserver<T extends Message, R extends Message,
     }
 
     @Override
-    public synchronized void onNetworkChange(StateUpdT diff) {
+    public void onNetworkChange(StateUpdT diff) {
+        synchronized (networkChanges) {
+            networkChanges.put(diff);
+        }
+        if (networkChangesScheduled.compareAndSet(false, true)) {
+            mailbox.execute(this::handleNetworkChanges);
+        }
+    }
+
+    private void handleNetworkChanges() {
+        // Anything put after this is either taken below, or by the task whoever put it queues.
+        networkChangesScheduled.set(false);
+        while (!isDead) {
+            StateUpdT diff;
+            synchronized (networkChanges) {
+                diff = networkChanges.take();
+            }
+            if (diff == null) {
+                break;
+            }
+            discoveryServiceManager.pushUpdates(diff);
+        }
+        scheduleBacklogWakeUp();
+    }
+
+    /**
+     * If the state backlog is holding back a change that could otherwise be pushed, arrange to push it once the backlog is ready.
+     */
+    private void scheduleBacklogWakeUp() {
+        if (isDead || backlogWakeUpScheduled || discoveryServiceManager == null || !discoveryServiceManager.isBacklogHeld()) {
+            return;
+        }
+        backlogWakeUpScheduled = true;
+        // The wake up may run on a timer thread, or in another stream's mailbox, so don't push from there.
+        discoveryServiceManager.whenBacklogReady(() -> mailbox.executeAsync(this::handleBacklogReady));
+    }
+
+    private void handleReady() {
         if (isDead) {
             return;
         }
+        flowControl.onReady();
+    }
 
-        try {
-            discoveryServiceManager.pushUpdates(diff);
-        } catch (Throwable t) {
-            this.onError(t);
-            throw t;
+    private void handleBacklogReady() {
+        backlogWakeUpScheduled = false;
+        if (isDead) {
+            return;
         }
+        discoveryServiceManager.pushBacklog();
+        // More changes may have arrived while we waited, holding the backlog back for longer.
+        scheduleBacklogWakeUp();
     }
 }
@@ -0,0 +1,40 @@
+package com.transferwise.envoy.xds;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Packs resources into an Any using deterministic serialization, so equal resources always pack to the same bytes.
+ * Plain serialization writes map fields in insertion order, which would make a resource's content hash depend on how it happened to be built,
+ * and delta resource versions (which are content hashes) are compared across control plane restarts.
+ */
+final class DeterministicPacking {
+
+    private static final String TYPE_URL_PREFIX = "type.googleapis.com/";
+
+    private DeterministicPacking() {
+    }
+
+    static Any pack(Message message) {
+        byte[] bytes = new byte[message.getSerializedSize()];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        out.useDeterministicSerialization();
+        try {
+            message.writeTo(out);
+        } catch (IOException e) {
+            // Writing to an array doesn't do IO, this only happens if getSerializedSize was wrong.
+            throw new UncheckedIOException(e);
+        }
+        out.checkNoSpaceLeft();
+        return Any.newBuilder()
+            .setTypeUrl(TYPE_URL_PREFIX + message.getDescriptorForType().getFullName())
+            // Nothing else has a reference to bytes, so it's safe to wrap rather than copy.
+            .setValue(UnsafeByteOperations.unsafeWrap(bytes))
+            .build();
+    }
+}
@@ -29,6 +29,14 @@ public interface DiscoveryService<RequestT extends Message, StateUpdT> {
      */
     boolean awaitingAck();
 
+    /**
+     * How many responses envoy has yet to ack, only asked while awaitingAck is true.
+     * Discovery services that can have several responses waiting on acks (see PushOrder.pipelineWindow) must count them, the default counts one.
+     */
+    default int unackedResponses() {
+        return 1;
+    }
+
     /**
      * <p>Called when the DiscoveryServiceManager is initialized.</p>
      * <p>The DSM is initialized the first time any message from envoy is received, regardless of which DiscoveryService will handle the message.</p>
@@ -59,4 +67,40 @@ public interface DiscoveryService<RequestT extends Message, StateUpdT> {
      * Identifies the specific Discover Service type this instance handles.
      */
     TypeUrl getTypeUrl();
+
+    /**
+     * Whatever a discovery service keeps about its client between streams, see suspend.
+     */
+    interface SessionState {
+    }
+
+    /**
+     * Called when the client's stream has ended, if session resumption is enabled.
+     * @return anything that will help this discovery service carry on if the same client reconnects, which will be passed to resume. Null if there's nothing
+     *     worth keeping.
+     */
+    default SessionState suspend() {
+        return null;
+    }
+
+    /**
+     * Called after init, before any requests, with what suspend returned for the same client's previous stream.
+     */
+    default void resume(SessionState state) {
+    }
+
+    /**
+     * Tells if the client turned out to already have this discovery service's current state from its previous stream, so nothing had to be sent to it.
+     * A resumed client has been through envoy's init process already, so this stands in for an ACK where the DiscoveryServiceManager is waiting for one before
+     * pushing updates.
+     */
+    default boolean resumedInSync() {
+        return false;
+    }
+
+    /**
+     * Called once the stream has ended, before the stream's metrics are closed.
+     */
+    default void close() {
+    }
 }
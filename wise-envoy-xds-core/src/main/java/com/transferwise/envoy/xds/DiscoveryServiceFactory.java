@@ -1,6 +1,7 @@
 package com.transferwise.envoy.xds;
 
 import com.google.protobuf.Message;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
 import io.grpc.stub.StreamObserver;
 
 import java.util.Arrays;
@@ -12,10 +13,22 @@ public interface DiscoveryServiceFactory<RequestT extends Message, ResponseT ext
 
     DiscoveryService<RequestT, StateUpdT> createDiscoveryService(StreamObserver<ResponseT> responseObserver, NodeConfig<DetailsT> nodeConfig, TypeUrl type);
 
+    /**
+     * Create a discovery service that reports to the metrics of its stream.
+     * Factories that don't support metrics can leave this as it is, the metrics will be ignored.
+     */
+    default DiscoveryService<RequestT, StateUpdT> createDiscoveryService(StreamObserver<ResponseT> responseObserver, NodeConfig<DetailsT> nodeConfig, TypeUrl type, DiscoveryServiceManagerMetrics metrics) {
+        return createDiscoveryService(responseObserver, nodeConfig, type);
+    }
+
     default Map<TypeUrl, DiscoveryService<RequestT, StateUpdT>> createAll(StreamObserver<ResponseT> responseObserver, NodeConfig<DetailsT> nodeConfig) {
+        return createAll(responseObserver, nodeConfig, DiscoveryServiceManagerMetrics.NOOP_METRICS);
+    }
+
+    default Map<TypeUrl, DiscoveryService<RequestT, StateUpdT>> createAll(StreamObserver<ResponseT> responseObserver, NodeConfig<DetailsT> nodeConfig, DiscoveryServiceManagerMetrics metrics) {
         return Arrays.stream(TypeUrl.values()).collect(Collectors.toMap(
                 Function.identity(),
-                t -> createDiscoveryService(responseObserver, nodeConfig, t)
+                t -> createDiscoveryService(responseObserver, nodeConfig, t, metrics)
             ));
     }
 
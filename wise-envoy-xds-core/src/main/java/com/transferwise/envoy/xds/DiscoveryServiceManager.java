@@ -6,45 +6,58 @@ import com.google.protobuf.Message;
 import com.transferwise.envoy.xds.api.StateBacklog;
 import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
 
-import java.util.Iterator;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * Co-ordinates ordering of messages between discovery services.
+ * A push goes through two phases, adds then removes. Within a phase, each discovery service sends its part once every discovery service it depends on
+ * (see PushOrder) has sent its part and had it acked, so independent discovery services are waiting on envoy at the same time.
+ * A discovery service with a pipeline window (see PushOrder.pipelineWindow) doesn't hold anything up until it has that many responses waiting on acks.
  * This class is not thread safe! External synchronization must be provided.
  *
  * @param <RequestT> The discovery Request type (DeltaDiscoveryRequest or DiscoveryRequest)
  */
 public class DiscoveryServiceManager<RequestT extends Message, StateUpdT> {
 
+    /**
+     * The discovery services taking part in each phase, each after those it depends on, so they are always started in the same order.
+     */
     private final List<DiscoveryService<RequestT, StateUpdT>> preOrder;
     private final List<DiscoveryService<RequestT, StateUpdT>> postOrder;
 
+    /**
+     * For each discovery service, those that must have their part of the phase acked before it can send its own.
+     */
+    private final Map<DiscoveryService<RequestT, StateUpdT>, List<DiscoveryService<RequestT, StateUpdT>>> preDependencies = new IdentityHashMap<>();
+    private final Map<DiscoveryService<RequestT, StateUpdT>, List<DiscoveryService<RequestT, StateUpdT>>> postDependencies = new IdentityHashMap<>();
+
     private final Map<TypeUrl, DiscoveryService<RequestT, StateUpdT>> discoveryServices;
 
+    private final Map<DiscoveryService<RequestT, StateUpdT>, Integer> pipelineWindows = new IdentityHashMap<>();
+
     /**
-     * Iterator for obtaining the next discovery service we need to send messages from.
+     * The discovery services yet to send their part of the current phase of the push.
      */
-    private Iterator<DiscoveryService<RequestT, StateUpdT>> current = null;
+    private final Set<DiscoveryService<RequestT, StateUpdT>> unsent = Sets.newIdentityHashSet();
 
     /**
-     * The discovery service we're waiting on envoy to ack messages from to allow the current push to continue.
-     * null if we are not waiting on anything.
+     * The discovery services that have sent their part of the current phase of the push, and that we're waiting on envoy to ack before we can go on.
      */
-    private DiscoveryService<RequestT, StateUpdT> waitingOn = null;
+    private final Set<DiscoveryService<RequestT, StateUpdT>> inFlight = Sets.newIdentityHashSet();
 
     /**
-     * The set of discovery services, aside from waitingOn, that are awaiting ack messages from envoy.
-     * While waitingOn tracks the current state of pushing updates, we also need to track which acks are outstanding
+     * The set of discovery services, aside from inFlight, that are awaiting ack messages from envoy.
+     * While inFlight tracks the current state of pushing updates, we also need to track which acks are outstanding
      * for messages sent in response to changes in Envoy subscriptions.
      */
     private final Set<DiscoveryService<RequestT, StateUpdT>> outstandingAcks = Sets.newIdentityHashSet();
 
     /**
-     * Which order we're iterating through the discoveryServices in.
-     * This is used to select which of preOrder or postOrder to use.
+     * Which phase of the push we're in.
      */
     private DiscoveryService.SubState sendMode = DiscoveryService.SubState.COMPLETED;
 
@@ -63,13 +76,39 @@ public class DiscoveryServiceManager<RequestT extends Message, StateUpdT> {
 
     private TypeUrl delayUpdatesUntilAckOf = null;
 
+    /**
+     * For backlogs that hold updates back, how many updates have been put since the last take and when the first of them was put. Only used for metrics.
+     */
+    private int heldUpdates = 0;
+    private long heldSince = 0;
+
+    /**
+     * If set, every push must be admitted through this before it starts, see PushAdmissionController.
+     */
+    private final PushAdmissionController.Admission admission;
+
+    /**
+     * When we first tried and failed to have the waiting change admitted, or -1 if we aren't waiting for admission. Only used for metrics.
+     */
+    private long admissionRequestedAt = -1;
+
+    /**
+     * If set, pushes only start while this has room for more responses, see FlowControlledResponseObserver.
+     */
+    private final FlowControlledResponseObserver<?> flowControl;
+
+    /**
+     * Tracks, per discovery service, when the response it is waiting on an ack for was sent. Only used for metrics.
+     */
+    private final Map<DiscoveryService<RequestT, StateUpdT>, AckTimer> ackTimers = new IdentityHashMap<>();
+
     /**
      * Checks that conditions hold, assuming init() was already called.
      */
     private void assertPostInitState() {
         Preconditions.checkState(!closed, "DiscoveryServiceManager is closed.");
         Preconditions.checkState(initialized, "DiscoveryServiceManager must be initialized before services can be initialized");
-        Preconditions.checkState((waitingOn == null) == (currentChange == null), "Waiting on an outstanding change, and on a service to ack, can't happen without each other.");
+        Preconditions.checkState(currentChange != null || (unsent.isEmpty() && inFlight.isEmpty()), "Can't be part way through a phase without a change being pushed.");
     }
 
     /**
@@ -81,11 +120,64 @@ public class DiscoveryServiceManager<RequestT extends Message, StateUpdT> {
      */
     public DiscoveryServiceManager(Map<TypeUrl, DiscoveryService<RequestT, StateUpdT>> discoveryServices, List<TypeUrl> preOrder, List<TypeUrl> postOrder, StateBacklog<StateUpdT> waitingStateBacklog,
                                    DiscoveryServiceManagerMetrics metrics) {
+        this(discoveryServices, PushOrder.sequential(preOrder, postOrder), waitingStateBacklog, metrics);
+    }
+
+    /**
+     * See class description.
+     * @param discoveryServices The discovery service implementations
+     * @param pushOrder Which discovery services must wait for which others, in each phase of a push
+     * @param waitingStateBacklog Manager for the backlog of state updates, updates will be passed to the backlog if we are not able to immediately start sending them to this client because we are already part way through a previous update.
+     */
+    public DiscoveryServiceManager(Map<TypeUrl, DiscoveryService<RequestT, StateUpdT>> discoveryServices, PushOrder pushOrder, StateBacklog<StateUpdT> waitingStateBacklog,
+                                   DiscoveryServiceManagerMetrics metrics) {
+        this(discoveryServices, pushOrder, waitingStateBacklog, metrics, null);
+    }
+
+    /**
+     * See class description.
+     * @param discoveryServices The discovery service implementations
+     * @param pushOrder Which discovery services must wait for which others, in each phase of a push
+     * @param waitingStateBacklog Manager for the backlog of state updates, updates will be passed to the backlog if we are not able to immediately start sending them to this client because we are already part way through a previous update.
+     * @param admission If not null, pushes wait here until they are admitted. Changes that arrive meanwhile go into the backlog.
+     */
+    public DiscoveryServiceManager(Map<TypeUrl, DiscoveryService<RequestT, StateUpdT>> discoveryServices, PushOrder pushOrder, StateBacklog<StateUpdT> waitingStateBacklog,
+                                   DiscoveryServiceManagerMetrics metrics, PushAdmissionController.Admission admission) {
+        this(discoveryServices, pushOrder, waitingStateBacklog, metrics, admission, null);
+    }
+
+    /**
+     * See class description.
+     * @param discoveryServices The discovery service implementations
+     * @param pushOrder Which discovery services must wait for which others, in each phase of a push
+     * @param waitingStateBacklog Manager for the backlog of state updates, updates will be passed to the backlog if we are not able to immediately start sending them to this client because we are already part way through a previous update.
+     * @param admission If not null, pushes wait here until they are admitted. Changes that arrive meanwhile go into the backlog.
+     * @param flowControl If not null, pushes wait until the client has room for them. Changes that arrive meanwhile go into the backlog.
+     */
+    public DiscoveryServiceManager(Map<TypeUrl, DiscoveryService<RequestT, StateUpdT>> discoveryServices, PushOrder pushOrder, StateBacklog<StateUpdT> waitingStateBacklog,
+                                   DiscoveryServiceManagerMetrics metrics, PushAdmissionController.Admission admission, FlowControlledResponseObserver<?> flowControl) {
+        this.admission = admission;
+        this.flowControl = flowControl;
         this.discoveryServices = discoveryServices;
         this.waitingStateBacklog = waitingStateBacklog;
-        this.preOrder = DiscoveryServiceOrderer.sort(preOrder, discoveryServices);
-        this.postOrder = DiscoveryServiceOrderer.sort(postOrder, discoveryServices);
+        this.preOrder = phase(pushOrder, DiscoveryService.SubState.PRE, preDependencies);
+        this.postOrder = phase(pushOrder, DiscoveryService.SubState.POST, postDependencies);
         this.metrics = metrics;
+        discoveryServices.forEach((t, s) -> {
+            ackTimers.put(s, new AckTimer(t));
+            pipelineWindows.put(s, pushOrder.pipelineWindow(t));
+        });
+    }
+
+    /**
+     * Resolve the discovery services taking part in a phase, and what each depends on.
+     */
+    private List<DiscoveryService<RequestT, StateUpdT>> phase(PushOrder pushOrder, DiscoveryService.SubState phase,
+                                                              Map<DiscoveryService<RequestT, StateUpdT>, List<DiscoveryService<RequestT, StateUpdT>>> dependencies) {
+        List<TypeUrl> types = pushOrder.order(phase).stream().filter(discoveryServices::containsKey).toList();
+        types.forEach(t -> dependencies.put(discoveryServices.get(t),
+            pushOrder.dependencies(phase, t, discoveryServices::containsKey).stream().map(discoveryServices::get).toList()));
+        return DiscoveryServiceOrderer.sort(types, discoveryServices);
     }
 
 
@@ -103,11 +195,42 @@ public class DiscoveryServiceManager<RequestT extends Message, StateUpdT> {
         initialized = true;
     }
 
+    /**
+     * Collect what each discovery service wants to keep for the client's next stream.
+     */
+    public Map<TypeUrl, DiscoveryService.SessionState> suspend() {
+        Map<TypeUrl, DiscoveryService.SessionState> states = new EnumMap<>(TypeUrl.class);
+        discoveryServices.forEach((t, s) -> {
+            DiscoveryService.SessionState state = s.suspend();
+            if (state != null) {
+                states.put(t, state);
+            }
+        });
+        return states;
+    }
+
+    /**
+     * Hand each discovery service what it kept from the client's previous stream. Must be called after init and before any requests are processed.
+     */
+    public void resume(Map<TypeUrl, DiscoveryService.SessionState> states) {
+        assertPostInitState();
+        states.forEach((t, state) -> {
+            DiscoveryService<RequestT, StateUpdT> service = discoveryServices.get(t);
+            if (service != null) {
+                service.resume(state);
+            }
+        });
+    }
+
     public void close() {
         if (closed) {
             return;
         }
         closed = true;
+        if (admission != null) {
+            admission.close();
+        }
+        discoveryServices.values().forEach(DiscoveryService::close);
         metrics.close();
     }
 
@@ -119,20 +242,34 @@ public class DiscoveryServiceManager<RequestT extends Message, StateUpdT> {
     public void processUpdate(CommonDiscoveryRequest<RequestT> value) {
         assertPostInitState();
 
-        TypeUrl typeUrl = TypeUrl.of(value.getTypeUrl());
+        TypeUrl typeUrl = value.getResolvedTypeUrl();
+        if (value.getErrorDetail() != null) {
+            metrics.onNack(typeUrl);
+        }
         DiscoveryService<RequestT, StateUpdT> discoveryService = discoveryServices.get(typeUrl);
+        int unackedBefore = unacked(discoveryService);
         discoveryService.processUpdate(value);
+        int unacked = unacked(discoveryService);
 
-        if (discoveryService.awaitingAck()) {
+        AckTimer ackTimer = ackTimers.get(discoveryService);
+        if (unacked > 0 && unacked >= unackedBefore) {
+            // If this request didn't ack anything but we're waiting on an ack, it caused a response to be sent, so it must have been a subscription change.
+            ackTimer.start(DiscoveryServiceManagerMetrics.Phase.SUBSCRIPTION);
             if (outstandingAcks.add(discoveryService)) {
                 metrics.onAwaitingAck();
             }
+        } else if (unacked > 0) {
+            // Acked one of several pipelined responses.
+            ackTimer.stop();
         } else {
+            ackTimer.stop();
             if (outstandingAcks.remove(discoveryService)) {
                 metrics.onMessageAcked();
                 if (typeUrl.equals(delayUpdatesUntilAckOf)) {
                     delayUpdatesUntilAckOf = null;
                 }
+            } else if (typeUrl.equals(delayUpdatesUntilAckOf) && discoveryService.resumedInSync()) {
+                delayUpdatesUntilAckOf = null;
             }
         }
 
@@ -141,60 +278,157 @@ public class DiscoveryServiceManager<RequestT extends Message, StateUpdT> {
             continuePush();
         } else if (isPushAllowed()) {
             pushWaitingChangeIfAny();
+        } else {
+            cancelAdmission();
         }
     }
 
+    private int unacked(DiscoveryService<RequestT, StateUpdT> service) {
+        // Mocks and older implementations may not count, in which case awaiting an ack means one.
+        return service.awaitingAck() ? Math.max(1, service.unackedResponses()) : 0;
+    }
+
+    /**
+     * Tells if a discovery service has as many responses waiting on acks as its pipeline window allows, so anything that must come after it has to wait.
+     */
+    private boolean isBlocking(DiscoveryService<RequestT, StateUpdT> service) {
+        return unacked(service) >= pipelineWindows.get(service);
+    }
+
     private boolean isPushAllowed() {
         return outstandingAcks.isEmpty() && delayUpdatesUntilAckOf == null;
     }
 
+    private boolean isClientReady() {
+        return flowControl == null || flowControl.isReady();
+    }
+
+    /**
+     * Have the next push admitted, if pushes need to be.
+     * @return true if the push can start, false if the caller has to wait for admission, see isBacklogHeld.
+     */
+    private boolean admit() {
+        if (admission == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (admissionRequestedAt < 0) {
+            admissionRequestedAt = now;
+        }
+        if (!admission.tryAcquire()) {
+            return false;
+        }
+        metrics.onPushAdmitted(now - admissionRequestedAt);
+        admissionRequestedAt = -1;
+        return true;
+    }
+
+    /**
+     * Withdraw a request for admission when the waiting change can't be pushed after all: the client has no room, we're waiting on acks, or the backlog
+     * is holding the change back again. Otherwise a stream admitted meanwhile would keep its slot until it could push, and enough stalled clients would
+     * stop every push on the instance. We ask again once the change can be pushed.
+     */
+    private void cancelAdmission() {
+        if (admissionRequestedAt < 0) {
+            return;
+        }
+        admission.cancel();
+        admissionRequestedAt = -1;
+    }
+
     private void beginPush() {
         Preconditions.checkState(currentChange != null, "beginPush() can only be called with a change lined up to be applied.");
         Preconditions.checkState(sendMode == DiscoveryService.SubState.COMPLETED, "beginPush() should be started from COMPLETED state");
 
         metrics.onPushBegin();
 
-        sendMode = DiscoveryService.SubState.PRE;
-        current = preOrder.iterator();
-        discoveryServices.forEach((t, s) -> s.onNetworkUpdate(currentChange));
-        DiscoveryService<RequestT, StateUpdT> service = nextOrNull();
-        waitingOn = service;
-        if (service != null) {
-            service.sendNetworkUpdatePre();
+        try {
+            discoveryServices.forEach((t, s) -> s.onNetworkUpdate(currentChange));
+            beginPhase(DiscoveryService.SubState.PRE);
+            // Start sending. Any sendNetworkUpdatePre() could be a NOOP, so there wouldn't be an ack to trigger further pushes.
+            continuePush();
+        } finally {
+            // Admission only limits the work of starting a push, the rest happens as envoy acks.
+            if (admission != null) {
+                admission.release();
+            }
         }
-        // Continue pushing changes as sendNetworkUpdatePre() could be a NOOP, so there
-        // wouldn't be an ack to trigger further pushes.
-        continuePush();
     }
 
     private void enqueueChange(StateUpdT diff) {
+        if (heldUpdates++ == 0) {
+            heldSince = System.nanoTime();
+        }
+        int depthBefore = waitingStateBacklog.depth();
         waitingStateBacklog.put(diff);
+        int depth = waitingStateBacklog.depth();
+        metrics.onBacklogPut(depth, depth <= depthBefore);
     }
 
     /**
      * Receive a ServiceChanges that may need to be communicated to envoy.
      * If pushing of a previous ServiceChanges is still in progress, or any unacked messages are outstanding, communicating this change will be deferred until those in-progress changes are finished and all messages have been acked.
      * If there's already a deferred change waiting, this change will be merged with the deferred one, and applied together eventually.
+     * If the backlog holds updates back (see StateBacklog.holdsUpdates) every change is deferred until the backlog is ready. The caller must then call
+     * pushBacklog once it is, see isBacklogHeld.
      *
      * @param diff the change to be applied.
      */
     public void pushUpdates(StateUpdT diff) {
         assertPostInitState();
 
-        if (currentChange == null && isPushAllowed()) {
+        if (currentChange == null && isPushAllowed() && !waitingStateBacklog.holdsUpdates() && isClientReady() && admit()) {
             // Nothing currently being applied, start applying this change immediately.
             currentChange = diff;
             beginPush();
         } else {
             enqueueChange(diff);
+            if (currentChange == null && isPushAllowed()) {
+                pushWaitingChangeIfAny();
+            } else if (currentChange == null) {
+                cancelAdmission();
+            }
         }
     }
 
-    private DiscoveryService<RequestT, StateUpdT> nextOrNull() {
-        if (current.hasNext()) {
-            return current.next();
+    /**
+     * Tells if there's a change waiting in the backlog that would be pushed now, but is being held back: the backlog is holding it to coalesce it with
+     * any that follow, the client has no room for more responses (see FlowControlledResponseObserver), or it's waiting to be admitted (see PushAdmissionController).
+     * If so, the caller must arrange for pushBacklog to be called once the backlog is ready, e.g. with whenBacklogReady.
+     */
+    public boolean isBacklogHeld() {
+        return currentChange == null && isPushAllowed() && !waitingStateBacklog.isEmpty() && (waitingStateBacklog.nanosUntilReady() > 0 || !isClientReady() || admissionRequestedAt >= 0);
+    }
+
+    /**
+     * Run a task once the change held in the backlog might be pushed. See StateBacklog.whenReady, FlowControlledResponseObserver.whenReady and
+     * PushAdmissionController.Admission.whenAvailable.
+     */
+    public void whenBacklogReady(Runnable task) {
+        if (waitingStateBacklog.nanosUntilReady() > 0) {
+            waitingStateBacklog.whenReady(task);
+        } else if (!isClientReady()) {
+            flowControl.whenReady(task);
+        } else {
+            admission.whenAvailable(task);
         }
-        return null;
+    }
+
+    /**
+     * Start pushing the change waiting in the backlog, if the backlog is ready and nothing else is being pushed.
+     */
+    public void pushBacklog() {
+        assertPostInitState();
+        if (currentChange == null && isPushAllowed()) {
+            pushWaitingChangeIfAny();
+        } else if (currentChange == null) {
+            cancelAdmission();
+        }
+    }
+
+    private void beginPhase(DiscoveryService.SubState phase) {
+        sendMode = phase;
+        unsent.addAll(phase == DiscoveryService.SubState.PRE ? preOrder : postOrder);
     }
 
     /**
@@ -202,7 +436,7 @@ public class DiscoveryServiceManager<RequestT extends Message, StateUpdT> {
      */
     private void finishPush() {
         Preconditions.checkState(currentChange != null, "Cannot finish a push when there isn't one in progress");
-        Preconditions.checkState(waitingOn == null, "Cannot finish a push when waiting on an ack for a previous pushed message");
+        Preconditions.checkState(unsent.isEmpty() && inFlight.isEmpty(), "Cannot finish a push when waiting on an ack for a previous pushed message");
         sendMode = DiscoveryService.SubState.COMPLETED;
         // Record time since we were first told about this change.
         metrics.onPushComplete();
@@ -219,9 +453,28 @@ public class DiscoveryServiceManager<RequestT extends Message, StateUpdT> {
      */
     private void pushWaitingChangeIfAny() {
         Preconditions.checkState(currentChange == null, "Should not start pushing waiting change if we already have a current change to push.");
+        if (waitingStateBacklog.isEmpty() || waitingStateBacklog.nanosUntilReady() > 0 || !isClientReady()) {
+            // Nothing to do, or still coalescing or waiting for the client to catch up, in which case our caller will be back when it's ready.
+            cancelAdmission();
+            return;
+        }
+        if (!admit()) {
+            // Our caller will be back once we're admitted.
+            return;
+        }
         currentChange = waitingStateBacklog.take();
         if (currentChange != null) {
+            metrics.onBacklogTake(waitingStateBacklog.depth());
+            if (waitingStateBacklog.holdsUpdates()) {
+                metrics.onBacklogCoalesced(heldUpdates, System.nanoTime() - heldSince);
+            }
+            if (waitingStateBacklog.isEmpty()) {
+                heldUpdates = 0;
+            }
             beginPush();
+        } else if (admission != null) {
+            // The backlog had nothing for us after all, let another stream have the slot.
+            admission.release();
         }
     }
 
@@ -233,30 +486,101 @@ public class DiscoveryServiceManager<RequestT extends Message, StateUpdT> {
         assertPostInitState();
         Preconditions.checkState(currentChange != null, "Cannot continue pushing a change if we have not begun to push one.");
 
-        if (waitingOn == null || waitingOn.awaitingAck()) {
-            return;
+        boolean progressed = true;
+        while (progressed) {
+            inFlight.removeIf(service -> !isBlocking(service));
+            progressed = sendReady();
+            if (!progressed && unsent.isEmpty() && inFlight.isEmpty()) {
+                if (sendMode == DiscoveryService.SubState.POST) {
+                    finishPush();
+                    return;
+                }
+                beginPhase(DiscoveryService.SubState.POST);
+                progressed = true;
+            }
         }
-        DiscoveryService<RequestT, StateUpdT> nextService = nextOrNull();
-        if (nextService == null) {
-            if (sendMode.equals(DiscoveryService.SubState.PRE)) {
-                sendMode = DiscoveryService.SubState.POST;
-                current = postOrder.iterator();
-                nextService = nextOrNull();
+    }
+
+    /**
+     * Have every discovery service that isn't waiting on any others send its part of the current phase.
+     * @return true if anything was sent.
+     */
+    private boolean sendReady() {
+        boolean sent = false;
+        List<DiscoveryService<RequestT, StateUpdT>> order = sendMode == DiscoveryService.SubState.PRE ? preOrder : postOrder;
+        Map<DiscoveryService<RequestT, StateUpdT>, List<DiscoveryService<RequestT, StateUpdT>>> dependencies = sendMode == DiscoveryService.SubState.PRE ? preDependencies : postDependencies;
+        for (DiscoveryService<RequestT, StateUpdT> service : order) {
+            if (!unsent.contains(service) || dependencies.get(service).stream().anyMatch(d -> unsent.contains(d) || inFlight.contains(d))) {
+                continue;
+            }
+            unsent.remove(service);
+            send(service);
+            sent = true;
+            if (service.awaitingAck()) {
+                if (isBlocking(service)) {
+                    inFlight.add(service);
+                }
+                // No-op if we already started timing, e.g. for a subscription change or an earlier pipelined response.
+                ackTimers.get(service).start(sendMode == DiscoveryService.SubState.PRE ? DiscoveryServiceManagerMetrics.Phase.PRE : DiscoveryServiceManagerMetrics.Phase.POST);
             }
         }
-        waitingOn = nextService;
+        return sent;
+    }
 
-        if (nextService == null) {
-            finishPush();
-        } else {
-            switch (sendMode) {
-                case PRE -> nextService.sendNetworkUpdatePre();
-                case POST -> nextService.sendNetworkUpdatePost();
-                case COMPLETED -> { }
-                default -> throw new IllegalStateException("Unhandled case should not happen.");
+    /**
+     * Have a discovery service send its part of the current phase of the push.
+     */
+    private void send(DiscoveryService<RequestT, StateUpdT> service) {
+        long start = System.nanoTime();
+        final DiscoveryServiceManagerMetrics.Phase phase;
+        switch (sendMode) {
+            case PRE -> {
+                service.sendNetworkUpdatePre();
+                phase = DiscoveryServiceManagerMetrics.Phase.PRE;
+            }
+            case POST -> {
+                service.sendNetworkUpdatePost();
+                phase = DiscoveryServiceManagerMetrics.Phase.POST;
+            }
+            case COMPLETED -> {
+                return;
+            }
+            default -> throw new IllegalStateException("Unhandled case should not happen.");
+        }
+        metrics.onPhaseSent(ackTimers.get(service).typeUrl, phase, System.nanoTime() - start);
+    }
+
+    /**
+     * Times how long envoy takes to ack a response from one discovery service.
+     * When several responses are pipelined only the first is timed, from when it was sent until envoy acks any of them.
+     */
+    private final class AckTimer {
+
+        private final TypeUrl typeUrl;
+
+        private DiscoveryServiceManagerMetrics.Phase phase = null;
+
+        private long sentAt = 0;
+
+        private AckTimer(TypeUrl typeUrl) {
+            this.typeUrl = typeUrl;
+        }
+
+        /**
+         * Start timing, unless we already are. If envoy hasn't acked a response yet it's still the first one we're waiting on.
+         */
+        private void start(DiscoveryServiceManagerMetrics.Phase sentIn) {
+            if (phase == null) {
+                phase = sentIn;
+                sentAt = System.nanoTime();
+            }
+        }
+
+        private void stop() {
+            if (phase != null) {
+                metrics.onPhaseAcked(typeUrl, phase, System.nanoTime() - sentAt);
+                phase = null;
             }
-            // Continue immediately, in case we are not waiting for acks.
-            continuePush();
         }
     }
 
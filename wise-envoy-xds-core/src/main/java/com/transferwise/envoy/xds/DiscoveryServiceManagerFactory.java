@@ -4,26 +4,115 @@ import com.google.protobuf.Message;
 import com.transferwise.envoy.xds.api.StateBacklog;
 import com.transferwise.envoy.xds.api.StateBacklogFactory;
 import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 public class DiscoveryServiceManagerFactory<RequestT extends Message, ResponseT extends Message, StateUpdT, DetailsT> {
 
     private final DiscoveryServiceFactory<RequestT, ResponseT, StateUpdT, DetailsT> discoveryServiceFactory;
     private final StateBacklogFactory<StateUpdT> waitingStateBacklogFactory;
+    private final PushOrder pushOrder;
+    private final PushAdmissionController pushAdmissionController;
+    private final long maxBufferedResponseBytes;
+    private final Executor streamExecutor;
 
     public DiscoveryServiceManagerFactory(DiscoveryServiceFactory<RequestT, ResponseT, StateUpdT, DetailsT> discoveryServiceFactory, StateBacklogFactory<StateUpdT> waitingStateBacklogFactory) {
+        this(discoveryServiceFactory, waitingStateBacklogFactory, PushOrder.SEQUENTIAL);
+    }
+
+    public DiscoveryServiceManagerFactory(DiscoveryServiceFactory<RequestT, ResponseT, StateUpdT, DetailsT> discoveryServiceFactory, StateBacklogFactory<StateUpdT> waitingStateBacklogFactory,
+                                          PushOrder pushOrder) {
+        this(discoveryServiceFactory, waitingStateBacklogFactory, pushOrder, null);
+    }
+
+    /**
+     * Builds managers that share a push order, and optionally push admission.
+     * @param pushAdmissionController if not null, every manager built has its pushes admitted through this.
+     */
+    public DiscoveryServiceManagerFactory(DiscoveryServiceFactory<RequestT, ResponseT, StateUpdT, DetailsT> discoveryServiceFactory, StateBacklogFactory<StateUpdT> waitingStateBacklogFactory,
+                                          PushOrder pushOrder, PushAdmissionController pushAdmissionController) {
+        this(discoveryServiceFactory, waitingStateBacklogFactory, pushOrder, pushAdmissionController, 0);
+    }
+
+    /**
+     * Builds managers that share a push order, and optionally push admission.
+     * @param pushAdmissionController if not null, every manager built has its pushes admitted through this.
+     * @param maxBufferedResponseBytes see DiscoveryServiceOptions.maxBufferedResponseBytes.
+     */
+    public DiscoveryServiceManagerFactory(DiscoveryServiceFactory<RequestT, ResponseT, StateUpdT, DetailsT> discoveryServiceFactory, StateBacklogFactory<StateUpdT> waitingStateBacklogFactory,
+                                          PushOrder pushOrder, PushAdmissionController pushAdmissionController, long maxBufferedResponseBytes) {
+        this(discoveryServiceFactory, waitingStateBacklogFactory, pushOrder, pushAdmissionController, maxBufferedResponseBytes, null);
+    }
+
+    /**
+     * Builds managers that share a push order, and optionally push admission.
+     * @param pushAdmissionController if not null, every manager built has its pushes admitted through this.
+     * @param maxBufferedResponseBytes see DiscoveryServiceOptions.maxBufferedResponseBytes.
+     * @param streamExecutor see DiscoveryServiceOptions.streamExecutor.
+     */
+    public DiscoveryServiceManagerFactory(DiscoveryServiceFactory<RequestT, ResponseT, StateUpdT, DetailsT> discoveryServiceFactory, StateBacklogFactory<StateUpdT> waitingStateBacklogFactory,
+                                          PushOrder pushOrder, PushAdmissionController pushAdmissionController, long maxBufferedResponseBytes, Executor streamExecutor) {
         this.discoveryServiceFactory = discoveryServiceFactory;
         this.waitingStateBacklogFactory = waitingStateBacklogFactory;
+        this.pushOrder = pushOrder;
+        this.pushAdmissionController = pushAdmissionController;
+        this.maxBufferedResponseBytes = maxBufferedResponseBytes;
+        this.streamExecutor = streamExecutor;
+    }
+
+    /**
+     * Where streams process requests and push changes, see DiscoveryServiceOptions.streamExecutor.
+     * @return the executor, or null if streams run their work on the threads that hand it to them.
+     */
+    public Executor streamExecutor() {
+        return streamExecutor;
+    }
+
+    /**
+     * A new state backlog of the kind managers are built with, for changes waiting to reach a manager.
+     */
+    public StateBacklog<StateUpdT> buildStateBacklog() {
+        return waitingStateBacklogFactory.build();
+    }
+
+    /**
+     * Wrap a gRPC response stream so pushes to it respect flow control, see FlowControlledResponseObserver.
+     * The caller must call onReady on the result from the stream's on ready handler.
+     */
+    public FlowControlledResponseObserver<ResponseT> flowControlled(ServerCallStreamObserver<ResponseT> responseObserver, DiscoveryServiceManagerMetrics metrics) {
+        return new FlowControlledResponseObserver<>(responseObserver, maxBufferedResponseBytes, metrics);
     }
 
+    /**
+     * Builds a manager for a stream. If the stream is flow controlled (see flowControlled) then pushes wait until it has room.
+     */
     public DiscoveryServiceManager<RequestT, StateUpdT> build(StreamObserver<ResponseT> responseObserver, NodeConfig<DetailsT> nodeConfig, DiscoveryServiceManagerMetrics metrics) {
-        return build(discoveryServiceFactory.createAll(responseObserver, nodeConfig), waitingStateBacklogFactory.build(), metrics);
+        return build(discoveryServiceFactory.createAll(responseObserver, nodeConfig, metrics), waitingStateBacklogFactory.build(), metrics,
+            nodeConfig.getXdsConfig().getPushPriority(), responseObserver instanceof FlowControlledResponseObserver<ResponseT> flowControlled ? flowControlled : null);
     }
 
     public DiscoveryServiceManager<RequestT, StateUpdT> build(Map<TypeUrl, DiscoveryService<RequestT, StateUpdT>> discoveryServices, StateBacklog<StateUpdT> waitingStateBacklog, DiscoveryServiceManagerMetrics metrics) {
-        return new DiscoveryServiceManager<>(discoveryServices, TypeUrl.ADD_ORDER, TypeUrl.REMOVE_ORDER, waitingStateBacklog, metrics);
+        return build(discoveryServices, waitingStateBacklog, metrics, 0);
+    }
+
+    /**
+     * Builds a manager whose pushes are admitted with the given priority, see XdsConfig.pushPriority.
+     */
+    public DiscoveryServiceManager<RequestT, StateUpdT> build(Map<TypeUrl, DiscoveryService<RequestT, StateUpdT>> discoveryServices, StateBacklog<StateUpdT> waitingStateBacklog, DiscoveryServiceManagerMetrics metrics,
+                                                              int pushPriority) {
+        return build(discoveryServices, waitingStateBacklog, metrics, pushPriority, null);
+    }
+
+    /**
+     * Builds a manager whose pushes are admitted with the given priority, and wait for the given stream to have room.
+     */
+    public DiscoveryServiceManager<RequestT, StateUpdT> build(Map<TypeUrl, DiscoveryService<RequestT, StateUpdT>> discoveryServices, StateBacklog<StateUpdT> waitingStateBacklog, DiscoveryServiceManagerMetrics metrics,
+                                                              int pushPriority, FlowControlledResponseObserver<ResponseT> flowControl) {
+        return new DiscoveryServiceManager<>(discoveryServices, pushOrder, waitingStateBacklog, metrics,
+            pushAdmissionController != null ? pushAdmissionController.newAdmission(pushPriority) : null, flowControl);
     }
 
 }
@@ -0,0 +1,102 @@
+package com.transferwise.envoy.xds;
+
+import com.transferwise.envoy.xds.api.NonceStrategy;
+import com.transferwise.envoy.xds.api.utils.CounterNonceStrategy;
+import lombok.Builder;
+import lombok.Builder.Default;
+import lombok.Value;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+
+/**
+ * Options controlling how discovery services are built. These apply to every client of a DiscoveryServiceFactory.
+ */
+@Value
+@Builder
+public class DiscoveryServiceOptions {
+
+    public static final DiscoveryServiceOptions DEFAULTS = DiscoveryServiceOptions.builder().build();
+
+    /**
+     * If greater than zero then config builder results are memoized across all clients, retaining at most this many results per config builder for each
+     * state update.
+     * See CachingConfigBuilder for details. Only enable this if the output of your config builders depends on nothing but their arguments.
+     */
+    @Default
+    long configBuilderCacheSize = 0;
+
+    /**
+     * If set then resources are packed into Any through this cache, so the same resource instance sent to many clients is only serialized once.
+     * Pass the same options to every factory (as AggregatedDiscoveryService does) to share it between SotW and delta clients.
+     */
+    @Default
+    PackedResourceCache packedResourceCache = null;
+
+    /**
+     * How the nonces sent with responses are generated. The default counts up from a random point for each discovery service.
+     */
+    @Default
+    NonceStrategy nonceStrategy = new CounterNonceStrategy();
+
+    /**
+     * Which discovery services wait for which others when pushing a change. Discovery services that don't depend on each other are pushed concurrently.
+     * Defaults to one type at a time (PushOrder.SEQUENTIAL), use PushOrder.DEFAULT to push independent types concurrently.
+     */
+    @Default
+    PushOrder pushOrder = PushOrder.SEQUENTIAL;
+
+    /**
+     * If set then pushes on every stream are admitted through this, limiting how fast and how many at once they start across the instance.
+     * Pass the same options to every factory (as AggregatedDiscoveryService does) so SotW and delta streams share the limits.
+     */
+    @Default
+    PushAdmissionController pushAdmissionController = null;
+
+    /**
+     * If set then clients are grouped into equivalence classes here, by NodeConfig and subscriptions, and each discovery service reports the size of the class
+     * it joins and leaves through DiscoveryServiceManagerMetrics. Pass the same options to every factory (as AggregatedDiscoveryService does) to count SotW and
+     * delta clients together.
+     */
+    @Default
+    ClientClasses clientClasses = null;
+
+    /**
+     * If greater than zero then a client is disconnected with RESOURCE_EXHAUSTED once more than this many response bytes are waiting to be sent to it,
+     * see FlowControlledResponseObserver. Whatever this is set to, new pushes wait until gRPC reports the client has room for them.
+     */
+    @Default
+    long maxBufferedResponseBytes = 0;
+
+    /**
+     * Where each stream processes client requests and pushes changes, one task at a time per stream.
+     * If null, which is the default, a stream's work runs on whichever thread hands it some while it is idle: usually the gRPC thread delivering a request,
+     * or the event source thread delivering a change, which waits for the push. A slow config builder then only holds up the threads feeding its streams.
+     * If set, those threads only enqueue work and return, and this runs it, so a heavy push never ties them up. But config building and serialization for
+     * every stream then share its threads, so one blocking config builder holds up every stream waiting for a thread. sharedStreamExecutor() is a pool
+     * sized for config builders that never block. The executor must not reject tasks.
+     */
+    @Default
+    Executor streamExecutor = null;
+
+    /**
+     * If greater than zero then the sessions of up to this many recently disconnected clients are kept, so a client that reconnects can resume its session
+     * rather than starting from scratch. See SessionResumptionCache. SotW and delta streams each get their own cache of this size.
+     */
+    @Default
+    long sessionResumptionCacheSize = 0;
+
+    /**
+     * How long after its stream ends a client can resume its session.
+     */
+    @Default
+    Duration sessionResumptionTtl = Duration.ofMinutes(1);
+
+    /**
+     * A pool of daemon threads, one per processor, created on first use, for streamExecutor. Every service using it shares the same threads.
+     */
+    public static Executor sharedStreamExecutor() {
+        return SerialMailbox.sharedExecutor();
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.transferwise.envoy.xds;
+
+import com.google.protobuf.Message;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Sends responses to envoy while keeping track of gRPC flow control, so a slow or stalled client can't make us buffer response after response in heap.
+ * While the stream isn't ready (see ServerCallStreamObserver.isReady) the DiscoveryServiceManager doesn't start new pushes. Changes keep merging in the
+ * state backlog instead, and are pushed once the client has caught up. Responses already part way through a push, or sent because envoy changed its
+ * subscriptions, still go out.
+ * We can't see how many bytes gRPC is actually holding, so we count those sent since the stream last had room, which is an overestimate. If that goes over
+ * the budget the client is disconnected with RESOURCE_EXHAUSTED, and can reconnect and start again.
+ * Like the rest of the stream, this is only used from the stream's mailbox, see CommonDiscoveryStreamObserver. onReady must be called from there too.
+ *
+ * @param <R> Response type
+ */
+public final class FlowControlledResponseObserver<R extends Message> implements StreamObserver<R> {
+
+    private final ServerCallStreamObserver<R> delegate;
+
+    private final long maxBufferedBytes;
+
+    private final DiscoveryServiceManagerMetrics metrics;
+
+    private long bufferedBytes = 0;
+
+    private Runnable wakeUp = null;
+
+    /**
+     * See class description.
+     * @param delegate the gRPC stream, whose on ready handler must call onReady
+     * @param maxBufferedBytes disconnect the client if more than this many bytes would be sent while the stream isn't ready. Zero or less for no limit.
+     */
+    public FlowControlledResponseObserver(ServerCallStreamObserver<R> delegate, long maxBufferedBytes, DiscoveryServiceManagerMetrics metrics) {
+        this.delegate = delegate;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void onNext(R value) {
+        int size = value.getSerializedSize();
+        if (delegate.isReady()) {
+            // Whatever was sent before has mostly gone out.
+            bufferedBytes = 0;
+        } else if (maxBufferedBytes > 0 && bufferedBytes + size > maxBufferedBytes) {
+            metrics.onSlowClientDisconnected(bufferedBytes);
+            throw new StatusRuntimeException(Status.RESOURCE_EXHAUSTED.withDescription("Client is not reading responses, over " + maxBufferedBytes + " bytes waiting to be sent"));
+        }
+        delegate.onNext(value);
+        bufferedBytes += size;
+        metrics.onResponseBuffered(bufferedBytes);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        delegate.onError(t);
+    }
+
+    @Override
+    public void onCompleted() {
+        delegate.onCompleted();
+    }
+
+    /**
+     * Tells if the client has room for more responses, so a new push may start.
+     */
+    public boolean isReady() {
+        return delegate.isReady();
+    }
+
+    /**
+     * Run a task once the client has room for more responses, or straight away if it already has. Only the latest task is kept.
+     */
+    public void whenReady(Runnable task) {
+        if (delegate.isReady()) {
+            task.run();
+        } else {
+            wakeUp = task;
+        }
+    }
+
+    /**
+     * Called when gRPC reports the stream is ready again.
+     */
+    public void onReady() {
+        if (!delegate.isReady()) {
+            // We were slower than the client, and have since filled the buffer again.
+            return;
+        }
+        bufferedBytes = 0;
+        metrics.onResponseBuffered(0);
+        Runnable task = wakeUp;
+        wakeUp = null;
+        if (task != null) {
+            task.run();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.transferwise.envoy.xds;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import io.envoyproxy.envoy.config.core.v3.Node;
 import io.envoyproxy.envoy.type.v3.SemanticVersion;
 import lombok.Builder;
@@ -10,6 +12,14 @@ import lombok.Value;
 @Builder
 public class NodeConfig<DetailsT> {
 
+    /**
+     * Most clients have equal config, so forNode hands them all the same instances. That saves memory, and lets caches keyed on them (e.g.
+     * CachingConfigBuilder) compare by identity.
+     */
+    private static final Interner<NodeConfig<?>> INTERNER = Interners.newWeakInterner();
+
+    private static final Interner<XdsConfig<?>> XDS_CONFIG_INTERNER = Interners.newWeakInterner();
+
     XdsConfig<DetailsT> xdsConfig;
 
     /**
@@ -20,9 +30,13 @@ public class NodeConfig<DetailsT> {
     @Default
     boolean bugClientSendsResourceListOnReconnectToWildcard = false;
 
+    /**
+     * The config for a client, interned, so clients with equal config share one instance.
+     */
+    @SuppressWarnings("unchecked")
     public static <DetailsT> NodeConfig<DetailsT> forNode(Node node, XdsConfig<DetailsT> xdsConfig) {
         NodeConfigBuilder<DetailsT> builder = NodeConfig.<DetailsT>builder()
-            .xdsConfig(xdsConfig);
+            .xdsConfig(xdsConfig != null ? (XdsConfig<DetailsT>) XDS_CONFIG_INTERNER.intern(xdsConfig) : null);
 
         if (node.getUserAgentName().equals("envoy")) {
             SemanticVersion clientVersion = node.getUserAgentBuildVersion().getVersion();
@@ -31,7 +45,7 @@ public class NodeConfig<DetailsT> {
             }
         }
 
-        return builder.build();
+        return (NodeConfig<DetailsT>) INTERNER.intern(builder.build());
     }
 
 }
@@ -0,0 +1,106 @@
+package com.transferwise.envoy.xds;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.Any;
+import com.google.protobuf.Message;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of resources already packed into an Any, shared by every discovery service (SotW and delta) it is given to.
+ * Packing serializes the resource, so without this a resource sent to 1000 envoys is serialized 1000 times.
+ * Resources are keyed by identity: config builders that hand the same message instance to every client (or that are wrapped by a CachingConfigBuilder)
+ * get the full benefit, while messages built fresh for every client simply miss.
+ * Alongside each packed resource it keeps a hash of the packed bytes, so discovery services can tell whether a client already has a resource without hashing
+ * it again for every client.
+ * Keys are weakly held, so entries are dropped once the resource itself is no longer referenced, and the cache is additionally bounded in size.
+ * This class is thread safe.
+ */
+public class PackedResourceCache {
+
+    private final Cache<Message, Packed> cache;
+
+    private final LongAdder serializations = new LongAdder();
+
+    private final LongAdder serializationsSaved = new LongAdder();
+
+    private final LongAdder bytesSaved = new LongAdder();
+
+    /**
+     * See class description.
+     * @param maximumSize Maximum number of packed resources to retain, the least recently used will be evicted first.
+     */
+    public PackedResourceCache(long maximumSize) {
+        this.cache = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumSize(maximumSize)
+            .build();
+    }
+
+    /**
+     * Pack a resource into an Any, reusing a previous result if this exact resource instance has been packed before.
+     * @param message the resource to pack
+     * @return the packed resource
+     */
+    public Any pack(Message message) {
+        return packWithHash(message).packed();
+    }
+
+    /**
+     * Pack a resource and hash the result, reusing a previous result if this exact resource instance has been packed before.
+     * @param message the resource to pack
+     * @return the packed resource and its hash
+     */
+    public Packed packWithHash(Message message) {
+        Packed packed = cache.getIfPresent(message);
+        if (packed != null) {
+            serializationsSaved.increment();
+            bytesSaved.add(packed.packed().getValue().size());
+            return packed;
+        }
+        // Two threads packing the same message at once will both do the work, which is harmless and cheaper than locking.
+        packed = Packed.of(message);
+        serializations.increment();
+        cache.put(message, packed);
+        return packed;
+    }
+
+    /**
+     * Number of resources that had to be serialized.
+     */
+    public long getSerializations() {
+        return serializations.sum();
+    }
+
+    /**
+     * Number of serializations avoided by reusing an already packed resource.
+     */
+    public long getSerializationsSaved() {
+        return serializationsSaved.sum();
+    }
+
+    /**
+     * Total size in bytes of the serialized resources that were reused rather than serialized again.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    /**
+     * A resource packed into an Any, and a 64-bit hash of the packed bytes.
+     * Resources are packed deterministically, so the hash is stable across clients, streams and control plane restarts.
+     */
+    public record Packed(Any packed, long contentHash) {
+
+        /**
+         * Pack and hash a resource without any caching.
+         */
+        public static Packed of(Message message) {
+            Any packed = DeterministicPacking.pack(message);
+            return new Packed(packed, Hashing.murmur3_128().hashBytes(packed.getValue().asReadOnlyByteBuffer()).asLong());
+        }
+    }
+
+}
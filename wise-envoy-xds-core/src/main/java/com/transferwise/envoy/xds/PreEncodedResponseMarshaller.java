@@ -0,0 +1,403 @@
+package com.transferwise.envoy.xds;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.Any;
+import com.google.protobuf.ByteOutput;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
+import io.envoyproxy.envoy.service.discovery.v3.AggregatedDiscoveryServiceGrpc;
+import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryResponse;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryResponse;
+import io.envoyproxy.envoy.service.discovery.v3.Resource;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A response marshaller for the ADS streams that reuses the encoded bytes of resources already sent to other clients.
+ * The stock protobuf marshaller encodes every nested Any again for every client, even though (especially when using a PackedResourceCache) it is the exact same
+ * instance that was just written for the previous client. This marshaller keeps the encoded form of each Any, keyed by identity, and stitches those encoded
+ * slices together with the per-client fields (version, nonce, etc.) without copying them, so fanning out a large update is mostly buffer copies into the transport.
+ * The output is byte for byte identical to the stock marshaller, parsing is delegated to the original marshaller.
+ * To use it, wrap the service definition when adding it to the server:
+ * <pre>
+ *     ServerBuilder.forPort(port).addService(PreEncodedResponseMarshaller.wrap(ads.bindService(), 10000))
+ * </pre>
+ *
+ * @param <T> The response message type
+ */
+public final class PreEncodedResponseMarshaller<T extends Message> implements MethodDescriptor.Marshaller<T> {
+
+    private static final int VERSION_FIELD_NUMBER = 1;
+
+    private static final int RESOURCES_FIELD_NUMBER = 2;
+
+    private final MethodDescriptor.Marshaller<T> delegate;
+
+    private final Function<T, EncodedMessage> encoder;
+
+    private PreEncodedResponseMarshaller(MethodDescriptor.Marshaller<T> delegate, Function<T, EncodedMessage> encoder) {
+        this.delegate = delegate;
+        this.encoder = encoder;
+    }
+
+    /**
+     * Marshaller for state of the world responses.
+     * @param delegate The stock marshaller, used for parsing.
+     * @param cache The encoded resource cache, which may be shared with other marshallers.
+     */
+    public static PreEncodedResponseMarshaller<DiscoveryResponse> sotw(MethodDescriptor.Marshaller<DiscoveryResponse> delegate, EncodedResourceCache cache) {
+        return new PreEncodedResponseMarshaller<>(delegate, cache::encode);
+    }
+
+    /**
+     * Marshaller for delta responses.
+     * @param delegate The stock marshaller, used for parsing.
+     * @param cache The encoded resource cache, which may be shared with other marshallers.
+     */
+    public static PreEncodedResponseMarshaller<DeltaDiscoveryResponse> delta(MethodDescriptor.Marshaller<DeltaDiscoveryResponse> delegate, EncodedResourceCache cache) {
+        return new PreEncodedResponseMarshaller<>(delegate, cache::encode);
+    }
+
+    /**
+     * Replace the response marshallers of the ADS methods in a service definition, leaving any other methods untouched.
+     * @param serviceDefinition The service definition, usually from AggregatedDiscoveryService.bindService()
+     * @param maximumSize Maximum number of encoded resources to retain, shared between the SotW and delta methods.
+     * @return a service definition to register with the server instead of the original.
+     */
+    public static ServerServiceDefinition wrap(ServerServiceDefinition serviceDefinition, long maximumSize) {
+        EncodedResourceCache cache = new EncodedResourceCache(maximumSize);
+        ServiceDescriptor original = serviceDefinition.getServiceDescriptor();
+        List<ServerMethodDefinition<?, ?>> methods = new ArrayList<>();
+        for (ServerMethodDefinition<?, ?> method : serviceDefinition.getMethods()) {
+            methods.add(wrapMethod(method, cache));
+        }
+        ServiceDescriptor.Builder descriptor = ServiceDescriptor.newBuilder(original.getName()).setSchemaDescriptor(original.getSchemaDescriptor());
+        methods.forEach(m -> descriptor.addMethod(m.getMethodDescriptor()));
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(descriptor.build());
+        methods.forEach(builder::addMethod);
+        return builder.build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <ReqT, RespT> ServerMethodDefinition<ReqT, RespT> wrapMethod(ServerMethodDefinition<ReqT, RespT> method, EncodedResourceCache cache) {
+        MethodDescriptor<ReqT, RespT> descriptor = method.getMethodDescriptor();
+        final MethodDescriptor.Marshaller<RespT> marshaller;
+        if (descriptor.getFullMethodName().equals(AggregatedDiscoveryServiceGrpc.getStreamAggregatedResourcesMethod().getFullMethodName())) {
+            marshaller = (MethodDescriptor.Marshaller<RespT>) sotw((MethodDescriptor.Marshaller<DiscoveryResponse>) descriptor.getResponseMarshaller(), cache);
+        } else if (descriptor.getFullMethodName().equals(AggregatedDiscoveryServiceGrpc.getDeltaAggregatedResourcesMethod().getFullMethodName())) {
+            marshaller = (MethodDescriptor.Marshaller<RespT>) delta((MethodDescriptor.Marshaller<DeltaDiscoveryResponse>) descriptor.getResponseMarshaller(), cache);
+        } else {
+            return method;
+        }
+        return ServerMethodDefinition.create(descriptor.toBuilder(descriptor.getRequestMarshaller(), marshaller).build(), method.getServerCallHandler());
+    }
+
+    @Override
+    public InputStream stream(T value) {
+        return new EncodedInputStream(encoder.apply(value));
+    }
+
+    @Override
+    public T parse(InputStream stream) {
+        return delegate.parse(stream);
+    }
+
+    /**
+     * Encoded form of Any resources, keyed by identity. Keys are weakly held and the cache is bounded in size.
+     * This class is thread safe.
+     */
+    public static final class EncodedResourceCache {
+
+        private final Cache<Any, EncodedResource> cache;
+
+        public EncodedResourceCache(long maximumSize) {
+            this.cache = CacheBuilder.newBuilder()
+                .weakKeys()
+                .maximumSize(maximumSize)
+                .build();
+        }
+
+        // Protobuf writes fields in field number order, followed by unknown fields. Both responses, and Resource, have a string version as field 1 and
+        // the resources as field 2, so we can write field 1, then our cached field 2, then serialize everything else as normal.
+
+        EncodedMessage encode(DiscoveryResponse response) {
+            EncodedMessage out = new EncodedMessage(response.getResourcesCount() + 2);
+            out.add(stringField(response.getVersionInfo()));
+            for (Any any : response.getResourcesList()) {
+                out.add(get(any).field);
+            }
+            out.add(response.toBuilder().clearVersionInfo().clearResources().build().toByteString());
+            return out;
+        }
+
+        EncodedMessage encode(DeltaDiscoveryResponse response) {
+            EncodedMessage out = new EncodedMessage(response.getResourcesCount() * 2 + 2);
+            out.add(stringField(response.getSystemVersionInfo()));
+            for (Resource resource : response.getResourcesList()) {
+                encode(resource, out);
+            }
+            out.add(response.toBuilder().clearSystemVersionInfo().clearResources().build().toByteString());
+            return out;
+        }
+
+        private void encode(Resource resource, EncodedMessage out) {
+            if (resource.hasResource()) {
+                // Resource is written as: version (field 1), resource (field 2), name (field 3), and then whatever else is set.
+                // We cache the encoded resource and name together, but that is only valid if nothing else is set, which we can tell from the message size.
+                ByteString namedField = get(resource.getResource()).namedField(resource.getName());
+                int versionSize = resource.getVersion().isEmpty() ? 0 : CodedOutputStream.computeStringSize(VERSION_FIELD_NUMBER, resource.getVersion());
+                if (resource.getSerializedSize() == versionSize + namedField.size()) {
+                    out.add(header(versionSize + namedField.size(), resource.getVersion()));
+                    out.add(namedField);
+                    return;
+                }
+            }
+            out.add(UnsafeByteOperations.unsafeWrap(write(
+                CodedOutputStream.computeTagSize(RESOURCES_FIELD_NUMBER) + CodedOutputStream.computeMessageSizeNoTag(resource),
+                o -> o.writeMessage(RESOURCES_FIELD_NUMBER, resource)
+            )));
+        }
+
+        private EncodedResource get(Any any) {
+            EncodedResource encoded = cache.getIfPresent(any);
+            if (encoded == null) {
+                // Two threads encoding the same resource at once will both do the work, which is harmless and cheaper than locking.
+                encoded = new EncodedResource(any);
+                cache.put(any, encoded);
+            }
+            return encoded;
+        }
+
+        private static ByteString stringField(String value) {
+            if (value.isEmpty()) {
+                return ByteString.EMPTY;
+            }
+            return UnsafeByteOperations.unsafeWrap(write(CodedOutputStream.computeStringSize(VERSION_FIELD_NUMBER, value), o -> o.writeString(VERSION_FIELD_NUMBER, value)));
+        }
+
+        /**
+         * The tag and length of a field 2 message of the given size, optionally followed by the message's version field.
+         */
+        private static ByteString header(int messageSize, String version) {
+            int size = CodedOutputStream.computeTagSize(RESOURCES_FIELD_NUMBER) + CodedOutputStream.computeUInt32SizeNoTag(messageSize);
+            if (!version.isEmpty()) {
+                size += CodedOutputStream.computeStringSize(VERSION_FIELD_NUMBER, version);
+            }
+            byte[] bytes = new byte[size];
+            CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+            try {
+                out.writeTag(RESOURCES_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                out.writeUInt32NoTag(messageSize);
+                if (!version.isEmpty()) {
+                    out.writeString(VERSION_FIELD_NUMBER, version);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return UnsafeByteOperations.unsafeWrap(bytes);
+        }
+
+        private static byte[] write(int size, Writer writer) {
+            byte[] bytes = new byte[size];
+            CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+            try {
+                writer.write(out);
+                out.checkNoSpaceLeft();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes;
+        }
+
+        private interface Writer {
+            void write(CodedOutputStream out) throws IOException;
+        }
+    }
+
+    private static final class EncodedResource {
+
+        private static final int NAME_FIELD_NUMBER = 3;
+
+        /**
+         * The Any encoded as field 2, including its tag and length.
+         */
+        private final ByteString field;
+
+        /**
+         * The Any encoded as field 2 followed by a delta Resource name, for the last name seen.
+         */
+        private volatile NamedField named;
+
+        private EncodedResource(Any any) {
+            this.field = UnsafeByteOperations.unsafeWrap(EncodedResourceCache.write(
+                CodedOutputStream.computeMessageSize(RESOURCES_FIELD_NUMBER, any),
+                o -> o.writeMessage(RESOURCES_FIELD_NUMBER, any)
+            ));
+        }
+
+        private ByteString namedField(String name) {
+            NamedField current = named;
+            if (current == null || !current.name.equals(name)) {
+                ByteString nameField = name.isEmpty() ? ByteString.EMPTY : UnsafeByteOperations.unsafeWrap(EncodedResourceCache.write(
+                    CodedOutputStream.computeStringSize(NAME_FIELD_NUMBER, name),
+                    o -> o.writeString(NAME_FIELD_NUMBER, name)
+                ));
+                current = new NamedField(name, field.concat(nameField));
+                named = current;
+            }
+            return current.field;
+        }
+
+        private record NamedField(String name, ByteString field) {
+
+        }
+    }
+
+    /**
+     * A message encoded as a list of slices.
+     */
+    static final class EncodedMessage {
+
+        private final List<ByteString> slices;
+
+        private int size = 0;
+
+        private EncodedMessage(int capacity) {
+            this.slices = new ArrayList<>(capacity);
+        }
+
+        private void add(ByteString slice) {
+            if (!slice.isEmpty()) {
+                slices.add(slice);
+                size += slice.size();
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            // ByteString.writeTo(OutputStream) copies each slice to protect it from the stream, but we know grpc won't modify what we give it.
+            ByteOutput output = new OutputStreamByteOutput(out);
+            for (ByteString slice : slices) {
+                UnsafeByteOperations.unsafeWriteTo(slice, output);
+            }
+        }
+
+        ByteString toByteString() {
+            return ByteString.copyFrom(slices);
+        }
+    }
+
+    private static final class OutputStreamByteOutput extends ByteOutput {
+
+        private final OutputStream out;
+
+        private OutputStreamByteOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(byte value) throws IOException {
+            out.write(value);
+        }
+
+        @Override
+        public void write(byte[] value, int offset, int length) throws IOException {
+            out.write(value, offset, length);
+        }
+
+        @Override
+        public void write(ByteBuffer value) throws IOException {
+            writeLazy(value);
+        }
+
+        @Override
+        public void writeLazy(byte[] value, int offset, int length) throws IOException {
+            out.write(value, offset, length);
+        }
+
+        @Override
+        public void writeLazy(ByteBuffer value) throws IOException {
+            if (value.hasArray()) {
+                out.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+            } else {
+                byte[] bytes = new byte[value.remaining()];
+                value.duplicate().get(bytes);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Lets grpc drain the encoded slices straight into its buffers, only falling back to a copying InputStream if something reads it directly.
+     */
+    private static final class EncodedInputStream extends InputStream implements Drainable, KnownLength {
+
+        private EncodedMessage encoded;
+
+        private InputStream fallback;
+
+        private EncodedInputStream(EncodedMessage encoded) {
+            this.encoded = encoded;
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            if (fallback != null) {
+                return (int) fallback.transferTo(target);
+            }
+            if (encoded == null) {
+                return 0;
+            }
+            int size = encoded.size();
+            encoded.writeTo(target);
+            encoded = null;
+            return size;
+        }
+
+        private InputStream fallback() {
+            if (fallback == null) {
+                fallback = encoded == null ? InputStream.nullInputStream() : encoded.toByteString().newInput();
+                encoded = null;
+            }
+            return fallback;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fallback().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return fallback().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (fallback != null) {
+                return fallback.available();
+            }
+            return encoded == null ? 0 : encoded.size();
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.transferwise.envoy.xds;
+
+import com.google.common.base.Preconditions;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits how fast pushes start across every stream on this instance, so a network change that affects every client doesn't have all of them building and
+ * serializing config in the same instant.
+ * A push must be admitted before it starts. Admission optionally waits a random jitter first, then takes a token from a bucket that refills at
+ * pushesPerSecond and holds at most burst tokens, and one of maxConcurrentPushes slots while the push builds and sends its first responses. The slot is given
+ * back once those are sent, not when envoy acks them, so a slow client can't hold up everyone else.
+ * Streams that have to wait are admitted by priority (see XdsConfig.pushPriority), and within a priority the one that has waited longest goes first, so under
+ * saturation latency-critical proxies stay fresh and nobody falls further and further behind. Each waiting stream is woken once, when it's admitted.
+ * Updates that arrive while a stream waits are merged or queued in its state backlog as usual.
+ * Share one instance between every stream (e.g. through DiscoveryServiceOptions.pushAdmissionController). This class is thread safe.
+ */
+public final class PushAdmissionController {
+
+    private static final Comparator<Admission> ADMISSION_ORDER = Comparator.<Admission>comparingInt(a -> -a.priority).thenComparingLong(a -> a.queuedSeq);
+
+    private final double nanosPerToken;
+
+    private final double burst;
+
+    private final int maxConcurrentPushes;
+
+    private final long jitterNanos;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final LongSupplier nanoTime;
+
+    /**
+     * Everything below is guarded by this.
+     */
+    private double tokens;
+
+    private long refilledAt;
+
+    private int concurrentPushes = 0;
+
+    private final PriorityQueue<Admission> waiting = new PriorityQueue<>(ADMISSION_ORDER);
+
+    private long nextQueuedSeq = 0;
+
+    private boolean dispatchScheduled = false;
+
+    private PushAdmissionController(Builder builder) {
+        this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / builder.pushesPerSecond;
+        this.burst = builder.burst;
+        this.maxConcurrentPushes = builder.maxConcurrentPushes;
+        this.jitterNanos = builder.jitter.toNanos();
+        this.scheduler = builder.scheduler;
+        this.nanoTime = builder.nanoTime;
+        this.tokens = builder.burst;
+        this.refilledAt = nanoTime.getAsLong();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * A handle for one stream to have its pushes admitted through, at the default priority of zero.
+     */
+    public Admission newAdmission() {
+        return newAdmission(0);
+    }
+
+    /**
+     * A handle for one stream to have its pushes admitted through.
+     * @param priority streams with a higher priority are admitted first when several are waiting.
+     */
+    public Admission newAdmission(int priority) {
+        return new Admission(priority);
+    }
+
+    private boolean canAdmit(long now) {
+        if (concurrentPushes >= maxConcurrentPushes) {
+            return false;
+        }
+        if (nanosPerToken > 0) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) / nanosPerToken);
+            refilledAt = now;
+            return tokens >= 1;
+        }
+        return true;
+    }
+
+    private void admit(Admission admission) {
+        if (nanosPerToken > 0) {
+            tokens -= 1;
+        }
+        ++concurrentPushes;
+        admission.state = State.ADMITTED;
+    }
+
+    /**
+     * Admit as many waiting streams as we can, in order, and arrange to come back when the next token is due if any are still waiting.
+     * Must be called holding the lock.
+     * @return wake up tasks of the streams admitted, to be run once the lock is released.
+     */
+    private List<Runnable> dispatch() {
+        List<Runnable> wake = new ArrayList<>();
+        long now = nanoTime.getAsLong();
+        while (!waiting.isEmpty() && canAdmit(now)) {
+            Admission admission = waiting.poll();
+            admit(admission);
+            if (admission.wakeUp != null) {
+                wake.add(admission.wakeUp);
+                admission.wakeUp = null;
+            }
+        }
+        if (!waiting.isEmpty() && concurrentPushes < maxConcurrentPushes && !dispatchScheduled) {
+            // Out of tokens. Otherwise we're out of slots, and will dispatch again when one is released.
+            dispatchScheduled = true;
+            scheduler.schedule(this::scheduledDispatch, (long) Math.ceil((1 - tokens) * nanosPerToken), TimeUnit.NANOSECONDS);
+        }
+        return wake;
+    }
+
+    private void scheduledDispatch() {
+        List<Runnable> wake;
+        synchronized (this) {
+            dispatchScheduled = false;
+            wake = dispatch();
+        }
+        wake.forEach(scheduler::execute);
+    }
+
+    private enum State {
+        IDLE,
+        JITTER,
+        WAITING,
+        ADMITTED,
+        STARTED,
+        CLOSED
+    }
+
+    /**
+     * Admits the pushes of one stream. Only used by the stream's DiscoveryServiceManager, one thread at a time.
+     */
+    public final class Admission {
+
+        private final int priority;
+
+        /**
+         * Everything below is guarded by the controller.
+         */
+        private State state = State.IDLE;
+
+        private long jitterUntil = 0;
+
+        private long queuedSeq = 0;
+
+        private Runnable wakeUp = null;
+
+        private Admission(int priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * Try to have a push admitted. If this returns false, call whenAvailable and try again when it runs. The stream keeps its place while it waits.
+         * @return true if the push may start now, in which case release must be called once it has sent its first responses.
+         */
+        public boolean tryAcquire() {
+            List<Runnable> wake = List.of();
+            boolean admitted;
+            synchronized (PushAdmissionController.this) {
+                long now = nanoTime.getAsLong();
+                if (state == State.STARTED) {
+                    // A push that finishes straight away can start the next one before releasing its slot.
+                    state = State.IDLE;
+                    --concurrentPushes;
+                    wake = dispatch();
+                }
+                if (state == State.IDLE && jitterNanos > 0) {
+                    state = State.JITTER;
+                    jitterUntil = now + ThreadLocalRandom.current().nextLong(jitterNanos) + 1;
+                }
+                if (state == State.JITTER && now - jitterUntil >= 0) {
+                    state = State.IDLE;
+                }
+                if (state == State.IDLE) {
+                    if (waiting.isEmpty() && canAdmit(now)) {
+                        admit(this);
+                    } else {
+                        state = State.WAITING;
+                        queuedSeq = nextQueuedSeq++;
+                        waiting.add(this);
+                        wake = concat(wake, dispatch());
+                    }
+                }
+                admitted = state == State.ADMITTED;
+                if (admitted) {
+                    state = State.STARTED;
+                }
+            }
+            wake.forEach(scheduler::execute);
+            return admitted;
+        }
+
+        /**
+         * Let another push start, once this stream's push has sent its first responses.
+         */
+        public void release() {
+            List<Runnable> wake;
+            synchronized (PushAdmissionController.this) {
+                if (state != State.STARTED) {
+                    return;
+                }
+                state = State.IDLE;
+                --concurrentPushes;
+                wake = dispatch();
+            }
+            wake.forEach(scheduler::execute);
+        }
+
+        /**
+         * Withdraw the request for a push that can't start after all, e.g. because the client has no room for it, so a stream that isn't going to push
+         * doesn't hold a slot the others could use. If the push was already admitted, its slot and token go to the next stream waiting. Call tryAcquire
+         * again once the push can start. Does nothing if no push was asked for, or it has already started.
+         */
+        public void cancel() {
+            List<Runnable> wake = List.of();
+            synchronized (PushAdmissionController.this) {
+                switch (state) {
+                    case WAITING -> waiting.remove(this);
+                    case ADMITTED -> {
+                        --concurrentPushes;
+                        if (nanosPerToken > 0) {
+                            tokens = Math.min(burst, tokens + 1);
+                        }
+                        wake = dispatch();
+                    }
+                    case JITTER -> {
+                    }
+                    default -> {
+                        return;
+                    }
+                }
+                state = State.IDLE;
+                wakeUp = null;
+            }
+            wake.forEach(scheduler::execute);
+        }
+
+        /**
+         * Give up, e.g. because the stream ended. Whatever this stream was holding or waiting for goes to the others.
+         */
+        public void close() {
+            List<Runnable> wake = List.of();
+            synchronized (PushAdmissionController.this) {
+                if (state == State.WAITING) {
+                    waiting.remove(this);
+                } else if (state == State.ADMITTED || state == State.STARTED) {
+                    --concurrentPushes;
+                    wake = dispatch();
+                }
+                state = State.CLOSED;
+                wakeUp = null;
+            }
+            wake.forEach(scheduler::execute);
+        }
+
+        /**
+         * Run a task, on another thread, once tryAcquire might succeed.
+         */
+        public void whenAvailable(Runnable task) {
+            synchronized (PushAdmissionController.this) {
+                switch (state) {
+                    case JITTER -> scheduler.schedule(task, Math.max(0, jitterUntil - nanoTime.getAsLong()), TimeUnit.NANOSECONDS);
+                    case WAITING -> wakeUp = task;
+                    case CLOSED -> {
+                    }
+                    default -> scheduler.execute(task);
+                }
+            }
+        }
+    }
+
+    private static List<Runnable> concat(List<Runnable> a, List<Runnable> b) {
+        if (a.isEmpty()) {
+            return b;
+        }
+        List<Runnable> all = new ArrayList<>(a);
+        all.addAll(b);
+        return all;
+    }
+
+    public static class Builder {
+
+        private double pushesPerSecond = Double.POSITIVE_INFINITY;
+
+        private double burst = 1;
+
+        private int maxConcurrentPushes = Integer.MAX_VALUE;
+
+        private Duration jitter = Duration.ZERO;
+
+        private ScheduledExecutorService scheduler = null;
+
+        private LongSupplier nanoTime = System::nanoTime;
+
+        /**
+         * How many pushes may start per second, across every stream. Unlimited by default.
+         */
+        public Builder pushesPerSecond(double pushesPerSecond) {
+            Preconditions.checkArgument(pushesPerSecond > 0, "pushesPerSecond must be positive");
+            this.pushesPerSecond = pushesPerSecond;
+            return this;
+        }
+
+        /**
+         * How many pushes may start at once after a quiet period, before pushesPerSecond kicks in. Defaults to 1.
+         */
+        public Builder burst(int burst) {
+            Preconditions.checkArgument(burst >= 1, "burst must be at least 1");
+            this.burst = burst;
+            return this;
+        }
+
+        /**
+         * How many streams may be building and sending the start of a push at the same time. Unlimited by default.
+         */
+        public Builder maxConcurrentPushes(int maxConcurrentPushes) {
+            Preconditions.checkArgument(maxConcurrentPushes >= 1, "maxConcurrentPushes must be at least 1");
+            this.maxConcurrentPushes = maxConcurrentPushes;
+            return this;
+        }
+
+        /**
+         * Delay every push by a random time up to this, spreading pushes out even when tokens are available. None by default.
+         */
+        public Builder jitter(Duration jitter) {
+            Preconditions.checkArgument(!jitter.isNegative(), "jitter must not be negative");
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * Runs the tasks that wake waiting streams. These only hand work to the stream, so they're quick. Defaults to a single daemon thread.
+         */
+        public Builder scheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        Builder nanoTime(LongSupplier nanoTime) {
+            this.nanoTime = nanoTime;
+            return this;
+        }
+
+        public PushAdmissionController build() {
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "xds-push-admission");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return new PushAdmissionController(this);
+        }
+    }
+}
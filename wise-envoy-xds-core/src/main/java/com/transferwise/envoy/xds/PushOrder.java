@@ -0,0 +1,219 @@
+package com.transferwise.envoy.xds;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Which discovery services must have sent their part of a push, and had it acked, before another discovery service may send its part.
+ * There is one dependency graph for the add phase (DiscoveryService.sendNetworkUpdatePre) and one for the remove phase (sendNetworkUpdatePost).
+ * Discovery services that don't depend on each other are sent concurrently, so a push takes as long as its longest chain of round trips to envoy
+ * rather than the sum of all of them. Types that aren't part of a phase never send anything in that phase.
+ * A type can also be given a pipeline window, see pipelineWindow.
+ * Instances are immutable, build them with builder() or sequential().
+ */
+public final class PushOrder {
+
+    /**
+     * Make before break, following the ordering in the xDS spec: secrets before the clusters and listeners that use them, clusters before their endpoints,
+     * endpoints before the listeners (and routes) that send traffic to them. Runtime doesn't depend on anything.
+     * Removals go the other way round: listeners and routes stop referring to clusters before the clusters go, and secrets go last.
+     * Types that don't depend on each other are sent concurrently, so this is opt-in: set it as DiscoveryServiceOptions.pushOrder.
+     */
+    public static final PushOrder DEFAULT = builder()
+        .add(TypeUrl.SDS)
+        .add(TypeUrl.RTDS)
+        .add(TypeUrl.CDS, TypeUrl.SDS)
+        .add(TypeUrl.EDS, TypeUrl.CDS)
+        .add(TypeUrl.LDS, TypeUrl.EDS)
+        .add(TypeUrl.RDS, TypeUrl.LDS)
+        .add(TypeUrl.SRDS, TypeUrl.RDS)
+        .add(TypeUrl.VHDS, TypeUrl.RDS)
+        .remove(TypeUrl.LDS)
+        .remove(TypeUrl.RDS, TypeUrl.LDS)
+        .remove(TypeUrl.SRDS, TypeUrl.LDS)
+        .remove(TypeUrl.VHDS, TypeUrl.RDS)
+        .remove(TypeUrl.CDS, TypeUrl.RDS, TypeUrl.SRDS, TypeUrl.VHDS)
+        .remove(TypeUrl.EDS, TypeUrl.CDS)
+        .remove(TypeUrl.RTDS)
+        .remove(TypeUrl.SDS, TypeUrl.CDS)
+        .build();
+
+    /**
+     * One type at a time, in TypeUrl.ADD_ORDER and TypeUrl.REMOVE_ORDER, as pushes always used to be. This is what DiscoveryServiceOptions uses unless told
+     * otherwise.
+     */
+    public static final PushOrder SEQUENTIAL = sequential(TypeUrl.ADD_ORDER, TypeUrl.REMOVE_ORDER);
+
+    private final ImmutableList<TypeUrl> addOrder;
+    private final ImmutableSetMultimap<TypeUrl, TypeUrl> addDependencies;
+    private final ImmutableList<TypeUrl> removeOrder;
+    private final ImmutableSetMultimap<TypeUrl, TypeUrl> removeDependencies;
+    private final ImmutableMap<TypeUrl, Integer> pipelineWindows;
+
+    private PushOrder(ImmutableList<TypeUrl> addOrder, ImmutableSetMultimap<TypeUrl, TypeUrl> addDependencies,
+                      ImmutableList<TypeUrl> removeOrder, ImmutableSetMultimap<TypeUrl, TypeUrl> removeDependencies, ImmutableMap<TypeUrl, Integer> pipelineWindows) {
+        this.addOrder = addOrder;
+        this.addDependencies = addDependencies;
+        this.removeOrder = removeOrder;
+        this.removeDependencies = removeDependencies;
+        this.pipelineWindows = pipelineWindows;
+    }
+
+    /**
+     * A push order where each type waits for the one before it in the list, so nothing is sent concurrently.
+     */
+    public static PushOrder sequential(List<TypeUrl> addOrder, List<TypeUrl> removeOrder) {
+        Builder builder = builder();
+        for (int i = 0; i < addOrder.size(); ++i) {
+            if (i == 0) {
+                builder.add(addOrder.get(i));
+            } else {
+                builder.add(addOrder.get(i), addOrder.get(i - 1));
+            }
+        }
+        for (int i = 0; i < removeOrder.size(); ++i) {
+            if (i == 0) {
+                builder.remove(removeOrder.get(i));
+            } else {
+                builder.remove(removeOrder.get(i), removeOrder.get(i - 1));
+            }
+        }
+        return builder.build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The types taking part in the given phase, each after everything it depends on.
+     */
+    public ImmutableList<TypeUrl> order(DiscoveryService.SubState phase) {
+        return phase == DiscoveryService.SubState.PRE ? addOrder : removeOrder;
+    }
+
+    /**
+     * How many responses of the given type may be waiting on an ack from envoy before the type counts as waiting for one, see Builder.pipelineWindow.
+     */
+    public int pipelineWindow(TypeUrl type) {
+        return pipelineWindows.getOrDefault(type, 1);
+    }
+
+    /**
+     * A copy of this push order with the pipeline window of a type changed, e.g. PushOrder.DEFAULT.withPipelineWindow(TypeUrl.EDS, 4).
+     * See Builder.pipelineWindow.
+     */
+    public PushOrder withPipelineWindow(TypeUrl type, int window) {
+        Map<TypeUrl, Integer> windows = new EnumMap<>(TypeUrl.class);
+        windows.putAll(pipelineWindows);
+        windows.put(type, checkWindow(window));
+        return new PushOrder(addOrder, addDependencies, removeOrder, removeDependencies, ImmutableMap.copyOf(windows));
+    }
+
+    private static int checkWindow(int window) {
+        Preconditions.checkArgument(window >= 1, "Pipeline window must be at least 1, got %s", window);
+        return window;
+    }
+
+    /**
+     * The types that must be sent and acked before the given type in the given phase, ignoring types that aren't present.
+     * An absent type is looked through rather than skipped, so if C waits for B which waits for A then C still waits for A when there's no B.
+     * @param present tells whether a type is present (i.e. has a discovery service).
+     */
+    public Set<TypeUrl> dependencies(DiscoveryService.SubState phase, TypeUrl type, Predicate<TypeUrl> present) {
+        SetMultimap<TypeUrl, TypeUrl> dependencies = phase == DiscoveryService.SubState.PRE ? addDependencies : removeDependencies;
+        Set<TypeUrl> result = EnumSet.noneOf(TypeUrl.class);
+        for (TypeUrl dependency : dependencies.get(type)) {
+            if (present.test(dependency)) {
+                result.add(dependency);
+            } else {
+                result.addAll(dependencies(phase, dependency, present));
+            }
+        }
+        return result;
+    }
+
+    public static class Builder {
+
+        private final Map<TypeUrl, Set<TypeUrl>> add = new EnumMap<>(TypeUrl.class);
+        private final Map<TypeUrl, Set<TypeUrl>> remove = new EnumMap<>(TypeUrl.class);
+        private final Map<TypeUrl, Integer> pipelineWindows = new EnumMap<>(TypeUrl.class);
+
+        /**
+         * Include a type in the add phase.
+         * @param after the types that must be sent and acked before this one. They must be included in the add phase too.
+         */
+        public Builder add(TypeUrl type, TypeUrl... after) {
+            add.computeIfAbsent(type, t -> new LinkedHashSet<>()).addAll(List.of(after));
+            return this;
+        }
+
+        /**
+         * Include a type in the remove phase.
+         * @param after the types that must be sent and acked before this one. They must be included in the remove phase too.
+         */
+        public Builder remove(TypeUrl type, TypeUrl... after) {
+            remove.computeIfAbsent(type, t -> new LinkedHashSet<>()).addAll(List.of(after));
+            return this;
+        }
+
+        /**
+         * Let up to window responses of a type be waiting on acks from envoy before the type counts as waiting for an ack. The default is 1: once a type has
+         * sent a response, the types that depend on it and the next push wait until envoy acks it.
+         * With a bigger window they go ahead as soon as the response is sent, so e.g. a burst of endpoint changes is sent one after another rather than one per
+         * round trip. ADS is a single ordered stream, so envoy still receives responses in the order they were sent, but it may not have applied one yet when it
+         * receives the next. Only use this for types that nothing else needs envoy to have applied first, typically EDS.
+         */
+        public Builder pipelineWindow(TypeUrl type, int window) {
+            pipelineWindows.put(type, checkWindow(window));
+            return this;
+        }
+
+        /**
+         * Build the push order.
+         * @throws IllegalArgumentException if a type depends on one that isn't in the same phase, or the dependencies are circular.
+         */
+        public PushOrder build() {
+            return new PushOrder(sort(add, "add"), toMultimap(add), sort(remove, "remove"), toMultimap(remove), ImmutableMap.copyOf(pipelineWindows));
+        }
+
+        private static ImmutableSetMultimap<TypeUrl, TypeUrl> toMultimap(Map<TypeUrl, Set<TypeUrl>> dependencies) {
+            ImmutableSetMultimap.Builder<TypeUrl, TypeUrl> builder = ImmutableSetMultimap.builder();
+            dependencies.forEach(builder::putAll);
+            return builder.build();
+        }
+
+        /**
+         * Order the types so that each comes after all its dependencies, and otherwise in TypeUrl order.
+         */
+        private static ImmutableList<TypeUrl> sort(Map<TypeUrl, Set<TypeUrl>> dependencies, String phase) {
+            dependencies.forEach((type, after) -> after.forEach(dependency -> {
+                if (!dependencies.containsKey(dependency)) {
+                    throw new IllegalArgumentException(type + " depends on " + dependency + " which isn't in the " + phase + " phase");
+                }
+            }));
+            List<TypeUrl> sorted = new ArrayList<>(dependencies.size());
+            Set<TypeUrl> remaining = EnumSet.noneOf(TypeUrl.class);
+            remaining.addAll(dependencies.keySet());
+            while (!remaining.isEmpty()) {
+                TypeUrl next = remaining.stream().filter(t -> sorted.containsAll(dependencies.get(t))).findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Circular dependency between " + remaining + " in the " + phase + " phase"));
+                sorted.add(next);
+                remaining.remove(next);
+            }
+            return ImmutableList.copyOf(sorted);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.transferwise.envoy.xds;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, without making submitters wait for each other.
+ * Without an executor there is no dedicated thread: whichever thread finds the mailbox idle runs tasks until it is empty, anybody submitting in the meantime
+ * just enqueues and returns.
+ * With an executor, submitting only enqueues the task. If the mailbox was idle it is then drained on the executor, which runs tasks until the mailbox is
+ * empty, or until it has run DRAIN_BATCH of them, when it hands the rest back to the executor so one busy mailbox can't keep a pool thread to itself.
+ * Tasks submitted from inside a running task are run after it.
+ * Since only one task is ever running, and every task happens-after the previous one, tasks can share state without further synchronization.
+ */
+@Slf4j
+final class SerialMailbox implements Executor {
+
+    static final int DRAIN_BATCH = 16;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    private final Executor executor;
+
+    private final Consumer<Throwable> errorHandler;
+
+    /**
+     * See class description.
+     * @param executor Drains the mailbox, or null to drain it on the submitting thread. It must not reject tasks, or the mailbox stops.
+     * @param errorHandler Called (as part of the same task) with anything thrown by a task. Anything it throws is logged and dropped.
+     */
+    SerialMailbox(Executor executor, Consumer<Throwable> errorHandler) {
+        this.executor = executor;
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * A pool of daemon threads, one per processor, for mailboxes to share, see DiscoveryServiceOptions.sharedStreamExecutor.
+     * Created on first use.
+     */
+    static Executor sharedExecutor() {
+        return SharedExecutor.INSTANCE;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (pending.getAndIncrement() == 0) {
+            if (executor != null) {
+                executor.execute(this::drain);
+            } else {
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Like execute, but never runs tasks on the calling thread: without an executor the mailbox is drained on the common ForkJoinPool instead.
+     * Use this from threads shared by many mailboxes, such as timers or another mailbox's tasks, which shouldn't end up running this one's.
+     */
+    void executeAsync(Runnable task) {
+        tasks.add(task);
+        if (pending.getAndIncrement() == 0) {
+            Executor drainer = executor != null ? executor : ForkJoinPool.commonPool();
+            drainer.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        for (int ran = 1; ; ++ran) {
+            run(tasks.poll());
+            if (pending.decrementAndGet() == 0) {
+                return;
+            }
+            if (ran == DRAIN_BATCH && executor != null) {
+                // Tasks are still pending, so nobody else schedules a drain and the mailbox is still ours to hand on.
+                executor.execute(this::drain);
+                return;
+            }
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            try {
+                errorHandler.accept(t);
+            } catch (Throwable handlerError) {
+                handlerError.addSuppressed(t);
+                log.error("Error handler failed", handlerError);
+            }
+        }
+    }
+
+    /**
+     * Holder, so applications that don't use the shared pool don't get these threads.
+     */
+    private static final class SharedExecutor {
+
+        private static final ExecutorService INSTANCE = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "xds-stream-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
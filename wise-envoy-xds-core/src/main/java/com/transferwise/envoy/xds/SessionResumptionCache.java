@@ -0,0 +1,83 @@
+package com.transferwise.envoy.xds;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import io.envoyproxy.envoy.config.core.v3.Node;
+import lombok.Value;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers clients whose stream has recently ended, so that if the same client reconnects it can pick up where it left off.
+ * A resumed client reuses its NodeConfig rather than calling ClientConfigProvider.lookup again, and each discovery service gets back whatever it chose to keep
+ * (see DiscoveryService.suspend) so it can avoid resending resources the client still holds. This matters when many streams bounce at once, e.g. when a load
+ * balancer reshuffles connections.
+ * Clients are identified by Node id, and a session is only resumed if the reconnecting client sends exactly the same Node, since NodeConfig is derived from it.
+ * Sessions are dropped after the TTL, which also bounds how long a client can go on using a config that ClientConfigProvider would no longer return.
+ * Each session can be resumed at most once. One cache must only be used by one kind of stream (SotW or delta), as their discovery services keep different state.
+ * This class is thread safe.
+ *
+ * @param <DetailsT> the client details type of the NodeConfigs kept.
+ */
+public class SessionResumptionCache<DetailsT> {
+
+    private final Cache<String, Session<DetailsT>> cache;
+
+    private final LongAdder resumed = new LongAdder();
+
+    /**
+     * See class description.
+     * @param maximumSize Maximum number of sessions to retain, the least recently suspended will be evicted first.
+     * @param ttl How long after its stream ends a session can be resumed.
+     */
+    public SessionResumptionCache(long maximumSize, Duration ttl) {
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(ttl)
+            .build();
+    }
+
+    @Value
+    static class Session<DetailsT> {
+        Node node;
+        NodeConfig<DetailsT> nodeConfig;
+        ImmutableMap<TypeUrl, DiscoveryService.SessionState> states;
+    }
+
+    /**
+     * Keep the session of a client whose stream has ended.
+     */
+    void suspend(Node node, NodeConfig<DetailsT> nodeConfig, Map<TypeUrl, DiscoveryService.SessionState> states) {
+        cache.put(node.getId(), new Session<>(node, nodeConfig, ImmutableMap.copyOf(states)));
+    }
+
+    /**
+     * Take the session of a reconnecting client.
+     * @return the session, or null if there isn't one for this exact Node.
+     */
+    Session<DetailsT> resume(Node node) {
+        Session<DetailsT> session = cache.asMap().remove(node.getId());
+        if (session == null || !session.getNode().equals(node)) {
+            return null;
+        }
+        resumed.increment();
+        return session;
+    }
+
+    /**
+     * Number of sessions currently retained.
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Number of sessions that have been resumed.
+     */
+    public long getResumed() {
+        return resumed.sum();
+    }
+}
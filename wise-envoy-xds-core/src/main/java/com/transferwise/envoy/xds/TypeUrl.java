@@ -1,5 +1,6 @@
 package com.transferwise.envoy.xds;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.protobuf.Message;
 import io.envoyproxy.envoy.config.cluster.v3.Cluster;
 import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
@@ -33,6 +34,9 @@ public enum TypeUrl {
 
     private static final Set<Class<? extends Message>> messageClazzes = Arrays.stream(TypeUrl.values()).map(TypeUrl::getMessageClazz).collect(Collectors.toSet());
 
+    // Looked up for every request envoy sends, so build it once rather than searching values().
+    private static final ImmutableMap<String, TypeUrl> byTypeUrl = Arrays.stream(TypeUrl.values()).collect(ImmutableMap.toImmutableMap(TypeUrl::getTypeUrl, t -> t));
+
     TypeUrl(String className, Class<? extends Message> messageClazz, boolean wildcard) {
         this.typeUrl = "type.googleapis.com/" + className;
         this.messageClazz = messageClazz;
@@ -44,14 +48,16 @@ public enum TypeUrl {
     }
 
     public static TypeUrl of(String typeUrl) {
-        return Arrays.stream(TypeUrl.values()).filter(
-                t -> t.getTypeUrl().equals(typeUrl)
-        ).findAny().orElse(null);
+        if (typeUrl == null) {
+            return null;
+        }
+        return byTypeUrl.get(typeUrl);
     }
 
     /**
      * Order in which to apply discovery services for addition of resources.
      * This order is partially documented in the xDS spec, but some of it is guesswork (and for some ordering probably does not matter.)
+     * PushOrder.DEFAULT relaxes this into the dependencies that do matter.
      */
     public static final List<TypeUrl> ADD_ORDER = List.of(SDS, RTDS, CDS, EDS, LDS, RDS, SRDS, VHDS);
     /**
@@ -33,4 +33,11 @@ public class XdsConfig<DetailsT> {
      * But if you've got some clients that are e.g. developer laptops, which could be running out of date envoy versions, then it's crazy noisy. Set this to true for them.
      */
     boolean silentNacks;
+
+    /**
+     * When a PushAdmissionController is making pushes wait, clients with a higher priority are admitted first. Clients with the same priority are admitted
+     * in the order they started waiting, so the ones that have been stale longest go first.
+     * Give e.g. gateways and other latency-critical proxies a priority above the default of zero.
+     */
+    int pushPriority;
 }
@@ -1,5 +1,6 @@
 package com.transferwise.envoy.xds.api;
 
+import com.transferwise.envoy.xds.TypeUrl;
 import java.util.function.Supplier;
 
 /**
@@ -11,6 +12,9 @@ import java.util.function.Supplier;
  * but not globally over all instances. So the implementation must arrange any internal
  * synchronization to a shared metric storage, if needed.
  * </p>
+ *
+ * <p>Every callback has a no-op default, so implementations only need to override the ones they are interested in.
+ * Callbacks are made on the thread handling the stream, so they should be cheap: record a value and return.</p>
  */
 public interface DiscoveryServiceManagerMetrics {
 
@@ -51,6 +55,153 @@ public interface DiscoveryServiceManagerMetrics {
 
     }
 
+    /**
+     * Which part of the conversation with envoy a response belongs to.
+     */
+    enum Phase {
+        /**
+         * Sent in add order while pushing a state update, typically additions.
+         */
+        PRE,
+        /**
+         * Sent in remove order while pushing a state update, typically removals.
+         */
+        POST,
+        /**
+         * Sent in reply to envoy changing what it is subscribed to, outside of the push of a state update.
+         */
+        SUBSCRIPTION
+    }
+
+    /**
+     * This is called after a discovery service has had its turn in a phase of a push, whether or not it had anything to send.
+     * @param typeUrl the discovery service type
+     * @param phase PRE or POST
+     * @param nanos time spent building and sending the response
+     */
+    default void onPhaseSent(TypeUrl typeUrl, Phase phase, long nanos) {
+
+    }
+
+    /**
+     * This is called when envoy acks a response.
+     * @param typeUrl the discovery service type
+     * @param phase the phase the acked response was sent in
+     * @param nanos time from sending the response to receiving the ack
+     */
+    default void onPhaseAcked(TypeUrl typeUrl, Phase phase, long nanos) {
+
+    }
+
+    /**
+     * This is called for every response sent to envoy.
+     * @param typeUrl the discovery service type
+     * @param resources number of resources in the response
+     * @param removed number of resources the response removes. For state of the world responses this is the number dropped since the previous response.
+     * @param bytes serialized size of the response
+     */
+    default void onResponseSent(TypeUrl typeUrl, int resources, int removed, int bytes) {
+
+    }
+
+    /**
+     * This is called when envoy rejects a response.
+     */
+    default void onNack(TypeUrl typeUrl) {
+
+    }
+
+    /**
+     * This is called when envoy changes the set of resources it is subscribed to.
+     */
+    default void onSubscriptionChange(TypeUrl typeUrl) {
+
+    }
+
+    /**
+     * This is called when a push is skipped because the client already has exactly the resources it would have sent.
+     */
+    default void onPushSuppressed(TypeUrl typeUrl) {
+
+    }
+
+    /**
+     * This is called after every call to a config builder.
+     * @param typeUrl the type the config builder handles
+     * @param nanos time spent in the config builder
+     */
+    default void onConfigBuilderInvoked(TypeUrl typeUrl, long nanos) {
+
+    }
+
+    /**
+     * This is called when a state update is put into the backlog because we are still busy with an earlier one.
+     * @param depth the depth of the backlog after the put, see StateBacklog.depth()
+     * @param merged true if the update was merged into one already waiting rather than growing the backlog
+     */
+    default void onBacklogPut(int depth, boolean merged) {
+
+    }
+
+    /**
+     * This is called when a state update is taken out of the backlog to be pushed.
+     * @param depth the depth of the backlog after the take
+     */
+    default void onBacklogTake(int depth) {
+
+    }
+
+    /**
+     * This is called when an update is taken out of a backlog that holds updates back to coalesce them (see StateBacklog.holdsUpdates).
+     * @param updates how many state updates were merged into the one taken
+     * @param heldNanos how long the first of them was held in the backlog
+     */
+    default void onBacklogCoalesced(int updates, long heldNanos) {
+
+    }
+
+    /**
+     * This is called when a push is admitted by the PushAdmissionController, if there is one.
+     * @param waitedNanos how long the push waited to be admitted, zero if it didn't have to
+     */
+    default void onPushAdmitted(long waitedNanos) {
+
+    }
+
+    /**
+     * This is called after each response is handed to gRPC, and when the stream has room again.
+     * @param bufferedBytes bytes sent since the stream last had room for more, an upper bound on what gRPC is holding for this client
+     */
+    default void onResponseBuffered(long bufferedBytes) {
+
+    }
+
+    /**
+     * This is called when a client is disconnected because it stopped reading responses, see DiscoveryServiceOptions.maxBufferedResponseBytes.
+     * @param bufferedBytes bytes that were waiting to be sent
+     */
+    default void onSlowClientDisconnected(long bufferedBytes) {
+
+    }
+
+    /**
+     * This is called when a discovery service joins an equivalence class of clients, see ClientClasses. It leaves the class it was in first.
+     * @param typeUrl the discovery service type
+     * @param classSize how many clients are in the class, including this one. One means a new class.
+     */
+    default void onClientClassJoined(TypeUrl typeUrl, int classSize) {
+
+    }
+
+    /**
+     * This is called when a discovery service leaves an equivalence class of clients, because envoy changed its subscriptions or the stream ended.
+     * @param typeUrl the discovery service type
+     * @param classSize how many clients are left in the class. Zero means the class is gone.
+     */
+    default void onClientClassLeft(TypeUrl typeUrl, int classSize) {
+
+    }
+
     class NoopMetrics implements DiscoveryServiceManagerMetrics {
     }
 
@@ -0,0 +1,16 @@
+package com.transferwise.envoy.xds.api;
+
+/**
+ * Generates the nonces for a single discovery service. See NonceStrategy.
+ * A generator is only used by the stream it was built for, one call at a time, so it does not need to be thread safe.
+ */
+@FunctionalInterface
+public interface NonceGenerator {
+
+    /**
+     * Generate the nonce to send with the next response.
+     * @return a nonce this generator has not returned before
+     */
+    String next();
+
+}
@@ -0,0 +1,18 @@
+package com.transferwise.envoy.xds.api;
+
+/**
+ * Strategy for generating the nonces sent with xDS responses.
+ * Envoy echoes the nonce of the response it is acking or rejecting, which is how we tell which response it means. So a nonce must not repeat one sent
+ * to the same client for the same type, including on the client's previous stream, as envoy may still send that nonce after it reconnects.
+ * Nonces don't need to be unique across clients.
+ */
+public interface NonceStrategy {
+
+    /**
+     * Build a generator for a single discovery service (one type on one stream.)
+     * This is called whenever a client connects, so it should be cheap.
+     * @return a new generator
+     */
+    NonceGenerator newGenerator();
+
+}
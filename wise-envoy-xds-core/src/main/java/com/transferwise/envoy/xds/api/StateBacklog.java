@@ -1,11 +1,14 @@
 package com.transferwise.envoy.xds.api;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Track states waiting to be applied.
  * The simplest possible implementation would be a FIFO queue.
  * But ideally your states should be mergeable, and you should merge the pending ones together instead.
  * It is not guaranteed that all state updates will go through the backlog! We will only put to the backlog if an event arrives while we are still sending resources for a previous event. If no event is currently being applied we will skip calling
- * the backlog entirely.
+ * the backlog entirely. The exception is backlogs that hold updates back to coalesce them (see holdsUpdates), which every update goes through.
  * @param <StateUpdT> state update type
  */
 public interface StateBacklog<StateUpdT> {
@@ -32,4 +35,40 @@ public interface StateBacklog<StateUpdT> {
      */
     StateUpdT take();
 
+    /**
+     * How many updates are waiting in the backlog, for metrics.
+     * Backlogs that merge updates will never have a depth of more than one.
+     * @return the number of updates take() would return before the backlog was empty
+     */
+    default int depth() {
+        return isEmpty() ? 0 : 1;
+    }
+
+    /**
+     * Tells if this backlog holds updates back for a while so that more can be merged into them, even if nothing else is being pushed.
+     * If so every update is put into the backlog, and none is taken out until nanosUntilReady says it's ready.
+     * @return true if the backlog holds updates back
+     */
+    default boolean holdsUpdates() {
+        return false;
+    }
+
+    /**
+     * How long until what's in the backlog should be taken, for backlogs that hold updates back.
+     * @return nanoseconds until the backlog is ready, zero or less if it is ready now or empty
+     */
+    default long nanosUntilReady() {
+        return 0;
+    }
+
+    /**
+     * Run a task once nanosUntilReady has elapsed, for backlogs that hold updates back. The task must not be run by the calling thread.
+     * Only called while nanosUntilReady is more than zero. More updates may be put in the meantime, so the backlog might not be ready by then after all.
+     * By default the task is run on the common ForkJoinPool once the delay is up. Override this to use your own scheduler, as DebouncingStateBacklog does.
+     * @param task what to run
+     */
+    default void whenReady(Runnable task) {
+        CompletableFuture.delayedExecutor(Math.max(0, nanosUntilReady()), TimeUnit.NANOSECONDS).execute(task);
+    }
+
 }
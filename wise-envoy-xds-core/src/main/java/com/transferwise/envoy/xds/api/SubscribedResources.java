@@ -0,0 +1,100 @@
+package com.transferwise.envoy.xds.api;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.Collection;
+import java.util.function.Predicate;
+
+/**
+ * An immutable snapshot of the resources a client is subscribed to for a single discovery service.
+ * This is the predicate passed to IncrementalConfigBuilder.addOrder() and removeOrder() to filter resources by subscription.
+ * Unlike a live view of the subscriptions, two equal snapshots always describe the same subscription set, which makes them usable as part of a cache key when
+ * sharing work between clients.
+ * Snapshots are interned, so clients subscribed to the same resources share one instance, and comparing them is mostly an identity check.
+ */
+public final class SubscribedResources implements Predicate<String> {
+
+    private static final String WILDCARD = "*";
+
+    private static final SubscribedResources WILDCARD_SUBSCRIPTION = new SubscribedResources(true, ImmutableSet.of());
+
+    private static final SubscribedResources NO_SUBSCRIPTION = new SubscribedResources(false, ImmutableSet.of());
+
+    private static final Interner<SubscribedResources> INTERNER = Interners.newWeakInterner();
+
+    private final boolean wildcard;
+
+    private final ImmutableSet<String> names;
+
+    private SubscribedResources(boolean wildcard, ImmutableSet<String> names) {
+        this.wildcard = wildcard;
+        this.names = names;
+    }
+
+    /**
+     * A subscription to every resource.
+     */
+    public static SubscribedResources wildcard() {
+        return WILDCARD_SUBSCRIPTION;
+    }
+
+    /**
+     * A subscription to nothing at all.
+     */
+    public static SubscribedResources none() {
+        return NO_SUBSCRIPTION;
+    }
+
+    /**
+     * A subscription to an explicit list of resource names.
+     * @param names the subscribed resource names, these are copied.
+     */
+    public static SubscribedResources of(Collection<String> names) {
+        if (names.isEmpty()) {
+            return NO_SUBSCRIPTION;
+        }
+        return INTERNER.intern(new SubscribedResources(false, ImmutableSet.copyOf(names)));
+    }
+
+    public boolean isWildcard() {
+        return wildcard;
+    }
+
+    /**
+     * The explicitly subscribed resource names. This is always empty for a wildcard subscription.
+     */
+    public ImmutableSet<String> getNames() {
+        return names;
+    }
+
+    @Override
+    public boolean test(String resourceName) {
+        if (wildcard) {
+            return !WILDCARD.equals(resourceName);
+        }
+        return names.contains(resourceName);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SubscribedResources other)) {
+            return false;
+        }
+        return wildcard == other.wildcard && names.equals(other.names);
+    }
+
+    @Override
+    public int hashCode() {
+        return wildcard ? 1 : names.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return wildcard ? WILDCARD : names.toString();
+    }
+}
@@ -0,0 +1,209 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.protobuf.Message;
+import com.transferwise.envoy.xds.api.IncrementalConfigBuilder;
+import com.transferwise.envoy.xds.api.SubscribedResources;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * An IncrementalConfigBuilder that memoizes the results of addOrder() and removeOrder() across all clients.
+ * Every connected envoy calls its config builders for every state update, but most of them share identical client details and subscriptions. This decorator
+ * ensures the delegate only does the work once for each distinct combination of:
+ * <ul>
+ *     <li>state update (by identity, since each state update is expected to be delivered to every client as the same instance, and state updates merged
+ *     in this package are shared between clients that merged the same ones, see SharedMerges);</li>
+ *     <li>client details (by equals());</li>
+ *     <li>add or remove order;</li>
+ *     <li>subscriptions (by SubscribedResources equality.)</li>
+ * </ul>
+ * The TypeUrl is implicit, as each decorator wraps the builder for a single type.
+ * Calls made with any other kind of predicate (e.g. the newly subscribed filters passed to getResourcesAddOrder()) are passed straight through to the delegate.
+ * This is only safe if the delegate's results depend on nothing but its arguments, and callers must not modify the returned Responses (which is already the
+ * case for the discovery services.)
+ * State updates are weakly held: the results for a state update are dropped along with it once no client or backlog refers to it any more, so the cache
+ * never keeps old state alive.
+ * This class is thread safe, concurrent calls for the same key will wait for a single invocation of the delegate.
+ * The client details and subscriptions of recent calls are remembered, so PrecomputingClusterEventSource can fill in the results for a new state update
+ * before it reaches any client, see precomputations.
+ *
+ * @param <ResourceT> Type of envoy api resource being returned
+ * @param <StateUpdT> State update type
+ * @param <DetailsT> Client details type
+ */
+public class CachingConfigBuilder<ResourceT extends Message, StateUpdT, DetailsT> implements IncrementalConfigBuilder<ResourceT, StateUpdT, DetailsT> {
+
+    private enum Order {
+        ADD,
+        REMOVE
+    }
+
+    private final IncrementalConfigBuilder<ResourceT, StateUpdT, DetailsT> delegate;
+
+    /**
+     * The results for each state update, by state update identity.
+     */
+    private final Cache<StateUpdT, Cache<Key, Response<ResourceT>>> cache;
+
+    private final long maximumSize;
+
+    private final LongAdder calls = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * The distinct client details and subscriptions we've been called with, and the generation (see precomputations) they were last seen in.
+     */
+    private final ConcurrentMap<Shape<DetailsT>, Long> shapes = new ConcurrentHashMap<>();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * See class description.
+     * @param delegate The config builder to memoize.
+     * @param maximumSize Maximum number of responses to retain for each state update, the least recently used will be evicted first.
+     */
+    public CachingConfigBuilder(IncrementalConfigBuilder<ResourceT, StateUpdT, DetailsT> delegate, long maximumSize) {
+        this.delegate = delegate;
+        this.maximumSize = maximumSize;
+        this.cache = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build();
+    }
+
+    public static <ResourceT extends Message, StateUpdT, DetailsT> CachingConfigBuilder<ResourceT, StateUpdT, DetailsT> wrap(IncrementalConfigBuilder<ResourceT, StateUpdT, DetailsT> delegate, long maximumSize) {
+        return new CachingConfigBuilder<>(delegate, maximumSize);
+    }
+
+    @Override
+    public Response<ResourceT> addOrder(StateUpdT diff, Predicate<String> resourceInSubListChange, DetailsT clientDetails) {
+        if (!(resourceInSubListChange instanceof SubscribedResources subs)) {
+            return delegate.addOrder(diff, resourceInSubListChange, clientDetails);
+        }
+        shapes.put(new Shape<>(clientDetails, subs), generation.get());
+        return get(diff, new Key(clientDetails, Order.ADD, subs), () -> delegate.addOrder(diff, subs, clientDetails));
+    }
+
+    @Override
+    public Response<ResourceT> removeOrder(StateUpdT diff, Predicate<String> resourceInSubListChange, DetailsT clientDetails) {
+        if (!(resourceInSubListChange instanceof SubscribedResources subs)) {
+            return delegate.removeOrder(diff, resourceInSubListChange, clientDetails);
+        }
+        shapes.put(new Shape<>(clientDetails, subs), generation.get());
+        return get(diff, new Key(clientDetails, Order.REMOVE, subs), () -> delegate.removeOrder(diff, subs, clientDetails));
+    }
+
+    @Override
+    public Resources<ResourceT> getResourcesAddOrder(StateUpdT services, Predicate<String> resourceInSubListChange, DetailsT clientDetails) {
+        return delegate.getResourcesAddOrder(services, resourceInSubListChange, clientDetails);
+    }
+
+    @Override
+    public Resources<ResourceT> getResourcesRemoveOrder(StateUpdT services, Predicate<String> resourceInSubListChange, DetailsT clientDetails) {
+        return delegate.getResourcesRemoveOrder(services, resourceInSubListChange, clientDetails);
+    }
+
+    @Override
+    public Class<ResourceT> handlesType() {
+        return delegate.handlesType();
+    }
+
+    /**
+     * Work that fills in the cache for a new state update: one task for each order of each distinct client details and subscriptions seen since the previous
+     * state update, or the one before that. Clients that haven't been seen for that long have most likely gone, or changed their subscriptions.
+     * The tasks are independent of each other, and may be run in parallel. Each should be run at most once. If a task fails, nothing is cached, and the
+     * client that needs the result gets the same failure when it calls the delegate itself.
+     * @param diff the state update, the same instance that is about to be delivered to every client
+     */
+    public List<Runnable> precomputations(StateUpdT diff) {
+        long current = generation.incrementAndGet();
+        shapes.values().removeIf(seen -> seen < current - 2);
+        List<Runnable> tasks = new ArrayList<>(shapes.size() * 2);
+        for (Shape<DetailsT> shape : shapes.keySet()) {
+            DetailsT clientDetails = shape.clientDetails();
+            SubscribedResources subs = shape.subscriptions();
+            tasks.add(() -> get(diff, new Key(clientDetails, Order.ADD, subs), () -> delegate.addOrder(diff, subs, clientDetails)));
+            tasks.add(() -> get(diff, new Key(clientDetails, Order.REMOVE, subs), () -> delegate.removeOrder(diff, subs, clientDetails)));
+        }
+        return tasks;
+    }
+
+    /**
+     * Number of calls that were answered from the cache.
+     */
+    public long getHitCount() {
+        return calls.sum() - misses.sum();
+    }
+
+    /**
+     * Number of calls that had to be passed to the delegate.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private Response<ResourceT> get(StateUpdT diff, Key key, Callable<Response<ResourceT>> loader) {
+        calls.increment();
+        try {
+            return cache.get(diff, () -> CacheBuilder.newBuilder().maximumSize(maximumSize).build())
+                .get(key, () -> {
+                    misses.increment();
+                    return loader.call();
+                });
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            // The loader can only throw unchecked exceptions, so rethrow whatever the delegate threw.
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private record Shape<DetailsT>(DetailsT clientDetails, SubscribedResources subscriptions) {
+    }
+
+    private static final class Key {
+
+        private final Object clientDetails;
+        private final Order order;
+        private final SubscribedResources subscriptions;
+        private final int hash;
+
+        private Key(Object clientDetails, Order order, SubscribedResources subscriptions) {
+            this.clientDetails = clientDetails;
+            this.order = order;
+            this.subscriptions = subscriptions;
+            this.hash = Objects.hash(clientDetails, order, subscriptions);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key other)) {
+                return false;
+            }
+            return order == other.order
+                && Objects.equals(clientDetails, other.clientDetails)
+                && subscriptions.equals(other.subscriptions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import com.transferwise.envoy.xds.api.NonceGenerator;
+import com.transferwise.envoy.xds.api.NonceStrategy;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The default NonceStrategy. Each generator counts up from a random starting point, so generating a nonce is just an increment and never contends
+ * with other streams. A client's new stream starts from a new random point, so it won't reuse the nonces of its previous stream.
+ */
+public class CounterNonceStrategy implements NonceStrategy {
+
+    @Override
+    public NonceGenerator newGenerator() {
+        return new CounterNonceGenerator(ThreadLocalRandom.current().nextLong());
+    }
+
+    private static final class CounterNonceGenerator implements NonceGenerator {
+
+        private long next;
+
+        private CounterNonceGenerator(long start) {
+            this.next = start;
+        }
+
+        @Override
+        public String next() {
+            return Long.toHexString(next++);
+        }
+    }
+}
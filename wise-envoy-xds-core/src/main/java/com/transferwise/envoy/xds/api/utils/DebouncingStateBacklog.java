@@ -0,0 +1,147 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import com.google.common.base.Preconditions;
+import com.transferwise.envoy.xds.api.Mergeable;
+import com.transferwise.envoy.xds.api.StateBacklog;
+import com.transferwise.envoy.xds.api.StateBacklogFactory;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A StateBacklog that holds updates back for a while, merging everything that arrives in the meantime, so a burst of changes becomes one push.
+ * Unlike MergingStateBacklog, which only merges updates that arrive while a push is already in progress, this also holds back the first update of a burst.
+ * An update is held until no more have arrived for the debounce window, but never for longer than the max delay after the first of them, so a steady stream
+ * of changes can't hold pushes back forever. The max delay is therefore the most latency this adds to any change.
+ * @param <StateUpdT> State update type
+ */
+public class DebouncingStateBacklog<StateUpdT extends Mergeable<StateUpdT>> implements StateBacklog<StateUpdT> {
+
+    private final long debounceNanos;
+
+    private final long maxDelayNanos;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final LongSupplier nanoTime;
+
+    private final SharedMerges<StateUpdT> merges;
+
+    private StateUpdT backlog = null;
+
+    private long firstPutAt = 0;
+
+    private long lastPutAt = 0;
+
+    DebouncingStateBacklog(Duration debounce, Duration maxDelay, ScheduledExecutorService scheduler, LongSupplier nanoTime, SharedMerges<StateUpdT> merges) {
+        this.debounceNanos = debounce.toNanos();
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.scheduler = scheduler;
+        this.nanoTime = nanoTime;
+        this.merges = merges;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return backlog == null;
+    }
+
+    @Override
+    public synchronized void put(StateUpdT update) {
+        lastPutAt = nanoTime.getAsLong();
+        if (backlog == null) {
+            backlog = update;
+            firstPutAt = lastPutAt;
+        } else {
+            backlog = merges.merge(backlog, update);
+        }
+    }
+
+    @Override
+    public synchronized StateUpdT take() {
+        StateUpdT value = backlog;
+        backlog = null;
+        return value;
+    }
+
+    @Override
+    public boolean holdsUpdates() {
+        return true;
+    }
+
+    @Override
+    public synchronized long nanosUntilReady() {
+        if (backlog == null) {
+            return 0;
+        }
+        return Math.min(lastPutAt + debounceNanos, firstPutAt + maxDelayNanos) - nanoTime.getAsLong();
+    }
+
+    @Override
+    public void whenReady(Runnable task) {
+        scheduler.schedule(task, Math.max(0, nanosUntilReady()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * A factory for backlogs that share a single daemon thread to wake up streams when their backlog is ready.
+     * @param debounce how long to wait for more updates after each one
+     * @param maxDelay the longest an update is held, however many follow it
+     */
+    public static <StateUpdT extends Mergeable<StateUpdT>> DebouncingStateBacklogFactory<StateUpdT> factory(Duration debounce, Duration maxDelay) {
+        return factory(debounce, maxDelay, SharedScheduler.INSTANCE);
+    }
+
+    /**
+     * See factory(Duration, Duration).
+     * @param scheduler runs the wake up tasks. These only hand work to the stream, so they're quick.
+     */
+    public static <StateUpdT extends Mergeable<StateUpdT>> DebouncingStateBacklogFactory<StateUpdT> factory(Duration debounce, Duration maxDelay,
+                                                                                                          ScheduledExecutorService scheduler) {
+        return new DebouncingStateBacklogFactory<>(debounce, maxDelay, scheduler, System::nanoTime);
+    }
+
+    /**
+     * Backlogs built by the same factory share their merges (see SharedMerges), so build every client's backlog from one factory.
+     */
+    public static class DebouncingStateBacklogFactory<StateUpdT extends Mergeable<StateUpdT>> implements StateBacklogFactory<StateUpdT> {
+
+        private final Duration debounce;
+
+        private final Duration maxDelay;
+
+        private final ScheduledExecutorService scheduler;
+
+        private final LongSupplier nanoTime;
+
+        private final SharedMerges<StateUpdT> merges = new SharedMerges<>();
+
+        DebouncingStateBacklogFactory(Duration debounce, Duration maxDelay, ScheduledExecutorService scheduler, LongSupplier nanoTime) {
+            Preconditions.checkArgument(!debounce.isNegative(), "debounce must not be negative");
+            Preconditions.checkArgument(maxDelay.compareTo(debounce) >= 0, "maxDelay must be at least the debounce window");
+            this.debounce = debounce;
+            this.maxDelay = maxDelay;
+            this.scheduler = scheduler;
+            this.nanoTime = nanoTime;
+        }
+
+        @Override
+        public DebouncingStateBacklog<StateUpdT> build() {
+            return new DebouncingStateBacklog<>(debounce, maxDelay, scheduler, nanoTime, merges);
+        }
+    }
+
+    /**
+     * Created on first use, so applications that don't debounce don't get a thread.
+     */
+    private static final class SharedScheduler {
+
+        private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "xds-backlog-debouncer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
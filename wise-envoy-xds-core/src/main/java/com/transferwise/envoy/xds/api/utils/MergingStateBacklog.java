@@ -10,9 +10,12 @@ import com.transferwise.envoy.xds.api.StateBacklogFactory;
  */
 public class MergingStateBacklog<StateUpdT extends Mergeable<StateUpdT>> implements StateBacklog<StateUpdT> {
 
+    private final SharedMerges<StateUpdT> merges;
+
     private StateUpdT backlog = null;
 
-    private MergingStateBacklog() {
+    private MergingStateBacklog(SharedMerges<StateUpdT> merges) {
+        this.merges = merges;
     }
 
     @Override
@@ -25,7 +28,7 @@ public class MergingStateBacklog<StateUpdT extends Mergeable<StateUpdT>> impleme
         if (backlog == null) {
             backlog = update;
         } else {
-            backlog = backlog.merge(update);
+            backlog = merges.merge(backlog, update);
         }
     }
 
@@ -40,11 +43,16 @@ public class MergingStateBacklog<StateUpdT extends Mergeable<StateUpdT>> impleme
         return new MergingStateBacklogFactory<>();
     }
 
+    /**
+     * Backlogs built by the same factory share their merges (see SharedMerges), so build every client's backlog from one factory.
+     */
     public static class MergingStateBacklogFactory<StateUpdT extends Mergeable<StateUpdT>> implements StateBacklogFactory<StateUpdT> {
 
+        private final SharedMerges<StateUpdT> merges = new SharedMerges<>();
+
         @Override
         public MergingStateBacklog<StateUpdT> build() {
-            return new MergingStateBacklog<>();
+            return new MergingStateBacklog<>(merges);
         }
     }
 }
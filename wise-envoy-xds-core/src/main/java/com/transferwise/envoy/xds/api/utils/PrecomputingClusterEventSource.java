@@ -0,0 +1,119 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import com.transferwise.envoy.xds.api.ClusterEventSource;
+import com.transferwise.envoy.xds.api.ClusterManagerEventListener;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A ClusterEventSource that builds config for every client at once, in parallel, before passing each state update on to them.
+ * Without this every client calls its config builders for itself, on its own thread, so even with a CachingConfigBuilder the first client of each shape does
+ * the work while the others wait for it. Here, on each new state update, the config for every distinct combination of client details and subscriptions
+ * (see CachingConfigBuilder.precomputations) is built on a ForkJoinPool, and only then is the update delivered. When the clients push it, their config
+ * builders answer from the cache, so the CPU spent on a change scales with the number of distinct client shapes rather than the number of clients.
+ * Wrap your config builders in CachingConfigBuilders, pass the same instances here and to the AggregatedDiscoveryService, and subscribe clients to this
+ * rather than to the underlying event source.
+ * Only state updates delivered as the same instance to every client benefit. Updates that a listener or state backlog merges together are new instances,
+ * and are built by each client as before.
+ *
+ * @param <StateUpdT> State update type
+ */
+@Slf4j
+public class PrecomputingClusterEventSource<StateUpdT> implements ClusterEventSource<StateUpdT> {
+
+    private final ClusterEventSource<StateUpdT> delegate;
+
+    private final List<CachingConfigBuilder<?, StateUpdT, ?>> configBuilders;
+
+    private final ForkJoinPool pool;
+
+    private final Map<ClusterManagerEventListener<StateUpdT>, PrecomputingListener> listeners = new ConcurrentHashMap<>();
+
+    /**
+     * The last state update we built config for, guarded by this.
+     */
+    private StateUpdT precomputed = null;
+
+    public PrecomputingClusterEventSource(ClusterEventSource<StateUpdT> delegate, List<CachingConfigBuilder<?, StateUpdT, ?>> configBuilders) {
+        this(delegate, configBuilders, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * See class description.
+     * @param delegate where state updates come from
+     * @param configBuilders the config builders the clients use
+     * @param pool where config is built
+     */
+    public PrecomputingClusterEventSource(ClusterEventSource<StateUpdT> delegate, List<CachingConfigBuilder<?, StateUpdT, ?>> configBuilders, ForkJoinPool pool) {
+        this.delegate = delegate;
+        this.configBuilders = List.copyOf(configBuilders);
+        this.pool = pool;
+    }
+
+    @Override
+    public StateUpdT subscribe(ClusterManagerEventListener<StateUpdT> listener) {
+        PrecomputingListener precomputingListener = new PrecomputingListener(listener);
+        listeners.put(listener, precomputingListener);
+        return delegate.subscribe(precomputingListener);
+    }
+
+    @Override
+    public void unsubscribe(ClusterManagerEventListener<StateUpdT> listener) {
+        PrecomputingListener precomputingListener = listeners.remove(listener);
+        if (precomputingListener != null) {
+            delegate.unsubscribe(precomputingListener);
+        }
+    }
+
+    /**
+     * Build config for a state update, unless we already did. Listeners handed the update at the same time wait here until it's done.
+     */
+    private synchronized void precompute(StateUpdT diff) {
+        if (diff == precomputed) {
+            return;
+        }
+        List<Callable<Object>> tasks = configBuilders.stream()
+            .flatMap(builder -> builder.precomputations(diff).stream())
+            .map(task -> Executors.callable(() -> runQuietly(task)))
+            .toList();
+        if (!tasks.isEmpty()) {
+            pool.invokeAll(tasks);
+        }
+        precomputed = diff;
+    }
+
+    private static void runQuietly(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // The client that needs this will call the config builder itself, and handle the failure as usual.
+            log.debug("Failed to precompute config", e);
+        }
+    }
+
+    private final class PrecomputingListener implements ClusterManagerEventListener<StateUpdT> {
+
+        private final ClusterManagerEventListener<StateUpdT> listener;
+
+        private PrecomputingListener(ClusterManagerEventListener<StateUpdT> listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onNetworkChange(StateUpdT diff) {
+            precompute(diff);
+            listener.onNetworkChange(diff);
+        }
+
+        @Override
+        public void close() {
+            listener.close();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.transferwise.envoy.xds.api.utils;
 
 import com.transferwise.envoy.xds.api.ClusterManagerEventListener;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -18,6 +19,10 @@ public class QueueingEventListener<StateUpdT> extends ThreadedQueuingEventListen
         super(new FifoStrategy<>(), delegate);
     }
 
+    public QueueingEventListener(ClusterManagerEventListener<StateUpdT> delegate, ThreadFactory threadFactory) {
+        super(new FifoStrategy<>(), delegate, threadFactory);
+    }
+
     private static class FifoStrategy<StateUpdT> implements QueueTakeStrategy<StateUpdT> {
         @Override
         public StateUpdT take(BlockingQueue<StateUpdT> queue) throws InterruptedException {
@@ -31,4 +36,10 @@ public class QueueingEventListener<StateUpdT> extends ThreadedQueuingEventListen
         return runner;
     }
 
+    public static <StateUpdT> QueueingEventListener<StateUpdT> createAndStart(ClusterManagerEventListener<StateUpdT> delegate, ThreadFactory threadFactory) {
+        QueueingEventListener<StateUpdT> runner = new QueueingEventListener<>(delegate, threadFactory);
+        runner.start();
+        return runner;
+    }
+
 }
@@ -4,6 +4,7 @@ import com.transferwise.envoy.xds.api.ClusterManagerEventListener;
 import com.transferwise.envoy.xds.api.Mergeable;
 import java.util.ArrayList;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -19,6 +20,10 @@ public class QueueingMergingEventListener<StateUpdT extends Mergeable<StateUpdT>
         super(new MergingStrategy<>(), delegate);
     }
 
+    public QueueingMergingEventListener(ClusterManagerEventListener<StateUpdT> delegate, ThreadFactory threadFactory) {
+        super(new MergingStrategy<>(), delegate, threadFactory);
+    }
+
     public static class MergingStrategy<StateUpdT extends Mergeable<StateUpdT>> implements QueueTakeStrategy<StateUpdT> {
 
         @Override
@@ -39,4 +44,10 @@ public class QueueingMergingEventListener<StateUpdT extends Mergeable<StateUpdT>
         return runner;
     }
 
+    public static <StateUpdT extends Mergeable<StateUpdT>> QueueingMergingEventListener<StateUpdT> createAndStart(ClusterManagerEventListener<StateUpdT> delegate, ThreadFactory threadFactory) {
+        QueueingMergingEventListener<StateUpdT> runner = new QueueingMergingEventListener<>(delegate, threadFactory);
+        runner.start();
+        return runner;
+    }
+
 }
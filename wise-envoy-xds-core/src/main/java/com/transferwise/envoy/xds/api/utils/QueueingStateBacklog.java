@@ -33,6 +33,11 @@ public class QueueingStateBacklog<StateUpdT> implements StateBacklog<StateUpdT>
         return backlog.poll();
     }
 
+    @Override
+    public int depth() {
+        return backlog.size();
+    }
+
     public static <StateUpdT> QueueingStateBacklogFactory<StateUpdT> factory() {
         return new QueueingStateBacklogFactory<>();
     }
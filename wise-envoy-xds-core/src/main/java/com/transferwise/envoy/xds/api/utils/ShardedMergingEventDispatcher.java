@@ -0,0 +1,264 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import com.google.common.base.Preconditions;
+import com.transferwise.envoy.xds.api.ClusterManagerEventListener;
+import com.transferwise.envoy.xds.api.Mergeable;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.concurrent.GuardedBy;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Fans network changes out to many listeners using a fixed number of shard threads, rather than one thread per listener as QueueingMergingEventListener does.
+ * A ClusterEventSource can use this to track its subscribers: add() them on subscribe, remove() them on unsubscribe, and dispatch() every state update.
+ * Each listener is pinned to a single shard, so it always receives its updates in order and never concurrently with itself.
+ * Every listener has a merge slot: if updates arrive faster than the listener processes them they are merged together (using Mergeable) and delivered as one.
+ * Listeners that fall behind on the same updates are delivered the same merged instance (see SharedMerges).
+ * Since listeners on the same shard take turns, a listener that blocks in onNetworkChange() delays everyone else on its shard.
+ * Removing a listener delivers anything still in its slot before calling its close() method, on its shard thread.
+ * This class is thread safe.
+ * @param <StateUpdT> Update type
+ */
+@Slf4j
+public class ShardedMergingEventDispatcher<StateUpdT extends Mergeable<StateUpdT>> implements Closeable {
+
+    private static final AtomicLong dispatcherNum = new AtomicLong(0);
+
+    private final List<Shard> shards;
+
+    private final ConcurrentHashMap<ClusterManagerEventListener<StateUpdT>, Slot> slots = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextShard = new AtomicInteger(0);
+
+    private final SharedMerges<StateUpdT> merges = new SharedMerges<>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Create a dispatcher with one shard per available processor.
+     */
+    public ShardedMergingEventDispatcher() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ShardedMergingEventDispatcher(int shardCount) {
+        this(shardCount, namedThreads());
+    }
+
+    /**
+     * Create and start a dispatcher.
+     * @param shardCount Number of shard threads.
+     * @param threadFactory Creates the shard threads.
+     */
+    public ShardedMergingEventDispatcher(int shardCount, ThreadFactory threadFactory) {
+        Preconditions.checkArgument(shardCount > 0, "Need at least one shard");
+        List<Shard> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; ++i) {
+            shards.add(new Shard(threadFactory));
+        }
+        this.shards = List.copyOf(shards);
+        this.shards.forEach(Shard::start);
+    }
+
+    private static ThreadFactory namedThreads() {
+        long dispatcher = dispatcherNum.getAndIncrement();
+        AtomicInteger threadNum = new AtomicInteger(0);
+        return r -> {
+            Thread thread = new Thread(r, "sharded-event-dispatcher-" + dispatcher + "-" + threadNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Start delivering updates to a listener. Adding a listener that is already present has no effect.
+     * @param listener The listener
+     */
+    public void add(ClusterManagerEventListener<StateUpdT> listener) {
+        Preconditions.checkState(!closed, "Dispatcher is closed");
+        slots.computeIfAbsent(listener, l -> new Slot(l, shards.get(Math.floorMod(nextShard.getAndIncrement(), shards.size()))));
+    }
+
+    /**
+     * Stop delivering updates to a listener. Any updates already dispatched are still delivered, and then the listener is closed.
+     * @param listener The listener
+     * @return true if the listener was present.
+     */
+    public boolean remove(ClusterManagerEventListener<StateUpdT> listener) {
+        Slot slot = slots.remove(listener);
+        if (slot == null) {
+            return false;
+        }
+        slot.close();
+        return true;
+    }
+
+    /**
+     * Deliver an update to every listener.
+     * @param update The update
+     */
+    public void dispatch(StateUpdT update) {
+        slots.values().forEach(slot -> slot.offer(update));
+    }
+
+    /**
+     * Number of listeners currently receiving updates.
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Remove (and so close) every listener, and stop the shard threads once they have finished delivering updates.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        List.copyOf(slots.keySet()).forEach(this::remove);
+        shards.forEach(Shard::stop);
+    }
+
+    /**
+     * Wait for the shard threads to exit after close().
+     */
+    public void waitUntilFinished() throws InterruptedException {
+        for (Shard shard : shards) {
+            shard.thread.join();
+        }
+    }
+
+    private final class Slot implements Runnable {
+
+        private final ClusterManagerEventListener<StateUpdT> listener;
+
+        private final Shard shard;
+
+        @GuardedBy("this")
+        private StateUpdT pending = null;
+
+        @GuardedBy("this")
+        private boolean scheduled = false;
+
+        @GuardedBy("this")
+        private boolean closing = false;
+
+        @GuardedBy("this")
+        private boolean dead = false;
+
+        private Slot(ClusterManagerEventListener<StateUpdT> listener, Shard shard) {
+            this.listener = listener;
+            this.shard = shard;
+        }
+
+        synchronized void offer(StateUpdT update) {
+            if (closing) {
+                return;
+            }
+            pending = pending == null ? update : merges.merge(pending, update);
+            schedule();
+        }
+
+        synchronized void close() {
+            closing = true;
+            schedule();
+        }
+
+        @GuardedBy("this")
+        private void schedule() {
+            if (!scheduled) {
+                scheduled = true;
+                shard.queue.add(this);
+            }
+        }
+
+        /**
+         * Only ever called from the shard thread.
+         */
+        @Override
+        public void run() {
+            final StateUpdT update;
+            final boolean closeNow;
+            synchronized (this) {
+                scheduled = false;
+                if (dead) {
+                    return;
+                }
+                update = pending;
+                pending = null;
+                closeNow = closing;
+                dead = closing;
+            }
+            if (update != null) {
+                try {
+                    listener.onNetworkChange(update);
+                } catch (Throwable t) {
+                    log.error("Listener failed to process update, closing it:", t);
+                    synchronized (this) {
+                        closing = true;
+                        pending = null;
+                        dead = true;
+                    }
+                    slots.remove(listener, this);
+                    closeListener();
+                    return;
+                }
+            }
+            if (closeNow) {
+                closeListener();
+            }
+        }
+
+        private void closeListener() {
+            try {
+                listener.close();
+            } catch (Throwable t) {
+                log.error("Listener failed to close:", t);
+            }
+        }
+    }
+
+    private final class Shard implements Runnable {
+
+        private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+
+        private final Thread thread;
+
+        private boolean stopping = false;
+
+        private Shard(ThreadFactory threadFactory) {
+            this.thread = threadFactory.newThread(this);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void stop() {
+            // Anything queued before this still gets run.
+            queue.add(() -> stopping = true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopping) {
+                    queue.take().run();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            log.debug("Sharded event dispatcher thread terminating");
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.transferwise.envoy.xds.api.Mergeable;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Remembers the results of merging state updates, so clients that merge the same updates get the same instance back.
+ * Every client merges the updates that arrive while it is busy for itself, so without this each merged update is a new instance, even though clients that
+ * were busy for the same updates end up with equal ones. Anything keyed on the identity of state updates, such as CachingConfigBuilder, then misses for
+ * every one of them.
+ * Updates and results are weakly held, so a merge is only remembered while both its inputs and its result are still in use somewhere.
+ * Mergeable.merge must not modify either update for this to be safe, which is already required of updates delivered to more than one client.
+ * This class is thread safe.
+ * @param <StateUpdT> State update type
+ */
+final class SharedMerges<StateUpdT extends Mergeable<StateUpdT>> {
+
+    private final Cache<StateUpdT, Cache<StateUpdT, StateUpdT>> merges = CacheBuilder.newBuilder()
+        .weakKeys()
+        .build();
+
+    /**
+     * Merge update into pending, or return the result of doing so before if it is still around.
+     */
+    StateUpdT merge(StateUpdT pending, StateUpdT update) {
+        try {
+            return merges.get(pending, () -> CacheBuilder.newBuilder().weakKeys().weakValues().build())
+                .get(update, () -> pending.merge(update));
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            // The loaders can only throw unchecked exceptions, so rethrow whatever merge threw.
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.transferwise.envoy.xds.api.utils;
 
 import com.transferwise.envoy.xds.api.ClusterManagerEventListener;
+import java.lang.reflect.InvocationTargetException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicLong;
 import lombok.extern.slf4j.Slf4j;
 
@@ -13,12 +15,17 @@ public class ThreadedQueuingEventListener<StateUpdT> implements ClusterManagerEv
         StateUpdT take(BlockingQueue<StateUpdT> queue) throws InterruptedException;
     }
 
-    private final ProcessingThread<StateUpdT> processorThread;
+    private static final String THREAD_NAME_PREFIX = "state-update-event-listener-";
 
     private static final AtomicLong threadNum = new AtomicLong(0);
 
+    private static final ThreadFactory PLATFORM_THREADS = r -> new Thread(r, THREAD_NAME_PREFIX + threadNum.getAndIncrement());
 
-    private static class ProcessingThread<StateUpdT> extends Thread {
+    private final Processor<StateUpdT> processor;
+
+    private final Thread processorThread;
+
+    private static class Processor<StateUpdT> implements Runnable {
 
         private final BlockingQueue<StateUpdT> queue = new LinkedBlockingQueue<>();
 
@@ -28,8 +35,7 @@ public class ThreadedQueuingEventListener<StateUpdT> implements ClusterManagerEv
 
         private volatile boolean stopping = false;
 
-        ProcessingThread(QueueTakeStrategy<StateUpdT> strategy, ClusterManagerEventListener<StateUpdT> delegate) {
-            this.setName("state-update-event-listener-" + threadNum.getAndIncrement());
+        Processor(QueueTakeStrategy<StateUpdT> strategy, ClusterManagerEventListener<StateUpdT> delegate) {
             this.delegate = delegate;
             this.strategy = strategy;
         }
@@ -61,7 +67,54 @@ public class ThreadedQueuingEventListener<StateUpdT> implements ClusterManagerEv
     }
 
     public ThreadedQueuingEventListener(QueueTakeStrategy<StateUpdT> strategy, ClusterManagerEventListener<StateUpdT> delegate) {
-        processorThread = new ProcessingThread<>(strategy, delegate);
+        this(strategy, delegate, PLATFORM_THREADS);
+    }
+
+    /**
+     * Create a listener that processes updates on a thread from the given factory.
+     * @param threadFactory Creates the single thread used to call the delegate. See platformThreads() and virtualThreads().
+     */
+    public ThreadedQueuingEventListener(QueueTakeStrategy<StateUpdT> strategy, ClusterManagerEventListener<StateUpdT> delegate, ThreadFactory threadFactory) {
+        processor = new Processor<>(strategy, delegate);
+        processorThread = threadFactory.newThread(processor);
+    }
+
+    /**
+     * The default, one platform thread per listener.
+     */
+    public static ThreadFactory platformThreads() {
+        return PLATFORM_THREADS;
+    }
+
+    /**
+     * One virtual thread per listener. These are cheap enough that tens of thousands of mostly idle listeners are not a problem.
+     * @throws UnsupportedOperationException if virtual threads are not available (they need JDK 21 or later.)
+     */
+    public static ThreadFactory virtualThreads() {
+        if (Runtime.version().feature() < 21) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21 or later, running on " + Runtime.version());
+        }
+        try {
+            // Reflection because we still target JDK 17.
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME_PREFIX + "virtual-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new UnsupportedOperationException("Virtual threads are not available", e);
+        }
+    }
+
+    /**
+     * Virtual threads if they are available, otherwise platform threads.
+     */
+    public static ThreadFactory virtualThreadsIfAvailable() {
+        try {
+            return virtualThreads();
+        } catch (UnsupportedOperationException e) {
+            log.debug("Virtual threads unavailable, using platform threads: {}", e.getMessage());
+            return PLATFORM_THREADS;
+        }
     }
 
     public void start() {
@@ -70,7 +123,7 @@ public class ThreadedQueuingEventListener<StateUpdT> implements ClusterManagerEv
 
     @Override
     public void onNetworkChange(StateUpdT diff) {
-        processorThread.onNetworkChange(diff);
+        processor.onNetworkChange(diff);
     }
 
     @Override
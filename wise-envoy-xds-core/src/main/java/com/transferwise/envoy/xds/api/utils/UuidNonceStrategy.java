@@ -0,0 +1,18 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import com.transferwise.envoy.xds.api.NonceGenerator;
+import com.transferwise.envoy.xds.api.NonceStrategy;
+import java.util.UUID;
+
+/**
+ * A NonceStrategy that sends a random UUID with every response.
+ * This was the behaviour before NonceStrategy was introduced. Random UUIDs come from a SecureRandom shared by every stream, which can become a point of contention
+ * when many streams push at once, so prefer CounterNonceStrategy unless you need nonces that don't reveal how many responses were sent.
+ */
+public class UuidNonceStrategy implements NonceStrategy {
+
+    @Override
+    public NonceGenerator newGenerator() {
+        return () -> UUID.randomUUID().toString();
+    }
+}
@@ -6,6 +6,7 @@ import com.transferwise.envoy.xds.api.ClientConfigProvider;
 import com.transferwise.envoy.xds.CommonDiscoveryRequest;
 import com.transferwise.envoy.xds.CommonDiscoveryStreamObserver;
 import com.transferwise.envoy.xds.DiscoveryServiceManagerFactory;
+import com.transferwise.envoy.xds.SessionResumptionCache;
 import com.transferwise.envoy.xds.api.XdsEventListener;
 import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
 import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryRequest;
@@ -19,17 +20,28 @@ public class DeltaAggregatedDiscoveryService<StateUpdT, DetailsT> {
     private final ClientConfigProvider<DetailsT> clientConfigSource;
     private final Supplier<DiscoveryServiceManagerMetrics> metricsFactory;
     private final ImmutableList<XdsEventListener<DetailsT>> listeners;
+    private final SessionResumptionCache<DetailsT> sessionResumptionCache;
 
     public DeltaAggregatedDiscoveryService(ClusterEventSource<StateUpdT> clusterManager,
             DiscoveryServiceManagerFactory<DeltaDiscoveryRequest, DeltaDiscoveryResponse, StateUpdT, DetailsT> discoveryServiceManagerFactory,
             ClientConfigProvider<DetailsT> clientConfigSource,
             ImmutableList<XdsEventListener<DetailsT>> listeners,
             Supplier<DiscoveryServiceManagerMetrics> metricsFactory) {
+        this(clusterManager, discoveryServiceManagerFactory, clientConfigSource, listeners, metricsFactory, null);
+    }
+
+    public DeltaAggregatedDiscoveryService(ClusterEventSource<StateUpdT> clusterManager,
+            DiscoveryServiceManagerFactory<DeltaDiscoveryRequest, DeltaDiscoveryResponse, StateUpdT, DetailsT> discoveryServiceManagerFactory,
+            ClientConfigProvider<DetailsT> clientConfigSource,
+            ImmutableList<XdsEventListener<DetailsT>> listeners,
+            Supplier<DiscoveryServiceManagerMetrics> metricsFactory,
+            SessionResumptionCache<DetailsT> sessionResumptionCache) {
         this.clusterManager = clusterManager;
         this.discoveryServiceManagerFactory = discoveryServiceManagerFactory;
         this.clientConfigSource = clientConfigSource;
         this.metricsFactory = metricsFactory;
         this.listeners = listeners;
+        this.sessionResumptionCache = sessionResumptionCache;
     }
 
     public StreamObserver<DeltaDiscoveryRequest> streamDeltaAggregatedResources(StreamObserver<DeltaDiscoveryResponse> responseObserver) {
@@ -37,19 +49,15 @@ public class DeltaAggregatedDiscoveryService<StateUpdT, DetailsT> {
             responseObserver,
             clusterManager,
             discoveryServiceManagerFactory,
-            this::convertToCommonDiscoveryRequest,
+            DeltaAggregatedDiscoveryService::convertToCommonDiscoveryRequest,
             clientConfigSource,
             listeners,
-            metricsFactory.get()
+            metricsFactory.get(),
+            sessionResumptionCache
         );
     }
 
-    private CommonDiscoveryRequest<DeltaDiscoveryRequest> convertToCommonDiscoveryRequest(DeltaDiscoveryRequest request) {
-        return CommonDiscoveryRequest.<DeltaDiscoveryRequest>builder()
-                .typeUrl(request.getTypeUrl())
-                .errorDetail(request.hasErrorDetail() ? request.getErrorDetail() : null)
-                .node(request.getNode())
-                .message(request)
-                .build();
+    private static CommonDiscoveryRequest<DeltaDiscoveryRequest> convertToCommonDiscoveryRequest(DeltaDiscoveryRequest request) {
+        return CommonDiscoveryRequest.of(request, request.getNode(), request.getTypeUrl(), request.hasErrorDetail() ? request.getErrorDetail() : null);
     }
 }
@@ -6,15 +6,22 @@ import com.google.protobuf.Message;
 import com.transferwise.envoy.xds.AbstractDiscoveryService;
 import com.transferwise.envoy.xds.ClientNackException;
 import com.transferwise.envoy.xds.NodeConfig;
+import com.transferwise.envoy.xds.ClientClasses;
+import com.transferwise.envoy.xds.PackedResourceCache;
 import com.transferwise.envoy.xds.TypeUrl;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
 import com.transferwise.envoy.xds.api.IncrementalConfigBuilder;
+import com.transferwise.envoy.xds.api.NonceGenerator;
+import com.transferwise.envoy.xds.api.utils.CounterNonceStrategy;
+import com.transferwise.envoy.xds.api.SubscribedResources;
 import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryRequest;
 import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryResponse;
 import io.envoyproxy.envoy.service.discovery.v3.Resource;
 import io.grpc.stub.StreamObserver;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.UUID;
+import java.util.Map;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
@@ -24,17 +31,51 @@ class IncrementalDiscoveryService<E extends Message, StateUpdT, DetailsT> extend
 
     private final StreamObserver<DeltaDiscoveryResponse> responseObserver;
 
-    private String lastNonce = null;
+    /**
+     * Nonces of the responses envoy has yet to ack, oldest first. There can be more than one when pushes are pipelined (see PushOrder.pipelineWindow).
+     */
+    private final ArrayDeque<String> unackedNonces = new ArrayDeque<>();
 
-    private Long version = 0L;
+    private long version = 0L;
 
     private final SubManager subManager;
 
+    private final NonceGenerator nonceGenerator;
+
+    private boolean seenRequest = false;
+
+    /**
+     * Fingerprint of every resource we've sent the client and not since removed, so updates can leave out resources it already has.
+     */
+    private final ResourceHashes sentFingerprints = new ResourceHashes();
+
     IncrementalDiscoveryService(TypeUrl myTypeUrl, StreamObserver<DeltaDiscoveryResponse> responseObserver, IncrementalConfigBuilder<E, StateUpdT, DetailsT> configBuilder, NodeConfig<DetailsT> nodeConfig,
                                 SubManager subManager) {
-        super(myTypeUrl, configBuilder, nodeConfig);
+        this(myTypeUrl, responseObserver, configBuilder, nodeConfig, subManager, null);
+    }
+
+    IncrementalDiscoveryService(TypeUrl myTypeUrl, StreamObserver<DeltaDiscoveryResponse> responseObserver, IncrementalConfigBuilder<E, StateUpdT, DetailsT> configBuilder, NodeConfig<DetailsT> nodeConfig,
+                                SubManager subManager, PackedResourceCache packedResourceCache) {
+        this(myTypeUrl, responseObserver, configBuilder, nodeConfig, subManager, packedResourceCache, DiscoveryServiceManagerMetrics.NOOP_METRICS);
+    }
+
+    IncrementalDiscoveryService(TypeUrl myTypeUrl, StreamObserver<DeltaDiscoveryResponse> responseObserver, IncrementalConfigBuilder<E, StateUpdT, DetailsT> configBuilder, NodeConfig<DetailsT> nodeConfig,
+                                SubManager subManager, PackedResourceCache packedResourceCache, DiscoveryServiceManagerMetrics metrics) {
+        this(myTypeUrl, responseObserver, configBuilder, nodeConfig, subManager, packedResourceCache, metrics, new CounterNonceStrategy().newGenerator());
+    }
+
+    IncrementalDiscoveryService(TypeUrl myTypeUrl, StreamObserver<DeltaDiscoveryResponse> responseObserver, IncrementalConfigBuilder<E, StateUpdT, DetailsT> configBuilder, NodeConfig<DetailsT> nodeConfig,
+                                SubManager subManager, PackedResourceCache packedResourceCache, DiscoveryServiceManagerMetrics metrics, NonceGenerator nonceGenerator) {
+        this(myTypeUrl, responseObserver, configBuilder, nodeConfig, subManager, packedResourceCache, metrics, nonceGenerator, null);
+    }
+
+    IncrementalDiscoveryService(TypeUrl myTypeUrl, StreamObserver<DeltaDiscoveryResponse> responseObserver, IncrementalConfigBuilder<E, StateUpdT, DetailsT> configBuilder, NodeConfig<DetailsT> nodeConfig,
+                                SubManager subManager, PackedResourceCache packedResourceCache, DiscoveryServiceManagerMetrics metrics, NonceGenerator nonceGenerator,
+                                ClientClasses clientClasses) {
+        super(myTypeUrl, configBuilder, nodeConfig, packedResourceCache, metrics, clientClasses);
         this.responseObserver = responseObserver;
         this.subManager = subManager;
+        this.nonceGenerator = nonceGenerator;
     }
 
     @Override
@@ -45,30 +86,43 @@ class IncrementalDiscoveryService<E extends Message, StateUpdT, DetailsT> extend
             if (value.hasErrorDetail()) {
                 throw new ClientNackException(value.getResponseNonce(), value.getErrorDetail());
             }
-            if (value.getResponseNonce().equals(lastNonce)) {
-                log.debug("{} ACKed {}", getTypeUrl().name(), lastNonce);
-                lastNonce = null; // acked!
+            if (unackedNonces.contains(value.getResponseNonce())) {
+                // Envoy handles responses in the order they were sent, so this acks anything sent before it too.
+                String acked;
+                do {
+                    acked = unackedNonces.poll();
+                } while (!acked.equals(value.getResponseNonce()));
+                log.debug("{} ACKed {}", getTypeUrl().name(), acked);
             }
         }
+        if (seenRequest && value.getResourceNamesSubscribeCount() == 0 && value.getResourceNamesUnsubscribeCount() == 0) {
+            // No subscription changes, which is every plain ack. Only the first request can change subscriptions without naming anything
+            // (legacy wildcard), so there's nothing for the sub manager to do and no need to copy the lists.
+            return;
+        }
+        seenRequest = true;
         ImmutableSet<String> subscribeSet = ImmutableSet.copyOf(value.getResourceNamesSubscribeList());
         ImmutableSet<String> unsubscribeSet = ImmutableSet.copyOf(value.getResourceNamesUnsubscribeList());
+        // Envoy drops resources it unsubscribes from, so if it subscribes again it won't have them.
+        unsubscribeSet.forEach(sentFingerprints::remove);
         subManager.processResourceListChange(subscribeSet, unsubscribeSet).ifPresent(newSubFilter -> {
             // Subscriptions changed.
+            getMetrics().onSubscriptionChange(getTypeUrl());
             if (isAck) {
                 // The xDS docs suggest that envoy won't both ack something and change subscriptions lists in the same request.
                 // But I don't entirely trust that it won't. So we support that case, but log about it.
                 log.info("Client included subscriptions changes in an ack!");
             }
-            processSubUpdate(subscribeSet, newSubFilter, ImmutableSet.copyOf(value.getInitialResourceVersionsMap().keySet()));
+            processSubUpdate(subscribeSet, newSubFilter, value.getInitialResourceVersionsMap());
         });
     }
 
     @Override
-    public Predicate<String> subFilter() {
-        return subManager::isSubscribedTo;
+    public SubscribedResources subFilter() {
+        return subManager.getSubscribedResources();
     }
 
-    private void processSubUpdate(ImmutableSet<String> newSubs, Predicate<String> filter, ImmutableSet<String> initialState) {
+    private void processSubUpdate(ImmutableSet<String> newSubs, Predicate<String> filter, Map<String, String> initialVersions) {
         log.debug("{} subscription change - added: {}", getTypeUrl().name(), newSubs);
 
         // Envoy will want us to tell it about everything it's just asked for, assuming it successfully subscribed to it.
@@ -80,7 +134,7 @@ class IncrementalDiscoveryService<E extends Message, StateUpdT, DetailsT> extend
         // Again, we will need to tell envoy to delete it, but only if envoy has subscribed for updates about it.
         // This is necessary because envoy doesn't explicitly subscribe to named resources (e.g. when it uses wildcards), so it can be
         // subscribed to things it has never explicitly asked us for.
-        initialState.stream().filter(filter).forEach(removed::add);
+        initialVersions.keySet().stream().filter(filter).forEach(removed::add);
 
         // Now actually generate the resources for this sub update.
         IncrementalConfigBuilder.Resources<E> resources = getResources(filter);
@@ -90,12 +144,19 @@ class IncrementalDiscoveryService<E extends Message, StateUpdT, DetailsT> extend
             removed.remove(msg.getName());
         }
 
-        pushResources(resources.getResources(), removed);
+        // Envoy asked for these, so it gets all of them even if we think it already has them. The exception is resources it told us it has in its initial
+        // resource versions: versions are content hashes, so if one matches envoy already has exactly that resource, e.g. from before a reconnect.
+        pushResources(resources.getResources(), removed, false, initialVersions);
     }
 
     @Override
     public boolean awaitingAck() {
-        return lastNonce != null;
+        return !unackedNonces.isEmpty();
+    }
+
+    @Override
+    public int unackedResponses() {
+        return unackedNonces.size();
     }
 
     @Override
@@ -103,32 +164,58 @@ class IncrementalDiscoveryService<E extends Message, StateUpdT, DetailsT> extend
         if (response.getAddAndUpdates().isEmpty() && response.getRemoves().isEmpty()) {
             return;
         }
-        pushResources(response.getAddAndUpdates(), response.getRemoves());
+        // Config builders may return resources that haven't changed, leave out the ones the client already has.
+        pushResources(response.getAddAndUpdates(), response.getRemoves(), true, Map.of());
     }
 
-    private void pushResources(Collection<IncrementalConfigBuilder.NamedMessage<E>> resources, Collection<String> removals) {
-        Long myVersion = ++version;
+    private void pushResources(Collection<IncrementalConfigBuilder.NamedMessage<E>> resources, Collection<String> removals, boolean onlyChanged,
+                               Map<String, String> clientVersions) {
         DeltaDiscoveryResponse.Builder responseBuilder = DeltaDiscoveryResponse.newBuilder();
+        removals.forEach(sentFingerprints::remove);
         for (IncrementalConfigBuilder.NamedMessage<? extends Message> namedMessage : resources) {
+            PackedResourceCache.Packed packed = pack(namedMessage.getMessage());
+            long fingerprint = fingerprint(namedMessage.getName(), packed);
+            if (!sentFingerprints.put(namedMessage.getName(), fingerprint) && onlyChanged) {
+                continue;
+            }
+            String resourceVersion = resourceVersion(fingerprint);
+            if (resourceVersion.equals(clientVersions.get(namedMessage.getName()))) {
+                continue;
+            }
             responseBuilder.addResources(Resource.newBuilder()
                     .setName(namedMessage.getName())
-                    .setVersion(myVersion.toString())
-                    .setResource(pack(namedMessage.getMessage()))
+                    .setVersion(resourceVersion)
+                    .setResource(packed.packed())
                     .build());
         }
+        if (onlyChanged && responseBuilder.getResourcesCount() == 0 && removals.isEmpty()) {
+            log.debug("{} update only contained resources the client already has, not sending", getTypeUrl().name());
+            getMetrics().onPushSuppressed(getTypeUrl());
+            return;
+        }
         responseBuilder.addAllRemovedResources(removals);
         responseBuilder.setTypeUrl(getTypeUrl().getTypeUrl());
-        lastNonce = UUID.randomUUID().toString();
-        responseBuilder.setNonce(lastNonce);
-        responseBuilder.setSystemVersionInfo(myVersion.toString());
+        String nonce = nonceGenerator.next();
+        unackedNonces.add(nonce);
+        responseBuilder.setNonce(nonce);
+        responseBuilder.setSystemVersionInfo(Long.toString(++version));
 
         DeltaDiscoveryResponse discoveryResponse = responseBuilder.build();
 
         if (log.isDebugEnabled()) {
-            log.debug("{} Pushing update {} change - added: {} removed: {}", getTypeUrl().name(), lastNonce, resources.stream().map(IncrementalConfigBuilder.NamedMessage::getName).collect(Collectors.toList()), removals);
+            log.debug("{} Pushing update {} change - added: {} removed: {}", getTypeUrl().name(), nonce, discoveryResponse.getResourcesList().stream().map(Resource::getName).collect(Collectors.toList()), removals);
         }
 
+        getMetrics().onResponseSent(getTypeUrl(), discoveryResponse.getResourcesCount(), discoveryResponse.getRemovedResourcesCount(), discoveryResponse.getSerializedSize());
         responseObserver.onNext(discoveryResponse);
     }
 
+    /**
+     * The version sent with a resource. It's derived only from the resource's name and content, so it means the same thing on every stream and across control
+     * plane restarts, which lets envoy's initial resource versions tell us what it already has.
+     */
+    private static String resourceVersion(long fingerprint) {
+        return Long.toHexString(fingerprint);
+    }
+
 }
@@ -3,28 +3,53 @@ package com.transferwise.envoy.xds.delta;
 import com.google.protobuf.Message;
 import com.transferwise.envoy.xds.NodeConfig;
 import com.transferwise.envoy.xds.api.IncrementalConfigBuilder;
+import com.transferwise.envoy.xds.api.NonceStrategy;
 import com.transferwise.envoy.xds.DiscoveryService;
 import com.transferwise.envoy.xds.DiscoveryServiceFactory;
+import com.transferwise.envoy.xds.DiscoveryServiceOptions;
+import com.transferwise.envoy.xds.ClientClasses;
+import com.transferwise.envoy.xds.PackedResourceCache;
 import com.transferwise.envoy.xds.TypeUrl;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
+import com.transferwise.envoy.xds.api.utils.CachingConfigBuilder;
 import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryRequest;
 import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryResponse;
 import io.grpc.stub.StreamObserver;
 
 import java.util.List;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 public class IncrementalDiscoveryServiceFactory<StateUpdT, DetailsT> implements DiscoveryServiceFactory<DeltaDiscoveryRequest, DeltaDiscoveryResponse, StateUpdT, DetailsT> {
 
     private final List<IncrementalConfigBuilder<?, StateUpdT, DetailsT>> configBuilders;
 
+    private final PackedResourceCache packedResourceCache;
+
+    private final ClientClasses clientClasses;
+
+    private final NonceStrategy nonceStrategy;
+
     public IncrementalDiscoveryServiceFactory(List<IncrementalConfigBuilder<?, StateUpdT, DetailsT>> configBuilders) {
-        this.configBuilders = configBuilders;
+        this(configBuilders, DiscoveryServiceOptions.DEFAULTS);
+    }
 
+    public IncrementalDiscoveryServiceFactory(List<IncrementalConfigBuilder<?, StateUpdT, DetailsT>> configBuilders, DiscoveryServiceOptions options) {
         for (IncrementalConfigBuilder<?, StateUpdT, DetailsT> icb : configBuilders) {
             if (!TypeUrl.getMessageClazzes().contains(icb.handlesType())) {
                 throw new IllegalArgumentException(icb.handlesType() + " is not a known ADS message type. Valid types are: " + TypeUrl.getMessageClazzes());
             }
         }
+        this.packedResourceCache = options.getPackedResourceCache();
+        this.clientClasses = options.getClientClasses();
+        this.nonceStrategy = options.getNonceStrategy();
+        if (options.getConfigBuilderCacheSize() > 0) {
+            this.configBuilders = configBuilders.stream()
+                .<IncrementalConfigBuilder<?, StateUpdT, DetailsT>>map(icb -> icb instanceof CachingConfigBuilder ? icb : CachingConfigBuilder.wrap(icb, options.getConfigBuilderCacheSize()))
+                .collect(Collectors.toList());
+        } else {
+            this.configBuilders = configBuilders;
+        }
     }
 
     private SubManager getSubmanagerForType(TypeUrl type, NodeConfig<DetailsT> nodeConfig) {
@@ -76,7 +101,14 @@ public class IncrementalDiscoveryServiceFactory<StateUpdT, DetailsT> implements
 
     @Override
     public DiscoveryService<DeltaDiscoveryRequest, StateUpdT> createDiscoveryService(StreamObserver<DeltaDiscoveryResponse> responseObserver, NodeConfig<DetailsT> nodeConfig, TypeUrl type) {
-        return new IncrementalDiscoveryService<>(type, responseObserver, getConfigBuilderForType(type), nodeConfig, getSubmanagerForType(type, nodeConfig));
+        return createDiscoveryService(responseObserver, nodeConfig, type, DiscoveryServiceManagerMetrics.NOOP_METRICS);
+    }
+
+    @Override
+    public DiscoveryService<DeltaDiscoveryRequest, StateUpdT> createDiscoveryService(StreamObserver<DeltaDiscoveryResponse> responseObserver, NodeConfig<DetailsT> nodeConfig, TypeUrl type,
+                                                                                      DiscoveryServiceManagerMetrics metrics) {
+        return new IncrementalDiscoveryService<>(type, responseObserver, getConfigBuilderForType(type), nodeConfig, getSubmanagerForType(type, nodeConfig), packedResourceCache, metrics,
+            nonceStrategy.newGenerator(), clientClasses);
     }
 
 }
@@ -0,0 +1,104 @@
+package com.transferwise.envoy.xds.delta;
+
+/**
+ * Map from resource name to a 64-bit hash of the resource's content, used to track what a client already holds.
+ * There's one per discovery service per client, so it's kept compact: open addressing with linear probing over parallel arrays of names and primitive hashes,
+ * rather than a HashMap node and a boxed Long per resource.
+ * Not thread safe.
+ */
+final class ResourceHashes {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private String[] names = new String[MIN_CAPACITY];
+
+    private long[] hashes = new long[MIN_CAPACITY];
+
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Record the hash of a resource.
+     * @return true if the resource was not present, or was present with a different hash.
+     */
+    boolean put(String name, long hash) {
+        int slot = find(name);
+        if (names[slot] != null) {
+            if (hashes[slot] == hash) {
+                return false;
+            }
+            hashes[slot] = hash;
+            return true;
+        }
+        names[slot] = name;
+        hashes[slot] = hash;
+        ++size;
+        // Keep at most two thirds full, linear probing degrades quickly beyond that.
+        if (size * 3 > names.length * 2) {
+            resize(names.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Forget a resource.
+     * @return true if it was present.
+     */
+    boolean remove(String name) {
+        int slot = find(name);
+        if (names[slot] == null) {
+            return false;
+        }
+        names[slot] = null;
+        --size;
+        // Shift back any following entries that would no longer be found from their home slot, so lookups can stop at the first empty slot.
+        int mask = names.length - 1;
+        int empty = slot;
+        for (int i = (slot + 1) & mask; names[i] != null; i = (i + 1) & mask) {
+            int home = home(names[i], mask);
+            boolean homeBetweenEmptyAndHere = empty <= i ? (empty < home && home <= i) : (empty < home || home <= i);
+            if (!homeBetweenEmptyAndHere) {
+                names[empty] = names[i];
+                hashes[empty] = hashes[i];
+                names[i] = null;
+                empty = i;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the slot holding name, or the empty slot it would be put in.
+     */
+    private int find(String name) {
+        int mask = names.length - 1;
+        int slot = home(name, mask);
+        while (names[slot] != null && !names[slot].equals(name)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int home(String name, int mask) {
+        // Resource names tend to share long prefixes, spread the bits so similar names don't cluster.
+        int h = name.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void resize(int capacity) {
+        String[] oldNames = names;
+        long[] oldHashes = hashes;
+        names = new String[capacity];
+        hashes = new long[capacity];
+        for (int i = 0; i < oldNames.length; ++i) {
+            if (oldNames[i] != null) {
+                int slot = find(oldNames[i]);
+                names[slot] = oldNames[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.transferwise.envoy.xds.delta;
 
 import com.google.common.collect.ImmutableSet;
 import com.transferwise.envoy.xds.NodeConfig;
+import com.transferwise.envoy.xds.api.SubscribedResources;
 import java.util.HashSet;
 import java.util.Optional;
 import java.util.Set;
@@ -14,27 +15,40 @@ class SubListSubManager implements SubManager {
 
     private final Set<String> subs = new HashSet<>();
 
+    private SubscribedResources snapshot = null;
+
     @Override
     public Optional<Predicate<String>> processResourceListChange(ImmutableSet<String> resourceNamesSubscribe, ImmutableSet<String> resourceNamesUnsubscribe) {
-        Set<String> newSubs = new HashSet<>(resourceNamesSubscribe);
-
+        boolean didSubscribe = false;
         for (String name: resourceNamesSubscribe) {
-            subs.add(name);
             if (resourceNamesUnsubscribe.contains(name)) {
                 // This should never happen, but if it does the xDS spec provides no guidance on correct behaviour.
                 // Both possible options are potentially bad, so it seems best if this is an error.
                 throw new IllegalArgumentException("Attempt to subscribe and unsubscribe from the same resource in one request: " + name);
             }
+            didSubscribe = subs.add(name) || didSubscribe;
         }
         boolean didUnsubscribe = subs.removeAll(resourceNamesUnsubscribe);
-        if (!didUnsubscribe && newSubs.isEmpty()) { // TODO(jono): why do we check didUnsubscribe here?
+        if (didSubscribe || didUnsubscribe) {
+            snapshot = null;
+        }
+        if (!didUnsubscribe && resourceNamesSubscribe.isEmpty()) { // TODO(jono): why do we check didUnsubscribe here?
             return Optional.empty();
         }
-        return Optional.of(newSubs::contains);
+        // The subscribe set is immutable, so it can be the filter as is. Resubscribing to something counts as newly subscribing to it.
+        return Optional.of(resourceNamesSubscribe::contains);
     }
 
     @Override
     public boolean isSubscribedTo(String resourceName) {
         return subs.contains(resourceName);
     }
+
+    @Override
+    public SubscribedResources getSubscribedResources() {
+        if (snapshot == null) {
+            snapshot = SubscribedResources.of(subs);
+        }
+        return snapshot;
+    }
 }
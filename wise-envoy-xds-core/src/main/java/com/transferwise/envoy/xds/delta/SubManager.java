@@ -1,6 +1,7 @@
 package com.transferwise.envoy.xds.delta;
 
 import com.google.common.collect.ImmutableSet;
+import com.transferwise.envoy.xds.api.SubscribedResources;
 import java.util.Optional;
 import java.util.function.Predicate;
 
@@ -26,4 +27,10 @@ interface SubManager {
      */
     boolean isSubscribedTo(String resourceName);
 
+    /**
+     * Snapshot of the current subscriptions.
+     * Implementations should avoid rebuilding the snapshot if subscriptions have not changed since the last call.
+     */
+    SubscribedResources getSubscribedResources();
+
 }
@@ -2,6 +2,7 @@ package com.transferwise.envoy.xds.delta;
 
 import com.google.common.collect.ImmutableSet;
 import com.transferwise.envoy.xds.NodeConfig;
+import com.transferwise.envoy.xds.api.SubscribedResources;
 import java.util.Optional;
 import java.util.function.Predicate;
 
@@ -84,4 +85,13 @@ class WildcardSubManager implements SubManager {
             return subListSubManager.isSubscribedTo(resourceName);
         }
     }
+
+    @Override
+    public SubscribedResources getSubscribedResources() {
+        if (inWildcardMode) {
+            return SubscribedResources.wildcard();
+        } else {
+            return subListSubManager.getSubscribedResources();
+        }
+    }
 }
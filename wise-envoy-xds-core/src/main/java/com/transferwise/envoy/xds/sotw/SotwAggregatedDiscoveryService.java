@@ -6,6 +6,7 @@ import com.transferwise.envoy.xds.api.ClientConfigProvider;
 import com.transferwise.envoy.xds.CommonDiscoveryRequest;
 import com.transferwise.envoy.xds.CommonDiscoveryStreamObserver;
 import com.transferwise.envoy.xds.DiscoveryServiceManagerFactory;
+import com.transferwise.envoy.xds.SessionResumptionCache;
 import com.transferwise.envoy.xds.api.XdsEventListener;
 import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
 import io.envoyproxy.envoy.service.discovery.v3.DiscoveryRequest;
@@ -19,6 +20,7 @@ public class SotwAggregatedDiscoveryService<StateUpdT, DetailsT> {
     private final ClientConfigProvider<DetailsT> clientConfigSource;
     private final Supplier<DiscoveryServiceManagerMetrics> metricsFactory;
     private final ImmutableList<XdsEventListener<DetailsT>> listeners;
+    private final SessionResumptionCache<DetailsT> sessionResumptionCache;
 
     public SotwAggregatedDiscoveryService(
         ClusterEventSource<StateUpdT> clusterManager,
@@ -26,12 +28,24 @@ public class SotwAggregatedDiscoveryService<StateUpdT, DetailsT> {
         ClientConfigProvider<DetailsT> clientConfigSource,
         ImmutableList<XdsEventListener<DetailsT>> listeners,
         Supplier<DiscoveryServiceManagerMetrics> metricsFactory
+    ) {
+        this(clusterManager, discoveryServiceManagerFactory, clientConfigSource, listeners, metricsFactory, null);
+    }
+
+    public SotwAggregatedDiscoveryService(
+        ClusterEventSource<StateUpdT> clusterManager,
+        DiscoveryServiceManagerFactory<DiscoveryRequest, DiscoveryResponse, StateUpdT, DetailsT> discoveryServiceManagerFactory,
+        ClientConfigProvider<DetailsT> clientConfigSource,
+        ImmutableList<XdsEventListener<DetailsT>> listeners,
+        Supplier<DiscoveryServiceManagerMetrics> metricsFactory,
+        SessionResumptionCache<DetailsT> sessionResumptionCache
     ) {
         this.clusterManager = clusterManager;
         this.discoveryServiceManagerFactory = discoveryServiceManagerFactory;
         this.clientConfigSource = clientConfigSource;
         this.metricsFactory = metricsFactory;
         this.listeners = listeners;
+        this.sessionResumptionCache = sessionResumptionCache;
     }
 
     public StreamObserver<DiscoveryRequest> streamAggregatedResources(StreamObserver<DiscoveryResponse> responseObserver) {
@@ -39,19 +53,15 @@ public class SotwAggregatedDiscoveryService<StateUpdT, DetailsT> {
                 responseObserver,
                 clusterManager,
                 discoveryServiceManagerFactory,
-                this::convertToCommonDiscoveryRequest,
+                SotwAggregatedDiscoveryService::convertToCommonDiscoveryRequest,
                 clientConfigSource,
                 listeners,
-                metricsFactory.get()
+                metricsFactory.get(),
+                sessionResumptionCache
         );
     }
 
-    private CommonDiscoveryRequest<DiscoveryRequest> convertToCommonDiscoveryRequest(DiscoveryRequest request) {
-        return CommonDiscoveryRequest.<DiscoveryRequest>builder()
-                .typeUrl(request.getTypeUrl())
-                .errorDetail(request.hasErrorDetail() ? request.getErrorDetail() : null)
-                .node(request.getNode())
-                .message(request)
-                .build();
+    private static CommonDiscoveryRequest<DiscoveryRequest> convertToCommonDiscoveryRequest(DiscoveryRequest request) {
+        return CommonDiscoveryRequest.of(request, request.getNode(), request.getTypeUrl(), request.hasErrorDetail() ? request.getErrorDetail() : null);
     }
 }
@@ -1,20 +1,22 @@
 package com.transferwise.envoy.xds.sotw;
 
+import com.google.protobuf.Any;
 import com.google.protobuf.Message;
 import com.transferwise.envoy.xds.NodeConfig;
 import com.transferwise.envoy.xds.api.IncrementalConfigBuilder;
+import com.transferwise.envoy.xds.api.IncrementalConfigBuilder.NamedMessage;
 import com.transferwise.envoy.xds.AbstractDiscoveryService;
+import com.transferwise.envoy.xds.ClientClasses;
+import com.transferwise.envoy.xds.PackedResourceCache;
 import com.transferwise.envoy.xds.TypeUrl;
-import com.transferwise.envoy.xds.api.IncrementalConfigBuilder.NamedMessage;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
+import com.transferwise.envoy.xds.api.SubscribedResources;
 import io.envoyproxy.envoy.service.discovery.v3.DiscoveryRequest;
 import io.envoyproxy.envoy.service.discovery.v3.DiscoveryResponse;
 import io.grpc.stub.StreamObserver;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.function.Predicate;
 
@@ -28,10 +30,58 @@ class SotwDiscoveryService<E extends Message, StateUpdT, DetailsT> extends Abstr
 
     private String awaitingVersion = null;
 
-    private final Map<String, NamedMessage<E>> resourceState = new LinkedHashMap<>();
+    /**
+     * Everything the client is subscribed to, already packed. A push reuses the packed resources (and so their encoded bytes), only changed resources get packed.
+     */
+    private final Map<String, PackedResource> resourceState = new LinkedHashMap<>();
+
+    /**
+     * Sum of the mixed fingerprints of everything in resourceState. It doesn't depend on order, so it can be kept up to date as resources come and go.
+     * Fingerprints are mixed before adding them up so that different sets of resources don't simply cancel each other out. Together with the number of
+     * resources it identifies the state: if both equal what the client already accepted, the push is skipped.
+     */
+    private long stateFingerprint = 0;
+
+    /**
+     * stateFingerprint as of the last push.
+     */
+    private long sentFingerprint = 0;
+
+    /**
+     * Size of resourceState as of the last push.
+     */
+    private int sentSize = 0;
+
+    /**
+     * How many resources have been dropped from resourceState since we last pushed it, for metrics.
+     */
+    private int removedSinceLastPush = 0;
+
+    /**
+     * What we last knew the client had on its previous stream, if this session was resumed. Only good until the client's first request on this stream:
+     * after that it reports versions from this stream instead.
+     */
+    private ResumedState resumedFrom = null;
+
+    private boolean resumedInSync = false;
 
     SotwDiscoveryService(TypeUrl myTypeUrl, StreamObserver<DiscoveryResponse> responseObserver, SubManager subManager, VersionManager versionManager, IncrementalConfigBuilder<E, StateUpdT, DetailsT> configBuilder, NodeConfig<DetailsT> nodeConfig) {
-        super(myTypeUrl, configBuilder, nodeConfig);
+        this(myTypeUrl, responseObserver, subManager, versionManager, configBuilder, nodeConfig, null);
+    }
+
+    SotwDiscoveryService(TypeUrl myTypeUrl, StreamObserver<DiscoveryResponse> responseObserver, SubManager subManager, VersionManager versionManager, IncrementalConfigBuilder<E, StateUpdT, DetailsT> configBuilder, NodeConfig<DetailsT> nodeConfig,
+                         PackedResourceCache packedResourceCache) {
+        this(myTypeUrl, responseObserver, subManager, versionManager, configBuilder, nodeConfig, packedResourceCache, DiscoveryServiceManagerMetrics.NOOP_METRICS);
+    }
+
+    SotwDiscoveryService(TypeUrl myTypeUrl, StreamObserver<DiscoveryResponse> responseObserver, SubManager subManager, VersionManager versionManager, IncrementalConfigBuilder<E, StateUpdT, DetailsT> configBuilder, NodeConfig<DetailsT> nodeConfig,
+                         PackedResourceCache packedResourceCache, DiscoveryServiceManagerMetrics metrics) {
+        this(myTypeUrl, responseObserver, subManager, versionManager, configBuilder, nodeConfig, packedResourceCache, metrics, null);
+    }
+
+    SotwDiscoveryService(TypeUrl myTypeUrl, StreamObserver<DiscoveryResponse> responseObserver, SubManager subManager, VersionManager versionManager, IncrementalConfigBuilder<E, StateUpdT, DetailsT> configBuilder, NodeConfig<DetailsT> nodeConfig,
+                         PackedResourceCache packedResourceCache, DiscoveryServiceManagerMetrics metrics, ClientClasses clientClasses) {
+        super(myTypeUrl, configBuilder, nodeConfig, packedResourceCache, metrics, clientClasses);
         this.responseObserver = responseObserver;
         this.subManager = subManager;
         this.versionManager = versionManager;
@@ -45,29 +95,78 @@ class SotwDiscoveryService<E extends Message, StateUpdT, DetailsT> extends Abstr
         };
     }
 
-    private void processSubUpdate(Predicate<String> subChanged) {
+    private void processSubUpdate(Predicate<String> subChanged, String clientVersion) {
+        getMetrics().onSubscriptionChange(getTypeUrl());
         // Remove state for anything we're no longer subscribed to.
-        boolean hasUpdates = resourceState.keySet().removeIf(n -> !subManager.isSubscribedTo(n));
+        boolean hasUpdates = resourceState.entrySet().removeIf(e -> {
+            if (subManager.isSubscribedTo(e.getKey())) {
+                return false;
+            }
+            stateFingerprint -= mix(e.getValue().fingerprint());
+            ++removedSinceLastPush;
+            return true;
+        });
 
         IncrementalConfigBuilder.Resources<E> resources = getResources(subChanged);
         if (!resources.getResources().isEmpty()) {
             hasUpdates = true;
-            resources.getResources().forEach(msg -> resourceState.put(msg.getName(), msg));
+            resources.getResources().forEach(this::putResource);
         }
         hasUpdates = applyCurrentState() || hasUpdates;
-        if (hasUpdates) {
-            pushResources(resourceState.values());
+        if (hasUpdates && clientHasResumedState(clientVersion)) {
+            log.debug("{} client still has version {} from its previous stream, which is current, not sending", getTypeUrl(), clientVersion);
+            sentFingerprint = stateFingerprint;
+            sentSize = resourceState.size();
+            removedSinceLastPush = 0;
+            resumedInSync = true;
+            getMetrics().onPushSuppressed(getTypeUrl());
+        } else if (hasUpdates) {
+            pushResources();
         }
     }
 
+    /**
+     * Check whether the client reports that it has the version it accepted on its previous stream, and that version was exactly what we'd send it now.
+     * Versions are unique to the stream that sent them (see VersionManager), so a client that has since had config from another stream or server reports
+     * a different version, and is sent ours.
+     */
+    private boolean clientHasResumedState(String clientVersion) {
+        return resumedFrom != null && resumedFrom.acceptedVersion().equals(clientVersion) && resumedFrom.fingerprint() == stateFingerprint
+            && resumedFrom.size() == resourceState.size();
+    }
+
     @Override
     protected void processRequest(DiscoveryRequest value) {
-        log.debug("DiscoveryRequest: V={},R={},N={},T={}", value.getVersionInfo(), value.getResourceNamesList(), value.getResponseNonce(), value.getTypeUrl());
+        if (log.isDebugEnabled()) {
+            log.debug("DiscoveryRequest: V={},R={},N={},T={}", value.getVersionInfo(), value.getResourceNamesList(), value.getResponseNonce(), value.getTypeUrl());
+        }
         if (!versionManager.processUpdate(value.getResponseNonce(), value.getVersionInfo())) {
             // Stale or otherwise invalid
             return;
         }
-        subManager.processResourceListChange(value.getResourceNamesList()).ifPresent(this::processSubUpdate);
+        subManager.processResourceListChange(value.getResourceNamesList()).ifPresent(subChanged -> processSubUpdate(subChanged, value.getVersionInfo()));
+        resumedFrom = null;
+    }
+
+    @Override
+    public SessionState suspend() {
+        if (awaitingVersion == null || awaitingAck()) {
+            // We only know exactly what the client has if it accepted the last thing we sent.
+            return null;
+        }
+        return new ResumedState(awaitingVersion, sentFingerprint, sentSize);
+    }
+
+    @Override
+    public void resume(SessionState state) {
+        if (state instanceof ResumedState resumed) {
+            resumedFrom = resumed;
+        }
+    }
+
+    @Override
+    public boolean resumedInSync() {
+        return resumedInSync;
     }
 
     @Override
@@ -80,8 +179,13 @@ class SotwDiscoveryService<E extends Message, StateUpdT, DetailsT> extends Abstr
     }
 
     @Override
-    protected Predicate<String> subFilter() {
-        return subManager::isSubscribedTo;
+    public int unackedResponses() {
+        return versionManager.unansweredResponses();
+    }
+
+    @Override
+    protected SubscribedResources subFilter() {
+        return subManager.getSubscribedResources();
     }
 
     @Override
@@ -90,38 +194,80 @@ class SotwDiscoveryService<E extends Message, StateUpdT, DetailsT> extends Abstr
             // Nothing to do :)
             return false;
         }
-        response.getAddAndUpdates().forEach(msg ->
-                resourceState.put(msg.getName(), msg)
-        );
-        response.getRemoves().forEach(name ->
-                resourceState.remove(name)
-        );
+        response.getAddAndUpdates().forEach(this::putResource);
+        response.getRemoves().forEach(name -> {
+            PackedResource removed = resourceState.remove(name);
+            if (removed != null) {
+                stateFingerprint -= mix(removed.fingerprint());
+                ++removedSinceLastPush;
+            }
+        });
         return true;
     }
 
+    private void putResource(NamedMessage<E> msg) {
+        PackedResourceCache.Packed packed = pack(msg.getMessage());
+        long fingerprint = fingerprint(msg.getName(), packed);
+        PackedResource previous = resourceState.put(msg.getName(), new PackedResource(packed.packed(), fingerprint));
+        if (previous != null) {
+            stateFingerprint -= mix(previous.fingerprint());
+        }
+        stateFingerprint += mix(fingerprint);
+    }
+
+    /**
+     * Stafford's variant 13 of the MurmurHash3 64-bit finalizer, as used by SplitMix64.
+     */
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
     @Override
     protected void pushNewState(IncrementalConfigBuilder.Response<E> response) {
-        pushResources(resourceState.values());
+        pushResources();
     }
 
-    private void pushResources(Collection<IncrementalConfigBuilder.NamedMessage<E>> resources) {
+    private void pushResources() {
+        if (awaitingVersion != null && stateFingerprint == sentFingerprint && resourceState.size() == sentSize && !awaitingAck()) {
+            // The client has accepted exactly these resources already (config builders may return resources that didn't really change.)
+            // Sending them again would only make it reload its config for nothing.
+            log.debug("{} unchanged since accepted version {}, not sending", getTypeUrl(), awaitingVersion);
+            removedSinceLastPush = 0;
+            getMetrics().onPushSuppressed(getTypeUrl());
+            return;
+        }
         String version = versionManager.getNext();
         DiscoveryResponse.Builder responseBuilder = DiscoveryResponse.newBuilder();
         log.debug("Sending {} of {}", version, getTypeUrl());
-        List<String> names = new ArrayList<>(resources.size());
-        for (IncrementalConfigBuilder.NamedMessage<? extends Message> namedMessage : resources) {
-            responseBuilder.addResources(pack(namedMessage.getMessage()));
-            names.add(namedMessage.getName());
+        for (PackedResource resource : resourceState.values()) {
+            responseBuilder.addResources(resource.packed());
         }
         responseBuilder.setTypeUrl(getTypeUrl().getTypeUrl());
         responseBuilder.setVersionInfo(version);
         responseBuilder.setNonce(versionManager.pushedVersion(version));
 
         DiscoveryResponse discoveryResponse = responseBuilder.build();
-        log.debug("DiscoveryResponse: V={},R={},N={},T={}", discoveryResponse.getVersionInfo(), names, discoveryResponse.getNonce(), discoveryResponse.getTypeUrl());
+        if (log.isDebugEnabled()) {
+            log.debug("DiscoveryResponse: V={},R={},N={},T={}", discoveryResponse.getVersionInfo(), resourceState.keySet(), discoveryResponse.getNonce(), discoveryResponse.getTypeUrl());
+        }
 
         awaitingVersion = version;
+        sentFingerprint = stateFingerprint;
+        sentSize = resourceState.size();
+        getMetrics().onResponseSent(getTypeUrl(), discoveryResponse.getResourcesCount(), removedSinceLastPush, discoveryResponse.getSerializedSize());
+        removedSinceLastPush = 0;
         responseObserver.onNext(discoveryResponse);
     }
 
+    private record PackedResource(Any packed, long fingerprint) {
+    }
+
+    /**
+     * The version a client accepted, and the fingerprint and number of the resources in it.
+     */
+    private record ResumedState(String acceptedVersion, long fingerprint, int size) implements SessionState {
+    }
+
 }
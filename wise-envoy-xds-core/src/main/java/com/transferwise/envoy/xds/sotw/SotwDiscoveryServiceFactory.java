@@ -4,9 +4,15 @@ import com.google.common.collect.ImmutableList;
 import com.google.protobuf.Message;
 import com.transferwise.envoy.xds.NodeConfig;
 import com.transferwise.envoy.xds.api.IncrementalConfigBuilder;
+import com.transferwise.envoy.xds.api.NonceStrategy;
 import com.transferwise.envoy.xds.DiscoveryService;
 import com.transferwise.envoy.xds.DiscoveryServiceFactory;
+import com.transferwise.envoy.xds.DiscoveryServiceOptions;
+import com.transferwise.envoy.xds.ClientClasses;
+import com.transferwise.envoy.xds.PackedResourceCache;
 import com.transferwise.envoy.xds.TypeUrl;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
+import com.transferwise.envoy.xds.api.utils.CachingConfigBuilder;
 import io.envoyproxy.envoy.service.discovery.v3.DiscoveryRequest;
 import io.envoyproxy.envoy.service.discovery.v3.DiscoveryResponse;
 import io.grpc.stub.StreamObserver;
@@ -17,13 +23,32 @@ public class SotwDiscoveryServiceFactory<StateUpdT, DetailsT> implements Discove
 
     private final ImmutableList<IncrementalConfigBuilder<?, StateUpdT, DetailsT>> configBuilders;
 
+    private final PackedResourceCache packedResourceCache;
+
+    private final ClientClasses clientClasses;
+
+    private final NonceStrategy nonceStrategy;
+
     public SotwDiscoveryServiceFactory(ImmutableList<IncrementalConfigBuilder<?, StateUpdT, DetailsT>> configBuilders) {
-        this.configBuilders = configBuilders;
+        this(configBuilders, DiscoveryServiceOptions.DEFAULTS);
+    }
+
+    public SotwDiscoveryServiceFactory(ImmutableList<IncrementalConfigBuilder<?, StateUpdT, DetailsT>> configBuilders, DiscoveryServiceOptions options) {
         for (IncrementalConfigBuilder<?, StateUpdT, DetailsT> icb : configBuilders) {
             if (!TypeUrl.getMessageClazzes().contains(icb.handlesType())) {
                 throw new IllegalArgumentException(icb.handlesType() + " is not a known ADS message type. Valid types are: " + TypeUrl.getMessageClazzes());
             }
         }
+        this.packedResourceCache = options.getPackedResourceCache();
+        this.clientClasses = options.getClientClasses();
+        this.nonceStrategy = options.getNonceStrategy();
+        if (options.getConfigBuilderCacheSize() > 0) {
+            this.configBuilders = configBuilders.stream()
+                .<IncrementalConfigBuilder<?, StateUpdT, DetailsT>>map(icb -> icb instanceof CachingConfigBuilder ? icb : CachingConfigBuilder.wrap(icb, options.getConfigBuilderCacheSize()))
+                .collect(ImmutableList.toImmutableList());
+        } else {
+            this.configBuilders = configBuilders;
+        }
     }
 
     private SubManager getSubmanagerForType(TypeUrl type) {
@@ -41,7 +66,12 @@ public class SotwDiscoveryServiceFactory<StateUpdT, DetailsT> implements Discove
 
     @Override
     public DiscoveryService<DiscoveryRequest, StateUpdT> createDiscoveryService(StreamObserver<DiscoveryResponse> responseObserver, NodeConfig<DetailsT> nodeConfig, TypeUrl type) {
-        return new SotwDiscoveryService<>(type, responseObserver, getSubmanagerForType(type), new VersionManager(), getConfigBuilderForType(type), nodeConfig);
+        return createDiscoveryService(responseObserver, nodeConfig, type, DiscoveryServiceManagerMetrics.NOOP_METRICS);
+    }
+
+    @Override
+    public DiscoveryService<DiscoveryRequest, StateUpdT> createDiscoveryService(StreamObserver<DiscoveryResponse> responseObserver, NodeConfig<DetailsT> nodeConfig, TypeUrl type, DiscoveryServiceManagerMetrics metrics) {
+        return new SotwDiscoveryService<>(type, responseObserver, getSubmanagerForType(type), new VersionManager(nonceStrategy.newGenerator()), getConfigBuilderForType(type), nodeConfig, packedResourceCache, metrics, clientClasses);
     }
 
     private static class NoOpConfigBuilder<ResourceT extends Message, StateUpdT, DetailsT> implements IncrementalConfigBuilder<ResourceT, StateUpdT, DetailsT> {
@@ -1,6 +1,7 @@
 package com.transferwise.envoy.xds.sotw;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.transferwise.envoy.xds.api.SubscribedResources;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.Collections;
@@ -17,6 +18,8 @@ class SubListSubManager implements SubManager {
 
     private Set<String> subs = new HashSet<>();
 
+    private SubscribedResources snapshot = null;
+
     @VisibleForTesting
     Set<String> getSubs() {
         return subs;
@@ -25,19 +28,21 @@ class SubListSubManager implements SubManager {
     @Override
     public Optional<Predicate<String>> processResourceListChange(List<String> resourceNames) {
 
-        boolean subsUpdated = false;
-
-        Set<String> newSubs = new HashSet<>();
+        // Most requests are acks that repeat the current subscriptions, so only allocate once something has changed.
+        Set<String> newSubs = null;
         for (String resourceName: resourceNames) {
             if (!subs.contains(resourceName)) {
+                if (newSubs == null) {
+                    newSubs = new HashSet<>();
+                }
                 newSubs.add(resourceName);
-                subsUpdated = true;
             }
         }
-        if (subsUpdated || subs.size() != resourceNames.size()) {
+        if (newSubs != null || subs.size() != resourceNames.size()) {
             log.debug("Subscribed to {}", resourceNames);
             subs = new HashSet<>(resourceNames);
-            return Optional.of(newSubs::contains);
+            snapshot = null;
+            return Optional.of(newSubs == null ? name -> false : newSubs::contains);
         }
         return Optional.empty();
     }
@@ -59,4 +64,12 @@ class SubListSubManager implements SubManager {
     public boolean isSubscribedTo(String resourceName) {
         return subs.contains(resourceName);
     }
+
+    @Override
+    public SubscribedResources getSubscribedResources() {
+        if (snapshot == null) {
+            snapshot = SubscribedResources.of(subs);
+        }
+        return snapshot;
+    }
 }
@@ -1,5 +1,6 @@
 package com.transferwise.envoy.xds.sotw;
 
+import com.transferwise.envoy.xds.api.SubscribedResources;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -26,4 +27,10 @@ interface SubManager {
 
     boolean isSubscribedTo(String resourceName);
 
+    /**
+     * Snapshot of the current subscriptions.
+     * Implementations should avoid rebuilding the snapshot if subscriptions have not changed since the last call.
+     */
+    SubscribedResources getSubscribedResources();
+
 }
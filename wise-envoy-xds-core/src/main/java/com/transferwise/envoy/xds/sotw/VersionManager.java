@@ -3,67 +3,128 @@ package com.transferwise.envoy.xds.sotw;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.primitives.UnsignedLong;
+import com.transferwise.envoy.xds.api.NonceGenerator;
+import com.transferwise.envoy.xds.api.utils.CounterNonceStrategy;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.UUID;
-
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tracks the versions sent to and accepted by a client.
+ * Versions are unsigned longs, held as primitive longs and compared with Long.compareUnsigned, so handling an ack doesn't allocate.
+ * Each VersionManager counts up from a random point, so versions are unique to the stream that sent them. A version the client reports on a new stream
+ * can then be trusted to be the one we sent it on a previous stream, rather than one another server (or stream) happened to number the same.
+ * When pushes are pipelined (see PushOrder.pipelineWindow) several responses can be waiting on the client at once. Envoy answers them in order, so an ack
+ * or nack of one settles it and every response sent before it.
+ */
 @Slf4j
 class VersionManager {
 
+    /**
+     * Marks sentVersion and acceptedVersion as unset. Versions start above zero and only go up, so zero is never sent.
+     */
+    private static final long NONE = 0;
+
+    /**
+     * Versions start below this, which leaves room for more versions than a stream will ever send before the counter overflows.
+     */
+    private static final long MAX_INITIAL_VERSION = 1L << 62;
+
+    private static final long MAX_VERSION = -1L; // Unsigned max
+
+    private final NonceGenerator nonceGenerator;
+
     public VersionManager() {
-        this(UnsignedLong.ONE);
+        this(new CounterNonceStrategy().newGenerator());
+    }
+
+    public VersionManager(NonceGenerator nonceGenerator) {
+        this(ThreadLocalRandom.current().nextLong(1, MAX_INITIAL_VERSION), nonceGenerator);
     }
 
     @VisibleForTesting
     VersionManager(UnsignedLong initialVersion) {
+        this(initialVersion.longValue(), new CounterNonceStrategy().newGenerator());
+    }
+
+    private VersionManager(long initialVersion, NonceGenerator nonceGenerator) {
         this.currentVersion = initialVersion;
+        this.nonceGenerator = nonceGenerator;
     }
 
     private String currentNonce;
 
-    private UnsignedLong acceptedVersion;
-    private UnsignedLong sentVersion;
+    /**
+     * Responses the client has yet to answer, oldest first.
+     */
+    private final ArrayDeque<Sent> unanswered = new ArrayDeque<>();
+
+    private long acceptedVersion = NONE;
+    private long sentVersion = NONE;
 
-    private UnsignedLong currentVersion;
+    /**
+     * The version info string of sentVersion, as sent. Envoy echoes this back when it accepts it, so comparing the strings saves parsing.
+     */
+    private String sentVersionInfo;
+
+    private long currentVersion;
 
     public String getNext() {
-        if (currentVersion.equals(UnsignedLong.MAX_VALUE)) {
+        if (currentVersion == MAX_VERSION) {
             throw new IndexOutOfBoundsException("Overflowed version counter");
         }
-        currentVersion = currentVersion.plus(UnsignedLong.ONE);
-        return currentVersion.toString();
+        ++currentVersion;
+        return Long.toUnsignedString(currentVersion);
     }
 
     public boolean hasAcceptedVersion(String version) {
-        if (acceptedVersion == null) {
+        if (acceptedVersion == NONE) {
             return false;
         }
 
-        return acceptedVersion.compareTo(UnsignedLong.valueOf(version)) >= 0;
+        return Long.compareUnsigned(acceptedVersion, Long.parseUnsignedLong(version)) >= 0;
     }
 
     @VisibleForTesting
     UnsignedLong getSentVersion() {
-        return sentVersion;
+        return sentVersion == NONE ? null : UnsignedLong.fromLongBits(sentVersion);
+    }
+
+    /**
+     * How many responses the client has yet to ack or nack.
+     */
+    public int unansweredResponses() {
+        return unanswered.size();
     }
 
     public boolean processUpdate(String responseNonce, String versionInfo) {
-        if (sentVersion != null) {
-            if (!currentNonce.equals(responseNonce)) {
+        if (sentVersion != NONE) {
+            final long answeredVersion;
+            final String answeredVersionInfo;
+            if (isUnanswered(responseNonce)) {
+                Sent answered;
+                do {
+                    answered = unanswered.poll();
+                } while (!answered.nonce().equals(responseNonce));
+                answeredVersion = answered.version();
+                answeredVersionInfo = answered.versionInfo();
+            } else if (currentNonce.equals(responseNonce)) {
+                // Already answered, e.g. a subscription change after acking the latest response.
+                answeredVersion = sentVersion;
+                answeredVersionInfo = sentVersionInfo;
+            } else {
                 log.debug("Client sent stale nonce {}, ignoring", responseNonce == null ? "''" : responseNonce);
                 return false;
             }
 
             if (Strings.isNullOrEmpty(versionInfo)) {
-                log.error("Client rejected version {} and has no version to roll back to!", sentVersion);
+                log.error("Client rejected version {} and has no version to roll back to!", answeredVersionInfo);
+            } else if (!answeredVersionInfo.equals(versionInfo) && answeredVersion != Long.parseUnsignedLong(versionInfo)) {
+                log.error("Client rejected version {} and rolled back to {}", answeredVersionInfo, versionInfo);
             } else {
-                UnsignedLong parsedVersion = UnsignedLong.valueOf(versionInfo);
-                if (!sentVersion.equals(parsedVersion)) {
-                    log.error("Client rejected version {} and rolled back to {}", sentVersion, versionInfo);
-                } else {
-                    log.debug("Client accepted version {}", sentVersion);
-                    acceptedVersion = sentVersion;
-                }
+                log.debug("Client accepted version {}", answeredVersionInfo);
+                acceptedVersion = answeredVersion;
             }
         } else if (Strings.isNullOrEmpty(responseNonce)) {
             log.debug("Client sent nonce {} when we expected null. Probably this is a reconnect. Continuing!", responseNonce);
@@ -71,15 +132,29 @@ class VersionManager {
         return true;
     }
 
+    private boolean isUnanswered(String nonce) {
+        for (Sent sent : unanswered) {
+            if (sent.nonce().equals(nonce)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public boolean needsPush() {
-        return (sentVersion == null || currentVersion.compareTo(sentVersion) > 0);
+        return sentVersion == NONE || Long.compareUnsigned(currentVersion, sentVersion) > 0;
     }
 
     public String pushedVersion(String newVersion) {
-        String nonce = String.valueOf(UUID.randomUUID());
+        String nonce = nonceGenerator.next();
         currentNonce = nonce;
-        sentVersion = UnsignedLong.valueOf(newVersion);
+        sentVersion = Long.parseUnsignedLong(newVersion);
+        sentVersionInfo = newVersion;
+        unanswered.add(new Sent(nonce, sentVersion, newVersion));
         return nonce;
     }
 
+    private record Sent(String nonce, long version, String versionInfo) {
+    }
+
 }
@@ -1,6 +1,7 @@
 package com.transferwise.envoy.xds.sotw;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.transferwise.envoy.xds.api.SubscribedResources;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.Collections;
@@ -46,5 +47,10 @@ class WildcardSubManager implements SubManager {
         return subscribed;
     }
 
+    @Override
+    public SubscribedResources getSubscribedResources() {
+        return subscribed ? SubscribedResources.wildcard() : SubscribedResources.none();
+    }
+
 
 }
@@ -2,6 +2,7 @@ package com.transferwise.envoy.xds;
 
 import com.google.common.base.Preconditions;
 import com.google.protobuf.Message;
+import com.google.rpc.Status;
 import com.transferwise.envoy.xds.CommonDiscoveryRequest;
 import com.transferwise.envoy.xds.DiscoveryService;
 import com.transferwise.envoy.xds.DiscoveryServiceManager;
@@ -9,8 +10,11 @@ import com.transferwise.envoy.xds.TypeUrl;
 import com.transferwise.envoy.xds.api.StateBacklog;
 import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryResponse;
+import io.grpc.stub.ServerCallStreamObserver;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -20,13 +24,18 @@ import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 
 @SuppressFBWarnings(value = {"URF_UNREAD_PUBLIC_OR_PROTECTED_FIELD", "RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT"}, justification = "Mockito rule")
 @ExtendWith(MockitoExtension.class)
@@ -56,6 +65,36 @@ public class DiscoveryServiceManagerTest {
         }
     }
 
+    /**
+     * Holds whatever is put into it until released.
+     */
+    public static class HoldingBacklog extends QueueBacklog {
+
+        private boolean held = true;
+
+        private Runnable whenReady = null;
+
+        @Override
+        public boolean holdsUpdates() {
+            return true;
+        }
+
+        @Override
+        public long nanosUntilReady() {
+            return held && !isEmpty() ? 1 : 0;
+        }
+
+        @Override
+        public void whenReady(Runnable task) {
+            whenReady = task;
+        }
+
+        void release() {
+            held = false;
+            whenReady.run();
+        }
+    }
+
     @Test
     public void testSingleServicePush(@Mock DiscoveryService<Message, DummyUpdate> mockDiscoveryService) {
 
@@ -288,6 +327,341 @@ public class DiscoveryServiceManagerTest {
         inOrder.verify(mockDiscoveryServiceA).sendNetworkUpdatePost();
     }
 
+    @Test
+    public void testResumedInSyncEndsDelay(@Mock DiscoveryService<Message, DummyUpdate> resumedDiscoveryService) {
+        // A client that resumes its session has been through envoy's init already, if it turns out to have the current state that counts as the ACK we wait for.
+        final DiscoveryService<Message, DummyUpdate> mockDiscoveryServiceA = spy(StateAwareFakeDiscoveryService.class);
+        Mockito.when(resumedDiscoveryService.resumedInSync()).thenReturn(true);
+
+        DiscoveryServiceManager<Message, DummyUpdate> dsm = new DiscoveryServiceManager<>(
+            Map.of(TypeUrl.CDS, mockDiscoveryServiceA, TypeUrl.RDS, resumedDiscoveryService),
+            List.of(TypeUrl.CDS, TypeUrl.RDS), List.of(TypeUrl.RDS, TypeUrl.CDS),
+            new QueueBacklog(), DiscoveryServiceManagerMetrics.NOOP_METRICS
+        );
+        dsm.init(new DummyUpdate(), TypeUrl.RDS);
+
+        dsm.pushUpdates(new DummyUpdate());
+        verify(mockDiscoveryServiceA, never()).sendNetworkUpdatePre();
+
+        final var rdsRequest = CommonDiscoveryRequest.builder()
+            .typeUrl(TypeUrl.RDS.getTypeUrl())
+            .build();
+        dsm.processUpdate(rdsRequest); // Nothing sent in response, the client already has it.
+
+        verify(resumedDiscoveryService).processUpdate(rdsRequest);
+        verify(mockDiscoveryServiceA).sendNetworkUpdatePre();
+    }
+
+    @Test
+    public void testIndependentServicesArePushedConcurrently() {
+        final DiscoveryService<Message, DummyUpdate> sds = spy(StateAwareFakeDiscoveryService.class);
+        final DiscoveryService<Message, DummyUpdate> rtds = spy(StateAwareFakeDiscoveryService.class);
+        final DiscoveryService<Message, DummyUpdate> cds = spy(StateAwareFakeDiscoveryService.class);
+        final DiscoveryService<Message, DummyUpdate> eds = spy(StateAwareFakeDiscoveryService.class);
+
+        DiscoveryServiceManager<Message, DummyUpdate> dsm = new DiscoveryServiceManager<>(
+            Map.of(TypeUrl.SDS, sds, TypeUrl.RTDS, rtds, TypeUrl.CDS, cds, TypeUrl.EDS, eds),
+            PushOrder.DEFAULT, new QueueBacklog(), DiscoveryServiceManagerMetrics.NOOP_METRICS
+        );
+        dsm.init(new DummyUpdate());
+
+        dsm.pushUpdates(new DummyUpdate());
+
+        // SDS and RTDS don't depend on anything, so both are sent straight away. CDS waits for SDS, EDS for CDS.
+        verify(sds).sendNetworkUpdatePre();
+        verify(rtds).sendNetworkUpdatePre();
+        verify(cds, never()).sendNetworkUpdatePre();
+
+        dsm.processUpdate(request(TypeUrl.SDS)); // ACK SDS
+        verify(cds).sendNetworkUpdatePre();
+        verify(eds, never()).sendNetworkUpdatePre();
+
+        dsm.processUpdate(request(TypeUrl.CDS)); // ACK CDS, RTDS is still outstanding but nothing waits for it.
+        verify(eds).sendNetworkUpdatePre();
+        dsm.processUpdate(request(TypeUrl.EDS)); // ACK EDS
+        verify(eds, never()).sendNetworkUpdatePost();
+
+        dsm.processUpdate(request(TypeUrl.RTDS)); // ACK RTDS, completing the add phase. Clusters are removed before their endpoints and secrets.
+        verify(cds).sendNetworkUpdatePost();
+        verify(rtds).sendNetworkUpdatePost();
+        verify(eds, never()).sendNetworkUpdatePost();
+        verify(sds, never()).sendNetworkUpdatePost();
+
+        dsm.processUpdate(request(TypeUrl.CDS)); // ACK CDS
+        verify(eds).sendNetworkUpdatePost();
+        verify(sds).sendNetworkUpdatePost();
+    }
+
+    @Test
+    public void testPipelineWindowLetsPushesGoAheadOfAcks() {
+        final PipeliningFakeDiscoveryService eds = spy(PipeliningFakeDiscoveryService.class);
+
+        DiscoveryServiceManager<Message, DummyUpdate> dsm = new DiscoveryServiceManager<>(
+            Map.of(TypeUrl.EDS, eds),
+            PushOrder.sequential(List.of(TypeUrl.EDS), List.of()).withPipelineWindow(TypeUrl.EDS, 2), new QueueBacklog(), DiscoveryServiceManagerMetrics.NOOP_METRICS
+        );
+        dsm.init(new DummyUpdate());
+
+        // The first push is done as soon as it's sent, so the second goes out without waiting for the first to be acked.
+        dsm.pushUpdates(new DummyUpdate());
+        dsm.pushUpdates(new DummyUpdate());
+        verify(eds, times(2)).sendNetworkUpdatePre();
+
+        // That fills the window, so the third waits.
+        dsm.pushUpdates(new DummyUpdate());
+        verify(eds, times(2)).sendNetworkUpdatePre();
+
+        dsm.processUpdate(request(TypeUrl.EDS)); // ACK the first
+        verify(eds, times(3)).sendNetworkUpdatePre();
+
+        // Acks of pipelined responses aren't mistaken for subscription changes, which would hold up pushes until everything was acked.
+        dsm.processUpdate(request(TypeUrl.EDS)); // ACK the second
+        dsm.pushUpdates(new DummyUpdate());
+        verify(eds, times(4)).sendNetworkUpdatePre();
+    }
+
+    @Test
+    public void testHoldingBacklogDelaysEvenTheFirstUpdate(@Mock DiscoveryServiceManagerMetrics metrics) {
+        final DiscoveryService<Message, DummyUpdate> eds = spy(StateAwareFakeDiscoveryService.class);
+        final HoldingBacklog backlog = new HoldingBacklog();
+
+        DiscoveryServiceManager<Message, DummyUpdate> dsm = new DiscoveryServiceManager<>(
+            Map.of(TypeUrl.EDS, eds), List.of(TypeUrl.EDS), List.of(), backlog, metrics
+        );
+        dsm.init(new DummyUpdate());
+
+        dsm.pushUpdates(new DummyUpdate());
+        dsm.pushUpdates(new DummyUpdate());
+        verify(eds, never()).onNetworkUpdate(any());
+        assertThat(dsm.isBacklogHeld()).isTrue();
+
+        dsm.whenBacklogReady(dsm::pushBacklog);
+        backlog.release();
+        // The backlog queues rather than merges, so the first update is pushed and the second waits for it to be acked.
+        verify(eds).sendNetworkUpdatePre();
+        verify(metrics).onBacklogCoalesced(eq(2), anyLong());
+        assertThat(dsm.isBacklogHeld()).isFalse();
+    }
+
+    @Test
+    public void testPushesWaitForAdmission(@Mock DiscoveryServiceManagerMetrics metrics, @Mock ScheduledExecutorService scheduler) {
+        final DiscoveryService<Message, DummyUpdate> eds = spy(StateAwareFakeDiscoveryService.class);
+        final PushAdmissionController controller = PushAdmissionController.builder().maxConcurrentPushes(1).scheduler(scheduler).build();
+        final PushAdmissionController.Admission otherStream = controller.newAdmission();
+
+        DiscoveryServiceManager<Message, DummyUpdate> dsm = new DiscoveryServiceManager<>(
+            Map.of(TypeUrl.EDS, eds), PushOrder.sequential(List.of(TypeUrl.EDS), List.of()), new QueueBacklog(), metrics, controller.newAdmission()
+        );
+        dsm.init(new DummyUpdate());
+
+        // Another stream is starting a push, so this one has to wait.
+        assertThat(otherStream.tryAcquire()).isTrue();
+        dsm.pushUpdates(new DummyUpdate());
+        verify(eds, never()).onNetworkUpdate(any());
+        assertThat(dsm.isBacklogHeld()).isTrue();
+
+        dsm.whenBacklogReady(dsm::pushBacklog);
+        ArgumentCaptor<Runnable> wakeUp = ArgumentCaptor.forClass(Runnable.class);
+        otherStream.release();
+        verify(scheduler).execute(wakeUp.capture());
+        wakeUp.getValue().run();
+        verify(eds).sendNetworkUpdatePre();
+        verify(metrics).onPushAdmitted(anyLong());
+
+        // The slot was given back once the push was sent, without waiting for the ack.
+        assertThat(otherStream.tryAcquire()).isTrue();
+    }
+
+    @Test
+    public void testPushesWaitForTheClientToHaveRoom(@Mock DiscoveryServiceManagerMetrics metrics, @Mock ServerCallStreamObserver<DiscoveryResponse> responseObserver) {
+        final DiscoveryService<Message, DummyUpdate> eds = spy(StateAwareFakeDiscoveryService.class);
+        final FlowControlledResponseObserver<DiscoveryResponse> flowControl = new FlowControlledResponseObserver<>(responseObserver, 0, metrics);
+
+        DiscoveryServiceManager<Message, DummyUpdate> dsm = new DiscoveryServiceManager<>(
+            Map.of(TypeUrl.EDS, eds), PushOrder.sequential(List.of(TypeUrl.EDS), List.of()), new QueueBacklog(), metrics, null, flowControl
+        );
+        dsm.init(new DummyUpdate());
+
+        // The client isn't reading, so changes are held in the backlog.
+        when(responseObserver.isReady()).thenReturn(false);
+        dsm.pushUpdates(new DummyUpdate());
+        dsm.pushUpdates(new DummyUpdate());
+        verify(eds, never()).onNetworkUpdate(any());
+        assertThat(dsm.isBacklogHeld()).isTrue();
+
+        Runnable wakeUp = spy(Runnable.class);
+        dsm.whenBacklogReady(wakeUp);
+        verify(wakeUp, never()).run();
+
+        when(responseObserver.isReady()).thenReturn(true);
+        flowControl.onReady();
+        verify(wakeUp).run();
+        dsm.pushBacklog();
+        verify(eds).sendNetworkUpdatePre();
+    }
+
+    @Test
+    public void testAdmittedStreamThatCannotPushGivesItsSlotBack(@Mock DiscoveryServiceManagerMetrics metrics, @Mock ScheduledExecutorService scheduler,
+                                                                 @Mock ServerCallStreamObserver<DiscoveryResponse> responseObserver) {
+        final DiscoveryService<Message, DummyUpdate> eds = spy(StateAwareFakeDiscoveryService.class);
+        final PushAdmissionController controller = PushAdmissionController.builder().maxConcurrentPushes(1).scheduler(scheduler).build();
+        final PushAdmissionController.Admission otherStream = controller.newAdmission();
+        final FlowControlledResponseObserver<DiscoveryResponse> flowControl = new FlowControlledResponseObserver<>(responseObserver, 0, metrics);
+
+        DiscoveryServiceManager<Message, DummyUpdate> dsm = new DiscoveryServiceManager<>(
+            Map.of(TypeUrl.EDS, eds), PushOrder.sequential(List.of(TypeUrl.EDS), List.of()), new QueueBacklog(), metrics, controller.newAdmission(), flowControl
+        );
+        dsm.init(new DummyUpdate());
+
+        when(responseObserver.isReady()).thenReturn(true);
+        assertThat(otherStream.tryAcquire()).isTrue();
+        dsm.pushUpdates(new DummyUpdate());
+        dsm.whenBacklogReady(dsm::pushBacklog);
+
+        // Admitted once the other stream's push is sent, but by then the client has stopped reading.
+        when(responseObserver.isReady()).thenReturn(false);
+        ArgumentCaptor<Runnable> wakeUp = ArgumentCaptor.forClass(Runnable.class);
+        otherStream.release();
+        verify(scheduler).execute(wakeUp.capture());
+        wakeUp.getValue().run();
+        verify(eds, never()).onNetworkUpdate(any());
+
+        // The slot was given back, rather than held until the client catches up.
+        assertThat(otherStream.tryAcquire()).isTrue();
+        otherStream.release();
+
+        // Once the client catches up the change is admitted again, and pushed.
+        assertThat(dsm.isBacklogHeld()).isTrue();
+        dsm.whenBacklogReady(dsm::pushBacklog);
+        when(responseObserver.isReady()).thenReturn(true);
+        flowControl.onReady();
+        verify(eds).sendNetworkUpdatePre();
+    }
+
+    @Test
+    public void testAdmittedStreamWithNothingToTakeGivesItsSlotBack(@Mock DiscoveryServiceManagerMetrics metrics, @Mock ScheduledExecutorService scheduler) {
+        final DiscoveryService<Message, DummyUpdate> eds = spy(StateAwareFakeDiscoveryService.class);
+        final PushAdmissionController controller = PushAdmissionController.builder().maxConcurrentPushes(1).scheduler(scheduler).build();
+        final PushAdmissionController.Admission otherStream = controller.newAdmission();
+        // A backlog that every change goes through, and that turns out to have nothing to give when asked.
+        final QueueBacklog backlog = new QueueBacklog() {
+            @Override
+            public boolean holdsUpdates() {
+                return true;
+            }
+
+            @Override
+            public DummyUpdate take() {
+                return null;
+            }
+        };
+
+        DiscoveryServiceManager<Message, DummyUpdate> dsm = new DiscoveryServiceManager<>(
+            Map.of(TypeUrl.EDS, eds), PushOrder.sequential(List.of(TypeUrl.EDS), List.of()), backlog, metrics, controller.newAdmission()
+        );
+        dsm.init(new DummyUpdate());
+
+        dsm.pushUpdates(new DummyUpdate());
+        verify(eds, never()).onNetworkUpdate(any());
+
+        assertThat(otherStream.tryAcquire()).isTrue();
+    }
+
+    private static CommonDiscoveryRequest<Message> request(TypeUrl typeUrl) {
+        return CommonDiscoveryRequest.builder().typeUrl(typeUrl.getTypeUrl()).build();
+    }
+
+    @Test
+    public void testReportsPhaseAndBacklogMetrics(@Mock DiscoveryServiceManagerMetrics metrics) {
+        final DiscoveryService<Message, DummyUpdate> mockDiscoveryServiceA = spy(StateAwareFakeDiscoveryService.class);
+        final DiscoveryService<Message, DummyUpdate> mockDiscoveryServiceB = spy(StateAwareFakeDiscoveryService.class);
+
+        DiscoveryServiceManager<Message, DummyUpdate> dsm = new DiscoveryServiceManager<>(
+            Map.of(TypeUrl.CDS, mockDiscoveryServiceA, TypeUrl.EDS, mockDiscoveryServiceB),
+            List.of(TypeUrl.CDS, TypeUrl.EDS), List.of(TypeUrl.EDS, TypeUrl.CDS),
+            new QueueBacklog(), metrics
+        );
+        dsm.init(new DummyUpdate());
+
+        final var cdsRequest = CommonDiscoveryRequest.builder()
+            .typeUrl(TypeUrl.CDS.getTypeUrl())
+            .build();
+        final var edsRequest = CommonDiscoveryRequest.builder()
+            .typeUrl(TypeUrl.EDS.getTypeUrl())
+            .build();
+
+        InOrder inOrder = Mockito.inOrder(metrics);
+
+        // Envoy subscribes to EDS, and acks the response.
+        dsm.processUpdate(edsRequest);
+        dsm.processUpdate(edsRequest);
+        inOrder.verify(metrics).onAwaitingAck();
+        inOrder.verify(metrics).onPhaseAcked(eq(TypeUrl.EDS), eq(DiscoveryServiceManagerMetrics.Phase.SUBSCRIPTION), anyLong());
+        inOrder.verify(metrics).onMessageAcked();
+
+        dsm.pushUpdates(new DummyUpdate());
+        dsm.pushUpdates(new DummyUpdate()); // Backlogged
+        inOrder.verify(metrics).onPushBegin();
+        inOrder.verify(metrics).onPhaseSent(eq(TypeUrl.CDS), eq(DiscoveryServiceManagerMetrics.Phase.PRE), anyLong());
+        inOrder.verify(metrics).onBacklogPut(1, false);
+
+        dsm.processUpdate(cdsRequest);
+        inOrder.verify(metrics).onPhaseAcked(eq(TypeUrl.CDS), eq(DiscoveryServiceManagerMetrics.Phase.PRE), anyLong());
+        inOrder.verify(metrics).onPhaseSent(eq(TypeUrl.EDS), eq(DiscoveryServiceManagerMetrics.Phase.PRE), anyLong());
+
+        dsm.processUpdate(edsRequest);
+        inOrder.verify(metrics).onPhaseAcked(eq(TypeUrl.EDS), eq(DiscoveryServiceManagerMetrics.Phase.PRE), anyLong());
+        inOrder.verify(metrics).onPhaseSent(eq(TypeUrl.EDS), eq(DiscoveryServiceManagerMetrics.Phase.POST), anyLong());
+
+        dsm.processUpdate(edsRequest);
+        inOrder.verify(metrics).onPhaseAcked(eq(TypeUrl.EDS), eq(DiscoveryServiceManagerMetrics.Phase.POST), anyLong());
+        inOrder.verify(metrics).onPhaseSent(eq(TypeUrl.CDS), eq(DiscoveryServiceManagerMetrics.Phase.POST), anyLong());
+
+        // A NACK is still passed on to the discovery service, which decides what to do about it.
+        dsm.processUpdate(CommonDiscoveryRequest.builder()
+            .typeUrl(TypeUrl.CDS.getTypeUrl())
+            .errorDetail(Status.newBuilder().setMessage("Rejected").build())
+            .build());
+        inOrder.verify(metrics).onNack(TypeUrl.CDS);
+        inOrder.verify(metrics).onPhaseAcked(eq(TypeUrl.CDS), eq(DiscoveryServiceManagerMetrics.Phase.POST), anyLong());
+        inOrder.verify(metrics).onPushComplete();
+        inOrder.verify(metrics).onBacklogTake(0);
+        inOrder.verify(metrics).onPushBegin();
+    }
+
+    /**
+     * Counts the responses it has sent that haven't been acked, treating every request as an ack.
+     */
+    public static class PipeliningFakeDiscoveryService extends StateAwareFakeDiscoveryService {
+
+        private int unacked = 0;
+
+        @Override
+        public void processUpdate(CommonDiscoveryRequest<Message> value) {
+            unacked = Math.max(0, unacked - 1);
+        }
+
+        @Override
+        public boolean awaitingAck() {
+            return unacked > 0;
+        }
+
+        @Override
+        public int unackedResponses() {
+            return unacked;
+        }
+
+        @Override
+        public void sendNetworkUpdatePre() {
+            ++unacked;
+        }
+
+        @Override
+        public void sendNetworkUpdatePost() {
+            ++unacked;
+        }
+    }
+
     public static class StateAwareFakeDiscoveryService implements DiscoveryService<Message, DummyUpdate> {
 
         private boolean initialized = false;
@@ -0,0 +1,88 @@
+package com.transferwise.envoy.xds;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryResponse;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class FlowControlledResponseObserverTest {
+
+    private static DiscoveryResponse response(int nonce) {
+        return DiscoveryResponse.newBuilder().setNonce(Integer.toString(nonce)).setVersionInfo("v").build();
+    }
+
+    @Test
+    public void testCountsBytesSentSinceTheStreamHadRoom(@Mock ServerCallStreamObserver<DiscoveryResponse> delegate, @Mock DiscoveryServiceManagerMetrics metrics) {
+        FlowControlledResponseObserver<DiscoveryResponse> observer = new FlowControlledResponseObserver<>(delegate, 0, metrics);
+        DiscoveryResponse response = response(1);
+        long size = response.getSerializedSize();
+
+        when(delegate.isReady()).thenReturn(true);
+        observer.onNext(response);
+        verify(metrics).onResponseBuffered(size);
+
+        when(delegate.isReady()).thenReturn(false);
+        observer.onNext(response);
+        verify(metrics).onResponseBuffered(size * 2);
+
+        when(delegate.isReady()).thenReturn(true);
+        observer.onReady();
+        verify(metrics).onResponseBuffered(0);
+    }
+
+    @Test
+    public void testDisconnectsClientsOverTheBudget(@Mock ServerCallStreamObserver<DiscoveryResponse> delegate, @Mock DiscoveryServiceManagerMetrics metrics) {
+        DiscoveryResponse response = response(1);
+        FlowControlledResponseObserver<DiscoveryResponse> observer = new FlowControlledResponseObserver<>(delegate, response.getSerializedSize() * 2L, metrics);
+
+        when(delegate.isReady()).thenReturn(false);
+        observer.onNext(response);
+        observer.onNext(response);
+        assertThatThrownBy(() -> observer.onNext(response))
+            .isInstanceOf(StatusRuntimeException.class)
+            .matches(e -> ((StatusRuntimeException) e).getStatus().getCode() == Status.Code.RESOURCE_EXHAUSTED);
+        verify(metrics).onSlowClientDisconnected(response.getSerializedSize() * 2L);
+    }
+
+    @Test
+    public void testBudgetOnlyAppliesWhileTheStreamIsFull(@Mock ServerCallStreamObserver<DiscoveryResponse> delegate, @Mock DiscoveryServiceManagerMetrics metrics) {
+        DiscoveryResponse response = response(1);
+        FlowControlledResponseObserver<DiscoveryResponse> observer = new FlowControlledResponseObserver<>(delegate, 1, metrics);
+
+        // A large response to a client that is keeping up is fine.
+        when(delegate.isReady()).thenReturn(true);
+        observer.onNext(response);
+        observer.onNext(response);
+        verify(metrics, never()).onSlowClientDisconnected(anyLong());
+    }
+
+    @Test
+    public void testWakesUpWhenReady(@Mock ServerCallStreamObserver<DiscoveryResponse> delegate, @Mock DiscoveryServiceManagerMetrics metrics) {
+        FlowControlledResponseObserver<DiscoveryResponse> observer = new FlowControlledResponseObserver<>(delegate, 0, metrics);
+        Runnable task = spy(Runnable.class);
+
+        when(delegate.isReady()).thenReturn(false);
+        observer.whenReady(task);
+        // Spurious, the stream filled up again before we got here.
+        observer.onReady();
+        verify(task, never()).run();
+
+        when(delegate.isReady()).thenReturn(true);
+        observer.onReady();
+        verify(task).run();
+    }
+
+}
@@ -5,6 +5,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 import io.envoyproxy.envoy.config.core.v3.BuildVersion;
 import io.envoyproxy.envoy.config.core.v3.Node;
 import io.envoyproxy.envoy.type.v3.SemanticVersion;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
@@ -34,4 +35,14 @@ public class NodeConfigTest {
         assertThat(NodeConfig.forNode(node, XdsConfig.builder().build()).isBugClientSendsResourceListOnReconnectToWildcard()).isEqualTo(isBug);
     }
 
+    @Test
+    public void testEqualConfigIsInterned() {
+        Node node = Node.newBuilder().setId("a").build();
+        Node other = Node.newBuilder().setId("b").build();
+
+        NodeConfig<String> config = NodeConfig.forNode(node, XdsConfig.<String>builder().clientDetails(new String("details")).build());
+        assertThat(NodeConfig.forNode(other, XdsConfig.<String>builder().clientDetails(new String("details")).build())).isSameAs(config);
+        assertThat(NodeConfig.forNode(other, XdsConfig.<String>builder().clientDetails("other").build())).isNotSameAs(config);
+    }
+
 }
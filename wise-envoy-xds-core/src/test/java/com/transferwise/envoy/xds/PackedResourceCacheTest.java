@@ -0,0 +1,70 @@
+package com.transferwise.envoy.xds;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.protobuf.Any;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.config.endpoint.v3.Endpoint;
+import org.junit.jupiter.api.Test;
+
+public class PackedResourceCacheTest {
+
+    @Test
+    public void testSameInstanceIsPackedOnce() {
+        PackedResourceCache cache = new PackedResourceCache(10);
+        ClusterLoadAssignment cla = ClusterLoadAssignment.newBuilder().setClusterName("foo").build();
+
+        Any first = cache.pack(cla);
+        Any second = cache.pack(cla);
+
+        assertThat(first).isEqualTo(Any.pack(cla));
+        assertThat(second).isSameAs(first);
+        assertThat(cache.getSerializations()).isEqualTo(1);
+        assertThat(cache.getSerializationsSaved()).isEqualTo(1);
+        assertThat(cache.getBytesSaved()).isEqualTo(cla.getSerializedSize());
+    }
+
+    @Test
+    public void testHashIsKeptWithThePackedResource() {
+        PackedResourceCache cache = new PackedResourceCache(10);
+        ClusterLoadAssignment cla = ClusterLoadAssignment.newBuilder().setClusterName("foo").build();
+
+        PackedResourceCache.Packed first = cache.packWithHash(cla);
+
+        assertThat(cache.packWithHash(cla)).isSameAs(first);
+        assertThat(first.contentHash()).isEqualTo(PackedResourceCache.Packed.of(ClusterLoadAssignment.newBuilder().setClusterName("foo").build()).contentHash());
+        assertThat(first.contentHash()).isNotEqualTo(PackedResourceCache.Packed.of(ClusterLoadAssignment.newBuilder().setClusterName("bar").build()).contentHash());
+    }
+
+    @Test
+    public void testEqualInstancesArePackedSeparately() {
+        PackedResourceCache cache = new PackedResourceCache(10);
+
+        cache.pack(ClusterLoadAssignment.newBuilder().setClusterName("foo").build());
+        cache.pack(ClusterLoadAssignment.newBuilder().setClusterName("foo").build());
+
+        assertThat(cache.getSerializations()).isEqualTo(2);
+        assertThat(cache.getSerializationsSaved()).isZero();
+        assertThat(cache.getBytesSaved()).isZero();
+    }
+
+    @Test
+    public void testMapsArePackedDeterministically() {
+        PackedResourceCache cache = new PackedResourceCache(10);
+        ClusterLoadAssignment abc = ClusterLoadAssignment.newBuilder().setClusterName("foo")
+            .putNamedEndpoints("a", Endpoint.getDefaultInstance())
+            .putNamedEndpoints("b", Endpoint.getDefaultInstance())
+            .putNamedEndpoints("c", Endpoint.getDefaultInstance())
+            .build();
+        ClusterLoadAssignment cba = ClusterLoadAssignment.newBuilder().setClusterName("foo")
+            .putNamedEndpoints("c", Endpoint.getDefaultInstance())
+            .putNamedEndpoints("b", Endpoint.getDefaultInstance())
+            .putNamedEndpoints("a", Endpoint.getDefaultInstance())
+            .build();
+
+        // Equal resources must pack to the same bytes however they were built, since delta resource versions are hashes of them.
+        assertThat(cache.pack(abc)).isEqualTo(cache.pack(cba));
+        assertThat(cache.pack(abc).getTypeUrl()).isEqualTo(Any.pack(abc).getTypeUrl());
+    }
+
+}
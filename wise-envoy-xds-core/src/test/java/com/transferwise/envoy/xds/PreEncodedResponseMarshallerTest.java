@@ -0,0 +1,90 @@
+package com.transferwise.envoy.xds;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.Duration;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.service.discovery.v3.AggregatedDiscoveryServiceGrpc;
+import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryResponse;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryResponse;
+import io.envoyproxy.envoy.service.discovery.v3.Resource;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.stub.StreamObserver;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.jupiter.api.Test;
+
+public class PreEncodedResponseMarshallerTest {
+
+    private static final Any FOO = Any.pack(ClusterLoadAssignment.newBuilder().setClusterName("foo").build());
+    private static final Any BAR = Any.pack(ClusterLoadAssignment.newBuilder().setClusterName("bar").build());
+
+    private static byte[] drain(InputStream stream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((io.grpc.Drainable) stream).drainTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testSotwEncodingMatchesProtobuf() throws IOException {
+        var marshaller = PreEncodedResponseMarshaller.sotw(AggregatedDiscoveryServiceGrpc.getStreamAggregatedResourcesMethod().getResponseMarshaller(), new PreEncodedResponseMarshaller.EncodedResourceCache(10));
+
+        for (String nonce : new String[]{"1", "2"}) {
+            DiscoveryResponse response = DiscoveryResponse.newBuilder()
+                .setVersionInfo("v" + nonce)
+                .addResources(FOO)
+                .addResources(BAR)
+                .setTypeUrl("type.googleapis.com/envoy.config.endpoint.v3.ClusterLoadAssignment")
+                .setNonce(nonce)
+                .build();
+
+            InputStream stream = marshaller.stream(response);
+            assertThat(stream.available()).isEqualTo(response.getSerializedSize());
+            assertThat(drain(stream)).isEqualTo(response.toByteArray());
+            assertThat(marshaller.parse(marshaller.stream(response))).isEqualTo(response);
+        }
+    }
+
+    @Test
+    public void testDeltaEncodingMatchesProtobuf() throws IOException {
+        var marshaller = PreEncodedResponseMarshaller.delta(AggregatedDiscoveryServiceGrpc.getDeltaAggregatedResourcesMethod().getResponseMarshaller(), new PreEncodedResponseMarshaller.EncodedResourceCache(10));
+
+        DeltaDiscoveryResponse response = DeltaDiscoveryResponse.newBuilder()
+            .setSystemVersionInfo("3")
+            .addResources(Resource.newBuilder().setName("foo").setVersion("3").setResource(FOO).addAliases("foo-alias").build())
+            .addResources(Resource.newBuilder().setName("bar").setResource(BAR).setTtl(Duration.newBuilder().setSeconds(5).build()).build())
+            .addResources(Resource.newBuilder().setName("baz").setVersion("3").build())
+            .addRemovedResources("qux")
+            .setTypeUrl("type.googleapis.com/envoy.config.endpoint.v3.ClusterLoadAssignment")
+            .setNonce("abc")
+            .build();
+
+        assertThat(drain(marshaller.stream(response))).isEqualTo(response.toByteArray());
+        assertThat(marshaller.stream(response).readAllBytes()).isEqualTo(response.toByteArray());
+        assertThat(marshaller.parse(marshaller.stream(response))).isEqualTo(response);
+    }
+
+    @Test
+    public void testWrapReplacesResponseMarshallers() {
+        ServerServiceDefinition original = new AggregatedDiscoveryServiceGrpc.AggregatedDiscoveryServiceImplBase() {
+            @Override
+            public StreamObserver<io.envoyproxy.envoy.service.discovery.v3.DiscoveryRequest> streamAggregatedResources(StreamObserver<DiscoveryResponse> responseObserver) {
+                return null;
+            }
+        }.bindService();
+
+        ServerServiceDefinition wrapped = PreEncodedResponseMarshaller.wrap(original, 10);
+
+        assertThat(wrapped.getServiceDescriptor().getName()).isEqualTo(original.getServiceDescriptor().getName());
+        assertThat(wrapped.getMethods()).hasSize(original.getMethods().size());
+        for (var method : wrapped.getMethods()) {
+            MethodDescriptor<?, ?> descriptor = method.getMethodDescriptor();
+            assertThat(descriptor.getResponseMarshaller()).isInstanceOf(PreEncodedResponseMarshaller.class);
+            assertThat(method.getServerCallHandler()).isSameAs(original.getMethod(descriptor.getFullMethodName()).getServerCallHandler());
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.transferwise.envoy.xds;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class PushAdmissionControllerTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000_000L);
+
+    private void advance(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void testUnlimitedAdmitsEverything(@Mock ScheduledExecutorService scheduler) {
+        PushAdmissionController controller = PushAdmissionController.builder().scheduler(scheduler).nanoTime(now::get).build();
+
+        for (int i = 0; i < 1000; ++i) {
+            assertThat(controller.newAdmission().tryAcquire()).isTrue();
+        }
+    }
+
+    @Test
+    public void testTokenBucket(@Mock ScheduledExecutorService scheduler) {
+        PushAdmissionController controller = PushAdmissionController.builder()
+            .pushesPerSecond(100)
+            .burst(2)
+            .scheduler(scheduler)
+            .nanoTime(now::get)
+            .build();
+        PushAdmissionController.Admission first = controller.newAdmission();
+        PushAdmissionController.Admission second = controller.newAdmission();
+        PushAdmissionController.Admission third = controller.newAdmission();
+        PushAdmissionController.Admission fourth = controller.newAdmission();
+
+        assertThat(first.tryAcquire()).isTrue();
+        assertThat(second.tryAcquire()).isTrue();
+
+        // The burst is used up, so the next two wait, and are admitted in turn as tokens come in, 10ms apart.
+        assertThat(third.tryAcquire()).isFalse();
+        assertThat(fourth.tryAcquire()).isFalse();
+        Runnable thirdTask = () -> { };
+        Runnable fourthTask = () -> { };
+        third.whenAvailable(thirdTask);
+        fourth.whenAvailable(fourthTask);
+        ArgumentCaptor<Runnable> dispatch = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(dispatch.capture(), eq(TimeUnit.MILLISECONDS.toNanos(10)), eq(TimeUnit.NANOSECONDS));
+        assertThat(fourth.tryAcquire()).isFalse();
+
+        advance(10);
+        dispatch.getValue().run();
+        verify(scheduler).execute(thirdTask);
+        verify(scheduler, never()).execute(fourthTask);
+        assertThat(fourth.tryAcquire()).isFalse();
+        assertThat(third.tryAcquire()).isTrue();
+
+        verify(scheduler, times(2)).schedule(dispatch.capture(), eq(TimeUnit.MILLISECONDS.toNanos(10)), eq(TimeUnit.NANOSECONDS));
+        advance(10);
+        dispatch.getValue().run();
+        verify(scheduler).execute(fourthTask);
+        assertThat(fourth.tryAcquire()).isTrue();
+    }
+
+    @Test
+    public void testConcurrencyCap(@Mock ScheduledExecutorService scheduler) {
+        PushAdmissionController controller = PushAdmissionController.builder()
+            .maxConcurrentPushes(1)
+            .scheduler(scheduler)
+            .nanoTime(now::get)
+            .build();
+        PushAdmissionController.Admission first = controller.newAdmission();
+        PushAdmissionController.Admission second = controller.newAdmission();
+
+        assertThat(first.tryAcquire()).isTrue();
+        assertThat(second.tryAcquire()).isFalse();
+        Runnable task = () -> { };
+        second.whenAvailable(task);
+        verify(scheduler, never()).execute(any());
+
+        first.release();
+        verify(scheduler).execute(task);
+        assertThat(second.tryAcquire()).isTrue();
+    }
+
+    @Test
+    public void testAdmitsByPriorityThenLongestWaiting(@Mock ScheduledExecutorService scheduler) {
+        PushAdmissionController controller = PushAdmissionController.builder()
+            .maxConcurrentPushes(1)
+            .scheduler(scheduler)
+            .nanoTime(now::get)
+            .build();
+        PushAdmissionController.Admission holder = controller.newAdmission();
+        PushAdmissionController.Admission sidecar = controller.newAdmission();
+        PushAdmissionController.Admission gateway = controller.newAdmission(10);
+        PushAdmissionController.Admission laterSidecar = controller.newAdmission();
+
+        assertThat(holder.tryAcquire()).isTrue();
+        assertThat(sidecar.tryAcquire()).isFalse();
+        assertThat(laterSidecar.tryAcquire()).isFalse();
+        assertThat(gateway.tryAcquire()).isFalse();
+
+        // The gateway started waiting last, but goes first.
+        holder.release();
+        assertThat(laterSidecar.tryAcquire()).isFalse();
+        assertThat(sidecar.tryAcquire()).isFalse();
+        assertThat(gateway.tryAcquire()).isTrue();
+
+        // Then the sidecar that has waited longest.
+        gateway.release();
+        assertThat(laterSidecar.tryAcquire()).isFalse();
+        assertThat(sidecar.tryAcquire()).isTrue();
+
+        sidecar.release();
+        assertThat(laterSidecar.tryAcquire()).isTrue();
+    }
+
+    @Test
+    public void testClosingGivesUpThePlace(@Mock ScheduledExecutorService scheduler) {
+        PushAdmissionController controller = PushAdmissionController.builder()
+            .maxConcurrentPushes(1)
+            .scheduler(scheduler)
+            .nanoTime(now::get)
+            .build();
+        PushAdmissionController.Admission holder = controller.newAdmission();
+        PushAdmissionController.Admission closed = controller.newAdmission();
+        PushAdmissionController.Admission waiting = controller.newAdmission();
+
+        assertThat(holder.tryAcquire()).isTrue();
+        assertThat(closed.tryAcquire()).isFalse();
+        assertThat(waiting.tryAcquire()).isFalse();
+
+        closed.close();
+        holder.close();
+        assertThat(waiting.tryAcquire()).isTrue();
+    }
+
+    @Test
+    public void testCancellingGivesBackAnAdmittedSlot(@Mock ScheduledExecutorService scheduler) {
+        PushAdmissionController controller = PushAdmissionController.builder()
+            .maxConcurrentPushes(1)
+            .scheduler(scheduler)
+            .nanoTime(now::get)
+            .build();
+        PushAdmissionController.Admission holder = controller.newAdmission();
+        PushAdmissionController.Admission cancelled = controller.newAdmission();
+        PushAdmissionController.Admission waiting = controller.newAdmission();
+
+        assertThat(holder.tryAcquire()).isTrue();
+        assertThat(cancelled.tryAcquire()).isFalse();
+        assertThat(waiting.tryAcquire()).isFalse();
+        Runnable task = () -> { };
+        waiting.whenAvailable(task);
+
+        // Admitted, but its stream can't start the push after all.
+        holder.release();
+        verify(scheduler, never()).execute(task);
+        cancelled.cancel();
+        verify(scheduler).execute(task);
+        assertThat(waiting.tryAcquire()).isTrue();
+        waiting.release();
+
+        // It can ask again once it's able to push.
+        assertThat(cancelled.tryAcquire()).isTrue();
+    }
+
+    @Test
+    public void testJitterDelaysEvenWhenTokensAreAvailable(@Mock ScheduledExecutorService scheduler) {
+        PushAdmissionController controller = PushAdmissionController.builder()
+            .jitter(Duration.ofMillis(100))
+            .scheduler(scheduler)
+            .nanoTime(now::get)
+            .build();
+
+        List<PushAdmissionController.Admission> delayed = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            PushAdmissionController.Admission admission = controller.newAdmission();
+            if (!admission.tryAcquire()) {
+                delayed.add(admission);
+            }
+        }
+        assertThat(delayed).isNotEmpty();
+
+        // Everything is admitted within the jitter window.
+        advance(100);
+        assertThat(delayed).allMatch(PushAdmissionController.Admission::tryAcquire);
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.transferwise.envoy.xds;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.transferwise.envoy.xds.DiscoveryService.SubState;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class PushOrderTest {
+
+    @Test
+    public void testDefaultIncludesEveryType() {
+        assertThat(PushOrder.DEFAULT.order(SubState.PRE)).containsExactlyInAnyOrder(TypeUrl.values());
+        assertThat(PushOrder.DEFAULT.order(SubState.POST)).containsExactlyInAnyOrder(TypeUrl.values());
+    }
+
+    @Test
+    public void testDefaultIsConsistentWithSequentialOrder() {
+        // Everything the default makes wait is in the same order as the old sequential lists, it just waits for less.
+        for (SubState phase : List.of(SubState.PRE, SubState.POST)) {
+            List<TypeUrl> sequential = phase == SubState.PRE ? TypeUrl.ADD_ORDER : TypeUrl.REMOVE_ORDER;
+            for (TypeUrl type : TypeUrl.values()) {
+                for (TypeUrl dependency : PushOrder.DEFAULT.dependencies(phase, type, t -> true)) {
+                    assertThat(sequential.indexOf(dependency)).isLessThan(sequential.indexOf(type));
+                }
+            }
+        }
+        assertThat(PushOrder.DEFAULT.dependencies(SubState.PRE, TypeUrl.RTDS, t -> true)).isEmpty();
+        assertThat(PushOrder.DEFAULT.dependencies(SubState.PRE, TypeUrl.EDS, t -> true)).containsExactly(TypeUrl.CDS);
+    }
+
+    @Test
+    public void testOptionsPushOneTypeAtATimeUnlessToldOtherwise() {
+        assertThat(DiscoveryServiceOptions.DEFAULTS.getPushOrder()).isSameAs(PushOrder.SEQUENTIAL);
+        assertThat(PushOrder.SEQUENTIAL.order(SubState.PRE)).isEqualTo(TypeUrl.ADD_ORDER);
+        assertThat(PushOrder.SEQUENTIAL.order(SubState.POST)).isEqualTo(TypeUrl.REMOVE_ORDER);
+        assertThat(PushOrder.SEQUENTIAL.dependencies(SubState.PRE, TypeUrl.RTDS, t -> true)).containsExactly(TypeUrl.SDS);
+    }
+
+    @Test
+    public void testSequential() {
+        PushOrder order = PushOrder.sequential(List.of(TypeUrl.CDS, TypeUrl.EDS, TypeUrl.LDS), List.of(TypeUrl.LDS, TypeUrl.CDS));
+
+        assertThat(order.order(SubState.PRE)).containsExactly(TypeUrl.CDS, TypeUrl.EDS, TypeUrl.LDS);
+        assertThat(order.order(SubState.POST)).containsExactly(TypeUrl.LDS, TypeUrl.CDS);
+        assertThat(order.dependencies(SubState.PRE, TypeUrl.LDS, t -> true)).containsExactly(TypeUrl.EDS);
+        assertThat(order.dependencies(SubState.POST, TypeUrl.CDS, t -> true)).containsExactly(TypeUrl.LDS);
+    }
+
+    @Test
+    public void testAbsentTypesAreLookedThrough() {
+        PushOrder order = PushOrder.sequential(List.of(TypeUrl.CDS, TypeUrl.EDS, TypeUrl.LDS), List.of());
+
+        assertThat(order.dependencies(SubState.PRE, TypeUrl.LDS, Set.of(TypeUrl.CDS, TypeUrl.LDS)::contains)).containsExactly(TypeUrl.CDS);
+    }
+
+    @Test
+    public void testRejectsCycles() {
+        assertThatThrownBy(() -> PushOrder.builder().add(TypeUrl.CDS, TypeUrl.EDS).add(TypeUrl.EDS, TypeUrl.CDS).build())
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("Circular");
+    }
+
+    @Test
+    public void testRejectsDependenciesOutsideThePhase() {
+        assertThatThrownBy(() -> PushOrder.builder().add(TypeUrl.EDS, TypeUrl.CDS).build())
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testPipelineWindows() {
+        PushOrder order = PushOrder.DEFAULT.withPipelineWindow(TypeUrl.EDS, 4);
+
+        assertThat(order.pipelineWindow(TypeUrl.EDS)).isEqualTo(4);
+        assertThat(order.pipelineWindow(TypeUrl.CDS)).isEqualTo(1);
+        assertThat(PushOrder.DEFAULT.pipelineWindow(TypeUrl.EDS)).isEqualTo(1);
+        assertThat(order.order(SubState.PRE)).isEqualTo(PushOrder.DEFAULT.order(SubState.PRE));
+        assertThatThrownBy(() -> PushOrder.builder().pipelineWindow(TypeUrl.EDS, 0))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+}
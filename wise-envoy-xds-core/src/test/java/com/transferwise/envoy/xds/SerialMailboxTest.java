@@ -0,0 +1,144 @@
+package com.transferwise.envoy.xds;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+public class SerialMailboxTest {
+
+    @Test
+    public void testTasksSubmittedFromTasksRunAfterTheCurrentTask() {
+        List<String> ran = new ArrayList<>();
+        SerialMailbox mailbox = new SerialMailbox(null, t -> { });
+        mailbox.execute(() -> {
+            mailbox.execute(() -> ran.add("inner"));
+            ran.add("outer");
+        });
+        assertThat(ran).containsExactly("outer", "inner");
+    }
+
+    @Test
+    public void testFailuresGoToErrorHandlerAndDoNotStopTheMailbox() {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean ranAfterFailure = new AtomicBoolean(false);
+        SerialMailbox mailbox = new SerialMailbox(null, failure::set);
+        IllegalStateException thrown = new IllegalStateException("broken");
+        mailbox.execute(() -> {
+            throw thrown;
+        });
+        mailbox.execute(() -> ranAfterFailure.set(true));
+        assertThat(failure.get()).isSameAs(thrown);
+        assertThat(ranAfterFailure.get()).isTrue();
+    }
+
+    @Test
+    public void testWithoutAnExecutorTheSubmitterDrains() {
+        List<Thread> ranOn = new ArrayList<>();
+        SerialMailbox mailbox = new SerialMailbox(null, t -> { });
+        for (int i = 0; i < SerialMailbox.DRAIN_BATCH + 1; ++i) {
+            mailbox.execute(() -> ranOn.add(Thread.currentThread()));
+        }
+        assertThat(ranOn).hasSize(SerialMailbox.DRAIN_BATCH + 1).containsOnly(Thread.currentThread());
+    }
+
+    @Test
+    public void testExecuteAsyncNeverRunsOnTheCallingThread() throws InterruptedException {
+        AtomicReference<Thread> ranOn = new AtomicReference<>();
+        CountDownLatch ran = new CountDownLatch(1);
+        SerialMailbox mailbox = new SerialMailbox(null, t -> { });
+        mailbox.executeAsync(() -> {
+            ranOn.set(Thread.currentThread());
+            ran.countDown();
+        });
+        assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(ranOn.get()).isNotSameAs(Thread.currentThread());
+
+        List<Runnable> drains = new ArrayList<>();
+        SerialMailbox withExecutor = new SerialMailbox(drains::add, t -> { });
+        withExecutor.executeAsync(() -> { });
+        assertThat(drains).hasSize(1);
+    }
+
+    @Test
+    public void testSubmittersOnlyEnqueue() {
+        List<Runnable> drains = new ArrayList<>();
+        List<String> ran = new ArrayList<>();
+        SerialMailbox mailbox = new SerialMailbox(drains::add, t -> { });
+
+        mailbox.execute(() -> ran.add("first"));
+        mailbox.execute(() -> ran.add("second"));
+        // Nothing runs on the submitting thread, and only one drain is scheduled.
+        assertThat(ran).isEmpty();
+        assertThat(drains).hasSize(1);
+
+        drains.remove(0).run();
+        assertThat(ran).containsExactly("first", "second");
+        assertThat(drains).isEmpty();
+    }
+
+    @Test
+    public void testLongDrainsAreHandedBackToTheExecutor() {
+        List<Runnable> drains = new ArrayList<>();
+        int[] ran = {0};
+        SerialMailbox mailbox = new SerialMailbox(drains::add, t -> { });
+        for (int i = 0; i < SerialMailbox.DRAIN_BATCH + 1; ++i) {
+            mailbox.execute(() -> ran[0]++);
+        }
+
+        drains.remove(0).run();
+        assertThat(ran[0]).isEqualTo(SerialMailbox.DRAIN_BATCH);
+        assertThat(drains).hasSize(1);
+
+        drains.remove(0).run();
+        assertThat(ran[0]).isEqualTo(SerialMailbox.DRAIN_BATCH + 1);
+        assertThat(drains).isEmpty();
+    }
+
+    @Test
+    public void testTasksNeverRunConcurrently() throws InterruptedException {
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicBoolean overlapped = new AtomicBoolean(false);
+        int[] counter = {0};
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        SerialMailbox mailbox = new SerialMailbox(executor, t -> { });
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 10000; ++j) {
+                    mailbox.execute(() -> {
+                        if (running.incrementAndGet() != 1) {
+                            overlapped.set(true);
+                        }
+                        counter[0]++;
+                        running.decrementAndGet();
+                    });
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // Read through the mailbox so we see the final write, whoever did it.
+        AtomicInteger total = new AtomicInteger();
+        CountDownLatch read = new CountDownLatch(1);
+        mailbox.execute(() -> {
+            total.set(counter[0]);
+            read.countDown();
+        });
+        assertThat(read.await(5, TimeUnit.SECONDS)).isTrue();
+        executor.shutdown();
+        assertThat(total.get()).isEqualTo(40000);
+        assertThat(overlapped.get()).isFalse();
+    }
+}
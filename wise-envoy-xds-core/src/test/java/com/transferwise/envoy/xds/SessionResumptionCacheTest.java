@@ -0,0 +1,47 @@
+package com.transferwise.envoy.xds;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.envoyproxy.envoy.config.core.v3.Node;
+import java.time.Duration;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class SessionResumptionCacheTest {
+
+    private static final DiscoveryService.SessionState STATE = new DiscoveryService.SessionState() {
+    };
+
+    private static NodeConfig<Object> nodeConfig(Node node) {
+        return NodeConfig.forNode(node, XdsConfig.builder().clientDetails(new Object()).build());
+    }
+
+    @Test
+    public void testSessionIsResumedOnce() {
+        SessionResumptionCache<Object> cache = new SessionResumptionCache<>(10, Duration.ofMinutes(1));
+        Node node = Node.newBuilder().setId("envoy-1").setCluster("mesh").build();
+        NodeConfig<Object> nodeConfig = nodeConfig(node);
+
+        cache.suspend(node, nodeConfig, Map.of(TypeUrl.CDS, STATE));
+
+        SessionResumptionCache.Session<Object> session = cache.resume(Node.newBuilder(node).build());
+        assertThat(session).isNotNull();
+        assertThat(session.getNodeConfig()).isSameAs(nodeConfig);
+        assertThat(session.getStates()).containsExactly(Map.entry(TypeUrl.CDS, STATE));
+        assertThat(cache.resume(node)).isNull();
+        assertThat(cache.getResumed()).isEqualTo(1);
+    }
+
+    @Test
+    public void testDifferentNodeWithSameIdIsNotResumed() {
+        SessionResumptionCache<Object> cache = new SessionResumptionCache<>(10, Duration.ofMinutes(1));
+        Node node = Node.newBuilder().setId("envoy-1").setCluster("mesh").build();
+
+        cache.suspend(node, nodeConfig(node), Map.of());
+
+        assertThat(cache.resume(Node.newBuilder(node).setCluster("other").build())).isNull();
+        assertThat(cache.size()).isZero();
+        assertThat(cache.getResumed()).isZero();
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.transferwise.envoy.xds.api;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class StateBacklogTest {
+
+    private static class HoldingBacklog implements StateBacklog<String> {
+
+        private final long readyAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20);
+
+        private String update = null;
+
+        @Override
+        public boolean isEmpty() {
+            return update == null;
+        }
+
+        @Override
+        public void put(String update) {
+            this.update = update;
+        }
+
+        @Override
+        public String take() {
+            String taken = update;
+            update = null;
+            return taken;
+        }
+
+        @Override
+        public boolean holdsUpdates() {
+            return true;
+        }
+
+        @Override
+        public long nanosUntilReady() {
+            return readyAt - System.nanoTime();
+        }
+    }
+
+    @Test
+    public void testDefaultWhenReadyRunsTheTaskOnceReady() throws InterruptedException {
+        HoldingBacklog backlog = new HoldingBacklog();
+        backlog.put("a");
+        CountDownLatch ran = new CountDownLatch(1);
+        Thread[] ranOn = new Thread[1];
+
+        backlog.whenReady(() -> {
+            ranOn[0] = Thread.currentThread();
+            ran.countDown();
+        });
+
+        assertThat(ran.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(backlog.nanosUntilReady()).isLessThanOrEqualTo(0);
+        assertThat(ranOn[0]).isNotSameAs(Thread.currentThread());
+    }
+
+}
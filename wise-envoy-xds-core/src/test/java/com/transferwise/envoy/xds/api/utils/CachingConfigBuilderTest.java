@@ -0,0 +1,154 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.transferwise.envoy.xds.api.IncrementalConfigBuilder;
+import com.transferwise.envoy.xds.api.IncrementalConfigBuilder.NamedMessage;
+import com.transferwise.envoy.xds.api.IncrementalConfigBuilder.Response;
+import com.transferwise.envoy.xds.api.SubscribedResources;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.function.Predicate;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class CachingConfigBuilderTest {
+
+    private static class DummyUpdate {
+
+    }
+
+    private static Response<ClusterLoadAssignment> response(String name) {
+        return Response.<ClusterLoadAssignment>builder()
+            .addAndUpdate(NamedMessage.of(ClusterLoadAssignment.newBuilder().setClusterName(name).build()))
+            .build();
+    }
+
+    @Test
+    public void testSameShapeIsBuiltOnce(@Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> delegate) {
+        final DummyUpdate update = new DummyUpdate();
+        final Response<ClusterLoadAssignment> built = response("foo");
+        when(delegate.addOrder(eq(update), any(), eq("details"))).thenReturn(built);
+
+        CachingConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> cache = CachingConfigBuilder.wrap(delegate, 10);
+
+        // Two clients, with equal (but not identical) details and subscriptions.
+        assertThat(cache.addOrder(update, SubscribedResources.of(List.of("foo", "bar")), new String("details"))).isSameAs(built);
+        assertThat(cache.addOrder(update, SubscribedResources.of(List.of("bar", "foo")), new String("details"))).isSameAs(built);
+
+        verify(delegate, times(1)).addOrder(any(), any(), any());
+        assertThat(cache.getHitCount()).isEqualTo(1);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testDifferentShapesAreBuiltSeparately(@Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> delegate) {
+        final DummyUpdate update = new DummyUpdate();
+        when(delegate.addOrder(any(), any(), any())).thenReturn(response("foo"));
+        when(delegate.removeOrder(any(), any(), any())).thenReturn(response("foo"));
+
+        CachingConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> cache = CachingConfigBuilder.wrap(delegate, 10);
+
+        cache.addOrder(update, SubscribedResources.wildcard(), "details");
+        cache.addOrder(update, SubscribedResources.of(List.of("foo")), "details"); // different subscriptions
+        cache.addOrder(update, SubscribedResources.wildcard(), "other details"); // different details
+        cache.addOrder(new DummyUpdate(), SubscribedResources.wildcard(), "details"); // different state update
+        cache.removeOrder(update, SubscribedResources.wildcard(), "details"); // different order
+
+        verify(delegate, times(4)).addOrder(any(), any(), any());
+        verify(delegate, times(1)).removeOrder(any(), any(), any());
+        assertThat(cache.getHitCount()).isZero();
+        assertThat(cache.getMissCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void testPrecomputesRecentlySeenShapes(@Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> delegate) {
+        final DummyUpdate first = new DummyUpdate();
+        final DummyUpdate second = new DummyUpdate();
+        final Response<ClusterLoadAssignment> built = response("foo");
+        when(delegate.addOrder(any(), any(), any())).thenReturn(built);
+        when(delegate.removeOrder(any(), any(), any())).thenReturn(built);
+
+        CachingConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> cache = CachingConfigBuilder.wrap(delegate, 10);
+        cache.addOrder(first, SubscribedResources.wildcard(), "details");
+        cache.removeOrder(first, SubscribedResources.wildcard(), "details");
+
+        // One shape, in both orders.
+        List<Runnable> tasks = cache.precomputations(second);
+        assertThat(tasks).hasSize(2);
+        tasks.forEach(Runnable::run);
+        verify(delegate).addOrder(eq(second), eq(SubscribedResources.wildcard()), eq("details"));
+        verify(delegate).removeOrder(eq(second), eq(SubscribedResources.wildcard()), eq("details"));
+
+        // Clients of that shape now find their config ready.
+        assertThat(cache.addOrder(second, SubscribedResources.wildcard(), "details")).isSameAs(built);
+        assertThat(cache.removeOrder(second, SubscribedResources.wildcard(), "details")).isSameAs(built);
+        verify(delegate, times(2)).addOrder(any(), any(), any());
+
+        // A shape no client has asked for in two state updates is forgotten.
+        assertThat(cache.precomputations(new DummyUpdate())).hasSize(2);
+        assertThat(cache.precomputations(new DummyUpdate())).hasSize(2);
+        assertThat(cache.precomputations(new DummyUpdate())).isEmpty();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStateUpdatesAreNotKeptAlive(@Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> delegate) throws InterruptedException {
+        when(delegate.addOrder(any(), any(), any())).thenReturn(response("foo"));
+
+        CachingConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> cache = CachingConfigBuilder.wrap(delegate, 10);
+        DummyUpdate update = new DummyUpdate();
+        cache.addOrder(update, SubscribedResources.wildcard(), "details");
+        assertThat(cache.getMissCount()).isEqualTo(1);
+        // The mock remembers what it was called with.
+        reset(delegate);
+
+        WeakReference<DummyUpdate> collected = new WeakReference<>(update);
+        update = null;
+        for (int i = 0; i < 100 && collected.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat(collected.get()).isNull();
+    }
+
+    @Test
+    public void testUnknownPredicatesAreNotCached(@Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> delegate) {
+        final DummyUpdate update = new DummyUpdate();
+        final Predicate<String> filter = "foo"::equals;
+        when(delegate.addOrder(update, filter, "details")).thenReturn(response("foo"));
+
+        CachingConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> cache = CachingConfigBuilder.wrap(delegate, 10);
+
+        cache.addOrder(update, filter, "details");
+        cache.addOrder(update, filter, "details");
+
+        verify(delegate, times(2)).addOrder(update, filter, "details");
+        assertThat(cache.getHitCount()).isZero();
+        assertThat(cache.getMissCount()).isZero();
+    }
+
+    @Test
+    public void testDelegateExceptionsPropagate(@Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> delegate) {
+        final DummyUpdate update = new DummyUpdate();
+        when(delegate.addOrder(any(), any(), any())).thenThrow(new IllegalArgumentException("broken"));
+
+        CachingConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> cache = CachingConfigBuilder.wrap(delegate, 10);
+
+        assertThatThrownBy(() -> cache.addOrder(update, SubscribedResources.wildcard(), "details"))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessage("broken");
+    }
+
+}
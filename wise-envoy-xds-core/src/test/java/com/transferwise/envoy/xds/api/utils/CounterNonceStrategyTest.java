@@ -0,0 +1,31 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.transferwise.envoy.xds.api.NonceGenerator;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class CounterNonceStrategyTest {
+
+    @Test
+    public void testGeneratorNeverRepeats() {
+        NonceGenerator generator = new CounterNonceStrategy().newGenerator();
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < 10000; ++i) {
+            assertThat(seen.add(generator.next())).isTrue();
+        }
+    }
+
+    @Test
+    public void testGeneratorsStartFromDifferentPoints() {
+        // A reconnecting client gets new generators, they shouldn't hand out the nonces its old stream used.
+        CounterNonceStrategy strategy = new CounterNonceStrategy();
+        Set<String> firsts = new HashSet<>();
+        for (int i = 0; i < 100; ++i) {
+            firsts.add(strategy.newGenerator().next());
+        }
+        assertThat(firsts).hasSize(100);
+    }
+}
@@ -0,0 +1,114 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+
+import com.transferwise.envoy.xds.api.Mergeable;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Value;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class DebouncingStateBacklogTest {
+
+    @Value
+    private static class SimpleMergeable implements Mergeable<SimpleMergeable> {
+        String name;
+
+        @Override
+        public SimpleMergeable merge(SimpleMergeable update) {
+            return new SimpleMergeable(name + update.getName());
+        }
+    }
+
+    private final AtomicLong now = new AtomicLong(1_000_000_000L);
+
+    private DebouncingStateBacklog<SimpleMergeable> backlog(ScheduledExecutorService scheduler) {
+        return new DebouncingStateBacklog.DebouncingStateBacklogFactory<SimpleMergeable>(Duration.ofMillis(10), Duration.ofMillis(50), scheduler, now::get).build();
+    }
+
+    private void advance(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void testEmptyBacklogIsReady(@Mock ScheduledExecutorService scheduler) {
+        DebouncingStateBacklog<SimpleMergeable> backlog = backlog(scheduler);
+
+        assertThat(backlog.holdsUpdates()).isTrue();
+        assertThat(backlog.isEmpty()).isTrue();
+        assertThat(backlog.nanosUntilReady()).isLessThanOrEqualTo(0);
+        assertThat(backlog.take()).isNull();
+    }
+
+    @Test
+    public void testHoldsUntilQuietForTheDebounceWindow(@Mock ScheduledExecutorService scheduler) {
+        DebouncingStateBacklog<SimpleMergeable> backlog = backlog(scheduler);
+
+        backlog.put(new SimpleMergeable("a"));
+        assertThat(backlog.nanosUntilReady()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(10));
+        advance(5);
+        backlog.put(new SimpleMergeable("b"));
+        // Each update restarts the window.
+        assertThat(backlog.nanosUntilReady()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(10));
+        advance(10);
+        assertThat(backlog.nanosUntilReady()).isLessThanOrEqualTo(0);
+        assertThat(backlog.take()).isEqualTo(new SimpleMergeable("ab"));
+        assertThat(backlog.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testNeverHoldsLongerThanMaxDelay(@Mock ScheduledExecutorService scheduler) {
+        DebouncingStateBacklog<SimpleMergeable> backlog = backlog(scheduler);
+
+        backlog.put(new SimpleMergeable("a"));
+        for (int i = 0; i < 9; ++i) {
+            advance(5);
+            backlog.put(new SimpleMergeable("b"));
+        }
+        // 45ms after the first update, still well inside the debounce window of the last, but the deadline is 5ms away.
+        assertThat(backlog.nanosUntilReady()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(5));
+        advance(5);
+        assertThat(backlog.nanosUntilReady()).isLessThanOrEqualTo(0);
+    }
+
+    @Test
+    public void testWakesUpWhenReady(@Mock ScheduledExecutorService scheduler) {
+        DebouncingStateBacklog<SimpleMergeable> backlog = backlog(scheduler);
+
+        backlog.put(new SimpleMergeable("a"));
+        advance(4);
+        Runnable task = () -> { };
+        backlog.whenReady(task);
+
+        verify(scheduler).schedule(eq(task), eq(TimeUnit.MILLISECONDS.toNanos(6)), eq(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void testRejectsMaxDelayShorterThanDebounce(@Mock ScheduledExecutorService scheduler) {
+        assertThatThrownBy(() -> DebouncingStateBacklog.<SimpleMergeable>factory(Duration.ofMillis(10), Duration.ofMillis(5), scheduler))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testSharedSchedulerRunsTasks() throws InterruptedException {
+        DebouncingStateBacklog<SimpleMergeable> backlog = DebouncingStateBacklog.<SimpleMergeable>factory(Duration.ofMillis(1), Duration.ofMillis(1)).build();
+        CountDownLatch ran = new CountDownLatch(1);
+
+        backlog.put(new SimpleMergeable("a"));
+        backlog.whenReady(ran::countDown);
+
+        assertThat(ran.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(backlog.nanosUntilReady()).isLessThanOrEqualTo(0);
+    }
+
+}
@@ -58,4 +58,25 @@ public class MergingStateBacklogTest {
         assertThat(merger.take()).isNull();
     }
 
+    @Test
+    public void testBacklogsFromTheSameFactoryShareMerges() {
+        MergingStateBacklog.MergingStateBacklogFactory<SimpleMergeable> factory = MergingStateBacklog.factory();
+        MergingStateBacklog<SimpleMergeable> first = factory.build();
+        MergingStateBacklog<SimpleMergeable> second = factory.build();
+        SimpleMergeable a = new SimpleMergeable("a");
+        SimpleMergeable b = new SimpleMergeable("b");
+        first.put(a);
+        first.put(b);
+        second.put(a);
+        second.put(b);
+        SimpleMergeable merged = first.take();
+        // The same instance, so config builder results cached for one are found for the other.
+        assertThat(second.take()).isSameAs(merged);
+
+        MergingStateBacklog<SimpleMergeable> other = MergingStateBacklog.<SimpleMergeable>factory().build();
+        other.put(a);
+        other.put(b);
+        assertThat(other.take()).isEqualTo(merged).isNotSameAs(merged);
+    }
+
 }
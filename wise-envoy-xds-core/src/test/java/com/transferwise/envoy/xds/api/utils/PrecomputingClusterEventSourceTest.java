@@ -0,0 +1,89 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.transferwise.envoy.xds.api.ClusterEventSource;
+import com.transferwise.envoy.xds.api.ClusterManagerEventListener;
+import com.transferwise.envoy.xds.api.IncrementalConfigBuilder;
+import com.transferwise.envoy.xds.api.IncrementalConfigBuilder.Response;
+import com.transferwise.envoy.xds.api.SubscribedResources;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class PrecomputingClusterEventSourceTest {
+
+    private static class DummyUpdate {
+
+    }
+
+    @Captor
+    private ArgumentCaptor<ClusterManagerEventListener<DummyUpdate>> subscribed;
+
+    @Test
+    public void testBuildsConfigOnceBeforeDeliveringUpdates(
+        @Mock ClusterEventSource<DummyUpdate> delegate,
+        @Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> configBuilder,
+        @Mock ClusterManagerEventListener<DummyUpdate> first,
+        @Mock ClusterManagerEventListener<DummyUpdate> second
+    ) {
+        final DummyUpdate initial = new DummyUpdate();
+        final DummyUpdate update = new DummyUpdate();
+        when(configBuilder.addOrder(any(), any(), any())).thenReturn(Response.<ClusterLoadAssignment>builder().build());
+        when(configBuilder.removeOrder(any(), any(), any())).thenReturn(Response.<ClusterLoadAssignment>builder().build());
+        CachingConfigBuilder<ClusterLoadAssignment, DummyUpdate, String> cache = CachingConfigBuilder.wrap(configBuilder, 10);
+        PrecomputingClusterEventSource<DummyUpdate> source = new PrecomputingClusterEventSource<>(delegate, List.of(cache));
+
+        when(delegate.subscribe(any())).thenReturn(initial);
+        assertThat(source.subscribe(first)).isSameAs(initial);
+        assertThat(source.subscribe(second)).isSameAs(initial);
+        verify(delegate, times(2)).subscribe(subscribed.capture());
+
+        // Both clients have the same shape.
+        cache.addOrder(initial, SubscribedResources.wildcard(), "details");
+        cache.addOrder(initial, SubscribedResources.wildcard(), "details");
+
+        subscribed.getAllValues().forEach(listener -> listener.onNetworkChange(update));
+
+        InOrder inOrder = inOrder(configBuilder, first, second);
+        inOrder.verify(configBuilder).addOrder(eq(update), eq(SubscribedResources.wildcard()), eq("details"));
+        inOrder.verify(first).onNetworkChange(update);
+        inOrder.verify(second).onNetworkChange(update);
+        verify(configBuilder).removeOrder(eq(update), eq(SubscribedResources.wildcard()), eq("details"));
+
+        // When the clients push the update their config is already built.
+        cache.addOrder(update, SubscribedResources.wildcard(), "details");
+        cache.addOrder(update, SubscribedResources.wildcard(), "details");
+        verify(configBuilder, times(2)).addOrder(any(), any(), any());
+    }
+
+    @Test
+    public void testUnsubscribeClosesTheListener(@Mock ClusterEventSource<DummyUpdate> delegate, @Mock ClusterManagerEventListener<DummyUpdate> listener) {
+        PrecomputingClusterEventSource<DummyUpdate> source = new PrecomputingClusterEventSource<>(delegate, List.of());
+        source.subscribe(listener);
+        verify(delegate).subscribe(subscribed.capture());
+
+        source.unsubscribe(listener);
+        verify(delegate).unsubscribe(subscribed.getValue());
+        subscribed.getValue().close();
+        verify(listener).close();
+
+        // Never subscribed, so nothing to do.
+        source.unsubscribe(listener);
+        verify(delegate, times(1)).unsubscribe(any());
+    }
+
+}
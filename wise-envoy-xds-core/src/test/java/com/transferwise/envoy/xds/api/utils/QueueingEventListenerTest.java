@@ -1,14 +1,21 @@
 package com.transferwise.envoy.xds.api.utils;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.transferwise.envoy.xds.api.ClusterManagerEventListener;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import lombok.Value;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -89,4 +96,56 @@ public class QueueingEventListenerTest {
         verifyNoMoreInteractions(mockListener);
     }
 
+    private void assertDrainsOnClose(ClusterManagerEventListener<SimpleUpdate> mockListener, ThreadFactory threadFactory) throws InterruptedException {
+        final SimpleUpdate a = new SimpleUpdate("a");
+        final SimpleUpdate b = new SimpleUpdate("b");
+        final SimpleUpdate c = new SimpleUpdate("c");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            Uninterruptibles.awaitUninterruptibly(release);
+            return null;
+        }).when(mockListener).onNetworkChange(a);
+
+        QueueingEventListener<SimpleUpdate> merger = QueueingEventListener.createAndStart(mockListener, threadFactory);
+        merger.onNetworkChange(a);
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        merger.onNetworkChange(b);
+        merger.onNetworkChange(c);
+        merger.close();
+        release.countDown();
+        merger.waitUntilFinished();
+
+        InOrder inOrder = inOrder(mockListener);
+        inOrder.verify(mockListener).onNetworkChange(a);
+        inOrder.verify(mockListener).onNetworkChange(b);
+        inOrder.verify(mockListener).onNetworkChange(c);
+        inOrder.verify(mockListener).close();
+        verifyNoMoreInteractions(mockListener);
+    }
+
+    @Test
+    public void testCustomThreadFactoryDrainsOnClose(@Mock ClusterManagerEventListener<SimpleUpdate> mockListener) throws InterruptedException {
+        AtomicInteger threadsCreated = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            threadsCreated.incrementAndGet();
+            return ThreadedQueuingEventListener.platformThreads().newThread(r);
+        };
+
+        assertDrainsOnClose(mockListener, threadFactory);
+
+        assertThat(threadsCreated).hasValue(1);
+    }
+
+    @Test
+    public void testVirtualThreads(@Mock ClusterManagerEventListener<SimpleUpdate> mockListener) throws InterruptedException {
+        if (Runtime.version().feature() < 21) {
+            assertThatThrownBy(ThreadedQueuingEventListener::virtualThreads).isInstanceOf(UnsupportedOperationException.class);
+            assertThat(ThreadedQueuingEventListener.virtualThreadsIfAvailable()).isSameAs(ThreadedQueuingEventListener.platformThreads());
+            return;
+        }
+        assertDrainsOnClose(mockListener, ThreadedQueuingEventListener.virtualThreads());
+    }
+
 }
@@ -0,0 +1,135 @@
+package com.transferwise.envoy.xds.api.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import com.transferwise.envoy.xds.api.ClusterManagerEventListener;
+import com.transferwise.envoy.xds.api.Mergeable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import lombok.Value;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class ShardedMergingEventDispatcherTest {
+
+    @Value
+    private static class SimpleMergeable implements Mergeable<SimpleMergeable> {
+
+        String name;
+
+        @Override
+        public SimpleMergeable merge(SimpleMergeable update) {
+            return new SimpleMergeable(name + update.getName());
+        }
+    }
+
+    @Test
+    public void testRemoveClosesListener(@Mock ClusterManagerEventListener<SimpleMergeable> mockListener) throws InterruptedException {
+        ShardedMergingEventDispatcher<SimpleMergeable> dispatcher = new ShardedMergingEventDispatcher<>(2);
+        dispatcher.add(mockListener);
+        assertThat(dispatcher.remove(mockListener)).isTrue();
+        assertThat(dispatcher.remove(mockListener)).isFalse();
+        dispatcher.close();
+        dispatcher.waitUntilFinished();
+
+        verify(mockListener, never()).onNetworkChange(any());
+        verify(mockListener, times(1)).close();
+        verifyNoMoreInteractions(mockListener);
+    }
+
+    @Test
+    public void testUpdatesAreMergedWhileListenerIsBusy(@Mock ClusterManagerEventListener<SimpleMergeable> mockListener) throws InterruptedException {
+        BarrierEventListener<SimpleMergeable> barrierEventListener = new BarrierEventListener<>(mockListener);
+        ShardedMergingEventDispatcher<SimpleMergeable> dispatcher = new ShardedMergingEventDispatcher<>(1);
+        dispatcher.add(barrierEventListener);
+
+        dispatcher.dispatch(new SimpleMergeable("a"));
+        barrierEventListener.await(5, TimeUnit.SECONDS); // Wait until a is being processed
+        dispatcher.dispatch(new SimpleMergeable("b"));
+        dispatcher.dispatch(new SimpleMergeable("c"));
+        barrierEventListener.await(5, TimeUnit.SECONDS); // Finish processing a
+        barrierEventListener.await(5, TimeUnit.SECONDS); // Start processing bc
+        barrierEventListener.awaitAndRunFree(5, TimeUnit.SECONDS); // Finish processing bc, let it run free.
+
+        InOrder inOrder = inOrder(mockListener);
+        inOrder.verify(mockListener).onNetworkChange(new SimpleMergeable("a"));
+        inOrder.verify(mockListener).onNetworkChange(new SimpleMergeable("bc"));
+        verifyNoMoreInteractions(mockListener);
+
+        dispatcher.close();
+        dispatcher.waitUntilFinished();
+
+        verify(mockListener, times(1)).close();
+        verifyNoMoreInteractions(mockListener);
+    }
+
+    @Test
+    public void testPendingUpdatesAreDeliveredBeforeClose(@Mock ClusterManagerEventListener<SimpleMergeable> mockListener) throws InterruptedException {
+        BarrierEventListener<SimpleMergeable> barrierEventListener = new BarrierEventListener<>(mockListener);
+        ShardedMergingEventDispatcher<SimpleMergeable> dispatcher = new ShardedMergingEventDispatcher<>(1);
+        dispatcher.add(barrierEventListener);
+
+        dispatcher.dispatch(new SimpleMergeable("a"));
+        barrierEventListener.await(5, TimeUnit.SECONDS); // Wait until a is being processed
+        dispatcher.dispatch(new SimpleMergeable("b"));
+        dispatcher.remove(barrierEventListener);
+        dispatcher.dispatch(new SimpleMergeable("too late"));
+        barrierEventListener.awaitAndRunFree(5, TimeUnit.SECONDS); // Finish processing a, let it run free.
+
+        dispatcher.close();
+        dispatcher.waitUntilFinished();
+
+        InOrder inOrder = inOrder(mockListener);
+        inOrder.verify(mockListener).onNetworkChange(new SimpleMergeable("a"));
+        inOrder.verify(mockListener).onNetworkChange(new SimpleMergeable("b"));
+        inOrder.verify(mockListener).close();
+        verifyNoMoreInteractions(mockListener);
+    }
+
+    @Test
+    public void testFailingListenerIsClosedAndRemoved(@Mock ClusterManagerEventListener<SimpleMergeable> failing, @Mock ClusterManagerEventListener<SimpleMergeable> healthy) throws InterruptedException {
+        doThrow(new IllegalStateException("broken")).when(failing).onNetworkChange(any());
+        ShardedMergingEventDispatcher<SimpleMergeable> dispatcher = new ShardedMergingEventDispatcher<>(1);
+        dispatcher.add(failing);
+        dispatcher.add(healthy);
+
+        dispatcher.dispatch(new SimpleMergeable("a"));
+        dispatcher.close();
+        dispatcher.waitUntilFinished();
+
+        verify(failing, times(1)).onNetworkChange(new SimpleMergeable("a"));
+        verify(failing, times(1)).close();
+        verify(healthy, times(1)).onNetworkChange(new SimpleMergeable("a"));
+        verify(healthy, times(1)).close();
+        verifyNoMoreInteractions(failing, healthy);
+    }
+
+    @Test
+    public void testThreadCountIsBoundedByShards() throws InterruptedException {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        ShardedMergingEventDispatcher<SimpleMergeable> dispatcher = new ShardedMergingEventDispatcher<>(3);
+        for (int i = 0; i < 100; ++i) {
+            dispatcher.add(diff -> threads.add(Thread.currentThread()));
+        }
+        assertThat(dispatcher.size()).isEqualTo(100);
+        dispatcher.dispatch(new SimpleMergeable("a"));
+        dispatcher.close();
+        dispatcher.waitUntilFinished();
+
+        assertThat(dispatcher.size()).isZero();
+        assertThat(threads).hasSize(3);
+    }
+
+}
@@ -2,25 +2,33 @@ package com.transferwise.envoy.xds.delta;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
+import com.google.protobuf.UInt32Value;
+import com.transferwise.envoy.xds.ClientClasses;
 import com.transferwise.envoy.xds.CommonDiscoveryRequest;
 import com.transferwise.envoy.xds.DiscoveryService;
 import com.transferwise.envoy.xds.NodeConfig;
 import com.transferwise.envoy.xds.TypeUrl;
 import com.transferwise.envoy.xds.XdsConfig;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
 import com.transferwise.envoy.xds.api.IncrementalConfigBuilder;
+import com.transferwise.envoy.xds.api.utils.CounterNonceStrategy;
 import io.envoyproxy.envoy.config.cluster.v3.Cluster;
 import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
 import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryRequest;
 import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryResponse;
 import io.envoyproxy.envoy.service.discovery.v3.Resource;
 import io.grpc.stub.StreamObserver;
+import java.util.List;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
@@ -57,6 +65,52 @@ public class IncrementalDiscoveryServiceTest {
 
     @Captor ArgumentCaptor<DeltaDiscoveryResponse> responseCaptor;
 
+    private static CommonDiscoveryRequest<DeltaDiscoveryRequest> subscribe(String... names) {
+        return CommonDiscoveryRequest.<DeltaDiscoveryRequest>builder()
+            .typeUrl(TypeUrl.EDS.getTypeUrl())
+            .message(DeltaDiscoveryRequest.newBuilder()
+                .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+                .addAllResourceNamesSubscribe(List.of(names))
+                .build())
+            .build();
+    }
+
+    @Test
+    public void testTracksClientClasses(@Mock StreamObserver<DeltaDiscoveryResponse> responseObserver,
+                                        @Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, Object> configBuilder,
+                                        @Mock DiscoveryServiceManagerMetrics metrics) {
+        final NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+        final ClientClasses clientClasses = new ClientClasses();
+        when(configBuilder.getResourcesRemoveOrder(any(), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<ClusterLoadAssignment>builder().build());
+
+        DiscoveryService<DeltaDiscoveryRequest, DummyUpdate> first = new IncrementalDiscoveryService<>(TypeUrl.EDS, responseObserver, configBuilder, nodeConfig,
+            new SubListSubManager(nodeConfig), null, metrics, new CounterNonceStrategy().newGenerator(), clientClasses);
+        DiscoveryService<DeltaDiscoveryRequest, DummyUpdate> second = new IncrementalDiscoveryService<>(TypeUrl.EDS, responseObserver, configBuilder, nodeConfig,
+            new SubListSubManager(nodeConfig), null, metrics, new CounterNonceStrategy().newGenerator(), clientClasses);
+        first.init(new DummyUpdate());
+        second.init(new DummyUpdate());
+
+        // Same config, same subscriptions.
+        first.processUpdate(subscribe("foo"));
+        second.processUpdate(subscribe("foo"));
+        verify(metrics).onClientClassJoined(TypeUrl.EDS, 1);
+        verify(metrics).onClientClassJoined(TypeUrl.EDS, 2);
+        assertThat(clientClasses.classCount(TypeUrl.EDS)).isEqualTo(1);
+        assertThat(clientClasses.largestClassSize(TypeUrl.EDS)).isEqualTo(2);
+
+        // One of them subscribes to something else as well, and moves to a class of its own.
+        second.processUpdate(subscribe("bar"));
+        verify(metrics).onClientClassLeft(TypeUrl.EDS, 1);
+        verify(metrics, times(2)).onClientClassJoined(TypeUrl.EDS, 1);
+        assertThat(clientClasses.classCount(TypeUrl.EDS)).isEqualTo(2);
+        assertThat(clientClasses.largestClassSize(TypeUrl.EDS)).isEqualTo(1);
+
+        first.close();
+        second.close();
+        verify(metrics, times(2)).onClientClassLeft(TypeUrl.EDS, 0);
+        assertThat(clientClasses.classCount()).isZero();
+    }
+
     @Test
     public void testSubscribeSubListButNoResourcesThenUpdates(@Mock StreamObserver<DeltaDiscoveryResponse> responseObserver,
                                                 @Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, Object> configBuilder) {
@@ -412,4 +466,251 @@ public class IncrementalDiscoveryServiceTest {
         assertThat(ds.awaitingAck()).isTrue();
     }
 
+    @Test
+    public void testReportsMetrics(@Mock StreamObserver<DeltaDiscoveryResponse> responseObserver,
+                                   @Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, Object> configBuilder,
+                                   @Mock DiscoveryServiceManagerMetrics metrics) {
+
+        final DummyUpdate initState = new DummyUpdate();
+        final NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+        final ClusterLoadAssignment cla = ClusterLoadAssignment.newBuilder()
+            .setClusterName("foo")
+            .build();
+
+        when(configBuilder.getResourcesRemoveOrder(eq(initState), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<ClusterLoadAssignment>builder().resource(IncrementalConfigBuilder.NamedMessage.of(cla)).build());
+
+        DiscoveryService<DeltaDiscoveryRequest, DummyUpdate> ds = new IncrementalDiscoveryService<>(TypeUrl.EDS, responseObserver, configBuilder, nodeConfig, new SubListSubManager(nodeConfig), null, metrics);
+        ds.init(initState);
+
+        ds.processUpdate(CommonDiscoveryRequest.<DeltaDiscoveryRequest>builder()
+            .typeUrl(TypeUrl.EDS.getTypeUrl())
+            .message(DeltaDiscoveryRequest.newBuilder()
+                .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+                .addResourceNamesSubscribe("foo")
+                .addResourceNamesSubscribe("bar")
+                .build())
+            .build());
+
+        verify(responseObserver).onNext(responseCaptor.capture());
+        DeltaDiscoveryResponse resp = responseCaptor.getValue();
+
+        InOrder inOrder = inOrder(metrics);
+        inOrder.verify(metrics).onSubscriptionChange(TypeUrl.EDS);
+        inOrder.verify(metrics).onConfigBuilderInvoked(eq(TypeUrl.EDS), anyLong());
+        // foo exists, bar doesn't so envoy is told to remove it.
+        inOrder.verify(metrics).onResponseSent(TypeUrl.EDS, 1, 1, resp.getSerializedSize());
+    }
+
+    @Test
+    public void testPlainAckSkipsSubscriptionProcessing(@Mock StreamObserver<DeltaDiscoveryResponse> responseObserver,
+                                                        @Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, Object> configBuilder) {
+
+        final DummyUpdate initState = new DummyUpdate();
+        final NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+        final ClusterLoadAssignment cla = ClusterLoadAssignment.newBuilder()
+            .setClusterName("foo")
+            .build();
+
+        when(configBuilder.getResourcesRemoveOrder(eq(initState), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<ClusterLoadAssignment>builder().resource(IncrementalConfigBuilder.NamedMessage.of(cla)).build());
+
+        SubManager subManager = spy(new SubListSubManager(nodeConfig));
+        DiscoveryService<DeltaDiscoveryRequest, DummyUpdate> ds = new IncrementalDiscoveryService<>(TypeUrl.EDS, responseObserver, configBuilder, nodeConfig, subManager);
+        ds.init(initState);
+
+        ds.processUpdate(CommonDiscoveryRequest.of(DeltaDiscoveryRequest.newBuilder()
+            .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+            .addResourceNamesSubscribe("foo")
+            .build(), null, TypeUrl.EDS.getTypeUrl(), null));
+
+        verify(responseObserver).onNext(responseCaptor.capture());
+        assertThat(ds.awaitingAck()).isTrue();
+
+        ds.processUpdate(CommonDiscoveryRequest.of(DeltaDiscoveryRequest.newBuilder()
+            .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+            .setResponseNonce(responseCaptor.getValue().getNonce())
+            .build(), null, TypeUrl.EDS.getTypeUrl(), null));
+
+        assertThat(ds.awaitingAck()).isFalse();
+        // The ack carried no subscription changes, so the sub manager was only asked about the first request.
+        verify(subManager, times(1)).processResourceListChange(any(), any());
+        verify(responseObserver, times(1)).onNext(any());
+        assertThat(subManager.isSubscribedTo("foo")).isTrue();
+    }
+
+    @Test
+    public void testUnchangedResourcesAreNotPushedAgain(@Mock StreamObserver<DeltaDiscoveryResponse> responseObserver,
+                                                       @Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, Object> configBuilder,
+                                                       @Mock DiscoveryServiceManagerMetrics metrics) {
+
+        final DummyUpdate initState = new DummyUpdate();
+        final DummyUpdate sameState = new DummyUpdate();
+        final DummyUpdate changedState = new DummyUpdate();
+        final NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+        final ClusterLoadAssignment foo = ClusterLoadAssignment.newBuilder()
+            .setClusterName("foo")
+            .build();
+        final ClusterLoadAssignment bar = ClusterLoadAssignment.newBuilder()
+            .setClusterName("bar")
+            .build();
+        final ClusterLoadAssignment changedBar = ClusterLoadAssignment.newBuilder()
+            .setClusterName("bar")
+            .setPolicy(ClusterLoadAssignment.Policy.newBuilder().setOverprovisioningFactor(UInt32Value.of(200)))
+            .build();
+
+        when(configBuilder.getResourcesRemoveOrder(eq(initState), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<ClusterLoadAssignment>builder()
+            .resource(IncrementalConfigBuilder.NamedMessage.of(foo))
+            .resource(IncrementalConfigBuilder.NamedMessage.of(bar))
+            .build());
+        // Config builders are allowed to return resources that haven't changed.
+        when(configBuilder.addOrder(eq(sameState), any(), any())).thenReturn(IncrementalConfigBuilder.Response.<ClusterLoadAssignment>builder()
+            .addAndUpdate(IncrementalConfigBuilder.NamedMessage.of(foo))
+            .build());
+        when(configBuilder.removeOrder(eq(sameState), any(), any())).thenReturn(IncrementalConfigBuilder.Response.<ClusterLoadAssignment>builder().build());
+        when(configBuilder.addOrder(eq(changedState), any(), any())).thenReturn(IncrementalConfigBuilder.Response.<ClusterLoadAssignment>builder()
+            .addAndUpdate(IncrementalConfigBuilder.NamedMessage.of(foo))
+            .addAndUpdate(IncrementalConfigBuilder.NamedMessage.of(changedBar))
+            .build());
+
+        DiscoveryService<DeltaDiscoveryRequest, DummyUpdate> ds = new IncrementalDiscoveryService<>(TypeUrl.EDS, responseObserver, configBuilder, nodeConfig, new SubListSubManager(nodeConfig), null, metrics);
+        ds.init(initState);
+
+        ds.processUpdate(CommonDiscoveryRequest.of(DeltaDiscoveryRequest.newBuilder()
+            .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+            .addResourceNamesSubscribe("foo")
+            .addResourceNamesSubscribe("bar")
+            .build(), null, TypeUrl.EDS.getTypeUrl(), null));
+        verify(responseObserver).onNext(responseCaptor.capture());
+        ds.processUpdate(CommonDiscoveryRequest.of(DeltaDiscoveryRequest.newBuilder()
+            .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+            .setResponseNonce(responseCaptor.getValue().getNonce())
+            .build(), null, TypeUrl.EDS.getTypeUrl(), null));
+
+        // foo is re-sent unchanged, so there is nothing to tell envoy.
+        ds.onNetworkUpdate(sameState);
+        ds.sendNetworkUpdatePre();
+        ds.sendNetworkUpdatePost();
+        verify(responseObserver, times(1)).onNext(any());
+        verify(metrics).onPushSuppressed(TypeUrl.EDS);
+        assertThat(ds.awaitingAck()).isFalse();
+
+        // Only bar changed, so only bar is sent.
+        ds.onNetworkUpdate(changedState);
+        ds.sendNetworkUpdatePre();
+        verify(responseObserver, times(2)).onNext(responseCaptor.capture());
+        assertThat(responseCaptor.getValue().getResourcesList()).extracting(Resource::getName).containsExactly("bar");
+        assertThat(ds.awaitingAck()).isTrue();
+    }
+
+    @Test
+    public void testTracksSeveralUnackedResponses(@Mock StreamObserver<DeltaDiscoveryResponse> responseObserver,
+                                                  @Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, Object> configBuilder) {
+
+        final DummyUpdate initState = new DummyUpdate();
+        final DummyUpdate first = new DummyUpdate();
+        final DummyUpdate second = new DummyUpdate();
+        final NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+        final ClusterLoadAssignment foo = ClusterLoadAssignment.newBuilder()
+            .setClusterName("foo")
+            .build();
+
+        when(configBuilder.getResourcesRemoveOrder(eq(initState), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<ClusterLoadAssignment>builder()
+            .resource(IncrementalConfigBuilder.NamedMessage.of(foo))
+            .build());
+        when(configBuilder.addOrder(eq(first), any(), any())).thenReturn(IncrementalConfigBuilder.Response.<ClusterLoadAssignment>builder()
+            .addAndUpdate(IncrementalConfigBuilder.NamedMessage.of(foo.toBuilder()
+                .setPolicy(ClusterLoadAssignment.Policy.newBuilder().setOverprovisioningFactor(UInt32Value.of(150)))
+                .build()))
+            .build());
+        when(configBuilder.addOrder(eq(second), any(), any())).thenReturn(IncrementalConfigBuilder.Response.<ClusterLoadAssignment>builder()
+            .addAndUpdate(IncrementalConfigBuilder.NamedMessage.of(foo.toBuilder()
+                .setPolicy(ClusterLoadAssignment.Policy.newBuilder().setOverprovisioningFactor(UInt32Value.of(200)))
+                .build()))
+            .build());
+        when(configBuilder.removeOrder(any(), any(), any())).thenReturn(IncrementalConfigBuilder.Response.<ClusterLoadAssignment>builder().build());
+
+        DiscoveryService<DeltaDiscoveryRequest, DummyUpdate> ds = new IncrementalDiscoveryService<>(TypeUrl.EDS, responseObserver, configBuilder, nodeConfig, new SubListSubManager(nodeConfig));
+        ds.init(initState);
+
+        // Three responses are sent without waiting for envoy in between, as happens when EDS pushes are pipelined.
+        ds.processUpdate(CommonDiscoveryRequest.of(DeltaDiscoveryRequest.newBuilder()
+            .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+            .addResourceNamesSubscribe("foo")
+            .build(), null, TypeUrl.EDS.getTypeUrl(), null));
+        ds.onNetworkUpdate(first);
+        ds.sendNetworkUpdatePre();
+        ds.sendNetworkUpdatePost();
+        ds.onNetworkUpdate(second);
+        ds.sendNetworkUpdatePre();
+        ds.sendNetworkUpdatePost();
+        verify(responseObserver, times(3)).onNext(responseCaptor.capture());
+        List<String> nonces = responseCaptor.getAllValues().stream().map(DeltaDiscoveryResponse::getNonce).toList();
+        assertThat(nonces).doesNotHaveDuplicates();
+        assertThat(ds.unackedResponses()).isEqualTo(3);
+
+        ds.processUpdate(CommonDiscoveryRequest.of(DeltaDiscoveryRequest.newBuilder()
+            .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+            .setResponseNonce(nonces.get(0))
+            .build(), null, TypeUrl.EDS.getTypeUrl(), null));
+        assertThat(ds.unackedResponses()).isEqualTo(2);
+
+        // Envoy handles responses in order, so acking the last acks the one before it too.
+        ds.processUpdate(CommonDiscoveryRequest.of(DeltaDiscoveryRequest.newBuilder()
+            .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+            .setResponseNonce(nonces.get(2))
+            .build(), null, TypeUrl.EDS.getTypeUrl(), null));
+        assertThat(ds.awaitingAck()).isFalse();
+
+        // A late ack of something already acked changes nothing.
+        ds.processUpdate(CommonDiscoveryRequest.of(DeltaDiscoveryRequest.newBuilder()
+            .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+            .setResponseNonce(nonces.get(1))
+            .build(), null, TypeUrl.EDS.getTypeUrl(), null));
+        assertThat(ds.awaitingAck()).isFalse();
+    }
+
+    @Test
+    public void testReconnectSkipsResourcesEnvoyAlreadyHas(@Mock StreamObserver<DeltaDiscoveryResponse> firstObserver,
+                                                          @Mock StreamObserver<DeltaDiscoveryResponse> secondObserver,
+                                                          @Mock IncrementalConfigBuilder<Cluster, DummyUpdate, Object> configBuilder) {
+
+        final DummyUpdate initState = new DummyUpdate();
+        final DummyUpdate restartState = new DummyUpdate();
+        final NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+
+        when(configBuilder.getResourcesRemoveOrder(eq(initState), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<Cluster>builder()
+            .resource(IncrementalConfigBuilder.NamedMessage.of(Cluster.newBuilder().setName("foo").build()))
+            .resource(IncrementalConfigBuilder.NamedMessage.of(Cluster.newBuilder().setName("bar").build()))
+            .build());
+        // Built afresh, as they would be by a restarted control plane. bar has changed while envoy was disconnected.
+        when(configBuilder.getResourcesRemoveOrder(eq(restartState), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<Cluster>builder()
+            .resource(IncrementalConfigBuilder.NamedMessage.of(Cluster.newBuilder().setName("foo").build()))
+            .resource(IncrementalConfigBuilder.NamedMessage.of(Cluster.newBuilder().setName("bar").setAltStatName("changed").build()))
+            .build());
+
+        DiscoveryService<DeltaDiscoveryRequest, DummyUpdate> first = new IncrementalDiscoveryService<>(TypeUrl.CDS, firstObserver, configBuilder, nodeConfig, new WildcardSubManager(nodeConfig));
+        first.init(initState);
+        first.processUpdate(CommonDiscoveryRequest.of(DeltaDiscoveryRequest.newBuilder()
+            .setTypeUrl(TypeUrl.CDS.getTypeUrl())
+            .addResourceNamesSubscribe("*")
+            .build(), null, TypeUrl.CDS.getTypeUrl(), null));
+        verify(firstObserver).onNext(responseCaptor.capture());
+        DeltaDiscoveryRequest.Builder reconnect = DeltaDiscoveryRequest.newBuilder()
+            .setTypeUrl(TypeUrl.CDS.getTypeUrl())
+            .addResourceNamesSubscribe("*");
+        responseCaptor.getValue().getResourcesList().forEach(r -> reconnect.putInitialResourceVersions(r.getName(), r.getVersion()));
+
+        // Envoy reconnects, on a new stream, reporting the versions it got on the old one.
+        DiscoveryService<DeltaDiscoveryRequest, DummyUpdate> second = new IncrementalDiscoveryService<>(TypeUrl.CDS, secondObserver, configBuilder, nodeConfig, new WildcardSubManager(nodeConfig));
+        second.init(restartState);
+        second.processUpdate(CommonDiscoveryRequest.of(reconnect.build(), null, TypeUrl.CDS.getTypeUrl(), null));
+
+        // foo's version matches, so only bar is sent.
+        verify(secondObserver).onNext(responseCaptor.capture());
+        DeltaDiscoveryResponse resp = responseCaptor.getValue();
+        assertThat(resp.getResourcesList()).extracting(Resource::getName).containsExactly("bar");
+        assertThat(resp.getRemovedResourcesList()).isEmpty();
+        assertThat(resp.getResources(0).getVersion()).isNotEqualTo(reconnect.getInitialResourceVersionsOrThrow("bar"));
+        assertThat(second.awaitingAck()).isTrue();
+    }
+
 }
@@ -0,0 +1,64 @@
+package com.transferwise.envoy.xds.delta;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class ResourceHashesSpec {
+
+    @Test
+    public void testPutReportsChanges() {
+        ResourceHashes hashes = new ResourceHashes();
+
+        assertThat(hashes.put("foo", 1L)).isTrue();
+        assertThat(hashes.put("foo", 1L)).isFalse();
+        assertThat(hashes.put("foo", 2L)).isTrue();
+        assertThat(hashes.put("foo", 2L)).isFalse();
+        assertThat(hashes.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRemove() {
+        ResourceHashes hashes = new ResourceHashes();
+        hashes.put("foo", 1L);
+
+        assertThat(hashes.remove("foo")).isTrue();
+        assertThat(hashes.remove("foo")).isFalse();
+        assertThat(hashes.size()).isZero();
+        // Once forgotten, the same hash counts as a change again.
+        assertThat(hashes.put("foo", 1L)).isTrue();
+    }
+
+    @Test
+    public void testBehavesLikeAMap() {
+        // Enough names to force several resizes, and few enough that removes and re-puts collide with live entries.
+        Random random = new Random(42);
+        ResourceHashes hashes = new ResourceHashes();
+        Map<String, Long> expected = new HashMap<>();
+        for (int i = 0; i < 200_000; ++i) {
+            String name = "outbound|8080||service-" + random.nextInt(5000) + ".svc.cluster.local";
+            long hash = random.nextInt(4);
+            if (random.nextInt(3) == 0) {
+                assertThat(hashes.remove(name)).isEqualTo(expected.remove(name) != null);
+            } else {
+                Long previous = expected.put(name, hash);
+                assertThat(hashes.put(name, hash)).isEqualTo(previous == null || previous != hash);
+            }
+            assertThat(hashes.size()).isEqualTo(expected.size());
+        }
+        for (int i = 0; i < 5000; ++i) {
+            String name = "outbound|8080||service-" + i + ".svc.cluster.local";
+            Long hash = expected.get(name);
+            if (hash != null) {
+                // Putting what's already there is not a change.
+                assertThat(hashes.put(name, hash)).isFalse();
+            } else {
+                assertThat(hashes.remove(name)).isFalse();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,321 @@
+package com.transferwise.envoy.xds.sotw;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.Message;
+import com.transferwise.envoy.xds.CommonDiscoveryRequest;
+import com.transferwise.envoy.xds.DiscoveryService;
+import com.transferwise.envoy.xds.DiscoveryServiceManager;
+import com.transferwise.envoy.xds.NodeConfig;
+import com.transferwise.envoy.xds.PackedResourceCache;
+import com.transferwise.envoy.xds.PushOrder;
+import com.transferwise.envoy.xds.TypeUrl;
+import com.transferwise.envoy.xds.XdsConfig;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
+import com.transferwise.envoy.xds.api.IncrementalConfigBuilder;
+import com.transferwise.envoy.xds.api.utils.QueueingStateBacklog;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.config.endpoint.v3.LocalityLbEndpoints;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryRequest;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryResponse;
+import io.grpc.stub.StreamObserver;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class SotwDiscoveryServiceTest {
+
+    private static class DummyUpdate {
+
+    }
+
+    @Captor ArgumentCaptor<DiscoveryResponse> responseCaptor;
+
+    private static ClusterLoadAssignment cla(String name, int priority) {
+        return ClusterLoadAssignment.newBuilder()
+            .setClusterName(name)
+            .addEndpoints(LocalityLbEndpoints.newBuilder().setPriority(priority))
+            .build();
+    }
+
+    private static CommonDiscoveryRequest<DiscoveryRequest> request(DiscoveryRequest message) {
+        return CommonDiscoveryRequest.of(message, null, message.getTypeUrl(), null);
+    }
+
+    private static DiscoveryRequest ack(DiscoveryResponse response) {
+        return DiscoveryRequest.newBuilder()
+            .setTypeUrl(TypeUrl.EDS.getTypeUrl())
+            .addAllResourceNames(List.of("a", "b", "c"))
+            .setVersionInfo(response.getVersionInfo())
+            .setResponseNonce(response.getNonce())
+            .build();
+    }
+
+    @Test
+    public void testOnlyChangedResourcesArePacked(@Mock StreamObserver<DiscoveryResponse> responseObserver,
+                                                  @Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, Object> configBuilder) {
+
+        final DummyUpdate initState = new DummyUpdate();
+        final DummyUpdate nextState = new DummyUpdate();
+        final NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+
+        when(configBuilder.getResourcesRemoveOrder(eq(initState), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<ClusterLoadAssignment>builder()
+            .resource(IncrementalConfigBuilder.NamedMessage.of(cla("a", 0)))
+            .resource(IncrementalConfigBuilder.NamedMessage.of(cla("b", 0)))
+            .resource(IncrementalConfigBuilder.NamedMessage.of(cla("c", 0)))
+            .build());
+        when(configBuilder.addOrder(eq(nextState), any(), any())).thenReturn(IncrementalConfigBuilder.Response.<ClusterLoadAssignment>builder()
+            .addAndUpdate(IncrementalConfigBuilder.NamedMessage.of(cla("b", 1)))
+            .build());
+        when(configBuilder.removeOrder(eq(nextState), any(), any())).thenReturn(IncrementalConfigBuilder.Response.<ClusterLoadAssignment>builder().build());
+
+        int[] packs = {0};
+        SotwDiscoveryService<ClusterLoadAssignment, DummyUpdate, Object> ds = new SotwDiscoveryService<>(TypeUrl.EDS, responseObserver, new SubListSubManager(), new VersionManager(),
+            configBuilder, nodeConfig) {
+            @Override
+            protected PackedResourceCache.Packed pack(Message o) {
+                ++packs[0];
+                return super.pack(o);
+            }
+        };
+        ds.init(initState);
+
+        ds.processUpdate(request(DiscoveryRequest.newBuilder().setTypeUrl(TypeUrl.EDS.getTypeUrl()).addAllResourceNames(List.of("a", "b", "c")).build()));
+        verify(responseObserver).onNext(responseCaptor.capture());
+        DiscoveryResponse first = responseCaptor.getValue();
+        assertThat(first.getResourcesCount()).isEqualTo(3);
+        assertThat(packs[0]).isEqualTo(3);
+        ds.processUpdate(request(ack(first)));
+
+        ds.onNetworkUpdate(nextState);
+        ds.sendNetworkUpdatePre();
+        verify(responseObserver, times(2)).onNext(responseCaptor.capture());
+        DiscoveryResponse second = responseCaptor.getValue();
+        ds.processUpdate(request(ack(second)));
+        ds.sendNetworkUpdatePost();
+
+        // Only b changed, so only b was packed again. The others are sent as they were packed the first time.
+        assertThat(packs[0]).isEqualTo(4);
+        assertThat(second.getResourcesList()).containsExactly(first.getResources(0), Any.pack(cla("b", 1)), first.getResources(2));
+        assertThat(second.getResources(0)).isSameAs(first.getResources(0));
+        assertThat(second.getResources(2)).isSameAs(first.getResources(2));
+        assertThat(ds.awaitingAck()).isFalse();
+    }
+
+    @Test
+    public void testUnchangedResourcesAreNotPushedAgain(@Mock StreamObserver<DiscoveryResponse> responseObserver,
+                                                       @Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, Object> configBuilder,
+                                                       @Mock DiscoveryServiceManagerMetrics metrics) {
+
+        final DummyUpdate initState = new DummyUpdate();
+        final DummyUpdate sameState = new DummyUpdate();
+        final DummyUpdate changedState = new DummyUpdate();
+        final NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+
+        when(configBuilder.getResourcesRemoveOrder(eq(initState), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<ClusterLoadAssignment>builder()
+            .resource(IncrementalConfigBuilder.NamedMessage.of(cla("a", 0)))
+            .resource(IncrementalConfigBuilder.NamedMessage.of(cla("b", 0)))
+            .build());
+        // Config builders are allowed to return resources that haven't changed, and to remove and re-add resources.
+        when(configBuilder.addOrder(eq(sameState), any(), any())).thenReturn(IncrementalConfigBuilder.Response.<ClusterLoadAssignment>builder()
+            .addAndUpdate(IncrementalConfigBuilder.NamedMessage.of(cla("b", 0)))
+            .build());
+        when(configBuilder.removeOrder(eq(sameState), any(), any())).thenReturn(IncrementalConfigBuilder.Response.<ClusterLoadAssignment>builder()
+            .remove("a")
+            .build());
+        when(configBuilder.addOrder(eq(changedState), any(), any())).thenReturn(IncrementalConfigBuilder.Response.<ClusterLoadAssignment>builder()
+            .addAndUpdate(IncrementalConfigBuilder.NamedMessage.of(cla("a", 0)))
+            .build());
+
+        SotwDiscoveryService<ClusterLoadAssignment, DummyUpdate, Object> ds = new SotwDiscoveryService<>(TypeUrl.EDS, responseObserver, new SubListSubManager(), new VersionManager(),
+            configBuilder, nodeConfig, null, metrics);
+        ds.init(initState);
+
+        ds.processUpdate(request(DiscoveryRequest.newBuilder().setTypeUrl(TypeUrl.EDS.getTypeUrl()).addAllResourceNames(List.of("a", "b", "c")).build()));
+        verify(responseObserver).onNext(responseCaptor.capture());
+        ds.processUpdate(request(ack(responseCaptor.getValue())));
+
+        // b is re-sent unchanged, nothing to push.
+        ds.onNetworkUpdate(sameState);
+        ds.sendNetworkUpdatePre();
+        verify(responseObserver, times(1)).onNext(any());
+        verify(metrics).onPushSuppressed(TypeUrl.EDS);
+        assertThat(ds.awaitingAck()).isFalse();
+
+        // a is removed, that is a real change.
+        ds.sendNetworkUpdatePost();
+        verify(responseObserver, times(2)).onNext(responseCaptor.capture());
+        assertThat(responseCaptor.getValue().getResourcesList()).containsExactly(Any.pack(cla("b", 0)));
+        ds.processUpdate(request(ack(responseCaptor.getValue())));
+
+        // Putting a back is a change from what the client last accepted, even though it matches an earlier version.
+        ds.onNetworkUpdate(changedState);
+        ds.sendNetworkUpdatePre();
+        verify(responseObserver, times(3)).onNext(responseCaptor.capture());
+        assertThat(responseCaptor.getValue().getResourcesList()).containsExactlyInAnyOrder(Any.pack(cla("a", 0)), Any.pack(cla("b", 0)));
+    }
+
+    @Test
+    public void testResumedClientIsOnlySentWhatChanged(@Mock StreamObserver<DiscoveryResponse> firstObserver,
+                                                       @Mock StreamObserver<DiscoveryResponse> secondObserver,
+                                                       @Mock StreamObserver<DiscoveryResponse> thirdObserver,
+                                                       @Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, Object> configBuilder) {
+
+        final DummyUpdate initState = new DummyUpdate();
+        final DummyUpdate changedState = new DummyUpdate();
+        final NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+
+        when(configBuilder.getResourcesRemoveOrder(eq(initState), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<ClusterLoadAssignment>builder()
+            .resource(IncrementalConfigBuilder.NamedMessage.of(cla("a", 0)))
+            .resource(IncrementalConfigBuilder.NamedMessage.of(cla("b", 0)))
+            .build());
+        when(configBuilder.getResourcesRemoveOrder(eq(changedState), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<ClusterLoadAssignment>builder()
+            .resource(IncrementalConfigBuilder.NamedMessage.of(cla("a", 0)))
+            .resource(IncrementalConfigBuilder.NamedMessage.of(cla("b", 1)))
+            .build());
+
+        SotwDiscoveryService<ClusterLoadAssignment, DummyUpdate, Object> first = new SotwDiscoveryService<>(TypeUrl.EDS, firstObserver, new SubListSubManager(), new VersionManager(),
+            configBuilder, nodeConfig);
+        first.init(initState);
+        first.processUpdate(request(DiscoveryRequest.newBuilder().setTypeUrl(TypeUrl.EDS.getTypeUrl()).addAllResourceNames(List.of("a", "b", "c")).build()));
+        verify(firstObserver).onNext(responseCaptor.capture());
+        DiscoveryRequest reconnect = ack(responseCaptor.getValue()).toBuilder().clearResponseNonce().build();
+        first.processUpdate(request(ack(responseCaptor.getValue())));
+        DiscoveryService.SessionState state = first.suspend();
+        assertThat(state).isNotNull();
+
+        // The client reconnects reporting the version it accepted, which is still current.
+        SotwDiscoveryService<ClusterLoadAssignment, DummyUpdate, Object> second = new SotwDiscoveryService<>(TypeUrl.EDS, secondObserver, new SubListSubManager(), new VersionManager(),
+            configBuilder, nodeConfig);
+        second.init(initState);
+        second.resume(state);
+        second.processUpdate(request(reconnect));
+        verify(secondObserver, never()).onNext(any());
+        assertThat(second.resumedInSync()).isTrue();
+        assertThat(second.awaitingAck()).isFalse();
+
+        // The client reconnects reporting the same version, but things have changed since.
+        SotwDiscoveryService<ClusterLoadAssignment, DummyUpdate, Object> third = new SotwDiscoveryService<>(TypeUrl.EDS, thirdObserver, new SubListSubManager(), new VersionManager(),
+            configBuilder, nodeConfig);
+        third.init(changedState);
+        third.resume(state);
+        third.processUpdate(request(reconnect));
+        verify(thirdObserver).onNext(responseCaptor.capture());
+        assertThat(responseCaptor.getValue().getResourcesList()).containsExactly(Any.pack(cla("a", 0)), Any.pack(cla("b", 1)));
+        assertThat(third.resumedInSync()).isFalse();
+    }
+
+    @Test
+    public void testResumedClientReportingAnotherStreamsVersionIsPushed(@Mock StreamObserver<DiscoveryResponse> firstObserver,
+                                                                      @Mock StreamObserver<DiscoveryResponse> elsewhereObserver,
+                                                                      @Mock StreamObserver<DiscoveryResponse> resumedObserver,
+                                                                      @Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, Object> configBuilder) {
+
+        final DummyUpdate initState = new DummyUpdate();
+        final DummyUpdate otherState = new DummyUpdate();
+        final NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+
+        when(configBuilder.getResourcesRemoveOrder(eq(initState), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<ClusterLoadAssignment>builder()
+            .resource(IncrementalConfigBuilder.NamedMessage.of(cla("a", 0)))
+            .build());
+        when(configBuilder.getResourcesRemoveOrder(eq(otherState), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<ClusterLoadAssignment>builder()
+            .resource(IncrementalConfigBuilder.NamedMessage.of(cla("a", 1)))
+            .build());
+        final DiscoveryRequest subscribe = DiscoveryRequest.newBuilder().setTypeUrl(TypeUrl.EDS.getTypeUrl()).addAllResourceNames(List.of("a", "b", "c")).build();
+
+        SotwDiscoveryService<ClusterLoadAssignment, DummyUpdate, Object> first = new SotwDiscoveryService<>(TypeUrl.EDS, firstObserver, new SubListSubManager(), new VersionManager(),
+            configBuilder, nodeConfig);
+        first.init(initState);
+        first.processUpdate(request(subscribe));
+        verify(firstObserver).onNext(responseCaptor.capture());
+        first.processUpdate(request(ack(responseCaptor.getValue())));
+        DiscoveryService.SessionState state = first.suspend();
+
+        // In between, the client gets different config from another server, sent on the same position in its stream.
+        SotwDiscoveryService<ClusterLoadAssignment, DummyUpdate, Object> elsewhere = new SotwDiscoveryService<>(TypeUrl.EDS, elsewhereObserver, new SubListSubManager(),
+            new VersionManager(), configBuilder, nodeConfig);
+        elsewhere.init(otherState);
+        elsewhere.processUpdate(request(subscribe));
+        verify(elsewhereObserver).onNext(responseCaptor.capture());
+        DiscoveryRequest reconnect = ack(responseCaptor.getValue()).toBuilder().clearResponseNonce().build();
+
+        // It comes back reporting that server's version, which isn't the one it accepted from us, so it is sent our config.
+        SotwDiscoveryService<ClusterLoadAssignment, DummyUpdate, Object> resumed = new SotwDiscoveryService<>(TypeUrl.EDS, resumedObserver, new SubListSubManager(),
+            new VersionManager(), configBuilder, nodeConfig);
+        resumed.init(initState);
+        resumed.resume(state);
+        resumed.processUpdate(request(reconnect));
+        verify(resumedObserver).onNext(responseCaptor.capture());
+        assertThat(responseCaptor.getValue().getResourcesList()).containsExactly(Any.pack(cla("a", 0)));
+        assertThat(resumed.resumedInSync()).isFalse();
+    }
+
+    @Test
+    public void testPipelinedResponsesAreAckedInOrder(@Mock StreamObserver<DiscoveryResponse> responseObserver,
+                                                      @Mock IncrementalConfigBuilder<ClusterLoadAssignment, DummyUpdate, Object> configBuilder) {
+
+        final DummyUpdate initState = new DummyUpdate();
+        final NodeConfig<Object> nodeConfig = NodeConfig.builder().xdsConfig(XdsConfig.builder().clientDetails(new Object()).build()).build();
+
+        when(configBuilder.getResourcesRemoveOrder(eq(initState), any(), any())).thenReturn(IncrementalConfigBuilder.Resources.<ClusterLoadAssignment>builder()
+            .resource(IncrementalConfigBuilder.NamedMessage.of(cla("a", 0)))
+            .build());
+        // Every update changes a.
+        int[] priority = {0};
+        when(configBuilder.addOrder(any(), any(), any())).thenAnswer(invocation -> IncrementalConfigBuilder.Response.<ClusterLoadAssignment>builder()
+            .addAndUpdate(IncrementalConfigBuilder.NamedMessage.of(cla("a", ++priority[0])))
+            .build());
+        when(configBuilder.removeOrder(any(), any(), any())).thenReturn(IncrementalConfigBuilder.Response.<ClusterLoadAssignment>builder().build());
+
+        SotwDiscoveryService<ClusterLoadAssignment, DummyUpdate, Object> ds = new SotwDiscoveryService<>(TypeUrl.EDS, responseObserver, new SubListSubManager(), new VersionManager(),
+            configBuilder, nodeConfig);
+        DiscoveryServiceManager<DiscoveryRequest, DummyUpdate> dsm = new DiscoveryServiceManager<>(
+            Map.of(TypeUrl.EDS, ds),
+            PushOrder.sequential(List.of(TypeUrl.EDS), List.of(TypeUrl.EDS)).withPipelineWindow(TypeUrl.EDS, 2),
+            QueueingStateBacklog.<DummyUpdate>factory().build(),
+            DiscoveryServiceManagerMetrics.NOOP_METRICS
+        );
+        dsm.init(initState);
+
+        dsm.processUpdate(request(DiscoveryRequest.newBuilder().setTypeUrl(TypeUrl.EDS.getTypeUrl()).addAllResourceNames(List.of("a", "b", "c")).build()));
+        verify(responseObserver).onNext(responseCaptor.capture());
+        dsm.processUpdate(request(ack(responseCaptor.getValue())));
+
+        // Two pushes fit in the window, the third waits.
+        dsm.pushUpdates(new DummyUpdate());
+        dsm.pushUpdates(new DummyUpdate());
+        dsm.pushUpdates(new DummyUpdate());
+        verify(responseObserver, times(3)).onNext(responseCaptor.capture());
+        List<DiscoveryResponse> pipelined = List.copyOf(responseCaptor.getAllValues().subList(responseCaptor.getAllValues().size() - 2, responseCaptor.getAllValues().size()));
+        assertThat(ds.unackedResponses()).isEqualTo(2);
+
+        // Envoy acks them in order. Acking the first makes room for the third push.
+        dsm.processUpdate(request(ack(pipelined.get(0))));
+        verify(responseObserver, times(4)).onNext(responseCaptor.capture());
+        DiscoveryResponse third = responseCaptor.getValue();
+        assertThat(ds.unackedResponses()).isEqualTo(2);
+
+        dsm.processUpdate(request(ack(pipelined.get(1))));
+        dsm.processUpdate(request(ack(third)));
+        assertThat(ds.awaitingAck()).isFalse();
+        assertThat(ds.unackedResponses()).isZero();
+
+        // Nothing was mistaken for a subscription change, so the next push goes straight out.
+        dsm.pushUpdates(new DummyUpdate());
+        verify(responseObserver, times(5)).onNext(any());
+    }
+
+}
@@ -1,8 +1,10 @@
 package com.transferwise.envoy.xds.sotw;
 
 import com.google.common.primitives.UnsignedLong;
-import com.transferwise.envoy.xds.sotw.VersionManager;
+import com.transferwise.envoy.xds.api.utils.CounterNonceStrategy;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Iterator;
+import java.util.List;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -15,13 +17,13 @@ public class VersionManagerSpec {
 
     @Test
     public void testNoneSent() {
-        VersionManager versionManager = new VersionManager();
+        VersionManager versionManager = new VersionManager(UnsignedLong.ONE);
         assertThat(versionManager.needsPush()).isTrue();
     }
 
     @Test
     public void testAcceptsVersion() {
-        VersionManager versionManager = new VersionManager();
+        VersionManager versionManager = new VersionManager(UnsignedLong.ONE);
         assertThat(versionManager.processUpdate("", "")).isTrue();
         assertThat(versionManager.needsPush()).isTrue();
         final String sentNonce = versionManager.pushedVersion("1");
@@ -36,7 +38,7 @@ public class VersionManagerSpec {
 
     @Test
     public void testRejectsInitialVersion() {
-        VersionManager versionManager = new VersionManager();
+        VersionManager versionManager = new VersionManager(UnsignedLong.ONE);
         versionManager.processUpdate("", "");
         final String sentNonce = versionManager.pushedVersion("1");
         assertThat(versionManager.processUpdate(sentNonce, "")).isTrue(); // reject that version
@@ -47,7 +49,7 @@ public class VersionManagerSpec {
 
     @Test
     public void testsRejectsThenAccepts() {
-        VersionManager versionManager = new VersionManager();
+        VersionManager versionManager = new VersionManager(UnsignedLong.ONE);
         versionManager.processUpdate("", "");
         String sentNonce = versionManager.pushedVersion("1");
         versionManager.processUpdate(sentNonce, ""); // reject that version
@@ -78,7 +80,7 @@ public class VersionManagerSpec {
 
     @Test
     public void testRejectsVersion() {
-        VersionManager versionManager = new VersionManager();
+        VersionManager versionManager = new VersionManager(UnsignedLong.ONE);
         getToNonInitialState(versionManager);
         String nonce = versionManager.pushedVersion("2");
 
@@ -91,7 +93,7 @@ public class VersionManagerSpec {
 
     @Test
     public void testClientSendsOutOfDateVersion() {
-        VersionManager versionManager = new VersionManager();
+        VersionManager versionManager = new VersionManager(UnsignedLong.ONE);
         final String nonce = getToNonInitialState(versionManager);
 
         final String newNonce = versionManager.pushedVersion("2");
@@ -119,4 +121,40 @@ public class VersionManagerSpec {
         assertThatThrownBy(versionManager::getNext).isInstanceOf(IndexOutOfBoundsException.class);
     }
 
+    @Test
+    public void testNoncesComeFromGenerator() {
+        Iterator<String> nonces = List.of("a", "b").iterator();
+        VersionManager versionManager = new VersionManager(nonces::next);
+        versionManager.processUpdate("", "");
+        String version = versionManager.getNext();
+        assertThat(versionManager.pushedVersion(version)).isEqualTo("a");
+        assertThat(versionManager.processUpdate("b", version)).isFalse(); // not sent yet
+        assertThat(versionManager.processUpdate("a", version)).isTrue();
+        assertThat(versionManager.hasAcceptedVersion(version)).isTrue();
+        assertThat(versionManager.pushedVersion(versionManager.getNext())).isEqualTo("b");
+    }
+
+    @Test
+    public void testEachStreamHasItsOwnVersions() {
+        VersionManager first = new VersionManager(new CounterNonceStrategy().newGenerator());
+        VersionManager second = new VersionManager(new CounterNonceStrategy().newGenerator());
+        assertThat(first.getNext()).isNotEqualTo(second.getNext());
+    }
+
+    @Test
+    public void testAckOfALaterResponseSettlesEarlierOnes() {
+        VersionManager versionManager = new VersionManager(UnsignedLong.ONE);
+        versionManager.processUpdate("", "");
+        String first = versionManager.pushedVersion(versionManager.getNext());
+        String secondVersion = versionManager.getNext();
+        String second = versionManager.pushedVersion(secondVersion);
+        assertThat(versionManager.unansweredResponses()).isEqualTo(2);
+
+        // Envoy only answered the second, the first was superseded.
+        assertThat(versionManager.processUpdate(second, secondVersion)).isTrue();
+        assertThat(versionManager.unansweredResponses()).isZero();
+        assertThat(versionManager.hasAcceptedVersion(secondVersion)).isTrue();
+        assertThat(versionManager.processUpdate(first, secondVersion)).isFalse();
+    }
+
 }
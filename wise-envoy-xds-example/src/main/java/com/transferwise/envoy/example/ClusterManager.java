@@ -6,14 +6,11 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.net.HostAndPort;
 import com.transferwise.envoy.xds.api.ClusterEventSource;
 import com.transferwise.envoy.xds.api.ClusterManagerEventListener;
-import com.transferwise.envoy.xds.api.utils.QueueingMergingEventListener;
+import com.transferwise.envoy.xds.api.utils.ShardedMergingEventDispatcher;
 import com.transferwise.envoy.example.state.Service;
 import com.transferwise.envoy.example.state.SimpleUpdate;
 import java.util.Arrays;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
@@ -23,32 +20,30 @@ import javax.annotation.concurrent.GuardedBy;
 public class ClusterManager implements ClusterEventSource<SimpleUpdate> {
 
     /**
-     * Maps ClustermanagerEventListeners that actually subscribed to this source to the QueueingMergingEventListener that we've wrapped them in.
+     * Delivers updates to the ClusterManagerEventListeners that subscribed to this source, using a thread per core rather than a thread per listener.
      */
-    private final ConcurrentHashMap<ClusterManagerEventListener<SimpleUpdate>, QueueingMergingEventListener<SimpleUpdate>> targets = new ConcurrentHashMap<>();
+    private final ShardedMergingEventDispatcher<SimpleUpdate> targets = new ShardedMergingEventDispatcher<>();
 
     @GuardedBy("this")
     private ImmutableMap<String, Service> currentState = ImmutableMap.of();
 
     private void sendUpdate(SimpleUpdate update) {
         // A real implementation should probably catch errors and not explode if a listener fails!
-        targets.values().forEach(t -> t.onNetworkChange(update));
+        targets.dispatch(update);
     }
 
     @Override
     public synchronized SimpleUpdate subscribe(ClusterManagerEventListener<SimpleUpdate> listener) {
-        // Subscribers may do heavy lifting in their onNetworkChange methods. To avoid this blocking the cluster manager we wrap them in a queue backed listener which will submit calls to an executor service.
-        // This particular listener implementation takes advantage of the fact that SimpleUpdate implements Mergeable, so it will also compress the queue into a single call before executing it.
-        targets.computeIfAbsent(listener, QueueingMergingEventListener::createAndStart);
+        // Subscribers may do heavy lifting in their onNetworkChange methods. To avoid this blocking the cluster manager we hand updates to a dispatcher which calls them from its own threads.
+        // The dispatcher takes advantage of the fact that SimpleUpdate implements Mergeable, so updates that arrive while a subscriber is busy are compressed into a single call.
+        targets.add(listener);
         return SimpleUpdate.builder().after(currentState).build();
     }
 
     @Override
     public void unsubscribe(ClusterManagerEventListener<SimpleUpdate> listener) {
-        ClusterManagerEventListener<SimpleUpdate> old = targets.remove(listener);
-        if (old != null) {
-            old.close();
-        }
+        // The dispatcher closes the listener once it has delivered anything still pending.
+        targets.remove(listener);
     }
 
     public synchronized void setEndpoints(String service, HostAndPort... endpoints) {
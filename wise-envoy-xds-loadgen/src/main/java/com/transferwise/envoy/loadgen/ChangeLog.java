@@ -0,0 +1,115 @@
+package com.transferwise.envoy.loadgen;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.HostAndPort;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.config.endpoint.v3.LbEndpoint;
+import io.envoyproxy.envoy.config.endpoint.v3.LocalityLbEndpoints;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Tracks the endpoint changes made to each service, so simulated envoys can tell when they have received them.
+ * Every change gets a generation number which is encoded into the endpoint addresses, so an envoy can work out from a cluster load assignment alone which
+ * changes it contains. A change has fully reached an envoy once every endpoint it has for the service is from that generation or later, at which point the
+ * old endpoints have been removed.
+ * This class is thread safe.
+ */
+class ChangeLog {
+
+    private static final int MAX_GENERATION = 1 << 24;
+
+    private final AtomicLong nextGeneration = new AtomicLong(1);
+
+    private final Map<String, ConcurrentSkipListMap<Long, Long>> changeTimes = new ConcurrentHashMap<>();
+
+    private final Map<Long, LongAccumulator> lastAckTimes = new ConcurrentHashMap<>();
+
+    private final Map<Long, Long> startTimes = new ConcurrentHashMap<>();
+
+    private final LatencyRecorder deliveryLatency = new LatencyRecorder();
+
+    /**
+     * Record the start of a change, call this immediately before calling setEndpoints.
+     * @return Endpoints for the new generation of the service.
+     */
+    ImmutableList<HostAndPort> begin(String service, int endpointCount) {
+        long generation = nextGeneration.getAndIncrement();
+        Preconditions.checkState(generation < MAX_GENERATION, "Ran out of generations");
+        ImmutableList.Builder<HostAndPort> endpoints = ImmutableList.builder();
+        String host = "10." + ((generation >> 16) & 0xff) + "." + ((generation >> 8) & 0xff) + "." + (generation & 0xff);
+        for (int i = 0; i < endpointCount; ++i) {
+            endpoints.add(HostAndPort.fromParts(host, 1000 + i));
+        }
+        long now = System.nanoTime();
+        startTimes.put(generation, now);
+        changeTimes.computeIfAbsent(service, s -> new ConcurrentSkipListMap<>()).put(generation, now);
+        return endpoints.build();
+    }
+
+    /**
+     * Oldest generation of any endpoint in the assignment, or 0 if it has none.
+     */
+    static long generationOf(ClusterLoadAssignment cla) {
+        long oldest = Long.MAX_VALUE;
+        for (LocalityLbEndpoints locality : cla.getEndpointsList()) {
+            for (LbEndpoint endpoint : locality.getLbEndpointsList()) {
+                String[] octets = endpoint.getEndpoint().getAddress().getSocketAddress().getAddress().split("\\.");
+                long generation = (Long.parseLong(octets[1]) << 16) | (Long.parseLong(octets[2]) << 8) | Long.parseLong(octets[3]);
+                oldest = Math.min(oldest, generation);
+            }
+        }
+        return oldest == Long.MAX_VALUE ? 0 : oldest;
+    }
+
+    /**
+     * An envoy acked a cluster load assignment for a service that now contains every change up to and including generation.
+     * @param previous The generation of the last assignment the envoy acked for this service.
+     */
+    void acked(String service, long previous, long generation, long ackTime) {
+        if (generation <= previous) {
+            return;
+        }
+        ConcurrentSkipListMap<Long, Long> changes = changeTimes.get(service);
+        if (changes == null) {
+            return;
+        }
+        changes.subMap(previous, false, generation, true).forEach((changeGeneration, start) -> {
+            deliveryLatency.record(ackTime - start);
+            lastAckTimes.computeIfAbsent(changeGeneration, g -> new LongAccumulator(Math::max, Long.MIN_VALUE)).accumulate(ackTime);
+        });
+    }
+
+    /**
+     * Latency from setEndpoints to each envoy acking the change.
+     */
+    LatencyRecorder getDeliveryLatency() {
+        return deliveryLatency;
+    }
+
+    /**
+     * Latency from setEndpoints to the last envoy acking the change, for changes made since the given time.
+     */
+    LatencyRecorder convergenceLatency(long since) {
+        LatencyRecorder convergence = new LatencyRecorder();
+        lastAckTimes.forEach((generation, lastAck) -> {
+            long start = startTimes.get(generation);
+            if (start >= since) {
+                convergence.record(lastAck.get() - start);
+            }
+        });
+        return convergence;
+    }
+
+    /**
+     * Drop everything recorded so far, for example the initial state, so it isn't reported.
+     */
+    void resetLatencies() {
+        deliveryLatency.reset();
+        lastAckTimes.clear();
+    }
+}
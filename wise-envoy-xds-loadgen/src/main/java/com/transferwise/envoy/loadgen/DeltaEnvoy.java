@@ -0,0 +1,112 @@
+package com.transferwise.envoy.loadgen;
+
+import com.transferwise.envoy.xds.TypeUrl;
+import io.envoyproxy.envoy.config.cluster.v3.Cluster;
+import io.envoyproxy.envoy.config.core.v3.Node;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.service.discovery.v3.AggregatedDiscoveryServiceGrpc.AggregatedDiscoveryServiceStub;
+import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryRequest;
+import io.envoyproxy.envoy.service.discovery.v3.DeltaDiscoveryResponse;
+import io.envoyproxy.envoy.service.discovery.v3.Resource;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Simulated envoy using the delta (incremental) protocol.
+ * Acks only carry the nonce, subscription changes are sent as separate requests listing what was added and removed.
+ */
+class DeltaEnvoy extends SimulatedEnvoy {
+
+    private StreamObserver<DeltaDiscoveryRequest> requests = null;
+
+    DeltaEnvoy(int id, AggregatedDiscoveryServiceStub stub, LoadGeneratorConfig config, ChangeLog changeLog, FleetStats stats, ScheduledExecutorService scheduler) {
+        super(id, stub, config, changeLog, stats, scheduler);
+    }
+
+    @Override
+    protected void openStream(int epoch) {
+        requests = stub.deltaAggregatedResources(new StreamObserver<>() {
+            @Override
+            public void onNext(DeltaDiscoveryResponse response) {
+                onResponse(epoch, nack -> respond(response, nack));
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                onStreamEnded(epoch);
+            }
+
+            @Override
+            public void onCompleted() {
+                onStreamEnded(epoch);
+            }
+        });
+        send(request(TypeUrl.CDS));
+        send(request(TypeUrl.RDS).addResourceNamesSubscribe(ROUTE_NAME));
+    }
+
+    @Override
+    protected void closeStream() {
+        requests.onCompleted();
+    }
+
+    private DeltaDiscoveryRequest.Builder request(TypeUrl type) {
+        return DeltaDiscoveryRequest.newBuilder().setTypeUrl(type.getTypeUrl());
+    }
+
+    private void send(DeltaDiscoveryRequest.Builder request) {
+        Node node = nodeIfFirstRequest();
+        if (node != null) {
+            request.setNode(node);
+        }
+        requests.onNext(request.build());
+    }
+
+    private void respond(DeltaDiscoveryResponse response, boolean nack) {
+        TypeUrl type = TypeUrl.of(response.getTypeUrl());
+        DeltaDiscoveryRequest.Builder ack = request(type).setResponseNonce(response.getNonce());
+        if (nack) {
+            send(ack.setErrorDetail(nackDetail()));
+            return;
+        }
+        send(ack);
+        switch (type) {
+            case CDS -> {
+                List<String> subscribe = new ArrayList<>();
+                for (Resource resource : response.getResourcesList()) {
+                    String name = unpack(resource.getResource(), Cluster.class).getName();
+                    if (clusters.add(name)) {
+                        subscribe.add(name);
+                    }
+                }
+                List<String> unsubscribe = new ArrayList<>();
+                for (String name : response.getRemovedResourcesList()) {
+                    if (clusters.remove(name) && !churnedOut.remove(name)) {
+                        unsubscribe.add(name);
+                    }
+                }
+                if (!subscribe.isEmpty() || !unsubscribe.isEmpty()) {
+                    // Envoy asks for the endpoints of new clusters once it has accepted them.
+                    updateEndpointSubscriptions(subscribe, unsubscribe);
+                }
+            }
+            case EDS -> {
+                for (Resource resource : response.getResourcesList()) {
+                    endpointsAcked(unpack(resource.getResource(), ClusterLoadAssignment.class));
+                }
+                response.getRemovedResourcesList().forEach(this::endpointsRemoved);
+            }
+            default -> {
+            }
+        }
+    }
+
+    @Override
+    protected void updateEndpointSubscriptions(Collection<String> subscribe, Collection<String> unsubscribe) {
+        unsubscribe.forEach(this::endpointsRemoved);
+        send(request(TypeUrl.EDS).addAllResourceNamesSubscribe(subscribe).addAllResourceNamesUnsubscribe(unsubscribe));
+    }
+}
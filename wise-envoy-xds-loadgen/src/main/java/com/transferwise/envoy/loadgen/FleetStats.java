@@ -0,0 +1,37 @@
+package com.transferwise.envoy.loadgen;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared by every simulated envoy.
+ */
+class FleetStats {
+
+    final LongAdder responses = new LongAdder();
+
+    final LongAdder acks = new LongAdder();
+
+    final LongAdder nacks = new LongAdder();
+
+    final LongAdder subscriptionChanges = new LongAdder();
+
+    /**
+     * Streams ended by the control plane (for example after a NACK.)
+     */
+    final LongAdder disconnects = new LongAdder();
+
+    /**
+     * Streams the envoys dropped themselves.
+     */
+    final LongAdder reconnects = new LongAdder();
+
+    /**
+     * Envoys that have received endpoints for every cluster at least once.
+     */
+    final LongAdder synced = new LongAdder();
+
+    String summary() {
+        return String.format("responses=%d acks=%d nacks=%d subscriptionChanges=%d disconnects=%d reconnects=%d",
+            responses.sum(), acks.sum(), nacks.sum(), subscriptionChanges.sum(), disconnects.sum(), reconnects.sum());
+    }
+}
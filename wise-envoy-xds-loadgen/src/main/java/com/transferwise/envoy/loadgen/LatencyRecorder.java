@@ -0,0 +1,49 @@
+package com.transferwise.envoy.loadgen;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects latency samples, in nanoseconds, and reports percentiles.
+ * Every sample is kept: at the rates we simulate that is a few million longs per run at most.
+ * This class is thread safe.
+ */
+class LatencyRecorder {
+
+    private long[] samples = new long[1024];
+
+    private int count = 0;
+
+    synchronized void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    synchronized void reset() {
+        count = 0;
+    }
+
+    synchronized int count() {
+        return count;
+    }
+
+    /**
+     * Format the count and p50, p90, p99, p99.9 and max in milliseconds.
+     */
+    synchronized String summary() {
+        if (count == 0) {
+            return "no samples";
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return String.format("n=%d p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms",
+            count, millis(sorted, 0.5), millis(sorted, 0.9), millis(sorted, 0.99), millis(sorted, 0.999), millis(sorted, 1.0));
+    }
+
+    private static double millis(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
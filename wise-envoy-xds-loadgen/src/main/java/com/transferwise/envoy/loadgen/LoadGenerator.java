@@ -0,0 +1,167 @@
+package com.transferwise.envoy.loadgen;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.HostAndPort;
+import com.transferwise.envoy.example.ClusterManager;
+import com.transferwise.envoy.example.config.ClientConfig;
+import com.transferwise.envoy.example.config.StaticClientConfigSource;
+import com.transferwise.envoy.example.configbuilder.ClusterConfigBuilder;
+import com.transferwise.envoy.example.configbuilder.ClusterLoadAssignmentConfigBuilder;
+import com.transferwise.envoy.example.configbuilder.RouteConfigurationConfigBuilder;
+import com.transferwise.envoy.example.state.SimpleUpdate;
+import com.transferwise.envoy.xds.AggregatedDiscoveryService;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
+import com.transferwise.envoy.xds.api.utils.MergingStateBacklog;
+import io.envoyproxy.envoy.service.discovery.v3.AggregatedDiscoveryServiceGrpc;
+import io.envoyproxy.envoy.service.discovery.v3.AggregatedDiscoveryServiceGrpc.AggregatedDiscoveryServiceStub;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Drives the example control plane with a fleet of simulated envoys over gRPC's in-process transport, and reports how long endpoint changes take to reach them.
+ * The run has three phases:
+ * <ol>
+ *     <li>Connect every envoy and wait until each has received the endpoints of every cluster. Heap per client is measured at the end of this phase.</li>
+ *     <li>Call ClusterManager.setEndpoints at the configured rate for the configured duration, along with any NACKs, subscription churn and reconnects.
+ *     CPU is measured over this phase.</li>
+ *     <li>Stop making changes and give the envoys a few seconds to catch up, then report.</li>
+ * </ol>
+ * The simulated envoys run in the same JVM, so the CPU and heap figures include them as well as the control plane. They are kept as cheap as possible,
+ * but compare runs against each other rather than taking the absolute numbers at face value.
+ */
+@Slf4j
+public class LoadGenerator {
+
+    private static final long SYNC_TIMEOUT_SECONDS = 300;
+
+    private static final long SETTLE_SECONDS = 5;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadGeneratorConfig config = LoadGeneratorConfig.parse(args);
+        System.out.println("Running with " + config);
+
+        ClusterManager clusterManager = new ClusterManager();
+        ChangeLog changeLog = new ChangeLog();
+        List<String> services = new ArrayList<>(config.getServices());
+        for (int i = 0; i < config.getServices(); ++i) {
+            String service = "service-" + i;
+            services.add(service);
+            clusterManager.setEndpoints(service, changeLog.begin(service, config.getEndpointsPerService()).toArray(new HostAndPort[0]));
+        }
+
+        AggregatedDiscoveryService<SimpleUpdate, ClientConfig> ads = new AggregatedDiscoveryService<>(
+            clusterManager,
+            ImmutableList.of(new ClusterConfigBuilder(), new ClusterLoadAssignmentConfigBuilder(), new RouteConfigurationConfigBuilder()),
+            new StaticClientConfigSource(),
+            ImmutableList.of(),
+            MergingStateBacklog.factory(),
+            DiscoveryServiceManagerMetrics.METRICS_DISABLED
+        );
+        String serverName = InProcessServerBuilder.generateName();
+        Server server = InProcessServerBuilder.forName(serverName).addService(ads).build().start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(serverName).build();
+        AggregatedDiscoveryServiceStub stub = AggregatedDiscoveryServiceGrpc.newStub(channel);
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "loadgen-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        FleetStats stats = new FleetStats();
+        long heapBefore = usedHeapAfterGc();
+        List<SimulatedEnvoy> envoys = new ArrayList<>(config.getClients());
+        for (int i = 0; i < config.getClients(); ++i) {
+            // Spread the delta envoys evenly through the fleet.
+            boolean delta = Math.floor((i + 1) * config.getDeltaFraction()) > Math.floor(i * config.getDeltaFraction());
+            SimulatedEnvoy envoy = delta
+                ? new DeltaEnvoy(i, stub, config, changeLog, stats, scheduler)
+                : new SotwEnvoy(i, stub, config, changeLog, stats, scheduler);
+            envoys.add(envoy);
+            envoy.connect();
+        }
+
+        long syncDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SYNC_TIMEOUT_SECONDS);
+        while (stats.synced.sum() < config.getClients()) {
+            if (System.nanoTime() > syncDeadline) {
+                throw new IllegalStateException("Only " + stats.synced.sum() + " of " + config.getClients() + " clients received the initial state");
+            }
+            Thread.sleep(100);
+        }
+        long heapPerClient = (usedHeapAfterGc() - heapBefore) / config.getClients();
+        System.out.println("All " + config.getClients() + " clients connected and synced, " + stats.summary());
+
+        changeLog.resetLatencies();
+        long start = System.nanoTime();
+        long cpuStart = processCpuTime();
+        List<ScheduledFuture<?>> tasks = new ArrayList<>();
+        SplittableRandom random = new SplittableRandom(config.getSeed());
+        tasks.add(atRate(scheduler, config.getChangesPerSecond(), random.split(), r -> {
+            String service = services.get(r.nextInt(services.size()));
+            clusterManager.setEndpoints(service, changeLog.begin(service, config.getEndpointsPerService()).toArray(new HostAndPort[0]));
+        }));
+        tasks.add(atRate(scheduler, config.getSubscriptionChangesPerSecond(), random.split(), r -> envoys.get(r.nextInt(envoys.size())).churnSubscription()));
+        tasks.add(atRate(scheduler, config.getReconnectsPerSecond(), random.split(), r -> envoys.get(r.nextInt(envoys.size())).reconnect()));
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(config.getDurationSeconds()));
+        tasks.forEach(task -> task.cancel(false));
+        long cpuNanos = processCpuTime() - cpuStart;
+        long elapsedNanos = System.nanoTime() - start;
+        Thread.sleep(TimeUnit.SECONDS.toMillis(SETTLE_SECONDS));
+
+        System.out.println();
+        System.out.println("Fleet: " + stats.summary());
+        System.out.println("setEndpoints to ack, per client:      " + changeLog.getDeliveryLatency().summary());
+        System.out.println("setEndpoints to last ack, per change: " + changeLog.convergenceLatency(start).summary());
+        System.out.printf("CPU: %.2f cores, %.1f us per client per second%n",
+            cpuNanos / (double) elapsedNanos, cpuNanos / 1000.0 / config.getClients() / (elapsedNanos / 1e9));
+        System.out.printf("Heap: %d KiB per client%n", heapPerClient / 1024);
+
+        envoys.forEach(SimulatedEnvoy::close);
+        channel.shutdownNow();
+        server.shutdownNow();
+        server.awaitTermination(10, TimeUnit.SECONDS);
+        scheduler.shutdownNow();
+    }
+
+    private static ScheduledFuture<?> atRate(ScheduledExecutorService scheduler, double perSecond, SplittableRandom random, Consumer<SplittableRandom> task) {
+        if (perSecond <= 0) {
+            return scheduler.schedule(() -> { }, 0, TimeUnit.SECONDS);
+        }
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+        // A task never runs concurrently with itself, so it can use the random without synchronization.
+        return scheduler.scheduleAtFixedRate(() -> {
+            try {
+                task.accept(random);
+            } catch (RuntimeException e) {
+                // Don't let one failure cancel the task.
+                log.error("Load generator task failed", e);
+            }
+        }, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        System.gc();
+        Thread.sleep(200);
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long processCpuTime() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            return os.getProcessCpuTime();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,113 @@
+package com.transferwise.envoy.loadgen;
+
+import lombok.Builder;
+import lombok.Builder.Default;
+import lombok.Value;
+
+/**
+ * Settings for a load generator run. The defaults reproduce our production profile of 25 changes/s with 1000 envoys.
+ * Every setting can be overridden from the command line as --name=value, e.g. --clients=5000.
+ */
+@Value
+@Builder
+public class LoadGeneratorConfig {
+
+    /**
+     * Number of simulated envoys.
+     */
+    @Default
+    int clients = 1000;
+
+    /**
+     * Fraction of the simulated envoys that use the delta protocol, the rest use SotW.
+     */
+    @Default
+    double deltaFraction = 0.5;
+
+    /**
+     * Number of services in the mesh. Each becomes a cluster, a cluster load assignment, and a virtual host.
+     */
+    @Default
+    int services = 200;
+
+    @Default
+    int endpointsPerService = 5;
+
+    /**
+     * Rate of setEndpoints calls on the ClusterManager, each changing every endpoint of a randomly chosen service.
+     */
+    @Default
+    double changesPerSecond = 25;
+
+    /**
+     * How long to generate churn for, after every client has connected and received the initial state.
+     */
+    @Default
+    int durationSeconds = 60;
+
+    /**
+     * How long a simulated envoy waits between receiving a response and acking it.
+     */
+    @Default
+    long ackDelayMillis = 0;
+
+    /**
+     * Probability that a simulated envoy rejects a response instead of acking it. The control plane ends the stream on a NACK, so the envoy then reconnects.
+     */
+    @Default
+    double nackRate = 0;
+
+    /**
+     * Fleet-wide rate at which a random envoy unsubscribes from, or resubscribes to, one of its clusters' endpoints.
+     */
+    @Default
+    double subscriptionChangesPerSecond = 0;
+
+    /**
+     * Fleet-wide rate at which a random envoy drops its stream and reconnects.
+     */
+    @Default
+    double reconnectsPerSecond = 0;
+
+    /**
+     * How long a simulated envoy waits before reconnecting after losing its stream.
+     */
+    @Default
+    long reconnectDelayMillis = 100;
+
+    /**
+     * Seed for every random choice the load generator makes, so runs are repeatable.
+     */
+    @Default
+    long seed = 1;
+
+    /**
+     * Parse --name=value arguments, overriding the defaults.
+     */
+    public static LoadGeneratorConfig parse(String... args) {
+        LoadGeneratorConfigBuilder builder = builder();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "clients" -> builder.clients(Integer.parseInt(value));
+                case "deltaFraction" -> builder.deltaFraction(Double.parseDouble(value));
+                case "services" -> builder.services(Integer.parseInt(value));
+                case "endpointsPerService" -> builder.endpointsPerService(Integer.parseInt(value));
+                case "changesPerSecond" -> builder.changesPerSecond(Double.parseDouble(value));
+                case "durationSeconds" -> builder.durationSeconds(Integer.parseInt(value));
+                case "ackDelayMillis" -> builder.ackDelayMillis(Long.parseLong(value));
+                case "nackRate" -> builder.nackRate(Double.parseDouble(value));
+                case "subscriptionChangesPerSecond" -> builder.subscriptionChangesPerSecond(Double.parseDouble(value));
+                case "reconnectsPerSecond" -> builder.reconnectsPerSecond(Double.parseDouble(value));
+                case "reconnectDelayMillis" -> builder.reconnectDelayMillis(Long.parseLong(value));
+                case "seed" -> builder.seed(Long.parseLong(value));
+                default -> throw new IllegalArgumentException("Unknown setting " + name);
+            }
+        }
+        return builder.build();
+    }
+}
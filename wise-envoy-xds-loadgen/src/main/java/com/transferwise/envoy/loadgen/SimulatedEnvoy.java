@@ -0,0 +1,260 @@
+package com.transferwise.envoy.loadgen;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.rpc.Status;
+import io.envoyproxy.envoy.config.core.v3.Node;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.service.discovery.v3.AggregatedDiscoveryServiceGrpc.AggregatedDiscoveryServiceStub;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fake envoy speaking ADS. It subscribes to every cluster (CDS wildcard), to the endpoints of every cluster it knows about (EDS), and to the example's
+ * single route configuration (RDS.) Everything it receives is acked, after the configured delay, unless it decides to NACK it instead.
+ * The protocol specifics live in the SotW and delta subclasses.
+ * Every stream gets a new epoch, callbacks and scheduled work from a previous stream are ignored once the epoch has moved on.
+ * All methods are synchronized: requests must not be sent concurrently, and responses, acks, churn and reconnects all arrive on different threads.
+ */
+abstract class SimulatedEnvoy {
+
+    protected static final String ROUTE_NAME = "all_routes";
+
+    protected final AggregatedDiscoveryServiceStub stub;
+
+    protected final SplittableRandom random;
+
+    protected final FleetStats stats;
+
+    private final Node node;
+
+    private final LoadGeneratorConfig config;
+
+    private final ChangeLog changeLog;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Clusters we know about from CDS.
+     */
+    protected final Set<String> clusters = new HashSet<>();
+
+    /**
+     * Clusters whose endpoints we unsubscribed from because of subscription churn.
+     */
+    protected final Set<String> churnedOut = new HashSet<>();
+
+    /**
+     * For each cluster we have acked endpoints for, the generation of those endpoints.
+     */
+    private final Map<String, Long> ackedGenerations = new HashMap<>();
+
+    private int epoch = 0;
+
+    private boolean connected = false;
+
+    private boolean closed = false;
+
+    private boolean synced = false;
+
+    private boolean nodeSent = false;
+
+    SimulatedEnvoy(int id, AggregatedDiscoveryServiceStub stub, LoadGeneratorConfig config, ChangeLog changeLog, FleetStats stats, ScheduledExecutorService scheduler) {
+        this.node = Node.newBuilder().setId("loadgen-envoy-" + id).setCluster("loadgen").build();
+        this.stub = stub;
+        this.config = config;
+        this.changeLog = changeLog;
+        this.stats = stats;
+        this.scheduler = scheduler;
+        this.random = new SplittableRandom(config.getSeed() * 31 + id);
+    }
+
+    /**
+     * Open a new stream and send the initial requests.
+     */
+    protected abstract void openStream(int epoch);
+
+    protected abstract void closeStream();
+
+    /**
+     * Tell the control plane about a change to the set of clusters we want endpoints for.
+     */
+    protected abstract void updateEndpointSubscriptions(Collection<String> subscribe, Collection<String> unsubscribe);
+
+    synchronized void connect() {
+        if (closed) {
+            return;
+        }
+        ++epoch;
+        clusters.clear();
+        churnedOut.clear();
+        ackedGenerations.clear();
+        nodeSent = false;
+        connected = true;
+        openStream(epoch);
+    }
+
+    /**
+     * Drop the stream and connect again, as envoy does when its control plane connection is interrupted.
+     */
+    synchronized void reconnect() {
+        if (!connected) {
+            return;
+        }
+        stats.reconnects.increment();
+        connected = false;
+        closeStream();
+        connect();
+    }
+
+    synchronized void close() {
+        closed = true;
+        if (connected) {
+            connected = false;
+            closeStream();
+        }
+    }
+
+    /**
+     * Unsubscribe from the endpoints of a random cluster, or resubscribe to one we unsubscribed from earlier.
+     */
+    synchronized void churnSubscription() {
+        if (!connected || clusters.isEmpty()) {
+            return;
+        }
+        stats.subscriptionChanges.increment();
+        if (!churnedOut.isEmpty() && (random.nextBoolean() || churnedOut.size() == clusters.size())) {
+            String cluster = pick(churnedOut);
+            churnedOut.remove(cluster);
+            updateEndpointSubscriptions(List.of(cluster), List.of());
+        } else {
+            List<String> subscribed = new ArrayList<>(clusters);
+            subscribed.removeAll(churnedOut);
+            String cluster = pick(subscribed);
+            churnedOut.add(cluster);
+            // We'll get the current state when we resubscribe, that isn't a change reaching us so it shouldn't be measured as one.
+            ackedGenerations.remove(cluster);
+            updateEndpointSubscriptions(List.of(), List.of(cluster));
+        }
+    }
+
+    private String pick(Collection<String> from) {
+        int index = random.nextInt(from.size());
+        for (String value : from) {
+            if (index-- == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Empty collection");
+    }
+
+    /**
+     * Process a response, after the configured ack delay.
+     * @param respond Acks (or NACKs, if its argument is true) the response.
+     */
+    protected void onResponse(int streamEpoch, ResponseHandler respond) {
+        stats.responses.increment();
+        if (config.getAckDelayMillis() <= 0) {
+            respond(streamEpoch, respond);
+        } else {
+            scheduler.schedule(() -> respond(streamEpoch, respond), config.getAckDelayMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void respond(int streamEpoch, ResponseHandler respond) {
+        if (streamEpoch != epoch || !connected) {
+            return;
+        }
+        boolean nack = config.getNackRate() > 0 && random.nextDouble() < config.getNackRate();
+        if (nack) {
+            stats.nacks.increment();
+        } else {
+            stats.acks.increment();
+        }
+        respond.respond(nack);
+    }
+
+    /**
+     * The control plane ended the stream. Reconnect after a delay, as envoy would.
+     */
+    protected synchronized void onStreamEnded(int streamEpoch) {
+        if (streamEpoch != epoch || !connected) {
+            return;
+        }
+        stats.disconnects.increment();
+        connected = false;
+        scheduler.schedule(() -> {
+            synchronized (this) {
+                if (streamEpoch == epoch && !connected) {
+                    connect();
+                }
+            }
+        }, config.getReconnectDelayMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * We acked endpoints for a cluster, record how long the changes they contain took to reach us.
+     */
+    protected void endpointsAcked(ClusterLoadAssignment cla) {
+        long now = System.nanoTime();
+        long generation = ChangeLog.generationOf(cla);
+        Long previous = ackedGenerations.put(cla.getClusterName(), generation);
+        if (previous != null) {
+            changeLog.acked(cla.getClusterName(), previous, generation, now);
+        }
+        if (!synced && !clusters.isEmpty() && ackedGenerations.keySet().containsAll(clusters)) {
+            synced = true;
+            stats.synced.increment();
+        }
+    }
+
+    protected void endpointsRemoved(String cluster) {
+        ackedGenerations.remove(cluster);
+    }
+
+    /**
+     * Clusters we want endpoints for.
+     */
+    protected Set<String> endpointSubscriptions() {
+        Set<String> subscriptions = new HashSet<>(clusters);
+        subscriptions.removeAll(churnedOut);
+        return subscriptions;
+    }
+
+    /**
+     * Add the node to the first request on a stream, as envoy does.
+     */
+    protected Node nodeIfFirstRequest() {
+        if (nodeSent) {
+            return null;
+        }
+        nodeSent = true;
+        return node;
+    }
+
+    protected static Status nackDetail() {
+        return Status.newBuilder().setCode(io.grpc.Status.Code.INVALID_ARGUMENT.value()).setMessage("Simulated rejection").build();
+    }
+
+    protected static <T extends Message> T unpack(Any any, Class<T> clazz) {
+        try {
+            return any.unpack(clazz);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Control plane sent a bad " + clazz.getSimpleName(), e);
+        }
+    }
+
+    @FunctionalInterface
+    protected interface ResponseHandler {
+        void respond(boolean nack);
+    }
+}
@@ -0,0 +1,126 @@
+package com.transferwise.envoy.loadgen;
+
+import com.google.protobuf.Any;
+import com.transferwise.envoy.xds.TypeUrl;
+import io.envoyproxy.envoy.config.cluster.v3.Cluster;
+import io.envoyproxy.envoy.config.core.v3.Node;
+import io.envoyproxy.envoy.config.endpoint.v3.ClusterLoadAssignment;
+import io.envoyproxy.envoy.service.discovery.v3.AggregatedDiscoveryServiceGrpc.AggregatedDiscoveryServiceStub;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryRequest;
+import io.envoyproxy.envoy.service.discovery.v3.DiscoveryResponse;
+import io.grpc.stub.StreamObserver;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Simulated envoy using the state of the world protocol.
+ * Every request carries the full list of resource names we want for its type, and the version we last accepted.
+ */
+class SotwEnvoy extends SimulatedEnvoy {
+
+    private StreamObserver<DiscoveryRequest> requests = null;
+
+    private final Map<TypeUrl, String> acceptedVersions = new EnumMap<>(TypeUrl.class);
+
+    private final Map<TypeUrl, String> lastNonces = new EnumMap<>(TypeUrl.class);
+
+    SotwEnvoy(int id, AggregatedDiscoveryServiceStub stub, LoadGeneratorConfig config, ChangeLog changeLog, FleetStats stats, ScheduledExecutorService scheduler) {
+        super(id, stub, config, changeLog, stats, scheduler);
+    }
+
+    @Override
+    protected void openStream(int epoch) {
+        acceptedVersions.clear();
+        lastNonces.clear();
+        requests = stub.streamAggregatedResources(new StreamObserver<>() {
+            @Override
+            public void onNext(DiscoveryResponse response) {
+                onResponse(epoch, nack -> respond(response, nack));
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                onStreamEnded(epoch);
+            }
+
+            @Override
+            public void onCompleted() {
+                onStreamEnded(epoch);
+            }
+        });
+        send(TypeUrl.CDS, null);
+        send(TypeUrl.RDS, null);
+    }
+
+    @Override
+    protected void closeStream() {
+        requests.onCompleted();
+    }
+
+    private Collection<String> resourceNames(TypeUrl type) {
+        return switch (type) {
+            case EDS -> new TreeSet<>(endpointSubscriptions());
+            case RDS -> List.of(ROUTE_NAME);
+            default -> List.of();
+        };
+    }
+
+    private void send(TypeUrl type, com.google.rpc.Status error) {
+        DiscoveryRequest.Builder request = DiscoveryRequest.newBuilder()
+            .setTypeUrl(type.getTypeUrl())
+            .setVersionInfo(acceptedVersions.getOrDefault(type, ""))
+            .setResponseNonce(lastNonces.getOrDefault(type, ""))
+            .addAllResourceNames(resourceNames(type));
+        Node node = nodeIfFirstRequest();
+        if (node != null) {
+            request.setNode(node);
+        }
+        if (error != null) {
+            request.setErrorDetail(error);
+        }
+        requests.onNext(request.build());
+    }
+
+    private void respond(DiscoveryResponse response, boolean nack) {
+        TypeUrl type = TypeUrl.of(response.getTypeUrl());
+        lastNonces.put(type, response.getNonce());
+        if (nack) {
+            send(type, nackDetail());
+            return;
+        }
+        acceptedVersions.put(type, response.getVersionInfo());
+        switch (type) {
+            case CDS -> {
+                Set<String> before = endpointSubscriptions();
+                clusters.clear();
+                for (Any resource : response.getResourcesList()) {
+                    clusters.add(unpack(resource, Cluster.class).getName());
+                }
+                churnedOut.retainAll(clusters);
+                send(type, null);
+                if (!before.equals(endpointSubscriptions())) {
+                    // Envoy asks for the endpoints of new clusters once it has accepted them.
+                    send(TypeUrl.EDS, null);
+                }
+            }
+            case EDS -> {
+                send(type, null);
+                for (Any resource : response.getResourcesList()) {
+                    endpointsAcked(unpack(resource, ClusterLoadAssignment.class));
+                }
+            }
+            default -> send(type, null);
+        }
+    }
+
+    @Override
+    protected void updateEndpointSubscriptions(Collection<String> subscribe, Collection<String> unsubscribe) {
+        unsubscribe.forEach(this::endpointsRemoved);
+        send(TypeUrl.EDS, null);
+    }
+}
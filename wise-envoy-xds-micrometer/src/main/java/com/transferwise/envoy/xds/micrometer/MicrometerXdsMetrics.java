@@ -0,0 +1,527 @@
+package com.transferwise.envoy.xds.micrometer;
+
+import com.transferwise.envoy.xds.TypeUrl;
+import com.transferwise.envoy.xds.XdsConfig;
+import com.transferwise.envoy.xds.api.ClientHandle;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics.Phase;
+import com.transferwise.envoy.xds.api.XdsEventListener;
+import io.envoyproxy.envoy.config.core.v3.Node;
+import io.envoyproxy.envoy.type.v3.SemanticVersion;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * <p>Publishes metrics about the discovery service to a Micrometer registry.</p>
+ *
+ * <p>Pass this as the metrics factory when building the AggregatedDiscoveryService, so every stream gets its own DiscoveryServiceManagerMetrics,
+ * and add it to the list of XdsEventListeners to count the connected streams by Envoy version.</p>
+ *
+ * <p>Streams don't record latencies directly into Micrometer timers, with a thousand streams pushing at once they would all contend on the same few meters.
+ * Instead each stream records into a stripe of a StripedHistogram, and a background thread drains the histograms into the timers every drainInterval.
+ * Recorded latencies are rounded to the midpoint of their histogram bucket, which is within 12.5% of the true value. Counters and gauges use LongAdder
+ * (or the registry's own adders) so they need no such treatment.</p>
+ *
+ * <p>Meters:</p>
+ * <ul>
+ *     <li>xds.push.latency: time from starting to push a state update to a client, until it acked everything.</li>
+ *     <li>xds.phase.send (type, phase): time a discovery service spent building and sending its part of a push.</li>
+ *     <li>xds.ack.latency (type, phase): time from sending a response until the client acked it.</li>
+ *     <li>xds.config.builder (type): time spent in config builders.</li>
+ *     <li>xds.responses, xds.response.bytes, xds.response.resources, xds.response.removed (type): responses sent and what was in them.</li>
+ *     <li>xds.nacks, xds.subscription.changes (type): responses rejected by clients, and changes to what clients subscribe to.</li>
+ *     <li>xds.pushes.suppressed (type): Pushes skipped because the client already had exactly those resources.</li>
+ *     <li>xds.backlog.depth: state updates waiting to be pushed, across all streams. xds.backlog.merges: updates merged into one already waiting.</li>
+ *     <li>xds.backlog.coalesced, xds.backlog.held: with a backlog that holds updates back (e.g. DebouncingStateBacklog), how many updates went into each push,
+ *     and how long the first of them was held.</li>
+ *     <li>xds.push.admission.delay: with a PushAdmissionController, time a push waited to be admitted.</li>
+ *     <li>xds.response.buffered: response bytes waiting to be sent, across all streams. xds.response.buffered.stream: the same per stream, recorded after
+ *     every response. xds.slow.client.disconnects: clients disconnected for not reading responses.</li>
+ *     <li>xds.client.classes (type): with ClientClasses, how many equivalence classes of clients there are. xds.client.class.size (type): the size of the
+ *     class each client joins.</li>
+ *     <li>xds.streams.active (envoy.version): connected clients. The version is major.minor, "unknown" if the client didn't say, and "other" if it
+ *     can't be parsed or once MAX_ENVOY_VERSIONS different versions have been seen, so a fleet of odd clients can't create unbounded series.</li>
+ * </ul>
+ *
+ * @param <DetailsT> details type
+ */
+@Slf4j
+public class MicrometerXdsMetrics<DetailsT> implements Supplier<DiscoveryServiceManagerMetrics>, XdsEventListener<DetailsT>, Closeable {
+
+    public static final Duration DEFAULT_DRAIN_INTERVAL = Duration.ofSeconds(1);
+
+    /**
+     * How many envoy.version tags xds.streams.active gets, after that clients are counted as "other".
+     */
+    public static final int MAX_ENVOY_VERSIONS = 20;
+
+    static final String UNKNOWN_VERSION = "unknown";
+
+    static final String OTHER_VERSION = "other";
+
+    private static final Pattern VERSION = Pattern.compile("^v?(\\d{1,4})\\.(\\d{1,4})(?:\\D|$)");
+
+    private static final TypeUrl[] TYPES = TypeUrl.values();
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final MeterRegistry registry;
+
+    private final int stripes;
+
+    private final AtomicInteger nextStripe = new AtomicInteger();
+
+    private final ScheduledExecutorService drainer;
+
+    private final DrainedTimer pushLatency;
+
+    private final AtomicReferenceArray<DrainedTimer> phaseSend = new AtomicReferenceArray<>(TYPES.length * PHASES.length);
+
+    private final AtomicReferenceArray<DrainedTimer> ackLatency = new AtomicReferenceArray<>(TYPES.length * PHASES.length);
+
+    private final AtomicReferenceArray<DrainedTimer> configBuilder = new AtomicReferenceArray<>(TYPES.length);
+
+    private final AtomicReferenceArray<ResponseCounters> responses = new AtomicReferenceArray<>(TYPES.length);
+
+    private final LongAdder backlogDepth = new LongAdder();
+
+    private final Counter backlogMerges;
+
+    private final DistributionSummary backlogCoalesced;
+
+    private final DrainedTimer backlogHeld;
+
+    private final DrainedTimer admissionDelay;
+
+    private final LongAdder responseBuffered = new LongAdder();
+
+    private final DistributionSummary streamResponseBuffered;
+
+    private final Counter slowClientDisconnects;
+
+    private final AtomicReferenceArray<ClientClassMeters> clientClasses = new AtomicReferenceArray<>(TYPES.length);
+
+    private final ConcurrentMap<String, AtomicInteger> activeStreams = new ConcurrentHashMap<>();
+
+    public MicrometerXdsMetrics(MeterRegistry registry) {
+        this(registry, DEFAULT_DRAIN_INTERVAL, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create the metrics, and start the thread that drains latencies into the registry.
+     * @param drainInterval How often recorded latencies are drained into the registry's timers.
+     * @param stripes How many stripes each latency histogram is split into. There's little benefit in having more than the number of threads handling streams.
+     */
+    public MicrometerXdsMetrics(MeterRegistry registry, Duration drainInterval, int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be at least 1");
+        }
+        this.registry = registry;
+        this.stripes = stripes;
+        this.pushLatency = new DrainedTimer(Timer.builder("xds.push.latency")
+            .description("Time from starting to push a state update to a client until it acked everything")
+            .publishPercentileHistogram()
+            .register(registry));
+        this.backlogMerges = Counter.builder("xds.backlog.merges")
+            .description("State updates merged into one already waiting in a backlog")
+            .register(registry);
+        this.backlogCoalesced = DistributionSummary.builder("xds.backlog.coalesced")
+            .description("State updates coalesced into each push by a backlog that holds updates back")
+            .register(registry);
+        this.backlogHeld = new DrainedTimer(Timer.builder("xds.backlog.held")
+            .description("Time a backlog held back the first of the state updates it coalesced")
+            .publishPercentileHistogram()
+            .register(registry));
+        this.admissionDelay = new DrainedTimer(Timer.builder("xds.push.admission.delay")
+            .description("Time a push waited to be admitted by the push admission controller")
+            .publishPercentileHistogram()
+            .register(registry));
+        this.streamResponseBuffered = DistributionSummary.builder("xds.response.buffered.stream")
+            .description("Response bytes waiting to be sent to a stream, after each response")
+            .baseUnit("bytes")
+            .register(registry);
+        this.slowClientDisconnects = Counter.builder("xds.slow.client.disconnects")
+            .description("Clients disconnected for not reading responses")
+            .register(registry);
+        Gauge.builder("xds.response.buffered", responseBuffered, LongAdder::sum)
+            .description("Response bytes waiting to be sent, across all streams")
+            .baseUnit("bytes")
+            .register(registry);
+        Gauge.builder("xds.backlog.depth", backlogDepth, LongAdder::sum)
+            .description("State updates waiting to be pushed, across all streams")
+            .register(registry);
+        this.drainer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "xds-metrics-drainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        drainer.scheduleWithFixedDelay(this::drain, drainInterval.toNanos(), drainInterval.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Metrics for a new stream.
+     */
+    @Override
+    public DiscoveryServiceManagerMetrics get() {
+        return new StreamMetrics();
+    }
+
+    @Override
+    public void onNewClient(ClientHandle clientHandle, Node node, XdsConfig<DetailsT> config) {
+        activeStreams.computeIfAbsent(versionTag(envoyVersion(node)), version -> {
+            AtomicInteger count = new AtomicInteger();
+            Gauge.builder("xds.streams.active", count, AtomicInteger::get)
+                .description("Connected clients")
+                .tags(Tags.of("envoy.version", version))
+                .register(registry);
+            return count;
+        }).incrementAndGet();
+    }
+
+    @Override
+    public void onClientDisconnected(ClientHandle clientHandle, Node node) {
+        AtomicInteger count = activeStreams.get(versionTag(envoyVersion(node)));
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    /**
+     * The tag to count a version under. Versions already tagged keep their tag, new ones get one until there are MAX_ENVOY_VERSIONS, which are never removed,
+     * so a client is counted under the same tag when it disconnects as when it connected.
+     */
+    private String versionTag(String version) {
+        if (activeStreams.containsKey(version) || activeStreams.size() < MAX_ENVOY_VERSIONS) {
+            return version;
+        }
+        return OTHER_VERSION;
+    }
+
+    /**
+     * Client's envoy version as major.minor. Patch releases don't change what we send, and would multiply the series.
+     */
+    static String envoyVersion(Node node) {
+        if (node.hasUserAgentBuildVersion() && node.getUserAgentBuildVersion().hasVersion()) {
+            SemanticVersion version = node.getUserAgentBuildVersion().getVersion();
+            return version.getMajorNumber() + "." + version.getMinorNumber();
+        }
+        if (!node.getUserAgentVersion().isEmpty()) {
+            // Free form, e.g. a git sha or a distribution's own version string.
+            Matcher matcher = VERSION.matcher(node.getUserAgentVersion());
+            if (matcher.find()) {
+                return Integer.parseInt(matcher.group(1)) + "." + Integer.parseInt(matcher.group(2));
+            }
+            return OTHER_VERSION;
+        }
+        return UNKNOWN_VERSION;
+    }
+
+    /**
+     * Stop the drain thread, after draining anything still waiting into the registry.
+     */
+    @Override
+    public void close() {
+        drainer.shutdown();
+        try {
+            if (!drainer.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Timed out waiting for the metrics drainer to stop");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        drain();
+    }
+
+    private void drain() {
+        try {
+            pushLatency.drain();
+            backlogHeld.drain();
+            admissionDelay.drain();
+            drainAll(phaseSend);
+            drainAll(ackLatency);
+            drainAll(configBuilder);
+        } catch (RuntimeException e) {
+            // Don't let one failure stop the drainer.
+            log.error("Failed to drain xDS metrics", e);
+        }
+    }
+
+    private void drainAll(AtomicReferenceArray<DrainedTimer> timers) {
+        for (int i = 0; i < timers.length(); ++i) {
+            DrainedTimer timer = timers.get(i);
+            if (timer != null) {
+                timer.drain();
+            }
+        }
+    }
+
+    /**
+     * Meters are only registered for the types (and phases) that are actually used, to avoid publishing lots of empty series.
+     */
+    private static <T> T getOrCreate(AtomicReferenceArray<T> array, int index, Supplier<T> create) {
+        T value = array.get(index);
+        if (value == null) {
+            // If we lose the race, the registry will have returned the winner's meters to us too, so nothing recorded is lost.
+            value = create.get();
+            if (!array.compareAndSet(index, null, value)) {
+                value = array.get(index);
+            }
+        }
+        return value;
+    }
+
+    private DrainedTimer phaseTimer(AtomicReferenceArray<DrainedTimer> timers, String name, String description, TypeUrl typeUrl, Phase phase) {
+        return getOrCreate(timers, typeUrl.ordinal() * PHASES.length + phase.ordinal(), () -> new DrainedTimer(Timer.builder(name)
+            .description(description)
+            .tags(Tags.of("type", typeUrl.name(), "phase", phase.name().toLowerCase(Locale.ROOT)))
+            .publishPercentileHistogram()
+            .register(registry)));
+    }
+
+    private DrainedTimer configBuilderTimer(TypeUrl typeUrl) {
+        return getOrCreate(configBuilder, typeUrl.ordinal(), () -> new DrainedTimer(Timer.builder("xds.config.builder")
+            .description("Time spent in config builders")
+            .tags(Tags.of("type", typeUrl.name()))
+            .publishPercentileHistogram()
+            .register(registry)));
+    }
+
+    private ResponseCounters responseCounters(TypeUrl typeUrl) {
+        return getOrCreate(responses, typeUrl.ordinal(), () -> new ResponseCounters(registry, Tags.of("type", typeUrl.name())));
+    }
+
+    private ClientClassMeters clientClassMeters(TypeUrl typeUrl) {
+        return getOrCreate(clientClasses, typeUrl.ordinal(), () -> new ClientClassMeters(registry, Tags.of("type", typeUrl.name())));
+    }
+
+    /**
+     * A Micrometer timer, fed from a striped histogram.
+     */
+    private final class DrainedTimer {
+
+        private final StripedHistogram histogram = new StripedHistogram(stripes);
+
+        private final Timer timer;
+
+        private DrainedTimer(Timer timer) {
+            this.timer = timer;
+        }
+
+        private void record(int stripe, long nanos) {
+            histogram.record(stripe, nanos);
+        }
+
+        private void drain() {
+            histogram.drain((nanos, count) -> {
+                for (long i = 0; i < count; ++i) {
+                    timer.record(nanos, TimeUnit.NANOSECONDS);
+                }
+            });
+        }
+    }
+
+    private static final class ResponseCounters {
+
+        private final Counter responses;
+
+        private final Counter bytes;
+
+        private final Counter resources;
+
+        private final Counter removed;
+
+        private final Counter nacks;
+
+        private final Counter subscriptionChanges;
+
+        private final Counter pushesSuppressed;
+
+        private ResponseCounters(MeterRegistry registry, Tags tags) {
+            responses = Counter.builder("xds.responses").description("Responses sent").tags(tags).register(registry);
+            bytes = Counter.builder("xds.response.bytes").description("Serialized size of responses sent").baseUnit("bytes").tags(tags).register(registry);
+            resources = Counter.builder("xds.response.resources").description("Resources in responses sent").tags(tags).register(registry);
+            removed = Counter.builder("xds.response.removed").description("Resources removed by responses sent").tags(tags).register(registry);
+            nacks = Counter.builder("xds.nacks").description("Responses rejected by clients").tags(tags).register(registry);
+            subscriptionChanges = Counter.builder("xds.subscription.changes").description("Changes to the resources clients are subscribed to").tags(tags).register(registry);
+            pushesSuppressed = Counter.builder("xds.pushes.suppressed").description("Pushes skipped because the client already had the same resources").tags(tags).register(registry);
+        }
+    }
+
+    private static final class ClientClassMeters {
+
+        private final LongAdder classes = new LongAdder();
+
+        private final DistributionSummary size;
+
+        private ClientClassMeters(MeterRegistry registry, Tags tags) {
+            Gauge.builder("xds.client.classes", classes, LongAdder::sum).description("Equivalence classes of clients that get the same config").tags(tags).register(registry);
+            size = DistributionSummary.builder("xds.client.class.size").description("Size of the class of clients each client joins").tags(tags).register(registry);
+        }
+    }
+
+    /**
+     * Metrics for one stream. Like every DiscoveryServiceManagerMetrics this is only called by one thread at a time, the shared meters it records into are thread safe.
+     */
+    private final class StreamMetrics implements DiscoveryServiceManagerMetrics {
+
+        /**
+         * Stripes are handed out round-robin, so concurrently active streams are spread across them.
+         */
+        private final int stripe = Math.floorMod(nextStripe.getAndIncrement(), stripes);
+
+        private long pushStartedAt = 0;
+
+        private int backlogged = 0;
+
+        private long buffered = 0;
+
+        private boolean closed = false;
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            backlogDepth.add(-backlogged);
+            backlogged = 0;
+            responseBuffered.add(-buffered);
+            buffered = 0;
+        }
+
+        @Override
+        public void onPushBegin() {
+            pushStartedAt = System.nanoTime();
+        }
+
+        @Override
+        public void onPushComplete() {
+            pushLatency.record(stripe, System.nanoTime() - pushStartedAt);
+        }
+
+        @Override
+        public void onPhaseSent(TypeUrl typeUrl, Phase phase, long nanos) {
+            phaseTimer(phaseSend, "xds.phase.send", "Time spent building and sending a part of a push", typeUrl, phase).record(stripe, nanos);
+        }
+
+        @Override
+        public void onPhaseAcked(TypeUrl typeUrl, Phase phase, long nanos) {
+            phaseTimer(ackLatency, "xds.ack.latency", "Time from sending a response until the client acked it", typeUrl, phase).record(stripe, nanos);
+        }
+
+        @Override
+        public void onResponseSent(TypeUrl typeUrl, int resources, int removed, int bytes) {
+            ResponseCounters counters = responseCounters(typeUrl);
+            counters.responses.increment();
+            counters.bytes.increment(bytes);
+            counters.resources.increment(resources);
+            counters.removed.increment(removed);
+        }
+
+        @Override
+        public void onNack(TypeUrl typeUrl) {
+            responseCounters(typeUrl).nacks.increment();
+        }
+
+        @Override
+        public void onSubscriptionChange(TypeUrl typeUrl) {
+            responseCounters(typeUrl).subscriptionChanges.increment();
+        }
+
+        @Override
+        public void onPushSuppressed(TypeUrl typeUrl) {
+            responseCounters(typeUrl).pushesSuppressed.increment();
+        }
+
+        @Override
+        public void onConfigBuilderInvoked(TypeUrl typeUrl, long nanos) {
+            configBuilderTimer(typeUrl).record(stripe, nanos);
+        }
+
+        @Override
+        public void onBacklogPut(int depth, boolean merged) {
+            if (merged) {
+                backlogMerges.increment();
+            }
+            backlogDepthChanged(depth);
+        }
+
+        @Override
+        public void onBacklogTake(int depth) {
+            backlogDepthChanged(depth);
+        }
+
+        @Override
+        public void onPushAdmitted(long waitedNanos) {
+            admissionDelay.record(stripe, waitedNanos);
+        }
+
+        @Override
+        public void onBacklogCoalesced(int updates, long heldNanos) {
+            backlogCoalesced.record(updates);
+            backlogHeld.record(stripe, heldNanos);
+        }
+
+        @Override
+        public void onResponseBuffered(long bufferedBytes) {
+            if (bufferedBytes > 0) {
+                streamResponseBuffered.record(bufferedBytes);
+            }
+            if (closed) {
+                return;
+            }
+            responseBuffered.add(bufferedBytes - buffered);
+            buffered = bufferedBytes;
+        }
+
+        @Override
+        public void onSlowClientDisconnected(long bufferedBytes) {
+            slowClientDisconnects.increment();
+        }
+
+        @Override
+        public void onClientClassJoined(TypeUrl typeUrl, int classSize) {
+            ClientClassMeters meters = clientClassMeters(typeUrl);
+            if (classSize == 1) {
+                meters.classes.increment();
+            }
+            meters.size.record(classSize);
+        }
+
+        @Override
+        public void onClientClassLeft(TypeUrl typeUrl, int classSize) {
+            if (classSize == 0) {
+                clientClassMeters(typeUrl).classes.decrement();
+            }
+        }
+
+        private void backlogDepthChanged(int depth) {
+            if (closed) {
+                return;
+            }
+            backlogDepth.add(depth - backlogged);
+            backlogged = depth;
+        }
+    }
+}
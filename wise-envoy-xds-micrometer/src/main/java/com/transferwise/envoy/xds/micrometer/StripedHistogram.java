@@ -0,0 +1,106 @@
+package com.transferwise.envoy.xds.micrometer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A histogram of non-negative long values that many streams can record into at once without contending on a shared meter.</p>
+ *
+ * <p>Values are counted in log-linear buckets: exact below 8, then four buckets per power of two, so a bucket's midpoint is within 12.5% of any
+ * value in it. Values above 2^40 (about 18 minutes in nanoseconds, or a terabyte) are counted in the last bucket.</p>
+ *
+ * <p>The counts are split into stripes. Each recorder picks a stripe when it's created, and only increments counters in that stripe,
+ * so with at least as many stripes as threads recording at once, most increments don't contend with any other.
+ * A single reader periodically drains the counts from all of the stripes.</p>
+ */
+public final class StripedHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int MAX_EXPONENT = 40;
+
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final int stripes;
+
+    private final AtomicLongArray counts;
+
+    public StripedHistogram(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be at least 1");
+        }
+        this.stripes = stripes;
+        this.counts = new AtomicLongArray(stripes * BUCKETS);
+    }
+
+    /**
+     * Count a value.
+     * @param stripe the recorder's stripe, from 0 to stripes - 1
+     * @param value the value, negative values are counted as 0
+     */
+    public void record(int stripe, long value) {
+        counts.incrementAndGet(stripe * BUCKETS + bucketOf(value));
+    }
+
+    /**
+     * Reset every bucket to zero, passing the counts that were in each non-empty bucket to the consumer.
+     * Values recorded while a drain is in progress are either included in it or left for the next one, they are never lost.
+     * This should only be called from one thread at a time.
+     */
+    public void drain(BucketConsumer consumer) {
+        for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+            long count = 0;
+            for (int stripe = 0; stripe < stripes; ++stripe) {
+                int index = stripe * BUCKETS + bucket;
+                // Cheap read first, most buckets are empty.
+                if (counts.get(index) != 0) {
+                    count += counts.getAndSet(index, 0);
+                }
+            }
+            if (count != 0) {
+                consumer.accept(midpointOf(bucket), count);
+            }
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    static long lowerBoundOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + mantissa) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long midpointOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return lowerBoundOf(bucket) + width / 2;
+    }
+
+    @FunctionalInterface
+    public interface BucketConsumer {
+        /**
+         * Receives one non-empty bucket.
+         * @param value a value representative of the bucket, its midpoint
+         * @param count how many values were counted in the bucket
+         */
+        void accept(long value, long count);
+    }
+}
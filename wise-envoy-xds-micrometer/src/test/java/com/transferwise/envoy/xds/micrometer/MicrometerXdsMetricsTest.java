@@ -0,0 +1,190 @@
+package com.transferwise.envoy.xds.micrometer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import com.transferwise.envoy.xds.TypeUrl;
+import com.transferwise.envoy.xds.XdsConfig;
+import com.transferwise.envoy.xds.api.ClientHandle;
+import com.transferwise.envoy.xds.api.DiscoveryServiceManagerMetrics;
+import io.envoyproxy.envoy.config.core.v3.BuildVersion;
+import io.envoyproxy.envoy.config.core.v3.Node;
+import io.envoyproxy.envoy.type.v3.SemanticVersion;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class MicrometerXdsMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    // Never drain on the timer, the tests drain by closing.
+    private final MicrometerXdsMetrics<Object> xdsMetrics = new MicrometerXdsMetrics<>(registry, Duration.ofHours(1), 2);
+
+    @Test
+    public void testLatenciesAreDrainedIntoTimers() {
+        DiscoveryServiceManagerMetrics stream = xdsMetrics.get();
+        stream.onPhaseAcked(TypeUrl.EDS, DiscoveryServiceManagerMetrics.Phase.PRE, TimeUnit.MILLISECONDS.toNanos(2));
+        stream.onPhaseAcked(TypeUrl.EDS, DiscoveryServiceManagerMetrics.Phase.PRE, TimeUnit.MILLISECONDS.toNanos(2));
+        stream.onPushBegin();
+        stream.onPushComplete();
+
+        // Nothing is published until the histograms are drained.
+        assertThat(registry.get("xds.ack.latency").tags("type", "EDS", "phase", "pre").timer().count()).isZero();
+
+        xdsMetrics.close();
+
+        Timer ackLatency = registry.get("xds.ack.latency").tags("type", "EDS", "phase", "pre").timer();
+        assertThat(ackLatency.count()).isEqualTo(2);
+        assertThat(ackLatency.totalTime(TimeUnit.MILLISECONDS)).isCloseTo(4.0, within(0.5));
+        assertThat(registry.get("xds.push.latency").timer().count()).isEqualTo(1);
+        // Only types that were used get meters.
+        assertThat(registry.find("xds.ack.latency").tags("type", "CDS").timer()).isNull();
+    }
+
+    @Test
+    public void testCountsResponses() {
+        DiscoveryServiceManagerMetrics stream = xdsMetrics.get();
+        stream.onResponseSent(TypeUrl.CDS, 3, 1, 100);
+        stream.onResponseSent(TypeUrl.CDS, 2, 0, 50);
+        stream.onNack(TypeUrl.CDS);
+        stream.onSubscriptionChange(TypeUrl.EDS);
+        stream.onPushSuppressed(TypeUrl.CDS);
+
+        assertThat(registry.get("xds.responses").tags("type", "CDS").counter().count()).isEqualTo(2);
+        assertThat(registry.get("xds.response.bytes").tags("type", "CDS").counter().count()).isEqualTo(150);
+        assertThat(registry.get("xds.response.resources").tags("type", "CDS").counter().count()).isEqualTo(5);
+        assertThat(registry.get("xds.response.removed").tags("type", "CDS").counter().count()).isEqualTo(1);
+        assertThat(registry.get("xds.nacks").tags("type", "CDS").counter().count()).isEqualTo(1);
+        assertThat(registry.get("xds.subscription.changes").tags("type", "EDS").counter().count()).isEqualTo(1);
+        assertThat(registry.get("xds.pushes.suppressed").tags("type", "CDS").counter().count()).isEqualTo(1);
+        xdsMetrics.close();
+    }
+
+    @Test
+    public void testBacklogDepthIsSummedAcrossStreams() {
+        DiscoveryServiceManagerMetrics first = xdsMetrics.get();
+        DiscoveryServiceManagerMetrics second = xdsMetrics.get();
+        first.onBacklogPut(1, false);
+        first.onBacklogPut(1, true);
+        second.onBacklogPut(1, false);
+        second.onBacklogPut(2, false);
+
+        assertThat(registry.get("xds.backlog.depth").gauge().value()).isEqualTo(3);
+        assertThat(registry.get("xds.backlog.merges").counter().count()).isEqualTo(1);
+
+        first.onBacklogTake(0);
+        assertThat(registry.get("xds.backlog.depth").gauge().value()).isEqualTo(2);
+
+        // Whatever a stream had waiting goes away with it.
+        second.close();
+        assertThat(registry.get("xds.backlog.depth").gauge().value()).isEqualTo(0);
+        xdsMetrics.close();
+    }
+
+    @Test
+    public void testBacklogCoalescing() {
+        DiscoveryServiceManagerMetrics stream = xdsMetrics.get();
+        stream.onBacklogCoalesced(3, TimeUnit.MILLISECONDS.toNanos(20));
+        stream.onBacklogCoalesced(1, TimeUnit.MILLISECONDS.toNanos(10));
+        xdsMetrics.close();
+
+        assertThat(registry.get("xds.backlog.coalesced").summary().count()).isEqualTo(2);
+        assertThat(registry.get("xds.backlog.coalesced").summary().totalAmount()).isEqualTo(4);
+        assertThat(registry.get("xds.backlog.held").timer().count()).isEqualTo(2);
+    }
+
+    @Test
+    public void testAdmissionDelay() {
+        DiscoveryServiceManagerMetrics stream = xdsMetrics.get();
+        stream.onPushAdmitted(0);
+        stream.onPushAdmitted(TimeUnit.MILLISECONDS.toNanos(50));
+        xdsMetrics.close();
+
+        assertThat(registry.get("xds.push.admission.delay").timer().count()).isEqualTo(2);
+    }
+
+    @Test
+    public void testResponseBufferedIsSummedAcrossStreams() {
+        DiscoveryServiceManagerMetrics first = xdsMetrics.get();
+        DiscoveryServiceManagerMetrics second = xdsMetrics.get();
+        first.onResponseBuffered(100);
+        first.onResponseBuffered(300);
+        second.onResponseBuffered(50);
+
+        assertThat(registry.get("xds.response.buffered").gauge().value()).isEqualTo(350);
+        assertThat(registry.get("xds.response.buffered.stream").summary().max()).isEqualTo(300);
+
+        first.onResponseBuffered(0);
+        assertThat(registry.get("xds.response.buffered").gauge().value()).isEqualTo(50);
+
+        // A stream that was disconnected for not reading takes what it had waiting with it.
+        second.onSlowClientDisconnected(50);
+        second.close();
+        assertThat(registry.get("xds.response.buffered").gauge().value()).isEqualTo(0);
+        assertThat(registry.get("xds.slow.client.disconnects").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void testClientClasses() {
+        DiscoveryServiceManagerMetrics first = xdsMetrics.get();
+        DiscoveryServiceManagerMetrics second = xdsMetrics.get();
+        first.onClientClassJoined(TypeUrl.CDS, 1);
+        second.onClientClassJoined(TypeUrl.CDS, 2);
+        first.onClientClassJoined(TypeUrl.EDS, 1);
+
+        assertThat(registry.get("xds.client.classes").tag("type", "CDS").gauge().value()).isEqualTo(1);
+        assertThat(registry.get("xds.client.classes").tag("type", "EDS").gauge().value()).isEqualTo(1);
+        assertThat(registry.get("xds.client.class.size").tag("type", "CDS").summary().max()).isEqualTo(2);
+
+        second.onClientClassLeft(TypeUrl.CDS, 1);
+        assertThat(registry.get("xds.client.classes").tag("type", "CDS").gauge().value()).isEqualTo(1);
+        first.onClientClassLeft(TypeUrl.CDS, 0);
+        assertThat(registry.get("xds.client.classes").tag("type", "CDS").gauge().value()).isEqualTo(0);
+    }
+
+    @Test
+    public void testActiveStreamsByEnvoyVersion() {
+        Node node = Node.newBuilder()
+            .setUserAgentBuildVersion(BuildVersion.newBuilder().setVersion(SemanticVersion.newBuilder().setMajorNumber(1).setMinorNumber(25).setPatch(1)))
+            .build();
+        ClientHandle first = new ClientHandle() { };
+        ClientHandle second = new ClientHandle() { };
+
+        xdsMetrics.onNewClient(first, node, XdsConfig.builder().build());
+        xdsMetrics.onNewClient(second, node, XdsConfig.builder().build());
+        xdsMetrics.onNewClient(new ClientHandle() { }, Node.getDefaultInstance(), XdsConfig.builder().build());
+        xdsMetrics.onClientDisconnected(first, node);
+
+        assertThat(registry.get("xds.streams.active").tags("envoy.version", "1.25").gauge().value()).isEqualTo(1);
+        assertThat(registry.get("xds.streams.active").tags("envoy.version", "unknown").gauge().value()).isEqualTo(1);
+        xdsMetrics.close();
+    }
+
+    @Test
+    public void testEnvoyVersionIsBucketed() {
+        assertThat(MicrometerXdsMetrics.envoyVersion(Node.newBuilder().setUserAgentVersion("v1.26.3-dev").build())).isEqualTo("1.26");
+        assertThat(MicrometerXdsMetrics.envoyVersion(Node.newBuilder().setUserAgentVersion("1.27").build())).isEqualTo("1.27");
+        assertThat(MicrometerXdsMetrics.envoyVersion(Node.newBuilder().setUserAgentVersion("3f2a9c1/1.26.3/Clean/RELEASE").build())).isEqualTo("other");
+        assertThat(MicrometerXdsMetrics.envoyVersion(Node.getDefaultInstance())).isEqualTo("unknown");
+    }
+
+    @Test
+    public void testEnvoyVersionTagsAreLimited() {
+        for (int i = 0; i < MicrometerXdsMetrics.MAX_ENVOY_VERSIONS + 5; ++i) {
+            xdsMetrics.onNewClient(new ClientHandle() { }, Node.newBuilder().setUserAgentVersion("1." + i).build(), XdsConfig.builder().build());
+        }
+        Node late = Node.newBuilder().setUserAgentVersion("2.0").build();
+        ClientHandle client = new ClientHandle() { };
+        xdsMetrics.onNewClient(client, late, XdsConfig.builder().build());
+
+        assertThat(registry.find("xds.streams.active").gauges()).hasSize(MicrometerXdsMetrics.MAX_ENVOY_VERSIONS + 1);
+        assertThat(registry.get("xds.streams.active").tags("envoy.version", "other").gauge().value()).isEqualTo(6);
+
+        xdsMetrics.onClientDisconnected(client, late);
+        assertThat(registry.get("xds.streams.active").tags("envoy.version", "other").gauge().value()).isEqualTo(5);
+        xdsMetrics.close();
+    }
+}
@@ -0,0 +1,96 @@
+package com.transferwise.envoy.xds.micrometer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.jupiter.api.Test;
+
+public class StripedHistogramTest {
+
+    private static TreeMap<Long, Long> drain(StripedHistogram histogram) {
+        TreeMap<Long, Long> drained = new TreeMap<>();
+        histogram.drain((value, count) -> drained.merge(value, count, Long::sum));
+        return drained;
+    }
+
+    @Test
+    public void testBucketsCoverEveryValueInOrder() {
+        assertThat(StripedHistogram.bucketOf(-5)).isEqualTo(0);
+        assertThat(StripedHistogram.bucketOf(Long.MAX_VALUE)).isEqualTo(StripedHistogram.BUCKETS - 1);
+        for (int bucket = 1; bucket < StripedHistogram.BUCKETS; ++bucket) {
+            long lower = StripedHistogram.lowerBoundOf(bucket);
+            assertThat(lower).isGreaterThan(StripedHistogram.lowerBoundOf(bucket - 1));
+            assertThat(StripedHistogram.bucketOf(lower)).isEqualTo(bucket);
+            assertThat(StripedHistogram.bucketOf(lower - 1)).isEqualTo(bucket - 1);
+            assertThat(StripedHistogram.bucketOf(StripedHistogram.midpointOf(bucket))).isEqualTo(bucket);
+        }
+    }
+
+    @Test
+    public void testMidpointIsClose() {
+        for (long value = 1; value < 1L << 40; value = value * 3 + 1) {
+            long midpoint = StripedHistogram.midpointOf(StripedHistogram.bucketOf(value));
+            assertThat((double) Math.abs(midpoint - value) / value).isLessThanOrEqualTo(0.125);
+        }
+    }
+
+    @Test
+    public void testDrainSumsStripesAndResets() {
+        StripedHistogram histogram = new StripedHistogram(4);
+        histogram.record(0, 3);
+        histogram.record(1, 3);
+        histogram.record(3, 1000);
+
+        TreeMap<Long, Long> drained = drain(histogram);
+        assertThat(drained).hasSize(2);
+        assertThat(drained.get(3L)).isEqualTo(2);
+        assertThat(drained.lastEntry().getValue()).isEqualTo(1);
+        assertThat(drain(histogram)).isEmpty();
+    }
+
+    @Test
+    public void testConcurrentRecordsAreNotLost() throws InterruptedException {
+        StripedHistogram histogram = new StripedHistogram(2);
+        int threads = 4;
+        int perThread = 10000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> recorders = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            // Two threads per stripe, so they really do contend.
+            int stripe = t % 2;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < perThread; ++i) {
+                    histogram.record(stripe, i);
+                }
+            });
+            thread.start();
+            recorders.add(thread);
+        }
+        LongAdder total = new LongAdder();
+        start.countDown();
+        while (recorders.stream().anyMatch(Thread::isAlive)) {
+            histogram.drain((value, count) -> total.add(count));
+        }
+        for (Thread thread : recorders) {
+            thread.join();
+        }
+        histogram.drain((value, count) -> total.add(count));
+        assertThat(total.sum()).isEqualTo((long) threads * perThread);
+    }
+
+    @Test
+    public void testRejectsNoStripes() {
+        assertThatThrownBy(() -> new StripedHistogram(0)).isInstanceOf(IllegalArgumentException.class);
+    }
+}